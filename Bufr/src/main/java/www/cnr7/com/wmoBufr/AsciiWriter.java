@@ -0,0 +1,302 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Writes formatted output to a file as US-ASCII bytes,
+ * through a fixed size buffer.
+ * <p>
+ * BufrFormatter formats each part of a message, such as
+ * one subset, into a StringBuilder and calls {@link #drain drain}
+ * to write and clear it.  So the memory used does not depend
+ * on the size of the message.
+ * <p>
+ * Chars above 127 are written as '?', as with an
+ * OutputStreamWriter using US-ASCII.
+ * <p>
+ * An AsciiWriter made without a file name keeps all the output
+ * in memory, growing the buffer as needed, until
+ * {@link #saveAs saveAs} writes it.  BufrPipeline uses this
+ * to format a message in one thread and write it in another.
+ *
+ * @author S. Sullivan
+ */
+
+class AsciiWriter {
+
+static int BUF_LEN = 65536;
+
+int bugs;
+String fname;
+OutputStream ostm;          // null if in memory
+byte[] buf = new byte[ BUF_LEN];
+int bufPos = 0;
+long numBytes = 0;          // total bytes written
+
+
+
+/**
+ * Creates the file fname.
+ * The caller must call either close or abort.
+ */
+
+AsciiWriter(
+  int bugs,
+  String fname)
+throws BufrException
+{
+  this.bugs = bugs;
+  this.fname = fname;
+  try {
+    ostm = new FileOutputStream( fname);
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("cannot write file \"" + fname + "\"");
+  }
+}
+
+
+
+/**
+ * Like AsciiWriter( bugs, fname), but creates the file only if
+ * it doesn't exist, in the same call, like saveAs.
+ * Returns null if fname already exists.
+ */
+
+static AsciiWriter createNew(
+  int bugs,
+  String fname)
+throws BufrException
+{
+  AsciiWriter wtr = new AsciiWriter( bugs);
+  wtr.fname = fname;
+  try {
+    wtr.ostm = Files.newOutputStream( Paths.get( fname),
+      StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+  }
+  catch( FileAlreadyExistsException exc) {
+    return null;
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("cannot write file \"" + fname + "\"");
+  }
+  return wtr;
+}
+
+
+
+/**
+ * Keeps the output in memory, for saveAs.
+ */
+
+AsciiWriter(
+  int bugs)
+{
+  this.bugs = bugs;
+  this.fname = null;
+  this.ostm = null;
+}
+
+
+
+void write( CharSequence seq)
+throws BufrException
+{
+  int len = seq.length();
+  for (int ii = 0; ii < len; ii++) {
+    if (bufPos == buf.length) flushBuf();
+    char cval = seq.charAt( ii);
+    if (cval < 128) buf[bufPos++] = (byte) cval;
+    else buf[bufPos++] = (byte) '?';
+  }
+}
+
+
+
+/**
+ * Writes sbuf and clears it.
+ */
+
+void drain( StringBuilder sbuf)
+throws BufrException
+{
+  write( sbuf);
+  sbuf.setLength( 0);
+}
+
+
+
+private void flushBuf()
+throws BufrException
+{
+  if (ostm == null) {
+    // In memory: grow the buffer instead.
+    byte[] newBuf = new byte[ 2 * buf.length];
+    System.arraycopy( buf, 0, newBuf, 0, bufPos);
+    buf = newBuf;
+    return;
+  }
+  try {
+    ostm.write( buf, 0, bufPos);
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("cannot write file \"" + fname + "\"");
+  }
+  numBytes += bufPos;
+  bufPos = 0;
+}
+
+
+
+void close()
+throws BufrException
+{
+  flushBuf();
+  try {
+    ostm.close();
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("cannot close file \"" + fname + "\"");
+  }
+  if (bugs >= 1) prtln("AsciiWriter.close: " + this);
+}
+
+
+
+/**
+ * Closes and deletes the partly written file,
+ * after an error.  Does not throw.
+ */
+
+void abort() {
+  try {
+    ostm.close();
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+  }
+  new File( fname).delete();
+  if (bugs >= 1) prtln("AsciiWriter.abort: " + this);
+}
+
+
+
+/**
+ * For an in-memory AsciiWriter: creates the file fname
+ * and writes all the output to it.
+ * Returns false, without writing, if fname already exists.
+ * Creating the file only if it's new is a single call,
+ * so we don't need a separate check that it exists.
+ */
+
+boolean saveAs( String fname)
+throws BufrException
+{
+  this.fname = fname;
+  OutputStream fstm = null;
+  try {
+    fstm = Files.newOutputStream( Paths.get( fname),
+      StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+  }
+  catch( FileAlreadyExistsException exc) {
+    return false;
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("cannot write file \"" + fname + "\"");
+  }
+
+  boolean allOk = false;
+  try {
+    fstm.write( buf, 0, bufPos);
+    fstm.close();
+    allOk = true;
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("cannot write file \"" + fname + "\"");
+  }
+  finally {
+    if (! allOk) {
+      // Don't leave a partial file.
+      try { fstm.close(); }
+      catch( IOException exc) {}
+      new File( fname).delete();
+    }
+  }
+  numBytes = bufPos;
+  bufPos = 0;
+  buf = null;
+  if (bugs >= 1) prtln("AsciiWriter.saveAs: " + this);
+  return true;
+}
+
+
+
+public String toString() {
+  return "fname: \"" + fname + "\"  numBytes: " + (numBytes + bufPos);
+}
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("AsciiWriter: " + msg);
+}
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
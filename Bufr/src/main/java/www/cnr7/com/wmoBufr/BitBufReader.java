@@ -35,12 +35,15 @@
 
 package www.cnr7.com.wmoBufr;
 
+import java.nio.ByteBuffer;
+
 
 
 /**
  * Provides bit-oriented access to an array of bytes.
- * The constructor takes an array of bytes; callers can then
- * get back strings of bits as integers.
+ * The constructor takes an array of bytes, or a ByteBuffer
+ * such as a slice of a memory mapped file;
+ * callers can then get back strings of bits as integers.
  * <p>
  * Maintains a pointer to the current bit position,
  * {@link #bitPos bitPos}, that is automatically incremented
@@ -57,11 +60,13 @@ static String[] typeNames = {"UNKNOWN", "DATA", "DESC" };
 
 int bugs = 0;
 int bufType;             // one of BBTP_*
-byte[] byteBuf;          // the data
-int offsetInFile;        // for debugging, the offset in the BUFR file
+ByteBuffer byteBuf;      // the data.  Accessed only by absolute index,
+                         // so the buffer position is never changed.
+int byteLen;             // num bytes in byteBuf = byteBuf.limit()
+long offsetInFile;       // for debugging, the offset in the BUFR file
 int offsetInMessage;     // for debugging, the offset in the BUFR message
 
-int totBits;             // total num bits = 8 * byteBuf.len
+int totBits;             // total num bits = 8 * byteLen
 int bitPos;              // bit position = 8 * byte position
 
 
@@ -83,7 +88,27 @@ BitBufReader(
   int bugs,
   int bufType,
   byte[] byteBuf,          // the data
-  int offsetInFile,        // for debugging, the offset in the BUFR file
+  long offsetInFile,       // for debugging, the offset in the BUFR file
+  int offsetInMessage)     // for debugging, the offset in the BUFR message
+{
+  this( bugs, bufType, ByteBuffer.wrap( byteBuf),
+    offsetInFile, offsetInMessage);
+}
+
+
+
+/**
+ * Creates the buffer on a ByteBuffer, for example a slice
+ * of a memory mapped file.
+ * The bytes from index 0 to <code>byteBuf.limit()</code> are used.
+ * <code>byteBuf</code> is not copied, and its position is not altered.
+ */
+
+BitBufReader(
+  int bugs,
+  int bufType,
+  ByteBuffer byteBuf,      // the data
+  long offsetInFile,       // for debugging, the offset in the BUFR file
   int offsetInMessage)     // for debugging, the offset in the BUFR message
 {
   this.bugs = bugs;
@@ -92,7 +117,8 @@ BitBufReader(
   this.offsetInFile = offsetInFile;
   this.offsetInMessage = offsetInMessage;
 
-  totBits = 8 * byteBuf.length;
+  byteLen = byteBuf.limit();
+  totBits = 8 * byteLen;
   bitPos = 0;
 }
 
@@ -104,7 +130,7 @@ public String toString() {
     + "  totBits: %d\n"
     + "  bitPos: %d  which is bit %d  within byte %d = 0x%x\n",
     typeNames[bufType],
-    byteBuf.length, byteBuf.length,
+    byteLen, byteLen,
     totBits,
     bitPos, bitPos % 8, bitPos / 8, bitPos / 8);
   return res;
@@ -125,9 +151,24 @@ void setBitPos( int bitPos) {
 }
 
 
+/**
+ * Returns a new reader on the same bytes, positioned at bitPos.
+ * The bytes are shared, not copied.  Since readers only use
+ * absolute gets, readers on the same bytes may be used
+ * by different threads.
+ */
+BitBufReader copyAt( int bitPos) {
+  BitBufReader res = new BitBufReader( bugs, bufType, byteBuf,
+    offsetInFile, offsetInMessage);
+  res.setBitPos( bitPos);
+  return res;
+}
+
+
+
 /** Returns buffer length in bytes */
 int getByteLength() {
-  return byteBuf.length;
+  return byteLen;
 }
 
 
@@ -175,9 +216,9 @@ throws BufrException
     + " within byte %d = 0x%x\n",
     bitPos, bitPos % 8, offset, offset));
 
-  offset = offsetInFile + bitPos / 8;
+  long fileOffset = offsetInFile + bitPos / 8;
   sbuf.append( String.format("Byte offset in file: %d = 0x%x\n",
-    offset, offset));
+    fileOffset, fileOffset));
 
   offset = offsetInMessage + bitPos / 8;
   sbuf.append( String.format("Byte offset in message: %d = 0x%x\n",
@@ -196,7 +237,7 @@ throws BufrException
       char cc;
       if (ipos < bitPos) cc = '_';
       else {
-        byte bt = byteBuf[ipos/8];
+        byte bt = byteBuf.get( ipos/8);
         int ival = (bt >> (7 - ipos%8)) & 1;
         if (ival == 0) cc = '0';
         else cc = '1';
@@ -315,9 +356,92 @@ throws BufrException
 /**
  * Retrieves the next desBits and returns as an int.
  * Increments bitPos.
+ * <p>
+ * Normally uses {@link #getLongFast getLongFast}.
+ * Descriptors, errors, and high debug levels use
+ * {@link #getIntByBytes getIntByBytes}.
  */
 int getInt( int desBits)
 throws BufrException
+{
+  if (desBits > 0 && desBits <= 31
+    && bitPos + desBits <= totBits
+    && bufType == BBTP_DATA
+    && bugs < 15)
+  {
+    return (int) getLongFast( desBits);
+  }
+  else return getIntByBytes( desBits);
+}
+
+
+
+
+/**
+ * Retrieves the next desBits and returns as a long.
+ * desBits may be 1 to 64; the value is unsigned, so for 64 bits
+ * the result may be negative.
+ * Increments bitPos.
+ */
+long getLong( int desBits)
+throws BufrException
+{
+  if (bufType != BBTP_DATA) throwerr("bufType != BBTP_DATA");
+  if (desBits <= 0) throwerr("desBits <= 0");
+  if (desBits > 64) throwerr("desBits too big.  desBits: " + desBits);
+  if (bitPos + desBits > totBits)
+    throwerr("request goes past EOF.  bitPos: " + bitPos
+      + "  desBits: " + desBits + "  totBits: " + totBits);
+  return getLongFast( desBits);
+}
+
+
+
+
+/**
+ * Retrieves the next desBits, 1 to 64, without any checks.
+ * The caller insures that bitPos + desBits &lt;= totBits.
+ * Reads the 64 bit word starting at the byte containing bitPos,
+ * and extracts the field with shifts.  If the field extends
+ * past that word, or the word extends past the end of
+ * the buffer, the missing bits are added a byte at a time.
+ * Increments bitPos.
+ */
+private long getLongFast( int desBits)
+{
+  int ibyte = bitPos >>> 3;
+  int bitOff = bitPos & 7;          // num bits already used in first byte
+  long lval;
+  if (ibyte + 8 <= byteLen) {
+    lval = byteBuf.getLong( ibyte) << bitOff;
+    // If the field extends into the 9th byte, get its top bits.
+    if (bitOff + desBits > 64)
+      lval |= (0xff & byteBuf.get( ibyte + 8)) >>> (8 - bitOff);
+  }
+  else {                            // near the end of the buffer
+    lval = 0;
+    for (int ii = 0; ii < 8; ii++) {
+      lval <<= 8;
+      if (ibyte + ii < byteLen) lval |= 0xff & byteBuf.get( ibyte + ii);
+    }
+    lval <<= bitOff;
+  }
+  bitPos += desBits;
+  return lval >>> (64 - desBits);   // desBits >= 1, so the shift is < 64
+}
+
+
+
+
+/**
+ * Retrieves the next desBits and returns as an int,
+ * a byte at a time.
+ * This is the original getInt, kept for descriptors,
+ * debugging, and as the reference for the test driver.
+ * Increments bitPos.
+ */
+int getIntByBytes( int desBits)
+throws BufrException
 {
   if (bugs >= 15) prtln("\ngetInt: type: " + typeNames[bufType]
     + "  desBits: " + desBits);
@@ -344,14 +468,14 @@ throws BufrException
     lval <<= 8;
     if (nv == 0) {          // If first time
       int numValid = 8 - bitPos % 8;    // num bits not yet used in next byte
-      lval = 0xff & byteBuf[bitPos/8];  // get next byte
+      lval = 0xff & byteBuf.get( bitPos/8);  // get next byte
       int shiftLen = 64 - numValid;     // shift to clear old bits
       lval = (lval << shiftLen) >>> shiftLen;
       bitPos += numValid;
       nv += numValid;
     }
     else {
-      lval |= (0xff & byteBuf[bitPos/8]);
+      lval |= (0xff & byteBuf.get( bitPos/8));
       bitPos += 8;
       nv += 8;
     }
@@ -380,6 +504,74 @@ throws BufrException
 
 
 
+/**
+ * Retrieves count successive values of desBits each, into
+ * dest[off] ... dest[off+count-1].
+ * If desBits == 0, stores zeros and reads nothing.
+ * This is used for runs of same width values, such as
+ * the increments of a compressed field.
+ * Increments bitPos.
+ */
+void getInts(
+  int desBits,
+  int[] dest,
+  int off,
+  int count)
+throws BufrException
+{
+  if (desBits == 0) {
+    for (int ii = 0; ii < count; ii++) {
+      dest[off + ii] = 0;
+    }
+  }
+  else {
+    if (bufType != BBTP_DATA) throwerr("bufType != BBTP_DATA");
+    if (desBits < 0 || desBits > 31)
+      throwerr("invalid desBits: " + desBits);
+    if (bitPos + (long) desBits * count > totBits)
+      throwerr("request goes past EOF.  bitPos: " + bitPos
+        + "  desBits: " + desBits + "  count: " + count
+        + "  totBits: " + totBits);
+    // Since desBits <= 31 and the bit offset within the first byte
+    // is <= 7, each field is within the 64 bit word starting
+    // at its first byte.
+    int pos = bitPos;
+    int shiftLen = 64 - desBits;
+    int lastWord = byteLen - 8;        // last byte index for getLong
+    int ii = 0;
+    while (ii < count && (pos >>> 3) <= lastWord) {
+      dest[off + ii] = (int) ((byteBuf.getLong( pos >>> 3) << (pos & 7))
+        >>> shiftLen);
+      pos += desBits;
+      ii++;
+    }
+    bitPos = pos;
+    while (ii < count) {               // near the end of the buffer
+      dest[off + ii] = (int) getLongFast( desBits);
+      ii++;
+    }
+  }
+}
+
+
+
+/**
+ * Skips the next numBits, which may be 0.
+ * Increments bitPos.
+ */
+void skipBits(
+  int numBits)
+throws BufrException
+{
+  if (numBits < 0) throwerr("numBits < 0");
+  if (bitPos + (long) numBits > totBits)
+    throwerr("skip goes past EOF.  bitPos: " + bitPos
+      + "  numBits: " + numBits + "  totBits: " + totBits);
+  bitPos += numBits;
+}
+
+
+
 /**
  * Retrieves the next desBits and returns the trimmed String.
  * Never returns null.
@@ -419,7 +611,7 @@ throws BufrException
   if (bitPos % 8 == 0) {   // if aligned on byte boundary
     int gotBits = 0;
     while (true) {
-      sbuf.append( (char) byteBuf[bitPos/8]);
+      sbuf.append( (char) byteBuf.get( bitPos/8));
       bitPos += 8;
       gotBits += 8;
       if (gotBits >= desBits) break;
@@ -428,9 +620,9 @@ throws BufrException
   else {      // else not aligned on byte boundaries
     int shiftLen = 8 - bitPos % 8;     // num valid bits in current byte
     for (int ii = 0; ii < desBits/8; ii++) {
-      int ival = (0xff & byteBuf[bitPos/8]) << 8;
+      int ival = (0xff & byteBuf.get( bitPos/8)) << 8;
       bitPos += 8;
-      ival |= (0xff & byteBuf[bitPos/8]);
+      ival |= (0xff & byteBuf.get( bitPos/8));
       ival >>>= shiftLen;
       sbuf.append( (char) (ival & 0xff));
     }
@@ -460,11 +652,13 @@ public static void main( String[] args) {
 
   try {
     int bugs = 0;
+    int benchLen = 0;
     if (args.length % 2 != 0) badparms("args must be key/value pairs");
     for (int iarg = 0; iarg < args.length - 1; iarg += 2) {
       String key = args[iarg];
       String val = args[iarg+1];
       if (key.equals("-d")) bugs = BufrUtil.parseInt( key, val);
+      else if (key.equals("-bench")) benchLen = BufrUtil.parseInt( key, val);
       else badparms("unknown key: \"" + key + "\"");
     }
 
@@ -496,6 +690,9 @@ public static void main( String[] args) {
     bitBuf = new BitBufReader( bugs, BBTP_DATA, testbuf, 0, 0);
     String shiftStg = bitBuf.getRawString( 2*8);
     prtln("main: shiftStg: \"" + shiftStg + "\"");
+
+    testFast( bugs);
+    if (benchLen > 0) benchGetInt( benchLen);
   }
   catch( BufrException exc) {
     BufrUtil.prtlnexc("caught", exc);
@@ -506,6 +703,129 @@ public static void main( String[] args) {
 
 
 
+/**
+ * Test: compares getInt, getInts, and getLong with getIntByBytes
+ * for all widths at all bit offsets, including near the
+ * end of the buffer.
+ */
+static void testFast( int bugs)
+throws BufrException
+{
+  java.util.Random rand = new java.util.Random( 1);
+  byte[] testbuf = new byte[37];
+  rand.nextBytes( testbuf);
+  int numTests = 0;
+  for (int desBits = 1; desBits <= 64; desBits++) {
+    for (int ipos = 0; ipos + desBits <= 8 * testbuf.length; ipos++) {
+      BitBufReader fastBuf = new BitBufReader( 0, BBTP_DATA, testbuf, 0, 0);
+      BitBufReader slowBuf = new BitBufReader( 0, BBTP_DATA, testbuf, 0, 0);
+      fastBuf.setBitPos( ipos);
+      slowBuf.setBitPos( ipos);
+
+      // Build the expected value from pieces of at most 31 bits
+      long expected = 0;
+      int remBits = desBits;
+      while (remBits > 0) {
+        int nb = Math.min( 31, remBits);
+        expected = (expected << nb) | slowBuf.getIntByBytes( nb);
+        remBits -= nb;
+      }
+      long actual = fastBuf.getLong( desBits);
+      if (actual != expected || fastBuf.bitPos != slowBuf.bitPos)
+        throwerr( String.format("testFast getLong mismatch.  desBits: %d"
+          + "  ipos: %d  expected: 0x%x  actual: 0x%x",
+          desBits, ipos, expected, actual));
+
+      if (desBits <= 31) {
+        fastBuf.setBitPos( ipos);
+        int ival = fastBuf.getInt( desBits);
+        if (ival != (int) expected)
+          throwerr("testFast getInt mismatch.  desBits: " + desBits
+            + "  ipos: " + ipos);
+
+        int count = (8 * testbuf.length - ipos) / desBits;
+        int[] vals = new int[ count];
+        fastBuf.setBitPos( ipos);
+        fastBuf.getInts( desBits, vals, 0, count);
+        slowBuf.setBitPos( ipos);
+        for (int ii = 0; ii < count; ii++) {
+          if (vals[ii] != slowBuf.getIntByBytes( desBits))
+            throwerr("testFast getInts mismatch.  desBits: " + desBits
+              + "  ipos: " + ipos + "  ii: " + ii);
+        }
+        if (fastBuf.bitPos != slowBuf.bitPos)
+          throwerr("testFast getInts bitPos mismatch");
+      }
+      numTests++;
+    }
+  }
+  prtln("testFast: all " + numTests + " tests ok");
+}
+
+
+
+/**
+ * Microbenchmark: reads benchLen values of various widths using
+ * getIntByBytes, getInt, and getInts, and prints the times.
+ */
+static void benchGetInt( int benchLen)
+throws BufrException
+{
+  java.util.Random rand = new java.util.Random( 1);
+  int[] widths = {1, 7, 12, 16, 24, 31};
+  int numReps = 5;
+  for (int desBits : widths) {
+    byte[] testbuf = new byte[ (int) (((long) benchLen * desBits + 7) / 8)];
+    rand.nextBytes( testbuf);
+    int[] vals = new int[ benchLen];
+    long minSlow = Long.MAX_VALUE;
+    long minFast = Long.MAX_VALUE;
+    long minBulk = Long.MAX_VALUE;
+    long sumSlow = 0;
+    long sumFast = 0;
+    long sumBulk = 0;
+    for (int irep = 0; irep < numReps; irep++) {
+      BitBufReader bitBuf = new BitBufReader( 0, BBTP_DATA, testbuf, 0, 0);
+
+      long timea = System.nanoTime();
+      bitBuf.setBitPos( 0);
+      for (int ii = 0; ii < benchLen; ii++) {
+        sumSlow += bitBuf.getIntByBytes( desBits);
+      }
+      long timeb = System.nanoTime();
+      bitBuf.setBitPos( 0);
+      for (int ii = 0; ii < benchLen; ii++) {
+        sumFast += bitBuf.getInt( desBits);
+      }
+      long timec = System.nanoTime();
+      bitBuf.setBitPos( 0);
+      bitBuf.getInts( desBits, vals, 0, benchLen);
+      for (int ii = 0; ii < benchLen; ii++) {
+        sumBulk += vals[ii];
+      }
+      long timed = System.nanoTime();
+
+      minSlow = Math.min( minSlow, timeb - timea);
+      minFast = Math.min( minFast, timec - timeb);
+      minBulk = Math.min( minBulk, timed - timec);
+    }
+    if (sumSlow != sumFast || sumSlow != sumBulk)
+      throwerr("benchGetInt: sum mismatch");
+    prtln( String.format("bench: desBits: %2d  num: %d"
+      + "  byBytes: %6.2f ns  getInt: %6.2f ns  getInts: %6.2f ns"
+      + "  speedup: %4.1f / %4.1f",
+      desBits, benchLen,
+      minSlow / (double) benchLen,
+      minFast / (double) benchLen,
+      minBulk / (double) benchLen,
+      minSlow / (double) minFast,
+      minSlow / (double) minBulk));
+  }
+}
+
+
+
+
 static void throwerr( String msg)
 throws BufrException
 {
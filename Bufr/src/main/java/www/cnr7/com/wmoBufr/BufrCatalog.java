@@ -0,0 +1,268 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Writes a catalog of BUFR messages: one CSV line per message,
+ * with the section 0, 1 and 3 header info.
+ * <p>
+ * Each message is read by
+ * {@link BufrMessage#readCatalogMessage readCatalogMessage},
+ * which reads only sections 0, 1, 3 and 5, and skips sections 2 and 4
+ * using their lengths.  So the data is never read or parsed,
+ * and no per-message output files are written.
+ * <p>
+ * The input files are read by a pool of fileThreads threads,
+ * and the lines are written in input file order.
+ * See the -catalog parm in
+ * {@link BufrFile#printHelpUsage BufrFile.printHelpUsage}.
+ *
+ * @author S. Sullivan
+ */
+
+class BufrCatalog {
+
+
+// The CSV header line, naming the fields of each catalog line.
+static String CSV_HEADER = "inFile,msgNum,fileOffset,msgLen,edition,"
+  + "masterTable,centre,subCentre,updateSeqNum,category,"
+  + "internatSubCategory,localSubCategory,masterTableVersion,"
+  + "localTableVersion,time,numSubsets,observed,compressed,numDescs\n";
+
+
+
+
+/**
+ * Catalogs all the inFiles, writing the catalog lines to catalogFile.
+ * Returns a FileResult for each inFile, in order, for the
+ * error summary in BufrFile.processFiles.
+ */
+
+static BufrFile.FileResult[] writeCatalog(
+  BufrFile.Options opts,
+  String[] inFiles,
+  String catalogFile)
+throws BufrException
+{
+  int dataBugs = opts.dataBugs;
+  // The settings for reading the headers of each file
+  final BufrFile.Options scanOpts = opts.mkScanOptions(
+    BufrFile.STAGE_DKEY);
+  BufrFile.FileResult[] results = new BufrFile.FileResult[ inFiles.length];
+  AsciiWriter wtr = new AsciiWriter( dataBugs, catalogFile);
+  ExecutorService pool = Executors.newFixedThreadPool( opts.numFileThreads);
+  boolean allOk = false;
+  try {
+    StringBuilder sbuf = new StringBuilder();
+    sbuf.append( CSV_HEADER);
+    wtr.drain( sbuf);
+
+    LinkedList<Future<BufrFile.FileResult>> futureList
+      = new LinkedList<Future<BufrFile.FileResult>>();
+    for (int ifile = 0; ifile < inFiles.length; ifile++) {
+      final int fileIndex = ifile;
+      final String inFile = inFiles[ifile];
+      futureList.add( pool.submit( new Callable<BufrFile.FileResult>() {
+        public BufrFile.FileResult call()
+        {
+          return catalogOneFile( scanOpts, fileIndex, inFile);
+        }
+      }));
+    }
+
+    // Write each file's lines in inFiles order
+    for (int ifile = 0; ifile < inFiles.length; ifile++) {
+      BufrFile.FileResult res = null;
+      try {
+        res = futureList.removeFirst().get();
+      }
+      catch( InterruptedException exc) {
+        BufrUtil.prtlnexc("caught", exc);
+        throwerr("interrupted");
+      }
+      catch( ExecutionException exc) {
+        // catalogOneFile catches all Exceptions, so this is a bug.
+        BufrUtil.prtlnexc("caught", exc);
+        throwerr("caught: " + exc.getCause());
+      }
+      sbuf.append( res.reportLines);
+      wtr.drain( sbuf);
+      results[ifile] = res;
+    }
+    wtr.close();
+    allOk = true;
+  }
+  finally {
+    pool.shutdownNow();
+    if (! allOk) wtr.abort();
+  }
+  return results;
+} // end writeCatalog
+
+
+
+
+/**
+ * Catalogs one input file.  Returns the FileResult with the
+ * catalog lines in reportLines.  Never throws: if the file fails,
+ * the lines for the messages before the failure are kept and
+ * the exception is returned in failure.
+ */
+
+static BufrFile.FileResult catalogOneFile(
+  BufrFile.Options opts,   // from mkScanOptions
+  int fileIndex,           // index of inFile in inFiles
+  String inFile)
+{
+  int dataBugs = opts.dataBugs;
+  if (dataBugs >= 1)
+    prtln("BufrCatalog: begin input file: \"" + inFile + "\"");
+  BufrFile.FileResult res = new BufrFile.FileResult( fileIndex, inFile);
+  StringBuilder sbuf = new StringBuilder();
+
+  BufrFile bfile = null;
+  try {
+    bfile = new BufrFile( opts, inFile);
+
+    for (int imsg = 0; ; imsg++) {
+      BufrMessage bmsg = BufrMessage.readCatalogMessage(
+        dataBugs, bfile, imsg);
+      if (bmsg == null) break;              // if EOF, break
+      formatRecord( bmsg, sbuf);
+    }
+    bfile.close();
+  }
+  catch( Exception exc) {
+    // BufrException, or RuntimeException from bad data.
+    prtln("BufrCatalog: caught: " + exc + "\n  for file: " + inFile);
+    res.failure = exc;
+    if (bfile != null) {
+      try {
+        bfile.close();
+      }
+      catch( BufrException exc2) {
+        prtln("BufrCatalog: caught: " + exc2 + "\n  for file: " + inFile);
+      }
+    }
+  }
+
+  if (bfile != null) res.errorMsgs = bfile.errorMsgs;
+  else res.errorMsgs = new LinkedList<String>();
+  res.reportLines = sbuf.toString();
+  return res;
+} // end catalogOneFile
+
+
+
+
+/**
+ * Appends the CSV catalog line for bmsg to sbuf.
+ * See CSV_HEADER for the fields.
+ */
+
+static void formatRecord(
+  BufrMessage bmsg,
+  StringBuilder sbuf)
+{
+  appendCsv( bmsg.bfile.inFile, sbuf);
+  sbuf.append( ',').append( bmsg.msgNum);
+  sbuf.append( ',').append( bmsg.fileOffset0);
+  sbuf.append( ',').append( bmsg.hdrMsgLen);
+  sbuf.append( ',').append( bmsg.hdrBufrEdition);
+  sbuf.append( ',').append( bmsg.hdrMasterTableNum);
+  sbuf.append( ',').append( bmsg.hdrCentre);
+  sbuf.append( ',').append( bmsg.hdrSubCentre);
+  sbuf.append( ',').append( bmsg.hdrUpdateSeqNum);
+  sbuf.append( ',').append( bmsg.hdrCategory);
+  sbuf.append( ',').append( bmsg.hdrInternatSubCategory);
+  sbuf.append( ',').append( bmsg.hdrLocalSubCategory);
+  sbuf.append( ',').append( bmsg.hdrMasterTableVersion);
+  sbuf.append( ',').append( bmsg.hdrLocalTableVersion);
+  sbuf.append( ',').append( String.format(
+    "%04d-%02d-%02dT%02d:%02d:%02d",
+    bmsg.hdrYear, bmsg.hdrMonth, bmsg.hdrDay,
+    bmsg.hdrHour, bmsg.hdrMinute, bmsg.hdrSecond));
+  sbuf.append( ',').append( bmsg.numSubsets);
+  sbuf.append( ',').append( bmsg.flagObserved ? 'y' : 'n');
+  sbuf.append( ',').append( bmsg.flagCompressed ? 'y' : 'n');
+  sbuf.append( ',').append( bmsg.fxyList.size());
+  sbuf.append( '\n');
+}
+
+
+
+
+// Appends stg as a CSV field: quoted if it contains a
+// comma, quote, or newline, with quotes doubled.
+
+static void appendCsv(
+  String stg,
+  StringBuilder sbuf)
+{
+  if (stg.indexOf(',') < 0 && stg.indexOf('"') < 0
+    && stg.indexOf('\n') < 0)
+  {
+    sbuf.append( stg);
+  }
+  else sbuf.append('"').append( stg.replace("\"", "\"\"")).append('"');
+}
+
+
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("BufrCatalog: " + msg);
+}
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
@@ -0,0 +1,211 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+
+/**
+ * Represents the data of one compressed BUFR message in columnar form:
+ * one {@link Column Column} for each data field in section 4,
+ * in order, each holding the values for all subsets.
+ * <p>
+ * In a compressed message every subset has the same structure
+ * (delayed replication counts must be the same for all subsets),
+ * so the fields of section 4 line up exactly with the
+ * value ops of the DecodePlan as they are executed.
+ * <p>
+ * Values are kept in primitive arrays, with missing values
+ * recorded in a bitmap, so no objects are created per value.
+ * The true values of a numeric column are given by
+ * {@link Column#getValue Column.getValue} and
+ * {@link Column#toDoubles Column.toDoubles}.
+ * See {@link BufrParser#BufrParser(int, BufrFile, BufrMessage,
+ * DecodePlan, BufrProjection, BitBufReader, BufrColumns,
+ * java.util.concurrent.ForkJoinPool) BufrParser}.
+ *
+ * @author S. Sullivan
+ */
+
+class BufrColumns {
+
+
+// Inner class
+/**
+ * The values of one data field for all subsets.
+ */
+static class Column {
+  DefDesc def;           // the table B entry, or assoc field, or 2 05 yyy
+  int defId;             // see DecodePlan.opDefIds
+  int kind;              // one of DecodePlan.KIND_*
+  int numBits;           // width of minEnc, including modWidth
+  int scale;             // including modScale
+  int reference;         // including any 2 03 yyy new reference
+  int minEnc;            // compressed minimum
+  int bitLen;            // compressed num bits per subset
+
+  int[] encoded;         // encoded value per subset, with minEnc added.
+                         // Not set for strings.  Numeric values are
+                         // formatted from these, with scale and
+                         // reference, by BufrUtil.formatTrueValue.
+  String[] strings;      // string per subset.  Only for KIND_STRING.
+  long[] missing;        // bitmap: bit isub is set if subset isub
+                         // is missing.
+  int dataPos = -1;      // If >= 0, the bit pos in section 4 of the
+                         // increments, which are not yet unpacked.
+                         // See BufrParser.unpackColumns.
+
+  Column( DefDesc def, int defId, int kind, int numSubsets) {
+    this.def = def;
+    this.defId = defId;
+    this.kind = kind;
+    missing = new long[ (numSubsets + 63) / 64];
+  }
+
+  boolean isMissing( int isub) {
+    return (missing[ isub >>> 6] & (1L << (isub & 63))) != 0;
+  }
+
+  void setMissing( int isub) {
+    missing[ isub >>> 6] |= (1L << (isub & 63));
+  }
+
+  /**
+   * Returns the true value of subset isub,
+   * (encoded + reference) * 10^(-scale), or NaN if it is missing.
+   * Not for strings.
+   */
+  double getValue( int isub)
+  throws BufrException
+  {
+    if (encoded == null) throwerr("no encoded values: " + this);
+    double res = Double.NaN;
+    if (! isMissing( isub))
+      res = (encoded[isub] + reference) * Math.pow( 10, -scale);
+    return res;
+  }
+
+  /**
+   * Returns the true values of all subsets, with NaN for missing.
+   * See {@link #getValue getValue}.
+   */
+  double[] toDoubles()
+  throws BufrException
+  {
+    if (encoded == null) throwerr("no encoded values: " + this);
+    double factor = Math.pow( 10, -scale);
+    double[] res = new double[ encoded.length];
+    for (int isub = 0; isub < res.length; isub++) {
+      if (isMissing( isub)) res[isub] = Double.NaN;
+      else res[isub] = (encoded[isub] + reference) * factor;
+    }
+    return res;
+  }
+
+  int getNumMissing() {
+    int res = 0;
+    for (long lval : missing) {
+      res += Long.bitCount( lval);
+    }
+    return res;
+  }
+
+  public String toString() {
+    String res = "fxy: " + BufrUtil.formatFxy( def.fxy)
+      + "  kind: " + DecodePlan.kindNames[kind]
+      + "  numBits: " + numBits
+      + "  scale: " + scale
+      + "  reference: " + reference
+      + "  minEnc: " + minEnc
+      + "  bitLen: " + bitLen
+      + "  numMissing: " + getNumMissing();
+    return res;
+  }
+} // end inner class Column
+
+
+
+int numSubsets;
+int numColumns = 0;
+Column[] columns = new Column[16];    // grows as needed; numColumns used
+
+
+
+
+BufrColumns(
+  int numSubsets)
+{
+  this.numSubsets = numSubsets;
+}
+
+
+
+void addColumn( Column col) {
+  if (numColumns == columns.length) {
+    Column[] newCols = new Column[ 2 * columns.length];
+    System.arraycopy( columns, 0, newCols, 0, numColumns);
+    columns = newCols;
+  }
+  columns[numColumns++] = col;
+}
+
+
+
+public String toString() {
+  StringBuilder sbuf = new StringBuilder();
+  sbuf.append("numSubsets: " + numSubsets
+    + "  numColumns: " + numColumns + "\n");
+  for (int icol = 0; icol < numColumns; icol++) {
+    sbuf.append("  " + icol + ": " + columns[icol] + "\n");
+  }
+  return sbuf.toString();
+}
+
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("BufrColumns: " + msg);
+}
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
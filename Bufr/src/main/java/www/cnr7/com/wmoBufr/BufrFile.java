@@ -34,13 +34,26 @@
 
 package www.cnr7.com.wmoBufr;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Formatter;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 
 
@@ -122,21 +135,25 @@ class BufrFile {
 static class TableSource {
   int versionMajor;
   int versionMinor;
+  int centre;                // originating centre, or -1 for all
   String dirName;
 
   TableSource(
     int versionMajor,
     int versionMinor,
+    int centre,
     String dirName)
   {
     this.versionMajor = versionMajor;
     this.versionMinor = versionMinor;
+    this.centre = centre;
     this.dirName = dirName;
   }
 
   public String toString() {
     String res = "versionMajor: " + versionMajor
       + "  versionMinor: " + versionMinor
+      + "  centre: " + centre
       + "  dirName: " + dirName;
     return res;
   }
@@ -144,6 +161,238 @@ static class TableSource {
 
 
 
+// Inner class
+// Parses and formats one message in a worker thread.
+// Returns the report line, or null if no reportSpec.
+static class MessageTask implements Callable<String> {
+  BufrMessage bmsg;
+  boolean isXml;
+  Future<String> future = null;
+
+  MessageTask(
+    BufrMessage bmsg,
+    boolean isXml)
+  {
+    this.bmsg = bmsg;
+    this.isXml = isXml;
+  }
+
+  public String call()
+  throws BufrException
+  {
+    bmsg.parseMessage();
+    return BufrFormatter.writeAllOutput( isXml, bmsg.bfile, bmsg);
+  }
+} // end inner class MessageTask
+
+
+
+// Inner class
+// The result of processing one input file, for the
+// summary at the end of processFiles.
+static class FileResult {
+  int fileIndex;                      // index in inFiles
+  String inFile;
+  LinkedList<String> errorMsgs = null;  // parse errors, if forceFlag
+  String reportLines = null;          // report lines, if buffered
+  Exception failure = null;           // if the file could not be processed
+
+  FileResult(
+    int fileIndex,
+    String inFile)
+  {
+    this.fileIndex = fileIndex;
+    this.inFile = inFile;
+  }
+
+  boolean hasErrors() {
+    return failure != null || errorMsgs.size() > 0;
+  }
+
+  public String toString() {
+    String res = "inFile: \"" + inFile + "\""
+      + "  numErrors: " + errorMsgs.size()
+      + "  failure: " + failure;
+    return res;
+  }
+} // end inner class FileResult
+
+
+
+
+// Inner class
+/**
+ * The formatted text tables read from one TableSource,
+ * for readTextTables.  A table is null if its file doesn't exist.
+ * The arrays are indexed like TableSnapshot.tableTags.
+ */
+
+static class SourceTables {
+  TableCateg tabCateg;
+  TableCodeFlag tabCodeFlag;
+  TableCommon tabCommon;
+  TableDesc tabDesc;
+  TableSeq tabSeq;
+  boolean[] found;
+  int[] versionMajor;
+  int[] versionMinor;
+  int[] size;
+
+  SourceTables( int numTags) {
+    found = new boolean[ numTags];
+    versionMajor = new int[ numTags];
+    versionMinor = new int[ numTags];
+    size = new int[ numTags];
+  }
+
+  /**
+   * Reads the table file fname, if it exists, into the field
+   * for TableSnapshot.tableTags[itag].
+   */
+
+  void readTable(
+    int tableBugs,
+    boolean allowDups,
+    int itag,
+    String fname)
+  throws BufrException
+  {
+    if (! new File( fname).exists()) return;
+    String tag = TableSnapshot.tableTags[itag];
+    if (tag.equals("categTab")) {
+      tabCateg = new TableCateg( tableBugs);
+      tabCateg.read( allowDups, fname);
+      setInfo( itag, tabCateg.versionMajor, tabCateg.versionMinor,
+        tabCateg.size());
+    }
+    else if (tag.equals("codeFlagTab")) {
+      tabCodeFlag = new TableCodeFlag( tableBugs);
+      tabCodeFlag.read( allowDups, fname);
+      setInfo( itag, tabCodeFlag.versionMajor, tabCodeFlag.versionMinor,
+        tabCodeFlag.size());
+    }
+    else if (tag.equals("commonTab")) {
+      tabCommon = new TableCommon( tableBugs);
+      tabCommon.read( allowDups, fname);
+      setInfo( itag, tabCommon.versionMajor, tabCommon.versionMinor,
+        tabCommon.size());
+    }
+    else if (tag.equals("descTab")) {
+      tabDesc = new TableDesc( tableBugs);
+      tabDesc.read( allowDups, fname);
+      setInfo( itag, tabDesc.versionMajor, tabDesc.versionMinor,
+        tabDesc.size());
+    }
+    else if (tag.equals("seqTab")) {
+      tabSeq = new TableSeq( tableBugs);
+      tabSeq.read( allowDups, fname);
+      setInfo( itag, tabSeq.versionMajor, tabSeq.versionMinor,
+        tabSeq.size());
+    }
+    else throwerr("unknown table tag: " + tag);
+  }
+
+  void setInfo(
+    int itag,
+    int versionMajor,
+    int versionMinor,
+    int size)
+  {
+    this.found[itag] = true;
+    this.versionMajor[itag] = versionMajor;
+    this.versionMinor[itag] = versionMinor;
+    this.size[itag] = size;
+  }
+} // end inner class SourceTables
+
+
+
+
+// Inner class
+// The settings for processing the input files, from the
+// command line parms, and the tables, caches, pool and container
+// shared by all the files of a run.  Made by mainPgm,
+// completed by processFiles, and passed to each BufrFile.
+static class Options implements Cloneable {
+  int tableBugs = 0;             // debug level for parsing spec tables
+  int dataBugs = 0;              // debug level for parsing user data
+  int parseStage = STAGE_UNKNOWN;   // one of STAGE_*
+  int outFormat = OUTFORMAT_UNKNOWN;  // OUTFORMAT_*: xml or text
+  int outStyle = OUTSTYLE_UNKNOWN;  // OUTSTYLE_*: standard or full
+  int inMode = INMODE_STREAM;    // INMODE_*: stream or mmap
+  int decodeMode = DECODE_TREE;  // DECODE_*: tree, columns, ...
+  BufrProjection projection = null;  // If not null, decode only these
+  SubsetFilter filter = null;    // If not null, keep only these subsets
+  boolean usageBanner = true;    // If true, write usage doc in outputs
+  int numThreads = 1;            // num threads for parsing messages
+  int splitThreads = 1;          // num threads for subsets of one message
+  int splitMinSubsets = BufrParser.DEFAULT_SPLIT_MIN_SUBSETS;
+                                 // min subsets of a message to split
+  int formatThreads = 1;         // num threads formatting, if writeThreads
+  int writeThreads = 0;          // If > 0, num threads writing output
+  int numFileThreads = 1;        // num files processed concurrently
+  boolean cacheStats = false;    // if true, print the cache counts at end
+  boolean validateFlag = false;  // If true, validate dates, lat/lons, etc.
+  boolean forceFlag = false;     // If true, continue after parse error
+
+  long maxTableEntries = TableRegistry.DEFAULT_MAX_ENTRIES;
+  int maxPlans = DecodePlan.PlanCache.DEFAULT_MAX_PLANS;  // 0: no cache
+  int maxSeqs = SequenceCache.DEFAULT_MAX_SEQS;           // 0: no cache
+  boolean allowDups = false;
+  String tableSnapshot = null;
+  TableSource[] tableSources = new TableSource[0];
+
+  String outSpec = null;         // output name spec for XML files
+  String reportSpec = null;      // report spec, like outSpec
+  String containerName = null;   // if not null, see ContainerWriter
+  boolean containerCompress = false;  // if true, gzip container entries
+  int containerMaxMB = 0;        // if > 0, max size of a container part
+
+  // Made by processFiles and shared by all files
+  TableRegistry tableRegistry = null;   // BUFR tables by version
+  DecodePlan.PlanCache planCache = null;  // cache of DecodePlans, or null
+  SequenceCache seqCache = null;  // cache of expanded sequences, or null
+  ContainerWriter container = null;  // If not null, write output to it
+  ForkJoinPool splitPool = null;  // If splitThreads > 1, the pool
+                                 //   for the subsets of large messages
+
+  Options copy() {
+    try {
+      return (Options) clone();
+    }
+    catch( CloneNotSupportedException exc) {
+      throw new IllegalStateException("cannot clone: " + exc);
+    }
+  }
+
+  // Returns a copy for reading the headers, and section 4 only
+  // if parseStage is STAGE_DATA, with no output files:
+  // for BufrCatalog and BufrIndex.
+  Options mkScanOptions( int parseStage) {
+    Options res = copy();
+    res.tableBugs = -1;
+    res.parseStage = parseStage;
+    res.outFormat = OUTFORMAT_TEXT;
+    res.outStyle = OUTSTYLE_STANDARD;
+    res.decodeMode = DECODE_TREE;
+    res.projection = null;
+    res.filter = null;
+    res.usageBanner = false;
+    res.numThreads = 1;
+    res.splitThreads = 1;
+    res.formatThreads = 1;
+    res.writeThreads = 0;
+    res.validateFlag = false;
+    res.outSpec = null;
+    res.reportSpec = null;
+    res.container = null;
+    res.splitPool = null;
+    return res;
+  }
+} // end inner class Options
+
+
+
 
 static String programVersion = "1.5.1";
 
@@ -172,6 +421,24 @@ static String[] outStyleNames = {
   "unknown", "terse", "standard", "full"};
 
 
+static int INMODE_UNKNOWN    = 0;         // inMode values
+static int INMODE_STREAM     = 1;         // buffered sequential reads
+static int INMODE_MMAP       = 2;         // memory mapped file windows
+static String[] inModeNames = {
+  "unknown", "stream", "mmap"};
+
+
+static int DECODE_UNKNOWN    = 0;         // decodeMode values
+static int DECODE_TREE       = 1;         // BufrItem tree per subset
+static int DECODE_COLUMNS    = 2;         // columns, if compressed
+static int DECODE_STREAM     = 3;         // one subset at a time,
+                                          //   if not compressed
+static int DECODE_RECORDS    = 4;         // records, if the template
+                                          //   has a TemplateDecoder
+static String[] decodeNames = {
+  "unknown", "tree", "columns", "stream", "records"};
+
+
 
 
 int tableBugs = 0;                    // debug level for parsing spec tables
@@ -180,15 +447,39 @@ int dataBugs = 0;                     // debug level for parsing user data
 int parseStage = STAGE_UNKNOWN;       // One of STAGE_*
 int outFormat = OUTFORMAT_UNKNOWN;    // OUTFORMAT_*: xml or text
 int outStyle = OUTSTYLE_UNKNOWN;      // OUTSTYLE_*: standard or full
-
-int tableVersionMajor;                // major table version
-int tableVersionMinor;                // minor table version
-TableCateg tableCateg = null;         // Categories: WMO BUFR table A.
-TableCodeFlag tableCodeFlag = null;   // Codes and flags: WMO codes and flags
-                                      //   associated with BUFR table B.
-TableCommon tableCommon = null;       // WMO table of common codes
-TableDesc tableDescription = null;    // WMO BUFR table B
-TableSeq tableSequence = null;        // WMO BUFR table D
+int inMode = INMODE_STREAM;           // INMODE_*: stream or mmap
+int numThreads = 1;                   // num threads for parsing messages
+int splitThreads = 1;                 // num threads for the subsets of
+                                      //   one message.  See BufrParser.
+int splitMinSubsets = 0;              // If splitThreads > 1, messages
+                                      //   with fewer subsets aren't split
+ForkJoinPool splitPool = null;        // If splitThreads > 1, the pool
+                                      //   for the subsets of one message,
+                                      //   shared by all files
+int formatThreads = 1;                // If writeThreads > 0, num threads
+                                      //   for formatting messages
+int writeThreads = 0;                 // If > 0, num threads for writing
+                                      //   output files.  See BufrPipeline.
+int decodeMode = DECODE_TREE;         // DECODE_*: tree, columns, stream,
+                                      //   records
+int[] keepSubsets = null;             // If DECODE_STREAM, the subsets
+                                      //   used by outSpec and reportSpec.
+BufrProjection projection = null;     // If not null, decode only these
+SubsetFilter filter = null;           // If not null, keep only the
+                                      //   subsets passing it.
+boolean usageBanner = true;           // If true, write usage doc in outputs
+BufrVisitor visitor = null;           // If not null, gets the data.
+                                      //   See visitFully.
+
+TableRegistry tableRegistry = null;   // tables by version,
+                                      //   shared by all files
+HashMap<String,TableOverlay> overlayMap  // by table set key: entries
+  = new HashMap<String,TableOverlay>();  //   defined by the messages
+                                      //   of this file; see getOverlay
+DecodePlan.PlanCache planCache = null; // DecodePlans by section 3 template,
+                                      //   shared by all files
+SequenceCache seqCache = null;        // Expanded table D sequences,
+                                      //   shared by all files
 
 
 boolean validateFlag;                 // Default = false.
@@ -206,12 +497,23 @@ String outSpec = null;                // output name spec for text or xml files
 
 String reportSpec = null;             // spec for report lines, like outSpec
 
-FileInputStream istm;                 // The input BUFR data file
-int fileOffset;                       // current offset in istm, for debug
+ContainerWriter container = null;     // If not null, output goes to
+                                      //   this container, not to files
+HashSet<String> containerNames        // The container entry names
+  = new HashSet<String>();            //   written for this file
+
+InputStream istm = null;              // The input BUFR data file,
+                                      // if inMode == INMODE_STREAM
+MappedFileReader mapRdr = null;       // The input BUFR data file,
+                                      // if inMode == INMODE_MMAP
+long fileOffset;                      // current offset in the input file
 
-String errorMsgs = "";                // Normally "".  If forceFlag,
-                                      // errorMsgs is a concat of error
-                                      // msgs we encountered.
+LinkedList<String> errorMsgs         // Normally empty.  If forceFlag,
+  = new LinkedList<String>();         // the error msgs we encountered.
+
+StringBuilder reportBuf = null;       // If null, report lines are written
+                                      // to stdout.  Else they are
+                                      // appended here.
 
 /**
  * Prints error message and exits with rc 1.
@@ -271,8 +573,26 @@ static void printHelpUsage() {
   prtln("");
   prtln("-tabledir_m.n stg   directory containing formatted BUFR tables.");
   prtln("                    m is the major version; n is the minor version.");
+  prtln("                    May also be -tabledir_m.n.c, for the local");
+  prtln("                    tables of originating centre c only.");
   prtln("                    See \"Note on tables\" below");
   prtln("");
+  prtln("-maxTableEntries n  max total entries of the loaded table versions.");
+  prtln("                    When exceeded, the least recently used");
+  prtln("                    versions are dropped, to be read again if");
+  prtln("                    needed.  Default: "
+    + TableRegistry.DEFAULT_MAX_ENTRIES);
+  prtln("");
+  prtln("-tableSnapshot stg  binary snapshot file of the merged tables.");
+  prtln("                    If the snapshot is current, the tables are");
+  prtln("                    loaded from it instead of the tabledirs.");
+  prtln("                    If it is missing, or any table file has");
+  prtln("                    changed, the tabledirs are read as usual");
+  prtln("                    and the snapshot is rewritten.");
+  prtln("                    A table version using only some of the");
+  prtln("                    tabledirs has its own snapshot, named");
+  prtln("                    stg.vM.N_sI-J where I, J are the tabledirs.");
+  prtln("");
   prtln("-codeFlag     stg   input code flag table file name (may be repeated)");
   prtln("                    See \"Note on tables\" below");
   prtln("");
@@ -299,12 +619,161 @@ static void printHelpUsage() {
   prtln("");
   prtln("-outStyle     stg   standard or full");
   prtln("");
+  prtln("-inMode       stg   stream or mmap.  Default = stream.");
+  prtln("                    stream: read the input files sequentially");
+  prtln("                    through a buffered stream.");
+  prtln("                    mmap: memory map the input files and");
+  prtln("                    parse each message in place.");
+  prtln("                    Usually faster for large files.");
+  prtln("");
+  prtln("-decode       stg   tree, columns, stream or records.");
+  prtln("                    Default = tree.");
+  prtln("                    tree: decode each subset to a tree of items.");
+  prtln("                    columns: decode compressed messages to one");
+  prtln("                    column per data field, holding the values");
+  prtln("                    for all subsets.  Much faster for messages");
+  prtln("                    with many subsets.  The output has a");
+  prtln("                    columns section instead of subsets, and");
+  prtln("                    report codes for subset values are not found.");
+  prtln("                    Messages that are not compressed, or that");
+  prtln("                    may define table entries, use tree.");
+  prtln("                    stream: like tree, but for messages that");
+  prtln("                    are not compressed, parse and write one");
+  prtln("                    subset at a time, so memory use does not");
+  prtln("                    grow with the number of subsets.");
+  prtln("                    Compressed messages, and messages that");
+  prtln("                    may define table entries, use tree.");
+  prtln("                    records: for the templates 3 07 080,");
+  prtln("                    3 09 052, 3 15 003 and 3 15 004, read");
+  prtln("                    each subset straight into one record");
+  prtln("                    of the station, time, position and");
+  prtln("                    main values, with one line per level");
+  prtln("                    for profiles.  Several times faster than");
+  prtln("                    tree.  The output has a records section");
+  prtln("                    instead of subsets.  Other messages,");
+  prtln("                    compressed messages, messages having a");
+  prtln("                    missing delayed replication count, and");
+  prtln("                    messages that may define table entries,");
+  prtln("                    use tree.  With -select, all use tree.");
+  prtln("");
+  prtln("-select       stg   blank or comma separated list of dkeys");
+  prtln("                    to decode.  Example:");
+  prtln("                    -select \"0_01_001 0_01_002 0_12_001\"");
+  prtln("                    Other values are skipped, and the selected");
+  prtln("                    values are written directly under each");
+  prtln("                    subset, without sequences or loops.");
+  prtln("                    With -decode columns, only the selected");
+  prtln("                    columns are written.  Messages that may");
+  prtln("                    define table entries are fully decoded.");
+  prtln("");
+  prtln("-filter       stg   keep only the subsets matching the filter.");
+  prtln("                    The syntax is the same as for -query:");
+  prtln("                      time=lo-hi  category=n  station=id");
+  prtln("                      bbox=latLo,lonLo,latHi,lonHi");
+  prtln("                    Messages are first pruned on the section 1");
+  prtln("                    category and time (within "
+    + (SubsetFilter.HDR_TIME_SLACK_SECS / 3600) + " hours),");
+  prtln("                    without parsing the data.  Then for each");
+  prtln("                    subset only the time (0_04_001 to 0_04_006),");
+  prtln("                    location (0_05_001, 0_05_002, 0_06_001,");
+  prtln("                    0_06_002) or station (0_01_001 and 0_01_002,");
+  prtln("                    0_01_011, 0_01_018) values are decoded,");
+  prtln("                    and the rest of the subset is decoded only");
+  prtln("                    if it matches.  A subset with no time uses");
+  prtln("                    the section 1 time.  Messages with no");
+  prtln("                    matching subsets are not written.");
+  prtln("                    Requires -decode tree, and not with");
+  prtln("                    -splitMessages > 1.  Messages that may");
+  prtln("                    define table entries are always kept.");
+  prtln("                    Example:");
+  prtln("                      -filter \"time=2024051712 bbox=30,110,45,125\"");
+  prtln("");
+  prtln("-usageBanner  y/n   Default = y.");
+  prtln("                    If y, start each output file with a comment");
+  prtln("                    describing the file structure and tags.");
+  prtln("");
+  prtln("-threads      int   number of threads used to parse and format");
+  prtln("                    the messages of each input file.");
+  prtln("                    Default = 1: the messages are read serially.");
+  prtln("                    The output files and report lines are");
+  prtln("                    the same as with 1 thread, but other messages");
+  prtln("                    written to stdout may be interleaved.");
+  prtln("                    Messages that may define table entries");
+  prtln("                    (category 11) are parsed alone, in order.");
+  prtln("                    Only useful with more than one processor:");
+  prtln("                    on one processor it is slower than 1 thread.");
+  prtln("");
+  prtln("-splitMessages int  number of threads used to parse the subsets");
+  prtln("                    of one message.  Default = 1.");
+  prtln("                    If > 1, messages that are not compressed and");
+  prtln("                    have many subsets are first scanned to find");
+  prtln("                    where each subset starts, and then ranges of");
+  prtln("                    subsets are parsed in parallel.  This helps");
+  prtln("                    files with a few very large messages.");
+  prtln("                    With -decode columns, the columns of large");
+  prtln("                    compressed messages are first located, then");
+  prtln("                    unpacked in parallel.");
+  prtln("                    The output is the same as with 1 thread.");
+  prtln("");
+  prtln("-splitMinSubsets n  with -splitMessages, messages with fewer");
+  prtln("                    subsets are not split.  Default: "
+    + BufrParser.DEFAULT_SPLIT_MIN_SUBSETS);
+  prtln("");
+  prtln("-writeThreads int   number of threads used to write the output");
+  prtln("                    files of each input file.  Default = 0.");
+  prtln("                    If > 0, the messages go through a pipeline:");
+  prtln("                    -threads threads parse, -formatThreads");
+  prtln("                    threads format each message in memory, and");
+  prtln("                    -writeThreads threads create and write the");
+  prtln("                    output files, so slow writes overlap with");
+  prtln("                    parsing.  The stages are connected by small");
+  prtln("                    queues, so a slow stage holds back the others.");
+  prtln("                    The output files and report lines are the");
+  prtln("                    same as without the pipeline.");
+  prtln("");
+  prtln("-formatThreads int  with -writeThreads, the number of threads used");
+  prtln("                    to format messages.  Default = 1.");
+  prtln("");
+  prtln("-fileThreads  int   number of input files processed concurrently.");
+  prtln("                    Default = 1.");
+  prtln("                    If > 1, the report lines of each file are");
+  prtln("                    written together when the file is done,");
+  prtln("                    so files may be reported out of order.");
+  prtln("                    A file that fails does not stop the");
+  prtln("                    other files; the failures are listed at");
+  prtln("                    the end.  Up to fileThreads * threads");
+  prtln("                    threads may be used.");
+  prtln("                    Table entries defined by a message");
+  prtln("                    (category 11) are seen only by the later");
+  prtln("                    messages of the same file.");
+  prtln("");
+  prtln("-cacheStats   y/n   if y, at the end print the hit and miss");
+  prtln("                    counts of the caches of section 3");
+  prtln("                    templates and expanded table D");
+  prtln("                    sequences, and of the table registry.");
+  prtln("                    Default = n.");
+  prtln("");
+  prtln("-maxPlans     int   max number of section 3 templates kept in");
+  prtln("                    the cache of decode plans.  When full, the");
+  prtln("                    cache is cleared.  0 = no cache.  Default: "
+    + DecodePlan.PlanCache.DEFAULT_MAX_PLANS);
+  prtln("");
+  prtln("-maxSeqs      int   max number of expanded table D sequences");
+  prtln("                    kept in the sequence cache.  When full, the");
+  prtln("                    cache is cleared.  0 = no cache.  Default: "
+    + SequenceCache.DEFAULT_MAX_SEQS);
+  prtln("");
   prtln("-inFile       stg   input data file.  May be repeated.  Example:");
   prtln("                    -inFile june.bufr -inFile july.bufr");
   prtln("");
   prtln("-inFiles      stg   space separated list of input files.  Example:");
   prtln("                    -inFiles \"june.bufr july.bufr\"");
   prtln("");
+  prtln("-inDir        stg   directory to be searched recursively for");
+  prtln("                    input files.  All files in the directory");
+  prtln("                    tree are used, in sorted order.");
+  prtln("                    May be repeated.");
+  prtln("");
   prtln("-inList       stg   name of a file whose lines contain the");
   prtln("                    input file names.  Leading and trailing");
   prtln("                    white space are ignored.");
@@ -323,6 +792,51 @@ static void printHelpUsage() {
   prtln("                      /home/test/data/july.bufr");
   prtln("                    Default: \"\"");
   prtln("");
+  prtln("-catalog      stg   catalog output file.  If specified, the");
+  prtln("                    input files are cataloged rather than");
+  prtln("                    converted: a CSV file is written with");
+  prtln("                    one line per message, containing the");
+  prtln("                    section 0, 1 and 3 header info.");
+  prtln("                    Only sections 0, 1, 3 and 5 are read;");
+  prtln("                    sections 2 and 4 are skipped.");
+  prtln("                    The -parseStage, -outFormat, -outStyle");
+  prtln("                    and -outSpec parms are not needed,");
+  prtln("                    and no tables are needed.");
+  prtln("                    Use -fileThreads to catalog several");
+  prtln("                    files concurrently.  The lines are");
+  prtln("                    written in input file order.");
+  prtln("");
+  prtln("-buildIndex   y/n   if y, for each -inDir, write an index of");
+  prtln("                    all the messages in the directory tree");
+  prtln("                    to the file \"" + BufrIndex.INDEX_NAME + "\" in the");
+  prtln("                    directory, for use by -query.");
+  prtln("                    Only the headers are read, unless");
+  prtln("                    -parseStage is data: then the data are");
+  prtln("                    parsed too, and the index also has the");
+  prtln("                    lat/lon bounding box and the station ids");
+  prtln("                    of each message.  The -outFormat,");
+  prtln("                    -outStyle and -outSpec parms are not needed.");
+  prtln("                    Use -fileThreads to index several");
+  prtln("                    files concurrently.");
+  prtln("                    Default: n");
+  prtln("");
+  prtln("-query        stg   read only the messages matching the query,");
+  prtln("                    using the index of each -inDir.");
+  prtln("                    The messages are found by seeking directly");
+  prtln("                    to them, rather than scanning the files.");
+  prtln("                    The query is blank separated conditions:");
+  prtln("                      time=lo-hi   yyyymmddhhmmss, or any leading");
+  prtln("                                   part, like 2024051712");
+  prtln("                      category=n");
+  prtln("                      station=id   like 12345 or a ship id");
+  prtln("                      bbox=latLo,lonLo,latHi,lonHi");
+  prtln("                    station and bbox need an index built");
+  prtln("                    with -parseStage data.  Example:");
+  prtln("                      -query \"time=2024051712 station=12345\"");
+  prtln("                    The output is as usual, and each message");
+  prtln("                    keeps its msgNum within its file.");
+  prtln("                    Each file is read by a single thread.");
+  prtln("");
   prtln("-outSpec      stg   output name specification for XML files.");
   prtln("                    Multiple -outSpec values are concatenated.");
   prtln("                    There is a separate xml output file for each");
@@ -337,6 +851,23 @@ static void printHelpUsage() {
   prtln("                    Multiple -report values are concatenated.");
   prtln("                    See \"Output and report specifications\" below");
   prtln("");
+  prtln("-container    stg   if specified, instead of a file per message,");
+  prtln("                    append the output of all messages to this");
+  prtln("                    container file, as records named by outSpec.");
+  prtln("                    A manifest, named stg.manifest, gives the");
+  prtln("                    part, offset, length, msgNum, input file and");
+  prtln("                    name of each record.  See ContainerWriter.");
+  prtln("");
+  prtln("-containerCompress y/n  Default = n.  If y, gzip each record.");
+  prtln("                    Records are compressed by the threads that");
+  prtln("                    format them, so in parallel with -threads,");
+  prtln("                    -formatThreads or -fileThreads.");
+  prtln("");
+  prtln("-containerMaxMB int if > 0, start a new container part when one");
+  prtln("                    would exceed this many megabytes.  The parts");
+  prtln("                    are named stg.0, stg.1, ...  Default = 0:");
+  prtln("                    a single container file.");
+  prtln("");
   prtln("");
   prtln("Note on tables:");
   prtln("  A directory containing formatted BUFR tables");
@@ -355,10 +886,15 @@ static void printHelpUsage() {
   prtln("    descTab.formatted             # descriptors - BUFR table B");
   prtln("    seqTab.formatted              # sequences - BUFR table D");
   prtln("");
-  prtln("  There may be multiple -tabledir specifications.");
-  prtln("  They must all have the same major version number.");
-  prtln("  The minor version number of the i'th tabledir");
-  prtln("  must be >= that of the (i-1)'th tabledir.");
+  prtln("  There may be multiple -tabledir specifications,");
+  prtln("  for any number of versions.  The tables for a version");
+  prtln("  are read when a message first uses it.  Each message");
+  prtln("  uses the tabledirs for the master table version,");
+  prtln("  local table version, and centre in its section 1:");
+  prtln("  those with the same major version and minor version");
+  prtln("  <= the local version, merged in order of version.");
+  prtln("  Data with major version <= 13 may use the tables of");
+  prtln("  a later major version <= 13.");
   prtln("  ");
   prtln("  Each of the above tables must be found in SOME");
   prtln("  tabledir directory.  But if there are multiple");
@@ -366,7 +902,7 @@ static void printHelpUsage() {
   prtln("  might contain fewer than all five of the files.");
   prtln("");
   prtln("  If there are multiple table files of the same type,");
-  prtln("  all the specified files are used.");
+  prtln("  all the applicable files are used.");
   prtln("  If the same entry is found in multiple files,");
   prtln("  the last entry is used.");
   prtln("");
@@ -547,13 +1083,15 @@ public String toString() {
  */
 
 public static void main( String[] args) {
+  int rc = 0;
   try {
-    mainPgm( args);
+    rc = mainPgm( args);
   }
   catch( BufrException exc) {
     BufrUtil.prtlnexc("caught", exc);
-    System.exit(1);
+    rc = 1;
   }
+  if (rc != 0) System.exit( rc);
 }
 
 
@@ -561,33 +1099,29 @@ public static void main( String[] args) {
 
 
 
-static void mainPgm( String[] args)
+/**
+ * Parses the command line and processes the input files.
+ * Returns the exit code: 0 if ok, 1 if any file had errors.
+ */
+
+static int mainPgm( String[] args)
 throws BufrException
 {
-  int tableBugs = 0;
-  int dataBugs = 0;
-
-  int parseStage = STAGE_UNKNOWN;
-  int outFormat = OUTFORMAT_UNKNOWN;
-  int outStyle = OUTSTYLE_UNKNOWN;
-
-  int tableVersionMajor = -1;
-  int tableVersionMinor = -1;
-  boolean allowDups = false;
+  Options opts = new Options();
   String helpStg = null;
   String tabCategName = null;
   String tabCodeFlagName = null;
   String tabCommonName = null;
   String tabDescriptionName = null;
   String tabSequenceName = null;
-  boolean validateFlag = false;
-  boolean forceFlag = false;
   LinkedList<String> inFileList = new LinkedList<String>();
   String inList = null;
   String inListDir = null;
+  LinkedList<String> inDirList = new LinkedList<String>();
 
-  String outSpec = null;
-  String reportSpec = null;
+  String catalogFile = null;
+  boolean buildIndex = false;
+  String queryStg = null;
 
   String tabledirKey = "-tabledir_";
   LinkedList<TableSource> tableSourceList = new LinkedList<TableSource>();
@@ -600,55 +1134,95 @@ throws BufrException
     if (key.equals("-help")) helpStg = val;
 
     else if (key.equals("-debugTable"))
-      tableBugs = BufrUtil.parseInt( key, val);
+      opts.tableBugs = BufrUtil.parseInt( key, val);
 
     else if (key.equals("-debugData"))
-      dataBugs = BufrUtil.parseInt( key, val);
+      opts.dataBugs = BufrUtil.parseInt( key, val);
 
     else if (key.equals("-parseStage"))
-      parseStage = BufrUtil.parseKeyword( "stage", stageNames, false, val);
+      opts.parseStage = BufrUtil.parseKeyword(
+        "stage", stageNames, false, val);
 
     else if (key.equals("-outFormat")) {
-      outFormat = BufrUtil.parseKeyword(
+      opts.outFormat = BufrUtil.parseKeyword(
         "outFormat", outFormatNames, false, val);
     }
 
     else if (key.equals("-outStyle"))
-      outStyle = BufrUtil.parseKeyword( "outStyle", outStyleNames, false, val);
+      opts.outStyle = BufrUtil.parseKeyword(
+        "outStyle", outStyleNames, false, val);
+
+    else if (key.equals("-inMode"))
+      opts.inMode = BufrUtil.parseKeyword(
+        "inMode", inModeNames, false, val);
+
+    else if (key.equals("-decode"))
+      opts.decodeMode = BufrUtil.parseKeyword(
+        "decode", decodeNames, false, val);
+
+    else if (key.equals("-select"))
+      opts.projection = BufrProjection.parse( val);
+
+    else if (key.equals("-filter"))
+      opts.filter = SubsetFilter.parse( val);
+
+    else if (key.equals("-usageBanner"))
+      opts.usageBanner = BufrUtil.parseBoolean( key, val);
+
+    else if (key.equals("-threads"))
+      opts.numThreads = BufrUtil.parseInt( key, val);
+
+    else if (key.equals("-splitMessages"))
+      opts.splitThreads = BufrUtil.parseInt( key, val);
+
+    else if (key.equals("-splitMinSubsets"))
+      opts.splitMinSubsets = BufrUtil.parseInt( key, val);
+
+    else if (key.equals("-formatThreads"))
+      opts.formatThreads = BufrUtil.parseInt( key, val);
+
+    else if (key.equals("-writeThreads"))
+      opts.writeThreads = BufrUtil.parseInt( key, val);
+
+    else if (key.equals("-fileThreads"))
+      opts.numFileThreads = BufrUtil.parseInt( key, val);
+
+    else if (key.equals("-maxPlans"))
+      opts.maxPlans = BufrUtil.parseInt( key, val);
+
+    else if (key.equals("-maxSeqs"))
+      opts.maxSeqs = BufrUtil.parseInt( key, val);
+
+    else if (key.equals("-cacheStats"))
+      opts.cacheStats = BufrUtil.parseBoolean( key, val);
+
+    else if (key.equals("-maxTableEntries"))
+      opts.maxTableEntries = BufrUtil.parseInt( key, val);
 
     else if (key.equals("-allowDups"))
-      allowDups = BufrUtil.parseBoolean( key, val);
+      opts.allowDups = BufrUtil.parseBoolean( key, val);
+
+    else if (key.equals("-tableSnapshot")) opts.tableSnapshot = val;
 
-    else if (key.startsWith( tabledirKey)) {            // "-tabledir_maj.min"
-      String vkey = key.substring( tabledirKey.length());  // "maj.min"
-      int ix = vkey.indexOf(".");
-      if (ix <= 0 || ix >= vkey.length() - 1)
+    else if (key.startsWith( tabledirKey)) {  // "-tabledir_maj.min[.centre]"
+      String[] vstgs = key.substring( tabledirKey.length()).split("\\.", -1);
+      if (vstgs.length != 2 && vstgs.length != 3)
         badparms("invalid table spec: " + key);
-      int major = BufrUtil.parseInt("table major version",
-        vkey.substring( 0, ix));
-      int minor = BufrUtil.parseInt("table minor version",
-        vkey.substring( ix+1));
-      if (tableSourceList.size() == 0) {
-        tableVersionMajor = major;
-        tableVersionMinor = minor;
-      }
-      if (major != tableVersionMajor)
-        badparms("tabledir major version != previous specified major version"
-          + "  for tabledir: " + key);
-      if (minor < tableVersionMinor)
-        badparms("tabledir minor version < previous specified minor version"
-          + "  for tabledir: " + key);
-      tableVersionMinor = minor;     // use the most recent version
-
-      TableSource tsource = new TableSource( major, minor, val);
+      int major = BufrUtil.parseInt("table major version", vstgs[0]);
+      int minor = BufrUtil.parseInt("table minor version", vstgs[1]);
+      int centre = -1;
+      if (vstgs.length == 3)
+        centre = BufrUtil.parseInt("table centre", vstgs[2]);
+
+      TableSource tsource = new TableSource( major, minor, centre, val);
       tableSourceList.add( tsource);
     }
 
     else if (key.equals("-validate"))
-      validateFlag = BufrUtil.parseBoolean( "validate", val);
+      opts.validateFlag = BufrUtil.parseBoolean( "validate", val);
 
     else if (key.equals("-force"))
-      forceFlag = BufrUtil.parseBoolean( "force", val);
+      opts.forceFlag = BufrUtil.parseBoolean( "force", val);
 
     else if (key.equals("-inFile")) inFileList.add( val);
 
@@ -663,16 +1237,33 @@ throws BufrException
 
     else if (key.equals("-inListDir")) inListDir = val;
 
+    else if (key.equals("-inDir")) inDirList.add( val);
+
+    else if (key.equals("-catalog")) catalogFile = val;
+
+    else if (key.equals("-buildIndex"))
+      buildIndex = BufrUtil.parseBoolean( key, val);
+
+    else if (key.equals("-query")) queryStg = val;
+
     else if (key.equals("-outSpec")) {
-      if (outSpec == null) outSpec = "";
-      outSpec += val;
+      if (opts.outSpec == null) opts.outSpec = "";
+      opts.outSpec += val;
     }
 
     else if (key.equals("-report")) {
-      if (reportSpec == null) reportSpec = "";
-      reportSpec += val;
+      if (opts.reportSpec == null) opts.reportSpec = "";
+      opts.reportSpec += val;
     }
 
+    else if (key.equals("-container")) opts.containerName = val;
+
+    else if (key.equals("-containerCompress"))
+      opts.containerCompress = BufrUtil.parseBoolean( key, val);
+
+    else if (key.equals("-containerMaxMB"))
+      opts.containerMaxMB = BufrUtil.parseInt( key, val);
+
     else badparms("unknown key: \"" + key + "\"");
   } // for iarg
 
@@ -701,251 +1292,469 @@ throws BufrException
     }
   }
 
+  for (String inDir : inDirList) {
+    File dirFile = new File( inDir);
+    if (! dirFile.isDirectory())
+      badparms("-inDir is not a directory: \"" + inDir + "\"");
+    if (! buildIndex && queryStg == null) addDirFiles( dirFile, inFileList);
+  }
+
+  // With -query, read the index of each inDir to get the files
+  // and the messages to read.
+  LinkedList<BufrIndex.Entry[]> entryList = null;
+  if (queryStg != null) {
+    if (buildIndex) badparms("cannot specify both -buildIndex and -query");
+    if (inDirList.size() == 0) badparms("-query requires -inDir");
+    if (inFileList.size() > 0)
+      badparms("with -query, input files must be given by -inDir");
+    BufrIndex.Query query = BufrIndex.Query.parse( queryStg);
+    entryList = new LinkedList<BufrIndex.Entry[]>();
+    for (String inDir : inDirList) {
+      BufrIndex bindex = BufrIndex.load( opts.dataBugs, inDir);
+      for (BufrIndex.Entry[] ents : bindex.select( query)) {
+        inFileList.add( bindex.getFilePath( ents[0].fileIndex));
+        entryList.add( ents);
+      }
+    }
+    if (inFileList.size() == 0) prtln("BufrFile: no messages match -query");
+  }
+  if (buildIndex && inDirList.size() == 0)
+    badparms("-buildIndex requires -inDir");
+
+  // The catalog and index only read the headers,
+  // so these parms aren't needed.
+  if (catalogFile != null || buildIndex) {
+    if (opts.parseStage == STAGE_UNKNOWN) opts.parseStage = STAGE_DKEY;
+    if (opts.outFormat == OUTFORMAT_UNKNOWN) opts.outFormat = OUTFORMAT_TEXT;
+    if (opts.outStyle == OUTSTYLE_UNKNOWN) opts.outStyle = OUTSTYLE_STANDARD;
+  }
+
 
+  int rc = 0;
   if (helpStg != null) {
     if (helpStg.equals("usage")) printHelpUsage();
     else if (helpStg.equals("copyright")) prtln( COPYRIGHT.copyright);
     else badparms("unknown help request");
   }
+  else if (entryList != null && inFileList.size() == 0) {}  // no matches
   else {
-    TableSource[] tableSources = tableSourceList.toArray( new TableSource[0]);
     String[] inFiles = inFileList.toArray( new String[0]);
-
-    processFiles(
-      tableBugs,
-      dataBugs,
-      parseStage,
-      outFormat,
-      outStyle,
-      tableVersionMajor,
-      tableVersionMinor,
-      allowDups,
-      helpStg,
-      tableSources,
-      validateFlag,
-      forceFlag,
-      inFiles,
-      outSpec,
-      reportSpec);
+    String[] indexDirs = null;
+    if (buildIndex) indexDirs = inDirList.toArray( new String[0]);
+    BufrIndex.Entry[][] fileEntries = null;
+    if (entryList != null)
+      fileEntries = entryList.toArray( new BufrIndex.Entry[0][]);
+
+    opts.tableSources = tableSourceList.toArray( new TableSource[0]);
+    int numErrFiles = processFiles(
+      opts, inFiles, catalogFile, indexDirs, fileEntries);
+    if (numErrFiles > 0) rc = 1;
   }
+  return rc;
 } // mainPgm
 
 
 
 
+/**
+ * Adds the names of all files in the directory tree dirFile
+ * to fileList, in sorted order.  Called for -inDir.
+ */
+
+static void addDirFiles(
+  File dirFile,
+  LinkedList<String> fileList)
+throws BufrException
+{
+  File[] subFiles = dirFile.listFiles();
+  if (subFiles == null)
+    throwerr("could not read directory \"" + dirFile + "\"");
+  Arrays.sort( subFiles);
+  for (File subFile : subFiles) {
+    if (subFile.isDirectory()) addDirFiles( subFile, fileList);
+    else if (subFile.isFile()) fileList.add( subFile.getPath());
+  }
+}
+
+
 
 
 
-static void processFiles(
+
+
+/**
+ * Reads the formatted text tables in each of the tableSources,
+ * and merges them into tabCateg etc.
+ * <p>
+ * The table files are read in parallel on readPool.
+ * The merges are done in order afterwards, so the result is the
+ * same as reading the files in sequence.
+ */
+
+static void readTextTables(
   int tableBugs,
-  int dataBugs,
-  int parseStage,
-  int outFormat,
-  int outStyle,
-  int tableVersionMajor,
-  int tableVersionMinor,
   boolean allowDups,
-  String helpStg,
+  ExecutorService readPool,      // shared; see TableRegistry.readPool
   TableSource[] tableSources,
-  boolean validateFlag,
-  boolean forceFlag,
+  TableCateg tabCateg,
+  TableCodeFlag tabCodeFlag,
+  TableCommon tabCommon,
+  TableDesc tabDesc,
+  TableSeq tabSeq)
+throws BufrException
+{
+  String[] tags = TableSnapshot.tableTags;
+  SourceTables[] tables = new SourceTables[ tableSources.length];
+  LinkedList<Future<?>> futures = new LinkedList<Future<?>>();
+  try {
+    for (int isrc = 0; isrc < tableSources.length; isrc++) {
+      tables[isrc] = new SourceTables( tags.length);
+      for (int itag = 0; itag < tags.length; itag++) {
+        final SourceTables srcTables = tables[isrc];
+        final int tagIndex = itag;
+        final String fname = TableSnapshot.getTableFileName(
+          tableSources[isrc], tags[itag]);
+        futures.add( readPool.submit( new Callable<Object>() {
+          public Object call()
+          throws BufrException
+          {
+            srcTables.readTable( tableBugs, allowDups, tagIndex, fname);
+            return null;
+          }
+        }));
+      }
+    }
+    // Wait in order, so the first error is the one reported.
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      }
+      catch( InterruptedException exc) {
+        BufrUtil.prtlnexc("caught", exc);
+        throwerr("interrupted");
+      }
+      catch( ExecutionException exc) {
+        if (exc.getCause() instanceof BufrException)
+          throw (BufrException) exc.getCause();
+        BufrUtil.prtlnexc("caught", exc);
+        throwerr("caught: " + exc.getCause());
+      }
+    }
+  }
+  finally {
+    // After an error, don't leave our reads on the shared pool.
+    for (Future<?> future : futures) {
+      future.cancel( true);
+    }
+  }
+
+  for (int isrc = 0; isrc < tableSources.length; isrc++) {
+    TableSource tsource = tableSources[isrc];
+    SourceTables srcTables = tables[isrc];
+    String verstg = tsource.versionMajor + "." + tsource.versionMinor;
+    for (int itag = 0; itag < tags.length; itag++) {
+      String tag = tags[itag];
+      String tpath = BufrUtil.getCanonicalPath(
+        TableSnapshot.getTableFileName( tsource, tag));
+      if (! srcTables.found[itag]) {
+        if (tableBugs >= 0)
+          prtln("Not found: version " + verstg + " " + tag + " at: " + tpath);
+      }
+      else {
+        if (srcTables.versionMajor[itag] != tsource.versionMajor
+          || srcTables.versionMinor[itag] != tsource.versionMinor)
+          badparms("table version mismatch for tabledir: "
+            + tsource.dirName + "\n" + "  table file: " + tpath);
+        if (tableBugs >= 1) {
+          prtln("  Found version " + verstg + " " + tag
+            + " at: " + tpath + " size: " + srcTables.size[itag]);
+        }
+      }
+    }
+    if (srcTables.tabCateg != null) tabCateg.merge( srcTables.tabCateg);
+    if (srcTables.tabCodeFlag != null)
+      tabCodeFlag.merge( srcTables.tabCodeFlag);
+    if (srcTables.tabCommon != null) tabCommon.merge( srcTables.tabCommon);
+    if (srcTables.tabDesc != null) tabDesc.merge( srcTables.tabDesc);
+    if (srcTables.tabSeq != null) tabSeq.merge( srcTables.tabSeq);
+  } // for each TableSource
+}
+
+
+
+
+
+
+
+/**
+ * Sets up the tables and processes all the input files,
+ * using numFileThreads concurrent files.
+ * Prints a summary of the errors, if any.
+ * Returns the number of files having errors.
+ */
+
+static int processFiles(
+  Options opts,
   String[] inFiles,
-  String outSpec,
-  String reportSpec)
+  String catalogFile,            // if not null, write a catalog only
+  String[] indexDirs,            // if not null, write indexes only
+  BufrIndex.Entry[][] fileEntries)   // if not null, for each inFile,
+                                     // the messages to read; see -query
 throws BufrException
 {
-  if (parseStage == STAGE_UNKNOWN)
+  if (opts.parseStage == STAGE_UNKNOWN)
     badparms("parameter not found: -parseStage");
-  if (outFormat == OUTFORMAT_UNKNOWN)
+  if (opts.outFormat == OUTFORMAT_UNKNOWN)
     badparms("parameter not found: -outFormat");
-  if (outStyle == OUTSTYLE_UNKNOWN)
+  if (opts.outStyle == OUTSTYLE_UNKNOWN)
     badparms("parameter not found: -outStyle");
+  if (opts.inMode == INMODE_UNKNOWN)
+    badparms("invalid -inMode");
+  if (opts.decodeMode == DECODE_UNKNOWN)
+    badparms("invalid -decode");
+  if (opts.numThreads < 1)
+    badparms("-threads must be >= 1");
+  if (opts.splitThreads < 1)
+    badparms("-splitMessages must be >= 1");
+  if (opts.splitMinSubsets < 1)
+    badparms("-splitMinSubsets must be >= 1");
+  if (opts.formatThreads < 1)
+    badparms("-formatThreads must be >= 1");
+  if (opts.writeThreads < 0)
+    badparms("-writeThreads must be >= 0");
+  if (opts.numFileThreads < 1)
+    badparms("-fileThreads must be >= 1");
+  if (opts.filter != null && opts.decodeMode != DECODE_TREE)
+    badparms("-filter requires -decode tree");
+  if (opts.filter != null && opts.splitThreads > 1)
+    badparms("-filter cannot be used with -splitMessages > 1");
 
-  // Build the tables to pass to BufrFile constructor
-  TableCateg tabCateg = new TableCateg( tableBugs);
-  TableCodeFlag tabCodeFlag = new TableCodeFlag( tableBugs);
-  TableCommon tabCommon = new TableCommon( tableBugs);
-  TableDesc tabDesc = new TableDesc( tableBugs);
-  TableSeq tabSeq = new TableSeq( tableBugs);
-
-  for (TableSource tsource : tableSources) {
-    String tag;
-    String fname;
-    String tpath;
-    File tfile;
-    String slash = System.getProperty("file.separator");
-    String verstg = tsource.versionMajor + "." + tsource.versionMinor;
+  // If we're going to expand descriptors, we need the tables.
+  if (opts.parseStage >= STAGE_EXPDKEY && opts.tableSources.length == 0)
+    badparms("no -tabledir specified");
+  if ((inFiles == null || inFiles.length == 0) && indexDirs == null)
+    badparms("no input file specified");
+  if (opts.outSpec == null && catalogFile == null && indexDirs == null)
+    badparms("outSpec not specified");
+  // reportSpec may be null
+  if (opts.maxTableEntries < 1)
+    badparms("-maxTableEntries must be >= 1");
+  if (opts.maxPlans < 0)
+    badparms("-maxPlans must be >= 0");
+  if (opts.maxSeqs < 0)
+    badparms("-maxSeqs must be >= 0");
+  if (opts.containerName != null
+    && (catalogFile != null || indexDirs != null))
+    badparms("-container cannot be used with -catalog or -buildIndex");
+  if (opts.containerMaxMB < 0)
+    badparms("-containerMaxMB must be >= 0");
+
+  // The tables for each version are read when first used by
+  // a message, and then shared by all files and threads.
+  opts.tableRegistry = new TableRegistry(
+    opts.tableBugs, opts.allowDups, opts.tableSnapshot,
+    opts.parseStage >= STAGE_EXPDKEY,      // requireTables
+    opts.maxTableEntries, opts.tableSources);
+
+  // Compiled section 3 templates, shared by all files
+  opts.planCache = new DecodePlan.PlanCache( opts.maxPlans);
+  // Expanded table D sequences, shared by all files
+  opts.seqCache = new SequenceCache( opts.maxSeqs);
+
+  // With -container, all the output goes to one container.
+  if (opts.containerName != null) {
+    opts.container = new ContainerWriter(
+      opts.dataBugs, opts.containerName, opts.containerCompress,
+      1024L * 1024 * opts.containerMaxMB);
+  }
 
-    tag = "categTab";
-    fname = tsource.dirName + slash + tag + ".formatted";
-    tfile = new File(fname);
-    tpath = BufrUtil.getCanonicalPath( fname);
-    if (tfile.exists()) {
-      TableCateg table = new TableCateg( tableBugs);
-      table.read( allowDups, fname);
-      if (table.versionMajor != tsource.versionMajor
-        || table.versionMinor != tsource.versionMinor)
-        badparms("table version mismatch for tabledir: "
-          + tsource.dirName + "\n" + "  table file: " + tpath);
-      tabCateg.merge( table);
-      if (tableBugs >= 1) {
-        prtln("  Found version " + verstg + " " + tag
-          + " at: " + tpath + "  size: " + table.size());
-      }
-    }
-    else {
-      if (tableBugs >= 0)
-        prtln("Not found: version " + verstg + " " + tag + " at: " + tpath);
-    }
+  // One pool for the subsets of large messages, shared by all
+  // files, so -fileThreads doesn't multiply the threads.
+  if (opts.splitThreads > 1)
+    opts.splitPool = new ForkJoinPool( opts.splitThreads);
 
-    tag = "codeFlagTab";
-    fname = tsource.dirName + slash + tag + ".formatted";
-    tfile = new File(fname);
-    tpath = BufrUtil.getCanonicalPath( fname);
-    if (tfile.exists()) {
-      TableCodeFlag table = new TableCodeFlag( tableBugs);
-      table.read( allowDups, fname);
-      if (table.versionMajor != tsource.versionMajor
-        || table.versionMinor != tsource.versionMinor)
-        badparms("table version mismatch for tabledir: "
-          + tsource.dirName + "\n" + "  table file: " + tpath);
-      tabCodeFlag.merge( table);
-      if (tableBugs >= 1) {
-        prtln("  Found version " + verstg + " " + tag
-          + " at: " + tpath + " size: " + table.size());
+  // Process each input file
+  FileResult[] results = null;
+  try {
+    if (indexDirs != null) {
+      LinkedList<FileResult> resList = new LinkedList<FileResult>();
+      for (String indexDir : indexDirs) {
+        for (FileResult res : BufrIndex.buildIndex( opts, indexDir)) {
+          resList.add( res);
+        }
       }
+      results = resList.toArray( new FileResult[0]);
     }
-    else {
-      if (tableBugs >= 0)
-        prtln("Not found: version " + verstg + " " + tag + " at: " + tpath);
+    else if (catalogFile != null) {
+      results = BufrCatalog.writeCatalog( opts, inFiles, catalogFile);
     }
-
-    tag = "commonTab";
-    fname = tsource.dirName + slash + tag + ".formatted";
-    tfile = new File(fname);
-    tpath = BufrUtil.getCanonicalPath( fname);
-    if (tfile.exists()) {
-      TableCommon table = new TableCommon( tableBugs);
-      table.read( allowDups, fname);
-      if (table.versionMajor != tsource.versionMajor
-        || table.versionMinor != tsource.versionMinor)
-        badparms("table version mismatch for tabledir: "
-          + tsource.dirName + "\n" + "  table file: " + tpath);
-      tabCommon.merge( table);
-      if (tableBugs >= 1) {
-        prtln("  Found version " + verstg + " " + tag
-          + " at: " + tpath + " size: " + table.size());
+    else if (opts.numFileThreads == 1) {
+      results = new FileResult[ inFiles.length];
+      for (int ifile = 0; ifile < inFiles.length; ifile++) {
+        results[ifile] = processOneFile(
+          opts, ifile, inFiles[ifile],
+          fileEntries == null ? null : fileEntries[ifile],
+          false);                     // isConcurrent
       }
     }
     else {
-      if (tableBugs >= 0)
-        prtln("Not found: version " + verstg + " " + tag + " at: " + tpath);
+      results = new FileResult[ inFiles.length];
+      // Files finish in any order.  Write each file's report lines
+      // as soon as the file is done, so a slow or failed file
+      // doesn't hold up the others.
+      ExecutorService pool = Executors.newFixedThreadPool(
+        opts.numFileThreads);
+      CompletionService<FileResult> compService
+        = new ExecutorCompletionService<FileResult>( pool);
+      try {
+        for (int ifile = 0; ifile < inFiles.length; ifile++) {
+          final int fileIndex = ifile;
+          final String inFile = inFiles[ifile];
+          final BufrIndex.Entry[] indexEntries
+            = fileEntries == null ? null : fileEntries[ifile];
+          compService.submit( new Callable<FileResult>() {
+            public FileResult call()
+            throws BufrException
+            {
+              return processOneFile(
+                opts, fileIndex, inFile, indexEntries,
+                true);                // isConcurrent
+            }
+          });
+        }
+
+        for (int ii = 0; ii < inFiles.length; ii++) {
+          FileResult res = null;
+          try {
+            res = compService.take().get();
+          }
+          catch( InterruptedException exc) {
+            BufrUtil.prtlnexc("caught", exc);
+            throwerr("interrupted");
+          }
+          catch( ExecutionException exc) {
+            // processOneFile catches all Exceptions, so this is a bug.
+            BufrUtil.prtlnexc("caught", exc);
+            throwerr("caught: " + exc.getCause());
+          }
+          if (res.reportLines != null && res.reportLines.length() > 0)
+            System.out.print( res.reportLines);
+          results[res.fileIndex] = res;
+        }
+      }
+      finally {
+        pool.shutdownNow();
+      }
     }
+  }
+  finally {
+    opts.tableRegistry.close();
+    if (opts.splitPool != null) opts.splitPool.shutdownNow();
+    // Close even after an error, so the manifest matches the entries.
+    if (opts.container != null) opts.container.close();
+  }
 
-    tag = "descTab";
-    fname = tsource.dirName + slash + tag + ".formatted";
-    tfile = new File(fname);
-    tpath = BufrUtil.getCanonicalPath( fname);
-    if (tfile.exists()) {
-      TableDesc table = new TableDesc( tableBugs);
-      table.read( allowDups, fname);
-      if (table.versionMajor != tsource.versionMajor
-        || table.versionMinor != tsource.versionMinor)
-        badparms("table version mismatch for tabledir: "
-          + tsource.dirName + "\n" + "  table file: " + tpath);
-      tabDesc.merge( table);
-      if (tableBugs >= 1) {
-        prtln("  Found version " + verstg + " " + tag
-          + " at: " + tpath + " size: " + table.size());
-      }
+  if (opts.cacheStats || opts.dataBugs >= 1) {
+    prtln("BufrFile: planCache: " + opts.planCache);
+    prtln("BufrFile: seqCache: " + opts.seqCache);
+    prtln("BufrFile: tableRegistry: " + opts.tableRegistry);
+    if (opts.container != null)
+      prtln("BufrFile: container: " + opts.container);
+  }
+
+  // Summarize the errors, in inFiles order
+  int numErrFiles = 0;
+  StringBuilder errBuf = new StringBuilder();
+  for (FileResult res : results) {
+    if (res.hasErrors()) numErrFiles++;
+    for (String msg : res.errorMsgs) {
+      errBuf.append( msg);
     }
-    else {
-      if (tableBugs >= 0)
-        prtln("Not found: version " + verstg + " " + tag + " at: " + tpath);
+    if (res.failure != null) {
+      errBuf.append("\n=============== FAILED FILE ==================\n\n"
+        + "Could not process file: " + res.inFile + "\n"
+        + "  Exception: " + res.failure + "\n");
     }
+  }
 
-    tag = "seqTab";
-    fname = tsource.dirName + slash + tag + ".formatted";
-    tfile = new File(fname);
-    tpath = BufrUtil.getCanonicalPath( fname);
-    if (tfile.exists()) {
-      TableSeq table = new TableSeq( tableBugs);
-      table.read( allowDups, fname);
-      if (table.versionMajor != tsource.versionMajor
-        || table.versionMinor != tsource.versionMinor)
-        badparms("table version mismatch for tabledir: "
-          + tsource.dirName + "\n" + "  table file: " + tpath);
-      tabSeq.merge( table);
-      if (tableBugs >= 1) {
-        prtln("  Found version " + verstg + " " + tag
-          + " at: " + tpath + " size: " + table.size());
-      }
-    }
-    else {
-      if (tableBugs >= 0)
-        prtln("Not found: version " + verstg + " " + tag + " at: " + tpath);
+  if (errBuf.length() > 0) {
+    String msg = "\nErrors encountered:\n" + errBuf.toString();
+    if (opts.numFileThreads > 1) {
+      msg += "\nFiles with errors: " + numErrFiles
+        + " of " + inFiles.length + "\n";
     }
-  } // for each TableSource
+    prtln(msg);
+    System.err.println(msg);
+  }
+  return numErrFiles;
+} // processFiles
 
 
-  // If we're going to expand descriptors, we need the tables.
-  if (parseStage >= STAGE_EXPDKEY) {
-    if (tabCateg.size() == 0)
-      badparms("category table not specified or is empty");
-    if (tabCodeFlag.size() == 0)
-      badparms("codeflag table not specified or is empty");
-    if (tabCommon.size() == 0)
-      badparms("common table not specified or is empty");
-    if (tabDesc.size() == 0)
-      badparms("description table not specified or is empty");
-    if (tabSeq.size() == 0)
-      badparms("sequence table not specified or is empty");
-  }
-  if (inFiles == null || inFiles.length == 0)
-    badparms("no input file specified");
-  if (outSpec == null) badparms("outSpec not specified");
-  // reportSpec may be null
 
-  // Process each input file
-  String errorMsgs = "";
-  for (String inFile : inFiles) {
-    if (dataBugs >= 1)
-      prtln("BufrFile: begin input file: \"" + inFile + "\"");
-
-    BufrFile bfile = new BufrFile(
-      tableBugs,
-      dataBugs,
-      parseStage,
-      outFormat,
-      outStyle,
-      tableVersionMajor,
-      tableVersionMinor,
-      validateFlag,
-      forceFlag,
-      tabCateg,
-      tabCodeFlag,
-      tabCommon,
-      tabDesc,
-      tabSeq,
-      inFile,
-      outSpec,
-      reportSpec);
+
+
+/**
+ * Processes one input file, called by processFiles.
+ * <p>
+ * If isConcurrent, other files are being processed at the same time:
+ * the report lines are returned in the FileResult rather than
+ * written to stdout, and if the file fails the exception is
+ * returned in the FileResult rather than thrown.
+ */
+
+static FileResult processOneFile(
+  Options opts,
+  int fileIndex,           // index of inFile in inFiles
+  String inFile,
+  BufrIndex.Entry[] indexEntries,  // if not null, read only these
+  boolean isConcurrent)    // if true, other files are being processed
+throws BufrException
+{
+  if (opts.dataBugs >= 1)
+    prtln("BufrFile: begin input file: \"" + inFile + "\"");
+  FileResult res = new FileResult( fileIndex, inFile);
+
+  BufrFile bfile = null;
+  try {
+    bfile = new BufrFile( opts, inFile);
+    if (isConcurrent) bfile.reportBuf = new StringBuilder();
 
     // Read the entire inFile and convert all the BUFR messages to XML,
     // sending the output to files as specified in outSpec.
-    bfile.readFully();
-
-    bfile.close();
-    errorMsgs += bfile.errorMsgs;
-  } // for each inFile
+    if (indexEntries != null) bfile.readIndexed( indexEntries);
+    else bfile.readFully();
+  }
+  catch( Exception exc) {
+    // BufrException, or RuntimeException from bad data.
+    if (! isConcurrent) {
+      if (exc instanceof BufrException) throw (BufrException) exc;
+      else throw (RuntimeException) exc;
+    }
+    prtln("BufrFile: caught: " + exc + "\n  for file: " + inFile);
+    res.failure = exc;
+  }
+  finally {
+    // Close the input even after an error, and even if we rethrow.
+    if (bfile != null) {
+      try {
+        bfile.close();
+      }
+      catch( BufrException exc2) {
+        prtln("BufrFile: caught: " + exc2 + "\n  for file: " + inFile);
+        if (res.failure == null) res.failure = exc2;
+      }
+    }
+  }
 
-  if (errorMsgs.length() > 0) {
-    String msg = "\nErrors encountered:\n" + errorMsgs;
-    prtln(msg);
-    System.err.println(msg);
-    System.exit(1);
+  if (bfile != null) {
+    res.errorMsgs = bfile.errorMsgs;
+    if (bfile.reportBuf != null) res.reportLines = bfile.reportBuf.toString();
   }
-} // processFiles
+  else res.errorMsgs = new LinkedList<String>();
+  if (opts.dataBugs >= 1)
+    prtln("BufrFile: end input file: \"" + inFile + "\"");
+  return res;
+} // processOneFile
 
 
 
@@ -956,56 +1765,93 @@ throws BufrException
  */
 
 BufrFile(
-  int tableBugs,                 // debug level for parsing spec tables
-  int dataBugs,                  // debug level for parsing user data
-  int parseStage,                // one of STAGE_*
-  int outFormat,                 // OUTFORMAT_*: xml or text
-  int outStyle,                  // OUTSTYLE_*: standard or full
-  int tableVersionMajor,         // major table version
-  int tableVersionMinor,         // minor table version
-  boolean validateFlag,          // If true, validate dates, lat/lons, etc.
-  boolean forceFlag,             // If true, continue after parse error
-  TableCateg tableCateg,         // Categories: WMO BUFR table A.
-  TableCodeFlag tableCodeFlag,   // Codes and flags: WMO codes and flags
-                                 //   associated with BUFR table B.
-  TableCommon tableCommon,       // WMO table of common codes
-  TableDesc tableDescription,    // WMO BUFR table B
-  TableSeq tableSequence,        // WMO BUFR table D
-  String inFile,                 // input BUFR data file
-  String outSpec,                // output name spec for XML files
-  String reportSpec)             // report spec, like outSpec
+  Options opts,                  // settings and shared caches
+  String inFile)                 // input BUFR data file
 throws BufrException
 {
-  this.tableBugs = tableBugs;
-  this.dataBugs = dataBugs;
-  this.parseStage = parseStage;
-  this.outFormat = outFormat;
-  this.outStyle = outStyle;
-  this.tableVersionMajor = tableVersionMajor;
-  this.tableVersionMinor = tableVersionMinor;
-  this.validateFlag = validateFlag;
-  this.forceFlag = forceFlag;
-  this.tableCateg = tableCateg;
-  this.tableCodeFlag = tableCodeFlag;
-  this.tableCommon = tableCommon;
-  this.tableDescription = tableDescription;
-  this.tableSequence = tableSequence;
+  this.tableBugs = opts.tableBugs;
+  this.dataBugs = opts.dataBugs;
+  this.parseStage = opts.parseStage;
+  this.outFormat = opts.outFormat;
+  this.outStyle = opts.outStyle;
+  this.inMode = opts.inMode;
+  this.decodeMode = opts.decodeMode;
+  this.projection = opts.projection;
+  this.filter = opts.filter;
+  this.usageBanner = opts.usageBanner;
+  this.numThreads = opts.numThreads;
+  this.splitThreads = opts.splitThreads;
+  this.splitMinSubsets = opts.splitMinSubsets;
+  this.formatThreads = opts.formatThreads;
+  this.writeThreads = opts.writeThreads;
+  this.validateFlag = opts.validateFlag;
+  this.forceFlag = opts.forceFlag;
+  this.tableRegistry = opts.tableRegistry;
+  this.planCache = opts.planCache;
+  this.seqCache = opts.seqCache;
   this.inFile = inFile;
-  this.outSpec = outSpec;
-  this.reportSpec = reportSpec;
+  this.outSpec = opts.outSpec;
+  this.reportSpec = opts.reportSpec;
+  this.container = opts.container;
+  this.splitPool = opts.splitPool;
+  if (decodeMode == DECODE_STREAM) {
+    keepSubsets = BufrFormatter.getSpecSubsets(
+      new String[] { outSpec, reportSpec});
+  }
 
-  try {
-    istm = new FileInputStream( inFile);
+
+  if (inMode == INMODE_MMAP) {
+    mapRdr = new MappedFileReader( dataBugs, inFile,
+      MappedFileReader.DEFAULT_WINDOW_LEN);
   }
-  catch( IOException exc) {
-    BufrUtil.prtlnexc("caught", exc);
-    throwerr("could not open input file \"" + inFile + "\"");
+  else {
+    try {
+      istm = new BufferedInputStream( new FileInputStream( inFile));
+    }
+    catch( IOException exc) {
+      BufrUtil.prtlnexc("caught", exc);
+      throwerr("could not open input file \"" + inFile + "\"");
+    }
   }
   fileOffset = 0;
 }
 
 
 
+/**
+ * Returns the tables for the versions in a message header,
+ * as a TableOverlay holding the entries defined by earlier
+ * messages of this file.  There is one overlay per table set,
+ * so messages of different versions don't see each other's entries.
+ * Returns null if no tables are compatible with the versions.
+ * <p>
+ * The overlay keeps its table set, so a set dropped by the
+ * tableRegistry is still used for the rest of this file.
+ */
+
+TableOverlay getOverlay(
+  int master,                    // hdrMasterTableVersion
+  int local,                     // hdrLocalTableVersion
+  int centre)                    // hdrCentre
+throws BufrException
+{
+  TableOverlay res = null;
+  TableRegistry.TableSet tset = tableRegistry.getTables(
+    master, local, centre);
+  if (tset != null) {
+    synchronized (overlayMap) {
+      res = overlayMap.get( tset.key);
+      if (res == null) {
+        res = new TableOverlay( tset);
+        overlayMap.put( tset.key, res);
+      }
+    }
+  }
+  return res;
+}
+
+
+
 /**
  * Reads the entire inFile and converts all the BUFR messages to XML,
  * writing the output to files as specified in outSpec.
@@ -1016,11 +1862,23 @@ throws BufrException
  *         Format and write a separate XML file
  *         Write a report line
  * </pre>
+ * If writeThreads > 0, uses a {@link BufrPipeline BufrPipeline}.
+ * Else if numThreads > 1, calls
+ * {@link #readFullyParallel readFullyParallel}.
  */
 
 void readFully()
 throws BufrException
 {
+  if (writeThreads > 0) {
+    new BufrPipeline( this, outFormat == OUTFORMAT_XML,
+      numThreads, formatThreads, writeThreads).readAll();
+    return;
+  }
+  if (numThreads > 1) {
+    readFullyParallel();
+    return;
+  }
   for (int imsg = 0; ; imsg++) {
     if (dataBugs >= 1)
       prtln("\n========== BufrFile: begin read message: " + imsg);
@@ -1029,7 +1887,13 @@ throws BufrException
 
     boolean isXml = false;
     if (outFormat == OUTFORMAT_XML) isXml = true;
-    BufrFormatter.writeAllOutput( isXml, this, bmsg);     
+    // readBufrMessage added any errorMsg.  With -decode stream,
+    // the subsets are parsed while formatting, which may set errorMsg.
+    boolean hadError = bmsg.errorMsg != null;
+    String reportLine = BufrFormatter.writeAllOutput( isXml, this, bmsg);
+    if (! hadError) addErrorMsg( bmsg.errorMsg);
+    writeContainerEntry( bmsg);
+    writeReportLine( reportLine);
     if (dataBugs >= 1) prtln("BufrFile: end read message: " + imsg);
   }
 }
@@ -1038,21 +1902,318 @@ throws BufrException
 
 
 
+
+/**
+ * Like readFully, but reads only the messages in entries,
+ * seeking directly to each one.  Called for -query.
+ * Entries with selected = false are messages that may define
+ * table entries: they are parsed but not written.
+ * The entries must be in order of fileOffset.
+ */
+
+void readIndexed(
+  BufrIndex.Entry[] entries)
+throws BufrException
+{
+  boolean isXml = false;
+  if (outFormat == OUTFORMAT_XML) isXml = true;
+  for (BufrIndex.Entry ent : entries) {
+    if (dataBugs >= 1)
+      prtln("\n========== BufrFile: begin read indexed message: " + ent);
+    seekTo( ent.fileOffset);
+    BufrMessage bmsg = BufrMessage.readBufrMessage(
+      dataBugs, this, ent.msgNum);
+    if (bmsg == null || bmsg.fileOffset0 != ent.fileOffset)
+      throwerr("index is stale: message not found: " + ent);
+
+    if (ent.selected) {
+      boolean hadError = bmsg.errorMsg != null;
+      String reportLine = BufrFormatter.writeAllOutput( isXml, this, bmsg);
+      if (! hadError) addErrorMsg( bmsg.errorMsg);
+      writeContainerEntry( bmsg);
+      writeReportLine( reportLine);
+    }
+  }
+}
+
+
+
+
+
+/**
+ * Reads all the BUFR messages in inFile, passing the data
+ * to visitor instead of forming BufrItem trees.
+ * No output files or report lines are written.
+ * The messages are read in order, using a single thread.
+ * See {@link BufrVisitor}.
+ */
+
+void visitFully(
+  BufrVisitor visitor)
+throws BufrException
+{
+  this.visitor = visitor;
+  try {
+    for (int imsg = 0; ; imsg++) {
+      if (dataBugs >= 1)
+        prtln("\n========== BufrFile: begin visit message: " + imsg);
+      BufrMessage bmsg = BufrMessage.readBufrMessage( dataBugs, this, imsg);
+      if (bmsg == null) break;              // if EOF, break
+      if (dataBugs >= 1) prtln("BufrFile: end visit message: " + imsg);
+    }
+  }
+  finally {
+    this.visitor = null;
+  }
+}
+
+
+
+
+
+/**
+ * Like readFully, but parses and formats messages
+ * using a pool of numThreads threads.
+ * Internal logic:
+ * <pre>
+ *     For each imsg:         // for each BUFR message in inFile
+ *       Find the message bounds and get the message bytes
+ *       If the message may define table entries:
+ *         Wait for all pending messages, then parse it here,
+ *         since later messages may use the new entries.
+ *       Else:
+ *         Submit it to the pool.
+ *       Retire the oldest pending messages in order,
+ *         writing their report lines and error messages.
+ * </pre>
+ * The number of pending messages is limited to a few per thread,
+ * to limit memory.
+ * <p>
+ * This can only help with more than one processor, and it is
+ * not used unless asked for (numThreads defaults to 1).
+ * On one processor it is slower than readFully, and more so with
+ * more threads.  The threads hardly contend for locks: the waits
+ * are the main thread waiting for the oldest message, and idle
+ * workers.  The extra time is system time for creating the output
+ * files from several threads at once, and more CPU and GC time
+ * for the threads sharing one processor.
+ */
+
+void readFullyParallel()
+throws BufrException
+{
+  boolean isXml = false;
+  if (outFormat == OUTFORMAT_XML) isXml = true;
+  int maxPending = 4 * numThreads;
+
+  ExecutorService pool = Executors.newFixedThreadPool( numThreads);
+  LinkedList<MessageTask> pendingList = new LinkedList<MessageTask>();
+  try {
+    for (int imsg = 0; ; imsg++) {
+      if (dataBugs >= 1)
+        prtln("\n========== BufrFile: begin find message: " + imsg);
+      BufrMessage bmsg = BufrMessage.findBufrMessage( dataBugs, this, imsg);
+      if (bmsg == null) break;              // if EOF, break
+
+      MessageTask task = new MessageTask( bmsg, isXml);
+      if (bmsg.mayDefineTables()) {
+        // Finish all previous messages, then handle this one alone.
+        while (pendingList.size() > 0) {
+          retireTask( pendingList.removeFirst());
+        }
+        if (dataBugs >= 1)
+          prtln("BufrFile: parse table message alone: " + imsg);
+        String reportLine = task.call();
+        addErrorMsg( bmsg.errorMsg);
+        writeContainerEntry( bmsg);
+        writeReportLine( reportLine);
+      }
+      else {
+        task.future = pool.submit( task);
+        pendingList.add( task);
+        while (pendingList.size() >= maxPending) {
+          retireTask( pendingList.removeFirst());
+        }
+      }
+    } // for imsg
+
+    while (pendingList.size() > 0) {
+      retireTask( pendingList.removeFirst());
+    }
+  }
+  finally {
+    pool.shutdownNow();
+  }
+} // end readFullyParallel
+
+
+
+
+/**
+ * Waits for the task to finish, then writes its error message
+ * and report line.  Called by readFullyParallel in message order.
+ */
+
+void retireTask( MessageTask task)
+throws BufrException
+{
+  String reportLine = null;
+  try {
+    reportLine = task.future.get();
+  }
+  catch( InterruptedException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("interrupted");
+  }
+  catch( ExecutionException exc) {
+    Throwable cause = exc.getCause();
+    if (cause instanceof BufrException) throw (BufrException) cause;
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("caught: " + cause);
+  }
+  addErrorMsg( task.bmsg.errorMsg);
+  writeContainerEntry( task.bmsg);
+  writeReportLine( reportLine);
+  if (dataBugs >= 1)
+    prtln("BufrFile: end read message: " + task.bmsg.msgNum);
+}
+
+
+
+
+void addErrorMsg( String msg) {
+  if (msg != null) errorMsgs.add( msg);
+}
+
+
+
+/**
+ * With -container, appends the output of bmsg to the container.
+ * Called in message order, like writeReportLine.
+ * As with output files, an entry name may be used only once,
+ * but we only check within this file, so the set of names
+ * doesn't grow for the whole run.
+ */
+
+void writeContainerEntry( BufrMessage bmsg)
+throws BufrException
+{
+  if (bmsg.containerEntry != null) {
+    String name = bmsg.containerEntry.name;
+    if (! containerNames.add( name))
+      throwerr("container entry already exists: \"" + name + "\"");
+    container.append( bmsg.containerEntry);
+    bmsg.containerEntry = null;
+  }
+}
+
+
+
+/**
+ * Writes a report line to stdout, or to reportBuf if reportBuf
+ * is not null.  Does nothing if reportLine is null.
+ */
+
+void writeReportLine( String reportLine) {
+  if (reportLine != null) {
+    if (reportBuf == null) prtln( reportLine);
+    else reportBuf.append( reportLine + "\n");
+  }
+}
+
+
+
+/**
+ * Like writeReportLine, but writes all the lines in reportBatch,
+ * each ending in a newline, at once, and clears it.
+ * Used by BufrPipeline.
+ */
+
+void writeReportBatch( StringBuilder reportBatch) {
+  if (reportBatch.length() > 0) {
+    if (reportBuf == null) System.out.print( reportBatch);
+    else reportBuf.append( reportBatch);
+    reportBatch.setLength( 0);
+  }
+}
+
+
+
+
+
+/**
+ * Positions the input at file offset pos.
+ * For stream input, pos must not be before the current offset.
+ */
+
+void seekTo( long pos)
+throws BufrException
+{
+  if (mapRdr != null) fileOffset = pos;
+  else {
+    if (pos < fileOffset) throwerr("cannot seek backwards: " + pos);
+    long numSkip = pos - fileOffset;
+    if (skipBytes( numSkip) != numSkip)
+      throwerr("file too short for offset: " + pos);
+  }
+}
+
+
+
+
+/**
+ * Skips n bytes of the input stream.  Returns the number skipped,
+ * which is less than n only at EOF.
+ */
+
+long skipBytes(
+  long n)
+throws BufrException
+{
+  // Loop, since a stream may skip fewer bytes than requested.
+  long numSkip = 0;
+  try {
+    while (numSkip < n) {
+      long ires = istm.skip( n - numSkip);
+      if (ires <= 0) {
+        if (istm.read() < 0) break;     // if EOF
+        ires = 1;
+      }
+      numSkip += ires;
+    }
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("i/o error: " + exc);
+  }
+  fileOffset += numSkip;
+  return numSkip;
+}
+
+
+
+
 int readBytes(
   byte[] inbuf,
   int offset,
   int rlen)
 throws BufrException
 {
+  // Loop, since a stream may return fewer bytes than requested.
   int numRead = 0;
   try {
-    numRead = istm.read( inbuf, offset, rlen);
+    while (numRead < rlen) {
+      int ires = istm.read( inbuf, offset + numRead, rlen - numRead);
+      if (ires <= 0) break;              // if EOF
+      numRead += ires;
+    }
   }
   catch( IOException exc) {
     BufrUtil.prtlnexc("caught", exc);
     throwerr("i/o error: " + exc);
   }
   fileOffset += numRead;
+  if (numRead == 0 && rlen > 0) numRead = -1;    // EOF, like istm.read
   return numRead;
 }
 
@@ -1064,8 +2225,9 @@ throws BufrException
 void close()
 throws BufrException
 {
+  if (mapRdr != null) mapRdr.close();
   try {
-    istm.close();
+    if (istm != null) istm.close();
   }
   catch( IOException exc) {
     BufrUtil.prtlnexc("caught", exc);
@@ -35,10 +35,6 @@
 
 package www.cnr7.com.wmoBufr;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
-import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -83,6 +79,10 @@ static String codeTagNm = "code";                // section 4: code
 static String flagTagNm = "flag";                // section 4: bit flag
 static String controlTagNm = "control";          // section 4: control fxy
 static String afldTagNm = "assocFld";            // section 4: associated field
+static String columnsTagNm = "columns";          // section 4: all columns
+static String recordsTagNm = "records";          // section 4: all records
+static String recordTagNm = "record";            // section 4: one record
+static String levelTagNm = "level";              // record: one level
 
 // Attribute names
 static String dkeyAttrNm = "dkey";
@@ -93,6 +93,7 @@ static String unitAttrNm = "units";
 static String meaningAttrNm = "meaning";
 static String missingAttrNm = "missing";          // section 4: missing
 static String itersAttrNm = "iters";
+static String valuesAttrNm = "values";            // columns: all values
 static String levelAttrNm = "level";
 
 static String missingValueNm = "MISSING";         // section 4: missing
@@ -125,7 +126,8 @@ static class FindTreeResult {
 
 /**
  * For each subset, formats and writes an XML file, and formats
- * and writes a line to the report output file.
+ * a line for the report output.  Returns the report line,
+ * or null if BufrFile.reportSpec is null.
  * <p>
  * The output file names are specified by BufrFile.outSpec.<br>
  * The lines written to the report file are specified
@@ -147,14 +149,59 @@ static class FindTreeResult {
 
 
 
-static void writeAllOutput(
+static String writeAllOutput(
   boolean isXml,
   BufrFile bfile,
   BufrMessage bmsg)
 throws BufrException
 {
-  String encodingName = "US-ASCII";
+  // With -filter, a message with no kept subsets is not written.
+  if (bmsg.filteredOut) return null;
+
+  String outFile = getOutFileName( bfile, bmsg);
+  if (bfile.container != null) {
+    // Format into memory.  The caller appends the entry
+    // to the container in message order.
+    AsciiWriter wtr = new AsciiWriter( bmsg.bugs);
+    formatAllOutput( isXml, bfile, bmsg, wtr);
+    bmsg.containerEntry = bfile.container.mkEntry( bmsg, outFile, wtr);
+  }
+  else {
+    // Open the output file first, and write each part as it's
+    // formatted: the header info, then one subset or column at a time.
+    AsciiWriter wtr = openOutFile( bmsg, outFile);
+    boolean allOk = false;
+    try {
+      formatAllOutput( isXml, bfile, bmsg, wtr);
+      wtr.close();
+      allOk = true;
+    }
+    finally {
+      if (! allOk) wtr.abort();     // don't leave a partial file
+    }
+  }
+
+  return getReportLine( bfile, bmsg, outFile);
+} // end writeAllOutput
 
+
+
+
+
+/**
+ * Formats the entire output for bmsg, for writeAllOutput,
+ * passing each part to wtr as it's formatted.
+ * Also called by BufrPipeline, with an in-memory AsciiWriter.
+ */
+
+static void formatAllOutput(
+  boolean isXml,
+  BufrFile bfile,
+  BufrMessage bmsg,
+  AsciiWriter wtr)
+throws BufrException
+{
+  String encodingName = "US-ASCII";
   StringBuilder sbuf = new StringBuilder();
   if (isXml) {
     sbuf.append("<?xml version=\"1.0\" encoding=\"" + encodingName
@@ -164,7 +211,98 @@ throws BufrException
   // Write documentation at start of output file.
   // If text output, we use "# ...".
   // If xml, we use "<!-- ... -->".
+  if (bfile.usageBanner) sbuf.append( getUsageDoc( isXml));
+
+  mkOpenTagLn( isXml, messageTagNm, sbuf);
+  mkAttrIntLn( isXml, "msgNum", bmsg.msgNum, bfile.outStyle, sbuf);
+  mkCloseTagLn( isXml, sbuf);
+
+  sbuf.append( formatHeader( isXml, bfile, bmsg, encodingName));
+
+  sbuf.append( formatConvertInfo( isXml, bfile, bmsg, encodingName));
+
+  if (bfile.parseStage >= BufrFile.STAGE_LOCAL)
+    sbuf.append( formatSection2( isXml, bmsg));
+
+  if (bfile.parseStage >= BufrFile.STAGE_DKEY) {
+    sbuf.append( formatDescInfo( isXml, bfile, bmsg, encodingName));
+    sbuf.append( formatCodeList( isXml, bfile.outStyle, bmsg.fxyList, bmsg));
+  }
+
+  if (bfile.parseStage >= BufrFile.STAGE_EXPDKEY)
+    sbuf.append( formatDefDescTree( isXml, bfile.outStyle, bmsg.defRoot));
+  wtr.drain( sbuf);
+
+
+  if (bfile.parseStage >= BufrFile.STAGE_DATA) {
+    mkStartTagLn( isXml, subsetsTagNm, sbuf);
+    // If BufrMessage.readData throws an Exception, we get parser == null.
+    if (bmsg.columns != null) {
+      formatColumns( isXml, bmsg, sbuf, wtr);
+    }
+    else if (bmsg.records != null) {
+      formatRecords( isXml, bmsg, sbuf, wtr);
+    }
+    else if (bmsg.parser == null) {
+      // xxx how to signify bad data?  just leave it with no subsets.
+    }
+    else {
+      for (int isub = 0; isub < bmsg.numSubsets; isub++) {
+        // With -filter, skip the subsets that were dropped.
+        if (! bmsg.parser.isKept( isub)) continue;
+        // With -decode stream, this parses the subset.
+        // If that fails, we get null and stop.
+        BufrItem rootItem = bmsg.parser.getSubset( isub);
+        if (rootItem == null) break;
+
+        // Format the subset's entire xml tree
+        sbuf.append("\n");
+        formatBufrItem( isXml, rootItem, bmsg, isub, 0, sbuf);
+        wtr.drain( sbuf);
+        bmsg.parser.releaseSubset( isub);
+      } // for isub
+    } // else parser is valid
+    mkEndTagLn( isXml, subsetsTagNm, 0, sbuf);
+  } // if STAGE_DATA
+
+  mkEndTagLn( isXml, messageTagNm, 0, sbuf);
+  wtr.drain( sbuf);
+} // end formatAllOutput
+
+
+
+
 
+// The usage doc is the same for every message,
+// so we format it once for xml and once for text.
+// Index 0: text, 1: xml.
+static String[] usageDocs = new String[2];
+
+
+
+/**
+ * Returns the documentation written at the start of each
+ * output file, unless BufrFile.usageBanner is false.
+ */
+
+static String getUsageDoc(
+  boolean isXml)
+{
+  int ix = isXml ? 1 : 0;
+  String res = usageDocs[ix];
+  if (res == null) {
+    StringBuilder sbuf = new StringBuilder();
+    mkDoc( isXml, sbuf, mkUsageMsg());
+    res = sbuf.toString();
+    usageDocs[ix] = res;
+  }
+  return res;
+}
+
+
+
+
+static String mkUsageMsg() {
   String usageMsg = ""
     + "This file represents one BUFR message.\n"
     + "\n"
@@ -291,55 +429,8 @@ throws BufrException
     + "  http://www.wmo.int/pages/prog/www/WMOCodes/OperationalCodes.html\n"
     + "\n";
 
-  mkDoc( isXml, sbuf, usageMsg);
-
-  mkOpenTagLn( isXml, messageTagNm, sbuf);
-  mkAttrIntLn( isXml, "msgNum", bmsg.msgNum, bfile.outStyle, sbuf);
-  mkCloseTagLn( isXml, sbuf);
-
-  sbuf.append( formatHeader( isXml, bfile, bmsg, encodingName));
-
-  sbuf.append( formatConvertInfo( isXml, bfile, bmsg, encodingName));
-
-  if (bfile.parseStage >= BufrFile.STAGE_LOCAL)
-    sbuf.append( formatSection2( isXml, bmsg));
-
-  if (bfile.parseStage >= BufrFile.STAGE_DKEY) {
-    sbuf.append( formatDescInfo( isXml, bfile, bmsg, encodingName));
-    sbuf.append( formatCodeList( isXml, bfile.outStyle, bmsg.fxyList, bmsg));
-  }
-
-  if (bfile.parseStage >= BufrFile.STAGE_EXPDKEY)
-    sbuf.append( formatDefDescTree( isXml, bfile.outStyle, bmsg.defRoot));
-
-
-  if (bfile.parseStage >= BufrFile.STAGE_DATA) {
-    mkStartTagLn( isXml, subsetsTagNm, sbuf);
-    // If BufrMessage.readData throws an Exception, we get parser == null.
-    if (bmsg.parser == null) {
-      // xxx how to signify bad data?  just leave it with no subsets.
-    }
-    else {
-      for (int isub = 0; isub < bmsg.numSubsets; isub++) {
-        BufrItem rootItem = bmsg.parser.rootItems[isub];
-
-        // Format the subset's entire xml tree
-        sbuf.append("\n");
-        sbuf.append( formatBufrItemTree(
-          isXml, rootItem, bmsg, isub));
-      } // for isub
-    } // else parser is valid
-    mkEndTagLn( isXml, subsetsTagNm, 0, sbuf);
-  } // if STAGE_DATA
-
-  mkEndTagLn( isXml, messageTagNm, 0, sbuf);
-
-  writeOutFile(             // Write output file and report line
-    bfile,
-    bmsg,
-    encodingName,
-    sbuf.toString());
-} // end writeAllOutput
+  return usageMsg;
+}
 
 
 
@@ -581,6 +672,7 @@ static void formatDefDesc(
   boolean isXml,
   int outStyle,
   DefDesc def,
+  int defId,              // see DecodePlan.opDefIds
   int indent,
   StringBuilder sbuf)
 throws BufrException
@@ -588,16 +680,17 @@ throws BufrException
   mkFxyStartTag( isXml, expandDkeyTagNm, def.fxy, indent, sbuf);
 
   if (def.fval == 1 && def.countDef != null) {    // if delayed rep
-    mkAttrInt( isXml, idAttrNm, def.defId, outStyle, sbuf);
+    mkAttrInt( isXml, idAttrNm, defId, outStyle, sbuf);
     mkFullTagLn( isXml, sbuf);
-    formatDefDesc( isXml, outStyle, def.countDef, indent + 1, sbuf);
+    formatDefDesc( isXml, outStyle, def.countDef, defId + 1, indent + 1,
+      sbuf);
   }
   else {
     if (def.isNumeric && def.unit.length() > 0)
       mkAttrTrunc( isXml, unitAttrNm, def.unit, outStyle, sbuf);
     if (def.description.length() > 0)
       mkAttrTrunc( isXml, noteAttrNm, def.description, outStyle, sbuf);
-    mkAttrInt( isXml, idAttrNm, def.defId, outStyle, sbuf);
+    mkAttrInt( isXml, idAttrNm, defId, outStyle, sbuf);
     mkFullTagLn( isXml, sbuf);  // end either countDef or def
   }
 }
@@ -614,27 +707,36 @@ throws BufrException
 {
   StringBuilder sbuf = new StringBuilder();
   mkStartTagLn( isXml, expandDkeysTagNm, sbuf);
-  formatDefDescTreeSub( isXml, outStyle, def, 0, sbuf);    // indent = 0
+  formatDefDescTreeSub( isXml, outStyle, def, 1, 0, sbuf);  // defId, indent
   mkEndTagLn( isXml, expandDkeysTagNm, 0, sbuf);
   return sbuf.toString();
 }
 
 
 
-static void formatDefDescTreeSub(
+// Numbers the defs in preorder, like DecodePlan.opDefIds,
+// since shared subtrees carry no ids.
+// Returns the next defId.
+
+static int formatDefDescTreeSub(
   boolean isXml,
   int outStyle,
   DefDesc def,
+  int defId,
   int indent,
   StringBuilder sbuf)
 throws BufrException
 {
-  formatDefDesc( isXml, outStyle, def, indent, sbuf);
+  formatDefDesc( isXml, outStyle, def, defId, indent, sbuf);
+  int nextId = defId + 1;
+  if (def.countDef != null) nextId++;
 
   // Recurse on the subDefs
   for (DefDesc subDef : def.subDefs) {
-    formatDefDescTreeSub( isXml, outStyle, subDef, indent + 1, sbuf);
+    nextId = formatDefDescTreeSub( isXml, outStyle, subDef, nextId,
+      indent + 1, sbuf);
   }
+  return nextId;
 }
 
 
@@ -672,20 +774,20 @@ throws BufrException
       mkAttrInt( isXml, "msgNum", bmsg.msgNum, outStyle, sbuf);
       mkAttrInt( isXml, "setNum", isubset, outStyle, sbuf);
       if (showLevel) mkAttrInt( isXml, "level", indent, outStyle, sbuf);
-      mkAttrInt( isXml, idAttrNm, def.defId, outStyle, sbuf);
+      mkAttrInt( isXml, idAttrNm, bitem.defId, outStyle, sbuf);
       mkCloseTagLn( isXml, sbuf);
     }
     else if (def.fxy == BufrMessage.CUSTOM_REPGROUP_FXY) {  // if repgroup
       mkFxyStartTag( isXml, groupTagNm, def.fxy, indent, sbuf);
       if (showLevel) mkAttrInt( isXml, "level", indent, outStyle, sbuf);
-      mkAttrInt( isXml, idAttrNm, def.defId, outStyle, sbuf);
+      mkAttrInt( isXml, idAttrNm, bitem.defId, outStyle, sbuf);
       mkCloseTagLn( isXml, sbuf);
     }
     else if (def.fval == 1) {                               // if replication
       mkFxyStartTag( isXml, loopTagNm, def.fxy, indent, sbuf);
       mkAttrInt( isXml, itersAttrNm, bitem.numIters, outStyle, sbuf);
       if (showLevel) mkAttrInt( isXml, "level", indent, outStyle, sbuf);
-      mkAttrInt( isXml, idAttrNm, def.defId, outStyle, sbuf);
+      mkAttrInt( isXml, idAttrNm, bitem.defId, outStyle, sbuf);
       mkCloseTagLn( isXml, sbuf);
     }
     else if (def.fval == 3) {                               // if sequence
@@ -693,7 +795,7 @@ throws BufrException
       if (description != null)
         mkAttrTrunc( isXml, noteAttrNm, description, outStyle, sbuf);
       if (showLevel) mkAttrInt( isXml, "level", indent, outStyle, sbuf);
-      mkAttrInt( isXml, idAttrNm, def.defId, outStyle, sbuf);
+      mkAttrInt( isXml, idAttrNm, bitem.defId, outStyle, sbuf);
       mkCloseTagLn( isXml, sbuf);
     }
     else throwerr("unknown type.  def: " + def);
@@ -724,7 +826,7 @@ throws BufrException
   else if (def.fval == 2) {          // if control
     mkFxyStartTag( isXml, controlTagNm, def.fxy, indent, sbuf);
     if (showLevel) mkAttrInt( isXml, "level", indent, outStyle, sbuf);
-    mkAttrInt( isXml, idAttrNm, def.defId, outStyle, sbuf);
+    mkAttrInt( isXml, idAttrNm, bitem.defId, outStyle, sbuf);
     mkFullTagLn( isXml, sbuf);
   }
 
@@ -740,7 +842,7 @@ throws BufrException
       if (description != null)
         mkAttrTrunc( isXml, noteAttrNm, description, outStyle, sbuf);
       if (showLevel) mkAttrInt( isXml, "level", indent, outStyle, sbuf);
-      mkAttrInt( isXml, idAttrNm, def.defId, outStyle, sbuf);
+      mkAttrInt( isXml, idAttrNm, bitem.defId, outStyle, sbuf);
       mkFullTagLn( isXml, sbuf);
     }
     else if (def.isNumeric || def.isCode || def.isBitFlag) {
@@ -771,7 +873,7 @@ throws BufrException
       if (description != null)
         mkAttrTrunc( isXml, noteAttrNm, description, outStyle, sbuf);
       if (showLevel) mkAttrInt( isXml, "level", indent, outStyle, sbuf);
-      mkAttrInt( isXml, idAttrNm, def.defId, outStyle, sbuf);
+      mkAttrInt( isXml, idAttrNm, bitem.defId, outStyle, sbuf);
       mkFullTagLn( isXml, sbuf);
     }
     else throwerr("unknown BufrValue: " + bvalue);
@@ -784,6 +886,161 @@ throws BufrException
 
 
 
+/**
+ * Formats the columns of a message decoded with
+ * BufrFile.DECODE_COLUMNS.  Each column is one line using
+ * the same tag as a single data item would, with the values
+ * for all subsets in the valuesAttrNm attribute.
+ * Values are separated by " ", or by "|" for character data.
+ * <p>
+ * Appends to sbuf.  If wtr is not null, drains sbuf to wtr
+ * after each column.
+ */
+
+static void formatColumns(
+  boolean isXml,
+  BufrMessage bmsg,
+  StringBuilder sbuf,
+  AsciiWriter wtr)
+throws BufrException
+{
+  int outStyle = bmsg.bfile.outStyle;
+  BufrColumns columns = bmsg.columns;
+
+  mkOpenTagLn( isXml, columnsTagNm, sbuf);
+  mkAttrIntLn( isXml, "msgNum", bmsg.msgNum, outStyle, sbuf);
+  mkAttrIntLn( isXml, "numSubsets", columns.numSubsets, outStyle, sbuf);
+  mkAttrIntLn( isXml, "numColumns", columns.numColumns, outStyle, sbuf);
+  mkCloseTagLn( isXml, sbuf);
+
+  StringBuilder vbuf = new StringBuilder();
+  for (int icol = 0; icol < columns.numColumns; icol++) {
+    BufrColumns.Column col = columns.columns[icol];
+    DefDesc def = col.def;
+    String description = null;
+    if (def.description != null && def.description.length() > 0)
+      description = def.description;
+
+    String tagMsg = null;
+    if (col.kind == DecodePlan.KIND_STRING) tagMsg = charTagNm;
+    else if (def.fxy == BufrMessage.CUSTOM_ASSOCFLD_FXY) tagMsg = afldTagNm;
+    else if (col.kind == DecodePlan.KIND_NUMERIC) tagMsg = numTagNm;
+    else if (col.kind == DecodePlan.KIND_CODE) tagMsg = codeTagNm;
+    else if (col.kind == DecodePlan.KIND_BITFLAG) tagMsg = flagTagNm;
+    else throwerr("unknown column kind: " + col);
+
+    vbuf.setLength( 0);
+    for (int isub = 0; isub < columns.numSubsets; isub++) {
+      if (isub > 0) {
+        if (col.kind == DecodePlan.KIND_STRING) vbuf.append("|");
+        else vbuf.append(" ");
+      }
+      if (col.isMissing( isub)) vbuf.append( missingValueNm);
+      else if (col.kind == DecodePlan.KIND_STRING)
+        vbuf.append( col.strings[isub]);
+      else if (col.kind == DecodePlan.KIND_NUMERIC)
+        vbuf.append( BufrUtil.formatTrueValue(
+          col.scale, col.reference, col.encoded[isub]));
+      else vbuf.append( col.encoded[isub]);
+    }
+
+    mkFxyStartTag( isXml, tagMsg, def.fxy, 1, sbuf);
+    mkAttr( isXml, valuesAttrNm, vbuf.toString(), outStyle, sbuf);
+    if (col.kind == DecodePlan.KIND_NUMERIC)
+      mkAttrTrunc( isXml, unitAttrNm, def.unit, outStyle, sbuf);
+    if (description != null)
+      mkAttrTrunc( isXml, noteAttrNm, description, outStyle, sbuf);
+    mkAttrInt( isXml, idAttrNm, col.defId, outStyle, sbuf);
+    mkFullTagLn( isXml, sbuf);
+    if (wtr != null) wtr.drain( sbuf);
+  }
+
+  mkEndTagLn( isXml, columnsTagNm, 0, sbuf);
+} // end formatColumns
+
+
+
+
+
+/**
+ * Formats the records of a message decoded with
+ * BufrFile.DECODE_RECORDS.  Each record is one subset, with
+ * the header fields as attributes and, for profiles,
+ * one line per level with the level fields as attributes.
+ * <p>
+ * Appends to sbuf.  If wtr is not null, drains sbuf to wtr
+ * after each record.
+ */
+
+static void formatRecords(
+  boolean isXml,
+  BufrMessage bmsg,
+  StringBuilder sbuf,
+  AsciiWriter wtr)
+throws BufrException
+{
+  int outStyle = bmsg.bfile.outStyle;
+  TemplateDecoder.Layout layout = bmsg.plan.recordLayout;
+  TemplateDecoder dec = layout.decoder;
+
+  mkOpenTagLn( isXml, recordsTagNm, sbuf);
+  mkAttrIntLn( isXml, "msgNum", bmsg.msgNum, outStyle, sbuf);
+  mkAttrLn( isXml, "template", dec.name, outStyle, sbuf);
+  mkAttrIntLn( isXml, "numSubsets", bmsg.records.length, outStyle, sbuf);
+  mkCloseTagLn( isXml, sbuf);
+
+  for (int isub = 0; isub < bmsg.records.length; isub++) {
+    TemplateDecoder.Record rec = bmsg.records[isub];
+    mkStartTag( isXml, recordTagNm, 1, sbuf);
+    mkAttrInt( isXml, "setNum", isub, outStyle, sbuf);
+    if (rec.ident != null) mkAttr( isXml, "ident", rec.ident, outStyle, sbuf);
+    for (int ifield = 0; ifield < dec.fieldNames.length; ifield++) {
+      mkAttr( isXml, dec.fieldNames[ifield],
+        formatRecordValue( rec.fields[ifield], layout.fieldScales[ifield]),
+        outStyle, sbuf);
+    }
+    if (dec.levelNames.length == 0) mkFullTagLn( isXml, sbuf);
+    else {
+      mkAttrInt( isXml, "numLevels", rec.numLevels, outStyle, sbuf);
+      mkCloseTagLn( isXml, sbuf);
+      for (int ilevel = 0; ilevel < rec.numLevels; ilevel++) {
+        mkStartTag( isXml, levelTagNm, 2, sbuf);
+        for (int ilev = 0; ilev < dec.levelNames.length; ilev++) {
+          mkAttr( isXml, dec.levelNames[ilev],
+            formatRecordValue( rec.levels[ilev][ilevel],
+              layout.levelScales[ilev]),
+            outStyle, sbuf);
+        }
+        mkFullTagLn( isXml, sbuf);
+      }
+      mkEndTagLn( isXml, recordTagNm, 1, sbuf);
+    }
+    if (wtr != null) wtr.drain( sbuf);
+  }
+
+  mkEndTagLn( isXml, recordsTagNm, 0, sbuf);
+} // end formatRecords
+
+
+
+// Formats one value of a TemplateDecoder.Record,
+// with the number of digits implied by scale.
+
+static String formatRecordValue(
+  double val,               // NaN if missing
+  int scale)
+{
+  String res;
+  if (Double.isNaN( val)) res = missingValueNm;
+  else res = BufrUtil.formatTrueValue( scale, 0,
+    (int) Math.round( val * Math.pow( 10, scale)));
+  return res;
+}
+
+
+
+
+
 static String formatBufrItemTree(
   boolean isXml,
   BufrItem bitem,
@@ -802,18 +1059,14 @@ throws BufrException
 
 
 
-// Write text or XML output file.
-// Write one report line to stdout, if reportSpec was specified.
+// Returns the output file name for bmsg, from BufrFile.outSpec.
 
-static void writeOutFile(
+static String getOutFileName(
   BufrFile bfile,
-  BufrMessage bmsg,
-  String encodingName,
-  String xmlStg)
+  BufrMessage bmsg)
 throws BufrException
 {
-  // Write text or XML output
-  if (bmsg.bugs >= 1) prtln("writeOutFile:");
+  if (bmsg.bugs >= 1) prtln("getOutFileName:");
   String outFile = getOutSpecName(
     bfile,
     bmsg,
@@ -825,34 +1078,123 @@ throws BufrException
     prtln("  output spec:      \"" + bfile.outSpec + "\"");
     prtln("  output file name: \"" + outFile + "\"");
   }
+  return outFile;
+}
+
+
+
+
+
+
+// Creates the text or XML output file, which must be new.
+// The caller must close or abort the AsciiWriter.
+
+static AsciiWriter openOutFile(
+  BufrMessage bmsg,
+  String outFile)
+throws BufrException
+{
+  AsciiWriter wtr = AsciiWriter.createNew( bmsg.bugs, outFile);
+  if (wtr == null)
+    throwerr("output file already exists: \"" + outFile + "\"");
+  return wtr;
+}
+
+
+
+
+
+
+// Writes the formatted output held in memory by wtr
+// to the new file outFile.  Used by BufrPipeline.
+
+static void saveOutFile(
+  AsciiWriter wtr,
+  String outFile)
+throws BufrException
+{
+  if (! wtr.saveAs( outFile))
+    throwerr("output file already exists: \"" + outFile + "\"");
+}
+
+
+
 
-  // Write output file
-  try {
-    if (new File(outFile).exists())
-      throwerr("output file already exists: \"" + outFile + "\"");
-    FileOutputStream ostm = new FileOutputStream( outFile);
-    OutputStreamWriter wtr = new OutputStreamWriter( ostm, encodingName);
-    if (bmsg.bugs >= 1) prtln("writeOutFile: wtr.encoding: \""
-      + wtr.getEncoding() + "\"");
-    wtr.write( xmlStg, 0, xmlStg.length());
-    wtr.close();
-  }
-  catch( IOException exc) {
-    BufrUtil.prtlnexc("caught", exc);
-    throwerr("cannot write file \"" + outFile + "\"");
-  }
 
-  // Write report line
+
+// Return the report line, or null if reportSpec was not specified.
+// The caller writes the report line to stdout, so the lines
+// stay in message order even if messages are formatted in parallel.
+
+static String getReportLine(
+  BufrFile bfile,
+  BufrMessage bmsg,
+  String outFile)
+throws BufrException
+{
+  String reportLine = null;
   if (bfile.reportSpec != null) {
-    String reportLine = getOutSpecName(
+    reportLine = getOutSpecName(
       bfile,
       bmsg,
       FOUT_REPORT,
       bfile.reportSpec,
       outFile);
-    prtln( reportLine);
   }
-} // end writeOutFile
+  return reportLine;
+}
+
+
+
+
+
+
+
+/**
+ * Returns the subset numbers used by the codes in the specs,
+ * like 2 for "#2:value_0_12_001#".  Codes without a subset number
+ * use subset 0, so 0 is always included.
+ * Used for -decode stream, where these subsets are kept
+ * for the output file names and report lines.
+ */
+
+static int[] getSpecSubsets(
+  String[] specs)           // outSpec, reportSpec.  May contain nulls.
+throws BufrException
+{
+  String delim = "#";
+  LinkedList<Integer> subList = new LinkedList<Integer>();
+  subList.add( 0);
+  for (String spec : specs) {
+    if (spec == null) continue;
+    int ipos = 0;
+    while (true) {
+      int ia = spec.indexOf( delim, ipos);
+      if (ia < 0) break;
+      int ib = spec.indexOf( delim, ia + 1);
+      if (ib < 0) break;              // getOutSpecName will complain
+      String code = spec.substring( ia + 1, ib);
+      ipos = ib + 1;
+
+      if (code.startsWith("^")) code = code.substring(1);
+      int ix = code.indexOf(":");
+      if (code.length() > 0
+        && code.charAt(0) >= '0' && code.charAt(0) <= '9'
+        && ix > 0)
+      {
+        int isub = BufrUtil.parseInt("subsetNum", code.substring( 0, ix));
+        if (! subList.contains( isub)) subList.add( isub);
+      }
+    }
+  }
+
+  int[] res = new int[ subList.size()];
+  int ii = 0;
+  for (int isub : subList) {
+    res[ii++] = isub;
+  }
+  return res;
+}
 
 
 
@@ -862,7 +1204,8 @@ throws BufrException
 
 /**
  * Creates an output file name or report line according to
- * the specifications in the parm outSpec.  Called by writeOutFile.
+ * the specifications in the parm outSpec.  Called by getOutFileName
+ * and getReportLine.
  * The parm outSpec may be either BufrFile.outSpec or BufrFile.reportSpec.
  * <p>
  * For info on the specification of file names and report output lines,
@@ -967,7 +1310,7 @@ throws BufrException
       && subsetNum >= 0
       && subsetNum < bmsg.parser.rootItems.length)
     {
-      rootItem = bmsg.parser.rootItems[subsetNum];
+      rootItem = bmsg.parser.getSubset( subsetNum);
     }
     else if (! allowNotFound) {
       throwOutSpec("Either data parse failed or bad subsetNum", origOutCode);
@@ -976,7 +1319,7 @@ throws BufrException
   else {                   // else no subsetNum specified
     subsetNum = 0;         // default is subset 0
     if (bmsg.parser != null && bmsg.parser.rootItems.length >= 1)
-      rootItem = bmsg.parser.rootItems[subsetNum];
+      rootItem = bmsg.parser.getSubset( subsetNum);
   }
 
   // Check outCode for trailing fieldMin, fieldMax
@@ -1093,17 +1436,17 @@ throws BufrException
     resstg = Integer.toString( bmsg.msgNum);
 
   else if (outCode.equals("sectionLength0"))
-    resstg = Integer.toString( bmsg.section0.length);
+    resstg = Integer.toString( bmsg.section0.limit());
   else if (outCode.equals("sectionLength1"))
-    resstg = Integer.toString( bmsg.section1.length);
+    resstg = Integer.toString( bmsg.section1.limit());
   else if (outCode.equals("sectionLength2"))
-    resstg = Integer.toString( bmsg.section2.length);
+    resstg = Integer.toString( bmsg.section2.limit());
   else if (outCode.equals("sectionLength3"))
-    resstg = Integer.toString( bmsg.section3.length);
+    resstg = Integer.toString( bmsg.section3.limit());
   else if (outCode.equals("sectionLength4"))
-    resstg = Integer.toString( bmsg.section4.length);
+    resstg = Integer.toString( bmsg.section4.limit());
   else if (outCode.equals("sectionLength5"))
-    resstg = Integer.toString( bmsg.section5.length);
+    resstg = Integer.toString( bmsg.section5.limit());
 
   else if (outCode.equals("numTemplates"))
     resstg = Integer.toString( bmsg.fxyList.size());
@@ -1320,10 +1663,14 @@ static void mkFxyStartTag(
   StringBuilder sbuf)
 throws BufrException
 {
-  sbuf.append( BufrUtil.mkIndent( indent));
-  if (isXml) sbuf.append("<" + tag);
-  else sbuf.append( tag);
-  sbuf.append(" " + dkeyAttrNm + "=\"" + BufrUtil.formatFxy( fxy) + "\"");
+  BufrUtil.appendIndent( indent, sbuf);
+  if (isXml) sbuf.append('<');
+  sbuf.append( tag);
+  sbuf.append(' ');
+  sbuf.append( dkeyAttrNm);
+  sbuf.append("=\"");
+  BufrUtil.appendFxy( fxy, sbuf);
+  sbuf.append('"');
 }
 
 
@@ -1336,6 +1683,21 @@ throws BufrException
 
 
 
+static void mkStartTag(
+  boolean isXml,
+  String tag,
+  int indent,
+  StringBuilder sbuf)
+{
+  BufrUtil.appendIndent( indent, sbuf);
+  if (isXml) sbuf.append('<');
+  sbuf.append( tag);
+}
+
+
+
+
+
 static void mkOpenTagLn(
   boolean isXml,
   String tag,
@@ -1405,9 +1767,16 @@ static void mkEndTagLn(
   int indent,
   StringBuilder sbuf)
 {
-  sbuf.append( BufrUtil.mkIndent( indent));
-  if (isXml) sbuf.append("</" + tag + ">\n");
-  else sbuf.append( tag + "_end\n");
+  BufrUtil.appendIndent( indent, sbuf);
+  if (isXml) {
+    sbuf.append("</");
+    sbuf.append( tag);
+    sbuf.append(">\n");
+  }
+  else {
+    sbuf.append( tag);
+    sbuf.append("_end\n");
+  }
 }
 
 
@@ -1433,18 +1802,17 @@ throws BufrException
     // can be truncated.
   }
   else {
-    String val = value;
+    int truncateLen = 0;
     if (isTruncate) {
-      int truncateLen = 0;
       if (outStyle == BufrFile.OUTSTYLE_FULL)
         truncateLen = 0;
       else if (outStyle == BufrFile.OUTSTYLE_STANDARD)
         truncateLen = 20;
-      val = BufrUtil.truncate( truncateLen, val);
     }
-    val = BufrUtil.quote( isXml, val);
-
-    sbuf.append("  " + name + "=" + val);
+    sbuf.append("  ");
+    sbuf.append( name);
+    sbuf.append('=');
+    BufrUtil.appendQuoted( isXml, truncateLen, value, sbuf);
   }
 }
 
@@ -1470,7 +1838,14 @@ static void mkAttrInt(
   StringBuilder sbuf)
 throws BufrException
 {
-  mkAttrBase( isXml, false, name, Integer.toString(ival), outStyle, sbuf);
+  // Same as mkAttrBase, since an int needs no cleaning.
+  if (name == null) throwerr("mkAttr: name is null");
+  if (name.length() == 0) throwerr("mkAttr: name is empty");
+  sbuf.append("  ");
+  sbuf.append( name);
+  sbuf.append("=\"");
+  sbuf.append( ival);
+  sbuf.append('"');
 }
 
 
@@ -0,0 +1,818 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Sidecar index of the BUFR messages in an archive directory,
+ * for random access to single messages.
+ * <p>
+ * With -buildIndex, BufrFile.processFiles calls
+ * {@link #buildIndex buildIndex} for each -inDir, which writes
+ * the index file INDEX_NAME in the directory.
+ * The index has one Entry per message: the file offset and length,
+ * and from the headers the section 1 time, category,
+ * and a hash of the section 3 descriptors.
+ * If parseStage is data, section 4 is parsed as well, using a
+ * BufrVisitor, and each Entry also has the bounding box of the
+ * latitudes and longitudes and the station identifiers.
+ * <p>
+ * With -query, BufrFile.mainPgm calls {@link #load load}
+ * and {@link #select select} for each -inDir, and then
+ * BufrFile.readIndexed seeks directly to the selected messages
+ * and decodes only those.
+ * <p>
+ * Format: all ints are big endian.  Strings are as in TableSnapshot.
+ * <pre>
+ *   int MAGIC, int FORMAT_VERSION, int hasData (0 or 1)
+ *   int numFiles, then each: string fileName (relative to the dir),
+ *     long length, long mtime
+ *   int numEntries, then each:
+ *     int fileIndex, int msgNum, long fileOffset, int msgLen,
+ *     long time, int category, int templateHash, int defTables (0 or 1)
+ *     if hasData: double latMin latMax lonMin lonMax,
+ *       int numStations, then each: string station
+ *   int MAGIC
+ * </pre>
+ *
+ * @author S. Sullivan
+ */
+
+class BufrIndex {
+
+
+static int MAGIC = 0x42494458;        // "BIDX"
+static int FORMAT_VERSION = 1;
+
+// Name of the index file in each archive directory
+static String INDEX_NAME = "bufr.idx";
+
+// The descriptors used for the bounding box and station ids.
+static int FXY_LAT_HIGH = BufrUtil.getFxyNoCheck( 0, 5, 1);
+static int FXY_LAT_COARSE = BufrUtil.getFxyNoCheck( 0, 5, 2);
+static int FXY_LON_HIGH = BufrUtil.getFxyNoCheck( 0, 6, 1);
+static int FXY_LON_COARSE = BufrUtil.getFxyNoCheck( 0, 6, 2);
+static int FXY_WMO_BLOCK = BufrUtil.getFxyNoCheck( 0, 1, 1);
+static int FXY_WMO_STATION = BufrUtil.getFxyNoCheck( 0, 1, 2);
+static int FXY_SHIP_ID = BufrUtil.getFxyNoCheck( 0, 1, 11);
+static int FXY_SHORT_NAME = BufrUtil.getFxyNoCheck( 0, 1, 18);
+
+
+String dirName;            // the archive directory
+boolean hasData;           // if the entries have the bbox and stations
+String[] fileNames;        // relative to dirName
+long[][] fileStamps;       // for each file: length, mtime
+Entry[] entries;           // in order of fileIndex, fileOffset
+
+
+
+// Inner class
+/**
+ * The index info for one message.
+ */
+
+static class Entry {
+  int fileIndex;                // index in fileNames
+  int msgNum;
+  long fileOffset;              // file offset of section 0
+  int msgLen;
+  long time;                    // section 1 time: yyyymmddhhmmss
+  int category;
+  int templateHash;             // hash of the section 3 descriptors
+  boolean defTables;            // if the message may define table entries
+  double latMin = Double.NaN;   // NaN if not hasData or not found
+  double latMax = Double.NaN;
+  double lonMin = Double.NaN;
+  double lonMax = Double.NaN;
+  String[] stations = new String[0];
+  boolean selected = false;     // set by select
+
+  public String toString() {
+    String res = "fileIndex: " + fileIndex
+      + "  msgNum: " + msgNum
+      + "  fileOffset: " + fileOffset
+      + "  msgLen: " + msgLen
+      + "  time: " + time
+      + "  category: " + category
+      + "  templateHash: " + templateHash
+      + "  lat: " + latMin + " " + latMax
+      + "  lon: " + lonMin + " " + lonMax
+      + "  numStations: " + stations.length;
+    return res;
+  }
+} // end inner class Entry
+
+
+
+
+// Inner class
+/**
+ * A query for {@link #select select}, parsed from the -query parm.
+ * All the given conditions must match.
+ */
+
+static class Query {
+  long timeLo = Long.MIN_VALUE;
+  long timeHi = Long.MAX_VALUE;
+  int category = -1;            // -1 means any
+  String station = null;        // null means any
+  double latLo = Double.NaN;    // NaN means no bbox
+  double lonLo = Double.NaN;
+  double latHi = Double.NaN;
+  double lonHi = Double.NaN;
+
+
+  /**
+   * Parses a query spec: blank separated conditions of the form:
+   * <pre>
+   *   time=lo-hi     lo and hi are yyyymmddhhmmss, or any leading
+   *                  part of it, like 2024051712.  Or time=lo.
+   *   category=n
+   *   station=id     WMO block and station number, like 12345,
+   *                  or a ship or short station identifier.
+   *   bbox=latLo,lonLo,latHi,lonHi
+   * </pre>
+   */
+
+  static Query parse( String spec)
+  throws BufrException
+  {
+    Query query = new Query();
+    for (String tok : spec.trim().split("\\s+")) {
+      if (tok.length() == 0) continue;
+      int ix = tok.indexOf("=");
+      if (ix <= 0) throwerr("invalid query condition: \"" + tok + "\"");
+      String key = tok.substring( 0, ix);
+      String val = tok.substring( ix + 1);
+      if (key.equals("time")) {
+        int iy = val.indexOf("-");
+        String lo = iy < 0 ? val : val.substring( 0, iy);
+        String hi = iy < 0 ? val : val.substring( iy + 1);
+        query.timeLo = parseTime( lo, '0');
+        query.timeHi = parseTime( hi, '9');
+      }
+      else if (key.equals("category"))
+        query.category = BufrUtil.parseInt( "query category", val);
+      else if (key.equals("station")) query.station = val;
+      else if (key.equals("bbox")) {
+        String[] stgs = val.split(",");
+        if (stgs.length != 4) throwerr("invalid query bbox: \"" + val + "\"");
+        double[] vals = new double[4];
+        for (int ii = 0; ii < 4; ii++) {
+          try {
+            vals[ii] = Double.parseDouble( stgs[ii]);
+          }
+          catch( NumberFormatException exc) {
+            throwerr("invalid query bbox: \"" + val + "\"");
+          }
+        }
+        query.latLo = vals[0];
+        query.lonLo = vals[1];
+        query.latHi = vals[2];
+        query.lonHi = vals[3];
+      }
+      else throwerr("unknown query condition: \"" + tok + "\"");
+    }
+    return query;
+  }
+
+
+  // Parses a time yyyymmddhhmmss, or any leading part of it,
+  // padding it with padChar.
+
+  static long parseTime(
+    String stg,
+    char padChar)
+  throws BufrException
+  {
+    int timeLen = 14;
+    if (stg.length() == 0 || stg.length() > timeLen)
+      throwerr("invalid query time: \"" + stg + "\"");
+    StringBuilder sbuf = new StringBuilder( stg);
+    while (sbuf.length() < timeLen) sbuf.append( padChar);
+    long res = 0;
+    try {
+      res = Long.parseLong( sbuf.toString());
+    }
+    catch( NumberFormatException exc) {
+      throwerr("invalid query time: \"" + stg + "\"");
+    }
+    return res;
+  }
+
+
+  /**
+   * Returns true if ent matches.  Conditions on the bbox
+   * or station need an index built with parseStage data.
+   */
+
+  boolean matches(
+    BufrIndex bindex,
+    Entry ent)
+  throws BufrException
+  {
+    if (ent.time < timeLo || ent.time > timeHi) return false;
+    if (category >= 0 && ent.category != category) return false;
+    if ((station != null || ! Double.isNaN( latLo)) && ! bindex.hasData) {
+      throwerr("query station and bbox need an index built"
+        + " with -parseStage data, in: \"" + bindex.dirName + "\"");
+    }
+    if (station != null) {
+      boolean foundit = false;
+      for (String stg : ent.stations) {
+        if (stg.equals( station)) {
+          foundit = true;
+          break;
+        }
+      }
+      if (! foundit) return false;
+    }
+    if (! Double.isNaN( latLo)) {
+      // An entry with no locations doesn't match.
+      if (Double.isNaN( ent.latMin) || Double.isNaN( ent.lonMin)) return false;
+      if (ent.latMax < latLo || ent.latMin > latHi) return false;
+      if (ent.lonMax < lonLo || ent.lonMin > lonHi) return false;
+    }
+    return true;
+  }
+} // end inner class Query
+
+
+
+
+// Inner class
+/**
+ * Collects the bounding box and station ids of one message.
+ * For a compressed message the calls for the subsets are
+ * interleaved, so the WMO block numbers are kept per subset.
+ */
+
+static class IndexVisitor implements BufrVisitor {
+  double latMin, latMax, lonMin, lonMax;
+  TreeSet<String> stationSet = new TreeSet<String>();
+  int[] wmoBlocks = new int[0];
+
+  IndexVisitor() {
+    reset();
+  }
+
+  void reset() {
+    latMin = latMax = lonMin = lonMax = Double.NaN;
+    stationSet.clear();
+  }
+
+  // Copies the collected info to ent.
+  void fillEntry( Entry ent) {
+    ent.latMin = latMin;
+    ent.latMax = latMax;
+    ent.lonMin = lonMin;
+    ent.lonMax = lonMax;
+    ent.stations = stationSet.toArray( new String[0]);
+  }
+
+  public void startMessage( BufrMessage bmsg) {
+    reset();
+    if (wmoBlocks.length < bmsg.numSubsets)
+      wmoBlocks = new int[ bmsg.numSubsets];
+    for (int ii = 0; ii < bmsg.numSubsets; ii++) {
+      wmoBlocks[ii] = -1;
+    }
+  }
+
+  public void endMessage( BufrMessage bmsg) {}
+  public void startSubset( int isub) {}
+  public void endSubset( int isub) {}
+  public void startSequence( int isub, DefDesc def) {}
+  public void endSequence( int isub, DefDesc def) {}
+  public void startReplication( int isub, DefDesc def, int numIters) {}
+  public void startIteration( int isub, DefDesc def, int iter) {}
+  public void endReplication( int isub, DefDesc def) {}
+
+  public void numericValue(
+    int isub,
+    DefDesc def,
+    double value,
+    boolean missing)
+  {
+    if (missing) return;
+    int fxy = def.fxy;
+    if (fxy == FXY_LAT_HIGH || fxy == FXY_LAT_COARSE) {
+      if (Double.isNaN( latMin) || value < latMin) latMin = value;
+      if (Double.isNaN( latMax) || value > latMax) latMax = value;
+    }
+    else if (fxy == FXY_LON_HIGH || fxy == FXY_LON_COARSE) {
+      if (Double.isNaN( lonMin) || value < lonMin) lonMin = value;
+      if (Double.isNaN( lonMax) || value > lonMax) lonMax = value;
+    }
+    else if (fxy == FXY_WMO_BLOCK) wmoBlocks[isub] = (int) value;
+    else if (fxy == FXY_WMO_STATION && wmoBlocks[isub] >= 0) {
+      stationSet.add( String.format("%02d%03d",
+        wmoBlocks[isub], (int) value));
+    }
+  }
+
+  public void stringValue(
+    int isub,
+    DefDesc def,
+    String value)
+  {
+    if (value == null) return;
+    if (def.fxy == FXY_SHIP_ID || def.fxy == FXY_SHORT_NAME) {
+      String stg = value.trim();
+      if (stg.length() > 0) stationSet.add( stg);
+    }
+  }
+
+  public void codeValue(
+    int isub,
+    DefDesc def,
+    int code,
+    boolean missing,
+    String meaning)
+  {}
+} // end inner class IndexVisitor
+
+
+
+
+// Inner class
+/**
+ * The result of indexing one file: see indexOneFile.
+ */
+
+static class FileIndex {
+  BufrFile.FileResult res;
+  LinkedList<Entry> entryList = new LinkedList<Entry>();
+
+  FileIndex( BufrFile.FileResult res) {
+    this.res = res;
+  }
+} // end inner class FileIndex
+
+
+
+
+/**
+ * Builds the index of all the files in the directory tree dirName,
+ * and writes it to the file INDEX_NAME in dirName.
+ * If opts.parseStage is STAGE_DATA, section 4 is parsed to get the
+ * bounding box and stations; otherwise only the headers are read.
+ * The files are indexed by a pool of opts.numFileThreads threads.
+ * Returns a FileResult for each file, for the
+ * error summary in BufrFile.processFiles.
+ * Messages after an error in a file are not in the index.
+ */
+
+static BufrFile.FileResult[] buildIndex(
+  BufrFile.Options opts,         // parseStage is STAGE_DKEY or STAGE_DATA
+  String dirName)
+throws BufrException
+{
+  int dataBugs = opts.dataBugs;
+  File dirFile = new File( dirName);
+  if (! dirFile.isDirectory())
+    throwerr("not a directory: \"" + dirName + "\"");
+
+  // Get the files, skipping our own index
+  LinkedList<String> pathList = new LinkedList<String>();
+  BufrFile.addDirFiles( dirFile, pathList);
+  String dirPath = dirFile.getPath() + File.separator;
+  LinkedList<String> nameList = new LinkedList<String>();
+  for (String path : pathList) {
+    String fname = path.substring( dirPath.length());
+    if (! fname.equals( INDEX_NAME) && ! fname.equals( INDEX_NAME + ".tmp"))
+      nameList.add( fname);
+  }
+
+  BufrIndex bindex = new BufrIndex();
+  bindex.dirName = dirName;
+  bindex.hasData = opts.parseStage >= BufrFile.STAGE_DATA;
+  bindex.fileNames = nameList.toArray( new String[0]);
+  bindex.fileStamps = new long[ bindex.fileNames.length][];
+  for (int ifile = 0; ifile < bindex.fileNames.length; ifile++) {
+    bindex.fileStamps[ifile] = TableSnapshot.getStamp(
+      new File( bindex.getFilePath( ifile)));
+  }
+
+  BufrFile.FileResult[] results
+    = new BufrFile.FileResult[ bindex.fileNames.length];
+  LinkedList<Entry> entryList = new LinkedList<Entry>();
+  // The settings for reading each file
+  final BufrFile.Options scanOpts = opts.mkScanOptions(
+    bindex.hasData ? BufrFile.STAGE_DATA : BufrFile.STAGE_DKEY);
+  ExecutorService pool = Executors.newFixedThreadPool( opts.numFileThreads);
+  try {
+    LinkedList<Future<FileIndex>> futureList
+      = new LinkedList<Future<FileIndex>>();
+    for (int ifile = 0; ifile < bindex.fileNames.length; ifile++) {
+      final int fileIndex = ifile;
+      final String inFile = bindex.getFilePath( ifile);
+      futureList.add( pool.submit( new Callable<FileIndex>() {
+        public FileIndex call()
+        {
+          return indexOneFile( scanOpts, fileIndex, inFile);
+        }
+      }));
+    }
+
+    // Collect the entries in file order
+    for (int ifile = 0; ifile < bindex.fileNames.length; ifile++) {
+      FileIndex findex = null;
+      try {
+        findex = futureList.removeFirst().get();
+      }
+      catch( InterruptedException exc) {
+        BufrUtil.prtlnexc("caught", exc);
+        throwerr("interrupted");
+      }
+      catch( ExecutionException exc) {
+        // indexOneFile catches all Exceptions, so this is a bug.
+        BufrUtil.prtlnexc("caught", exc);
+        throwerr("caught: " + exc.getCause());
+      }
+      entryList.addAll( findex.entryList);
+      results[ifile] = findex.res;
+    }
+  }
+  finally {
+    pool.shutdownNow();
+  }
+  bindex.entries = entryList.toArray( new Entry[0]);
+
+  bindex.write( dataBugs);
+  return results;
+} // end buildIndex
+
+
+
+
+/**
+ * Indexes one file.  Never throws: if the file fails,
+ * the entries for the messages before the failure are kept and
+ * the exception is returned in res.failure.
+ */
+
+static FileIndex indexOneFile(
+  BufrFile.Options opts,   // from mkScanOptions.  If parseStage is
+                           // STAGE_DATA, parse section 4 for bbox, stations
+  int fileIndex,           // index of inFile in fileNames
+  String inFile)
+{
+  int dataBugs = opts.dataBugs;
+  boolean hasData = opts.parseStage >= BufrFile.STAGE_DATA;
+  if (dataBugs >= 1)
+    prtln("BufrIndex: begin input file: \"" + inFile + "\"");
+  FileIndex findex = new FileIndex(
+    new BufrFile.FileResult( fileIndex, inFile));
+  IndexVisitor visitor = new IndexVisitor();
+
+  BufrFile bfile = null;
+  try {
+    bfile = new BufrFile( opts, inFile);
+    if (hasData) bfile.visitor = visitor;
+
+    for (int imsg = 0; ; imsg++) {
+      BufrMessage bmsg;
+      visitor.reset();
+      if (hasData) bmsg = BufrMessage.readBufrMessage( dataBugs, bfile, imsg);
+      else bmsg = BufrMessage.readCatalogMessage( dataBugs, bfile, imsg);
+      if (bmsg == null) break;              // if EOF, break
+
+      Entry ent = makeEntry( fileIndex, bmsg);
+      if (hasData) visitor.fillEntry( ent);
+      findex.entryList.add( ent);
+    }
+    bfile.close();
+  }
+  catch( Exception exc) {
+    // BufrException, or RuntimeException from bad data.
+    prtln("BufrIndex: caught: " + exc + "\n  for file: " + inFile);
+    findex.res.failure = exc;
+    if (bfile != null) {
+      try {
+        bfile.close();
+      }
+      catch( BufrException exc2) {
+        prtln("BufrIndex: caught: " + exc2 + "\n  for file: " + inFile);
+      }
+    }
+  }
+
+  if (bfile != null) findex.res.errorMsgs = bfile.errorMsgs;
+  else findex.res.errorMsgs = new LinkedList<String>();
+  return findex;
+} // end indexOneFile
+
+
+
+
+/**
+ * Returns the Entry for bmsg, without the bbox and stations.
+ */
+
+static Entry makeEntry(
+  int fileIndex,
+  BufrMessage bmsg)
+throws BufrException
+{
+  Entry ent = new Entry();
+  ent.fileIndex = fileIndex;
+  ent.msgNum = bmsg.msgNum;
+  ent.fileOffset = bmsg.fileOffset0;
+  ent.msgLen = bmsg.hdrMsgLen;
+  ent.time = bmsg.hdrYear * 10000000000L
+    + bmsg.hdrMonth * 100000000L
+    + bmsg.hdrDay * 1000000L
+    + bmsg.hdrHour * 10000L
+    + bmsg.hdrMinute * 100L
+    + bmsg.hdrSecond;
+  ent.category = bmsg.hdrCategory;
+  int hash = 0;
+  for (int ii = 0; ii < bmsg.fxyList.size(); ii++) {
+    hash = 31 * hash + bmsg.fxyList.getIx( ii);
+  }
+  ent.templateHash = hash;
+  ent.defTables = bmsg.mayDefineTables();
+  return ent;
+}
+
+
+
+
+/**
+ * Returns the path of file number ifile.
+ */
+
+String getFilePath( int ifile) {
+  return new File( dirName, fileNames[ifile]).getPath();
+}
+
+
+
+
+/**
+ * Writes the index to the file INDEX_NAME in dirName.
+ * Writes to a temp file first and then renames it,
+ * so queries never see a partial index.
+ */
+
+void write( int bugs)
+throws BufrException
+{
+  File ifile = new File( dirName, INDEX_NAME);
+  File tmpFile = new File( dirName, INDEX_NAME + ".tmp");
+  try {
+    DataOutputStream dout = new DataOutputStream(
+      new BufferedOutputStream( new FileOutputStream( tmpFile)));
+
+    dout.writeInt( MAGIC);
+    dout.writeInt( FORMAT_VERSION);
+    dout.writeInt( hasData ? 1 : 0);
+    dout.writeInt( fileNames.length);
+    for (int ii = 0; ii < fileNames.length; ii++) {
+      TableSnapshot.putString( dout, fileNames[ii]);
+      dout.writeLong( fileStamps[ii][0]);
+      dout.writeLong( fileStamps[ii][1]);
+    }
+
+    dout.writeInt( entries.length);
+    for (Entry ent : entries) {
+      dout.writeInt( ent.fileIndex);
+      dout.writeInt( ent.msgNum);
+      dout.writeLong( ent.fileOffset);
+      dout.writeInt( ent.msgLen);
+      dout.writeLong( ent.time);
+      dout.writeInt( ent.category);
+      dout.writeInt( ent.templateHash);
+      dout.writeInt( ent.defTables ? 1 : 0);
+      if (hasData) {
+        dout.writeDouble( ent.latMin);
+        dout.writeDouble( ent.latMax);
+        dout.writeDouble( ent.lonMin);
+        dout.writeDouble( ent.lonMax);
+        dout.writeInt( ent.stations.length);
+        for (String stg : ent.stations) {
+          TableSnapshot.putString( dout, stg);
+        }
+      }
+    }
+    dout.writeInt( MAGIC);
+    dout.close();
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("could not write index file \"" + tmpFile + "\"");
+  }
+
+  ifile.delete();
+  if (! tmpFile.renameTo( ifile))
+    throwerr("could not rename \"" + tmpFile + "\" to \"" + ifile + "\"");
+  if (bugs >= 0) prtln("BufrIndex: wrote: " + ifile
+    + "  files: " + fileNames.length + "  messages: " + entries.length);
+}
+
+
+
+
+/**
+ * Reads the index file INDEX_NAME in dirName.
+ * Throws an exception if it is missing, invalid, or stale:
+ * if any file's length or modification time has changed.
+ */
+
+static BufrIndex load(
+  int bugs,
+  String dirName)
+throws BufrException
+{
+  File ifile = new File( dirName, INDEX_NAME);
+  if (! ifile.isFile())
+    throwerr("index not found: \"" + ifile + "\".  Use -buildIndex");
+
+  ByteBuffer buf = null;
+  try {
+    RandomAccessFile raf = new RandomAccessFile( ifile, "r");
+    FileChannel chan = raf.getChannel();
+    buf = chan.map( FileChannel.MapMode.READ_ONLY, 0, chan.size());
+    chan.close();
+    raf.close();
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("could not map index file \"" + ifile + "\"");
+  }
+
+  BufrIndex bindex = new BufrIndex();
+  bindex.dirName = dirName;
+  try {
+    if (buf.getInt() != MAGIC)
+      throwerr("not an index file: \"" + ifile + "\"");
+    if (buf.getInt() != FORMAT_VERSION)
+      throwerr("old index format in \"" + ifile + "\".  Use -buildIndex");
+    bindex.hasData = buf.getInt() != 0;
+    int numFiles = buf.getInt();
+    bindex.fileNames = new String[ numFiles];
+    bindex.fileStamps = new long[ numFiles][];
+    for (int ii = 0; ii < numFiles; ii++) {
+      bindex.fileNames[ii] = TableSnapshot.getString( buf);
+      bindex.fileStamps[ii] = new long[] { buf.getLong(), buf.getLong() };
+    }
+
+    int numEntries = buf.getInt();
+    bindex.entries = new Entry[ numEntries];
+    for (int ii = 0; ii < numEntries; ii++) {
+      Entry ent = new Entry();
+      ent.fileIndex = buf.getInt();
+      ent.msgNum = buf.getInt();
+      ent.fileOffset = buf.getLong();
+      ent.msgLen = buf.getInt();
+      ent.time = buf.getLong();
+      ent.category = buf.getInt();
+      ent.templateHash = buf.getInt();
+      ent.defTables = buf.getInt() != 0;
+      if (bindex.hasData) {
+        ent.latMin = buf.getDouble();
+        ent.latMax = buf.getDouble();
+        ent.lonMin = buf.getDouble();
+        ent.lonMax = buf.getDouble();
+        ent.stations = new String[ buf.getInt()];
+        for (int jj = 0; jj < ent.stations.length; jj++) {
+          ent.stations[jj] = TableSnapshot.getString( buf);
+        }
+      }
+      bindex.entries[ii] = ent;
+    }
+    if (buf.getInt() != MAGIC)
+      throwerr("invalid index trailer in \"" + ifile + "\"");
+  }
+  catch( RuntimeException exc) {   // BufferUnderflowException, etc
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("invalid index file \"" + ifile + "\"");
+  }
+
+  for (int ii = 0; ii < bindex.fileNames.length; ii++) {
+    String path = bindex.getFilePath( ii);
+    long[] stamp = TableSnapshot.getStamp( new File( path));
+    if (stamp[0] != bindex.fileStamps[ii][0]
+      || stamp[1] != bindex.fileStamps[ii][1])
+    {
+      throwerr("index \"" + ifile + "\" is stale for file \"" + path
+        + "\".  Use -buildIndex");
+    }
+  }
+  if (bugs >= 1) prtln("BufrIndex: loaded: " + ifile
+    + "  files: " + bindex.fileNames.length
+    + "  messages: " + bindex.entries.length);
+  return bindex;
+}
+
+
+
+
+/**
+ * Selects the entries matching query.  Returns one array per file
+ * having any matches, in file order, for BufrFile.readIndexed.
+ * The matching entries have selected = true.
+ * Each array also has the entries of any messages before the last
+ * match that may define table entries, with selected = false,
+ * since the later messages may use them.
+ */
+
+LinkedList<Entry[]> select( Query query)
+throws BufrException
+{
+  LinkedList<Entry[]> resList = new LinkedList<Entry[]>();
+  LinkedList<Entry> fileList = new LinkedList<Entry>();
+  int numMatch = 0;                // num selected in fileList
+  for (int ii = 0; ii <= entries.length; ii++) {
+    Entry ent = null;
+    if (ii < entries.length) ent = entries[ii];
+
+    // At the end of each file, keep its entries up to the last match
+    if (fileList.size() > 0
+      && (ent == null || ent.fileIndex != fileList.getFirst().fileIndex))
+    {
+      if (numMatch > 0) {
+        while (! fileList.getLast().selected) fileList.removeLast();
+        resList.add( fileList.toArray( new Entry[0]));
+      }
+      fileList.clear();
+      numMatch = 0;
+    }
+
+    if (ent != null) {
+      ent.selected = query.matches( this, ent);
+      if (ent.selected) numMatch++;
+      if (ent.selected || ent.defTables) fileList.add( ent);
+    }
+  }
+  return resList;
+}
+
+
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("BufrIndex: " + msg);
+}
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
@@ -57,6 +57,8 @@ class BufrItem {
 static String MISS_MSG = "MISS";
 
 DefDesc def;
+int defId;           // id of def in its template, or 0.
+                     // See DecodePlan.opDefIds.
 
 BufrItem[] subItems = new BufrItem[0];
 
@@ -84,9 +86,12 @@ int subIndex;        // index in our parent's subItems.  -1 for root.
 
 
 
-BufrItem( DefDesc def)
+BufrItem(
+  DefDesc def,
+  int defId)
 {
   this.def = def;
+  this.defId = defId;
 }
 
 
@@ -36,8 +36,10 @@
 package www.cnr7.com.wmoBufr;
 
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Formatter;
+import java.util.concurrent.ForkJoinPool;
 
 
 
@@ -181,19 +183,24 @@ static int CUSTOM_ASSOCFLD_FXY = BufrUtil.getFxyNoCheck(
   CUSTOM_FVAL, CUSTOM_ASSOCFLD_X, CUSTOM_ASSOCFLD_Y);
 
 
-byte[] section0 = new byte[0];
-byte[] section1 = new byte[0];
-byte[] section2 = new byte[0];
-byte[] section3 = new byte[0];
-byte[] section4 = new byte[0];
-byte[] section5 = new byte[0];
+// The sections.  Each starts at index 0 and has limit = section length.
+// For mapped input these are zero-copy views of msgBuf.
+ByteBuffer section0 = ByteBuffer.allocate(0);
+ByteBuffer section1 = ByteBuffer.allocate(0);
+ByteBuffer section2 = ByteBuffer.allocate(0);
+ByteBuffer section3 = ByteBuffer.allocate(0);
+ByteBuffer section4 = ByteBuffer.allocate(0);
+ByteBuffer section5 = ByteBuffer.allocate(0);
 
-int fileOffset0;      // file offset of section 0
-int fileOffset1;      // file offset of section 1
-int fileOffset2;      // file offset of section 2
-int fileOffset3;      // file offset of section 3
-int fileOffset4;      // file offset of section 4
-int fileOffset5;      // file offset of section 5
+ByteBuffer msgBuf = null;   // For mapped input, the entire message.
+                            // For stream input, null.
+
+long fileOffset0;     // file offset of section 0
+long fileOffset1;     // file offset of section 1
+long fileOffset2;     // file offset of section 2
+long fileOffset3;     // file offset of section 3
+long fileOffset4;     // file offset of section 4
+long fileOffset5;     // file offset of section 5
 
 
 
@@ -203,8 +210,22 @@ int bugs;                 // debug level
 BufrFile bfile;           // the file containing this message
 int msgNum;               // message number within this file
 int totalMsgPos = 0;      // total bytes read in this msg
+String errorMsg = null;   // Normally null.  If forceFlag and we
+                          // had an error parsing section 4,
+                          // the error message.
 FxyList fxyList = null;
 BufrParser parser = null;
+BufrColumns columns = null;   // If not null, the data in columnar form.
+                              // Then parser is null.  See parseData.
+TemplateDecoder.Record[] records = null;
+                              // If not null, the data decoded by a
+                              // TemplateDecoder, one per subset.
+                              // Then parser is null.  See parseData.
+boolean filteredOut = false;  // If true, bfile.filter dropped the
+                              // entire message, so it is not written.
+ContainerWriter.Entry containerEntry = null;
+                              // With -container, the formatted output
+                              // until BufrFile appends it, in order.
 
 
 
@@ -233,6 +254,8 @@ int hdrMasterTableNum;
 
 int hdrMasterTableVersion;   // major table version
 int hdrLocalTableVersion;
+TableOverlay overlay = null; // the tables for the above versions, or
+                             //   null if none are compatible
 int hdrYear;                 // including century
 int hdrMonth;
 int hdrDay;
@@ -255,6 +278,8 @@ boolean flagCompressed;
 // Section 4 info
 int sec4Len;
 DefDesc defRoot = null;
+DecodePlan plan = null;    // compiled from defRoot.  Shared with
+                           // other msgs having the same section 3.
 
 // Current associated fields
 // For example:
@@ -313,16 +338,25 @@ throws BufrException
   byte[] sentinel = "BUFR".getBytes();
   int sentinelLen = sentinel.length;
 
-  // Scan for sentinel "BUFR"
-  boolean foundit = scanForSentinel( bugs, sentinel, bfile);
-
-  // Read the message
   BufrMessage bmsg = null;
-  if (foundit) {
-    bmsg = new BufrMessage( bugs, bfile, msgNum);
-    bmsg.totalMsgPos = sentinelLen;
-    bmsg.readData( sentinel);    // Read and parse sections 0 through 5
+  if (bfile.mapRdr == null) {
+    // Stream input: scan for sentinel "BUFR", then read
+    // the message one section at a time.
+    boolean foundit = scanForSentinel( bugs, sentinel, bfile);
+    if (foundit) {
+      bmsg = new BufrMessage( bugs, bfile, msgNum);
+      bmsg.totalMsgPos = sentinelLen;
+      bmsg.fileOffset0 = bfile.fileOffset - sentinelLen;  // bk up to start
+      bmsg.readData( sentinel);    // Read and parse sections 0 through 5
+    }
   }
+  else {
+    // Mapped input: get a view of the entire message, then parse it.
+    bmsg = findBufrMessage( bugs, bfile, msgNum);
+    if (bmsg != null) bmsg.parseMessage();
+  }
+
+  if (bmsg != null) bfile.addErrorMsg( bmsg.errorMsg);
   if (bugs >= 1) {
     if (bmsg == null)
       prtstd("BufrMessage.readBufrMessage: return bmsg = null");
@@ -335,6 +369,210 @@ throws BufrException
 
 
 
+/**
+ * Like readBufrMessage, but reads and parses only the headers:
+ * sections 0, 1, 3 and 5.  Sections 2 and 4 are skipped
+ * using their lengths.  Used by {@link BufrCatalog BufrCatalog}.
+ * If we reach EOF before finding the BUFR sentinel, returns null.
+ */
+
+static BufrMessage readCatalogMessage(
+  int bugs,
+  BufrFile bfile,
+  int msgNum)
+throws BufrException
+{
+  if (bugs >= 1) prtstd("readCatalogMessage: entry");
+  byte[] sentinel = "BUFR".getBytes();
+  int sentinelLen = sentinel.length;
+
+  BufrMessage bmsg = null;
+  if (bfile.mapRdr == null) {
+    // Stream input: scan for sentinel "BUFR", then read
+    // the headers, skipping the other sections.
+    boolean foundit = scanForSentinel( bugs, sentinel, bfile);
+    if (foundit) {
+      bmsg = new BufrMessage( bugs, bfile, msgNum);
+      bmsg.totalMsgPos = sentinelLen;
+      bmsg.fileOffset0 = bfile.fileOffset - sentinelLen;  // bk up to start
+      bmsg.readHeaders( sentinel);
+    }
+  }
+  else {
+    // Mapped input: get a view of the entire message.
+    // Only the pages of the headers are touched.
+    bmsg = findBufrMessage( bugs, bfile, msgNum);
+    if (bmsg != null) {
+      bmsg.totalMsgPos = sentinelLen;
+      bmsg.readHeaders( sentinel);
+    }
+  }
+  return bmsg;
+} // end readCatalogMessage
+
+
+
+
+
+
+/**
+ * Scans bfile for the next BUFR message and gets the bytes of
+ * the entire message, but does not parse it.
+ * If we reach EOF before finding the BUFR sentinel, returns null.
+ * <p>
+ * Leaves bfile positioned after the message, so the caller may
+ * hand the returned message to {@link #parseMessage parseMessage}
+ * in another thread and go on to find the next message.
+ */
+
+static BufrMessage findBufrMessage(
+  int bugs,
+  BufrFile bfile,
+  int msgNum)
+throws BufrException
+{
+  if (bugs >= 1) prtstd("findBufrMessage: entry");
+  byte[] sentinel = "BUFR".getBytes();
+  int sentinelLen = sentinel.length;
+  long msgPos = -1;
+  ByteBuffer msgBuf = null;
+
+  if (bfile.mapRdr != null) {
+    // Mapped input: find the sentinel and use the total length
+    // in section 0 to get a view of the entire message.
+    msgPos = bfile.mapRdr.findSentinel( sentinel, bfile.fileOffset);
+    if (msgPos < 0) bfile.fileOffset = bfile.mapRdr.fileLen;
+    else {
+      int msgLen = bfile.mapRdr.getUnsigned( msgPos + sentinelLen, 3);
+      // If msgLen is bad, readData will find the error.
+      msgBuf = bfile.mapRdr.sliceBuffer( msgPos, Math.max( msgLen, 8));
+      bfile.fileOffset = msgPos + msgBuf.limit();
+    }
+  }
+
+  else {
+    // Stream input: scan for the sentinel and read the entire message.
+    if (scanForSentinel( bugs, sentinel, bfile)) {
+      msgPos = bfile.fileOffset - sentinelLen;
+      byte[] lenbuf = new byte[4];
+      int numRead = bfile.readBytes( lenbuf, 0, lenbuf.length);
+      if (numRead != lenbuf.length) throwerr("file too short");
+      int msgLen = BufrUtil.getUnsigned( ByteBuffer.wrap( lenbuf), 0, 3);
+      byte[] inbuf = new byte[ Math.max( msgLen, 8)];
+      System.arraycopy( sentinel, 0, inbuf, 0, sentinelLen);
+      System.arraycopy( lenbuf, 0, inbuf, sentinelLen, lenbuf.length);
+      int ipos = sentinelLen + lenbuf.length;
+      numRead = bfile.readBytes( inbuf, ipos, inbuf.length - ipos);
+      if (numRead > 0) ipos += numRead;
+      // If the file is too short, readData will find the error.
+      msgBuf = BufrUtil.sliceBuffer( ByteBuffer.wrap( inbuf), 0, ipos);
+    }
+  }
+
+  BufrMessage bmsg = null;
+  if (msgBuf != null) {
+    bmsg = new BufrMessage( bugs, bfile, msgNum);
+    bmsg.msgBuf = msgBuf;
+    bmsg.fileOffset0 = msgPos;
+  }
+  return bmsg;
+} // end findBufrMessage
+
+
+
+
+
+
+/**
+ * Parses a message found by {@link #findBufrMessage findBufrMessage}.
+ * Uses only this message's msgBuf, so different messages
+ * of the same file may be parsed concurrently.
+ * The caller must add errorMsg, if any, to bfile.errorMsgs.
+ */
+
+void parseMessage()
+throws BufrException
+{
+  byte[] sentinel = "BUFR".getBytes();
+  totalMsgPos = sentinel.length;
+  readData( sentinel);            // Read and parse sections 0 through 5
+} // end parseMessage
+
+
+
+
+
+
+/**
+ * Returns true if this message may define new table entries
+ * (see {@link DynDefs DynDefs}), which later messages may use:
+ * true if the category is 11 (BUFR tables)
+ * or if any descriptor in section 3 has x == 0.
+ * If msgBuf is set, looks only at msgBuf, without parsing the message.
+ * Otherwise sections 1 and 3 must have been parsed.
+ */
+
+boolean mayDefineTables()
+throws BufrException
+{
+  if (msgBuf == null) {
+    if (hdrCategory == 11) return true;
+    return hasTableDescs( section3, 0);
+  }
+
+  if (msgBuf.limit() < 8) return false;   // parse will find the error
+  int edition = 0xff & msgBuf.get( 7);
+  int ipos = 8;                           // start of section 1
+  if (ipos + 11 > msgBuf.limit()) return false;
+  int sec1Len = BufrUtil.getUnsigned( msgBuf, ipos, 3);
+  int flags1;
+  int categ;
+  if (edition == 4) {
+    flags1 = 0xff & msgBuf.get( ipos + 9);
+    categ = 0xff & msgBuf.get( ipos + 10);
+  }
+  else {
+    flags1 = 0xff & msgBuf.get( ipos + 7);
+    categ = 0xff & msgBuf.get( ipos + 8);
+  }
+  if (categ == 11) return true;
+
+  ipos += sec1Len;                        // start of section 2 or 3
+  if ((flags1 & 0x80) != 0) {
+    if (ipos + 3 > msgBuf.limit()) return false;
+    ipos += BufrUtil.getUnsigned( msgBuf, ipos, 3);
+  }
+  return hasTableDescs( msgBuf, ipos);
+} // end mayDefineTables
+
+
+
+
+/**
+ * Returns true if any descriptor in the section 3 starting
+ * at buf[ipos] has x == 0 and f == 0 or 3.
+ */
+
+static boolean hasTableDescs(
+  ByteBuffer buf,
+  int ipos)                     // start of section 3
+throws BufrException
+{
+  if (ipos + 7 > buf.limit()) return false;
+  int sec3Len = BufrUtil.getUnsigned( buf, ipos, 3);
+  int sec3End = Math.min( ipos + sec3Len, buf.limit());
+  for (int ii = ipos + 7; ii + 1 < sec3End; ii += 2) {
+    int fxy = BufrUtil.getUnsigned( buf, ii, 2);
+    int fval = (fxy >>> 14) & 0x3;
+    int xval = (fxy >>> 8) & 0x3f;
+    if (xval == 0 && (fval == 0 || fval == 3)) return true;
+  }
+  return false;
+}
+
+
+
+
 
 
 /**
@@ -402,19 +640,12 @@ private void readData( byte[] sentinel)
 throws BufrException
 {
   // Handle section 0 (start identifier)
-  if (bugs >= 1) prtln("\n===== section 0");
-  int sentinelLen = sentinel.length;
-  fileOffset0 = bfile.fileOffset - sentinel.length;  // bk up to start
-  byte[] temp0 = readSection( 8 - sentinelLen);      // Read 4 bytes
-  section0 = new byte[ sentinelLen + temp0.length];
-  System.arraycopy( sentinel, 0, section0, 0, sentinelLen);
-  System.arraycopy( temp0, 0, section0, sentinelLen, temp0.length);
-  parseStartSentinel( sentinel);
+  readSection0( sentinel);
 
   // Read and parse section 1 (header info)
   if (bfile.parseStage >= BufrFile.STAGE_HEADER) {
     if (bugs >= 1) prtln("\n===== section 1");
-    fileOffset1 = bfile.fileOffset;
+    fileOffset1 = getFileOffset();
     section1 = readSection( 0);
     parseHeader();
   }
@@ -423,7 +654,7 @@ throws BufrException
   if (bfile.parseStage >= BufrFile.STAGE_LOCAL) {
     if (hdrSection2Flag) {          // Is section 2 present
       if (bugs >= 1) prtln("\n===== section 2");
-      fileOffset2 = bfile.fileOffset;
+      fileOffset2 = getFileOffset();
       section2 = readSection( 0);
       parseLocalInfo();
     }
@@ -435,37 +666,41 @@ throws BufrException
   // Read and parse section 3 (descriptors)
   if (bfile.parseStage >= BufrFile.STAGE_DKEY) {
     if (bugs >= 1) prtln("\n===== section 3");
-    fileOffset3 = bfile.fileOffset;
+    fileOffset3 = getFileOffset();
     section3 = readSection( 0);
     parseDesc();
   }
 
+  // With -filter, prune the message on sections 1 and 3
+  if (bfile.filter != null
+    && bfile.parseStage >= BufrFile.STAGE_DKEY
+    && ! bfile.filter.matchesHeader( this))
+  {
+    filteredOut = true;
+  }
+
   // Expand the descriptors from section 3
-  if (bfile.parseStage >= BufrFile.STAGE_EXPDKEY) {
+  if (bfile.parseStage >= BufrFile.STAGE_EXPDKEY && ! filteredOut) {
     parseEdesc();
   }
 
   // Read and parse section 4 (data)
   // If exception, set parser = null.
-  if (bfile.parseStage >= BufrFile.STAGE_DATA) {
+  if (bfile.parseStage >= BufrFile.STAGE_DATA && filteredOut) {
+    if (bugs >= 1) prtln("\n===== skip section 4: filtered out");
+    fileOffset4 = getFileOffset();
+    skipSection();
+  }
+  else if (bfile.parseStage >= BufrFile.STAGE_DATA) {
     if (bugs >= 1) prtln("\n===== section 4");
-    fileOffset4 = bfile.fileOffset;
+    fileOffset4 = getFileOffset();
     section4 = readSection( 0);
     try {
       // Parse all the data
       parseData();
     }
     catch( BufrException exc) {
-      prtln("\n");
-      String msg = "=============== EXCEPTION ==================\n\n"
-        + "Problem parsing section 4 for message number: " + msgNum + "\n"
-        + "  within file: " + bfile.inFile + "\n"
-        + "  Exception: " + exc + "\n\n"
-        + BufrUtil.formatStackTrace( exc) + "\n";
-      bfile.errorMsgs += msg;
-      parser = null;
-      prtln(msg);
-      if ( !bfile.forceFlag) throwerr("Parse error; see stdout");
+      handleParseError( exc);
     }
   }
 
@@ -473,9 +708,9 @@ throws BufrException
   if (bfile.parseStage >= BufrFile.STAGE_DATA) {
     if (bugs >= 1) prtln("\n===== section 5");
     fileOffset5 = fileOffset0 + hdrMsgLen - 4;
-    if (bfile.fileOffset != fileOffset5) {
+    if (getFileOffset() != fileOffset5) {
       throwerr("tail offset mismatch.  expected fileOffset5: " + fileOffset5
-        + "  found: " + bfile.fileOffset);
+        + "  found: " + getFileOffset());
     }
     section5 = readSection( 4);
     parseEndSentinel();
@@ -488,6 +723,122 @@ throws BufrException
 
 
 
+/**
+ * Reads and parses section 0.  The sentinel has already been read.
+ */
+
+void readSection0( byte[] sentinel)
+throws BufrException
+{
+  if (bugs >= 1) prtln("\n===== section 0");
+  int sentinelLen = sentinel.length;
+  ByteBuffer temp0 = readSection( 8 - sentinelLen);  // Read 4 bytes
+  if (msgBuf != null)
+    section0 = BufrUtil.sliceBuffer( msgBuf, 0, sentinelLen + temp0.limit());
+  else {
+    byte[] buf0 = new byte[ sentinelLen + temp0.limit()];
+    System.arraycopy( sentinel, 0, buf0, 0, sentinelLen);
+    for (int ii = 0; ii < temp0.limit(); ii++) {
+      buf0[sentinelLen + ii] = temp0.get( ii);
+    }
+    section0 = ByteBuffer.wrap( buf0);
+  }
+  parseStartSentinel( sentinel);
+}
+
+
+
+
+/**
+ * Like readData, for BufrCatalog: reads and parses sections 0, 1
+ * and 3 and checks section 5, but skips sections 2 and 4
+ * using their lengths, without reading them.
+ */
+
+private void readHeaders( byte[] sentinel)
+throws BufrException
+{
+  readSection0( sentinel);
+
+  if (bugs >= 1) prtln("\n===== section 1");
+  fileOffset1 = getFileOffset();
+  section1 = readSection( 0);
+  parseHeader();
+
+  if (hdrSection2Flag) {          // Is section 2 present
+    if (bugs >= 1) prtln("\n===== skip section 2");
+    fileOffset2 = getFileOffset();
+    skipSection();
+  }
+
+  if (bugs >= 1) prtln("\n===== section 3");
+  fileOffset3 = getFileOffset();
+  section3 = readSection( 0);
+  parseDesc();
+
+  if (bugs >= 1) prtln("\n===== skip section 4");
+  fileOffset4 = getFileOffset();
+  skipSection();
+
+  // Handle section 5 (tail identifier)
+  if (bugs >= 1) prtln("\n===== section 5");
+  fileOffset5 = fileOffset0 + hdrMsgLen - 4;
+  if (getFileOffset() != fileOffset5) {
+    throwerr("tail offset mismatch.  expected fileOffset5: " + fileOffset5
+      + "  found: " + getFileOffset());
+  }
+  section5 = readSection( 4);
+  parseEndSentinel();
+  if (totalMsgPos != hdrMsgLen) throwerr("msgLen mismatch");
+} // end readHeaders
+
+
+
+
+/**
+ * Records an error parsing section 4: sets errorMsg and
+ * sets parser, columns and records to null.
+ * Throws a BufrException unless bfile.forceFlag.
+ * Called by readData, and by BufrParser.getSubset when
+ * the subsets are parsed on demand.
+ */
+
+void handleParseError(
+  BufrException exc)
+throws BufrException
+{
+  prtln("\n");
+  String msg = "=============== EXCEPTION ==================\n\n"
+    + "Problem parsing section 4 for message number: " + msgNum + "\n"
+    + "  within file: " + bfile.inFile + "\n"
+    + "  Exception: " + exc + "\n\n"
+    + BufrUtil.formatStackTrace( exc) + "\n";
+  errorMsg = msg;
+  parser = null;
+  columns = null;
+  records = null;
+  prtln(msg);
+  if ( !bfile.forceFlag) throwerr("Parse error; see stdout");
+}
+
+
+
+
+/**
+ * Returns the file offset of the next byte to be read
+ * from this message.
+ */
+
+long getFileOffset() {
+  long res;
+  if (msgBuf != null) res = fileOffset0 + totalMsgPos;
+  else res = bfile.fileOffset;
+  return res;
+}
+
+
+
+
 
 
 
@@ -514,7 +865,7 @@ throws BufrException
   if (bugs >= 1) {
     prtln("\n===== parse section 0: ");
     prtln( String.format("section length: %d = 0x%x",
-      4 + section0.length, 4 + section0.length));   // add in sentinel: +4
+      section0.limit(), section0.limit()));
     prtln("hdrMsgLen: " + hdrMsgLen);
     prtln("hdrBufrEdition: " + hdrBufrEdition);
     prtln("");
@@ -548,7 +899,7 @@ throws BufrException
 
   BitBufReader bitBuf = new BitBufReader(
     bugs, BitBufReader.BBTP_DATA, section1,
-    fileOffset1, fileOffset1 - fileOffset0);
+    fileOffset1, (int) (fileOffset1 - fileOffset0));
 
   int sectionLen = bitBuf.getInt( 3*8);
   if (sectionLen != bitBuf.getByteLength())
@@ -579,16 +930,6 @@ throws BufrException
 
   hdrCategory = bitBuf.getInt( 1*8);      // see Table A
 
-  hdrCategoryName = BufrUtil.unknownTag;
-  try {
-    DefCateg cdef = bfile.tableCateg.getDefCopy( hdrCategory);
-    if (cdef != null) hdrCategoryName = cdef.description;
-  }
-  catch( BufrException exc) {
-    BufrUtil.prtlnexc("caught", exc);
-    throwerr("caught: " + exc);
-  }
-
   if (hdrBufrEdition == 2 || hdrBufrEdition == 3)
     hdrInternatSubCategory = 0;
   else if (hdrBufrEdition == 4)
@@ -597,6 +938,23 @@ throws BufrException
   hdrMasterTableVersion = bitBuf.getInt( 1*8);
   hdrLocalTableVersion = bitBuf.getInt( 1*8);
 
+  // Find the tables for this message's versions.
+  // If there are none, parseEdesc reports the error.
+  overlay = bfile.getOverlay(
+    hdrMasterTableVersion, hdrLocalTableVersion, hdrCentre);
+
+  hdrCategoryName = BufrUtil.unknownTag;
+  if (overlay != null) {
+    try {
+      DefCateg cdef = overlay.getCategCopy( hdrCategory);
+      if (cdef != null) hdrCategoryName = cdef.description;
+    }
+    catch( BufrException exc) {
+      BufrUtil.prtlnexc("caught", exc);
+      throwerr("caught: " + exc);
+    }
+  }
+
   if (hdrBufrEdition == 2 || hdrBufrEdition == 3) {
     // See section 3.1.1.3 in the Guide to WMO Table Driven Code Forms.
     int year = bitBuf.getInt( 1*8);
@@ -667,8 +1025,8 @@ void parseLocalInfo()
 throws BufrException
 {
   StringBuilder sbuf = new StringBuilder();
-  for (int ipos = 4; ipos < section2.length; ipos++) {
-    int ival = 0xff & section2[ipos];
+  for (int ipos = 4; ipos < section2.limit(); ipos++) {
+    int ival = 0xff & section2.get( ipos);
     if (BufrUtil.isPrintable( ival)) sbuf.append((char) ival);
     else sbuf.append('#');
   }
@@ -677,7 +1035,7 @@ throws BufrException
   if (bugs >= 1) {
     prtln("\n===== parse section 2:");
     prtln( String.format("section length: %d = 0x%x",
-      section2.length, section2.length));
+      section2.limit(), section2.limit()));
     prtln("section2Stg: \"" + section2Stg + "\"");
   }
 } // end parseLocalInfo
@@ -695,10 +1053,10 @@ throws BufrException
 {
   BitBufReader descBuf = new BitBufReader(
     bugs, BitBufReader.BBTP_DATA, section3,
-    fileOffset3, fileOffset3 - fileOffset0);
+    fileOffset3, (int) (fileOffset3 - fileOffset0));
 
   sec3Len = descBuf.getInt( 3 * 8);
-  if (sec3Len != section3.length) throwerr("sec3Len != section3.length");
+  if (sec3Len != section3.limit()) throwerr("sec3Len != section3.length");
   int unused_a = descBuf.getInt( 1*8);
 
   numSubsets = descBuf.getInt( 2*8);
@@ -712,7 +1070,7 @@ throws BufrException
   if (bugs >= 1) {
     prtln("\n===== parse section 3:");
     prtln( String.format("section length: %d = 0x%x",
-      section3.length, section3.length));
+      section3.limit(), section3.limit()));
   }
 
   // From here on, allow only descriptors in descBuf
@@ -741,7 +1099,10 @@ throws BufrException
 
 
 /**
- * Expand the descriptor tree from section 3.
+ * Expand the descriptor tree from section 3,
+ * and compile it to a DecodePlan.
+ * If bfile.planCache already has a plan for these descriptors,
+ * use the plan's tree instead of building a new one.
  */
 
 void parseEdesc()
@@ -750,40 +1111,44 @@ throws BufrException
   // Create tree of DefDesc, with root defRoot.
 
   // Insure data version number is compatible with table version.
-  // Major versions <= 13 allow backward compatibility;
-  // versions >= 14 do not.
-  String errmsg = null;
-  if (bfile.tableVersionMajor <= 13) {
-    if (hdrMasterTableVersion > bfile.tableVersionMajor)
-      errmsg = "major";
-    else if (hdrMasterTableVersion == bfile.tableVersionMajor
-      && hdrLocalTableVersion > bfile.tableVersionMinor)
-      errmsg = "minor";
-  }
-  else {     // else tableVersionMajor >= 14.  No backward compatibility.
-    if (hdrMasterTableVersion != bfile.tableVersionMajor)
-      errmsg = "major";
-    else if (hdrLocalTableVersion > bfile.tableVersionMinor)
-      errmsg = "minor";
+  // See TableRegistry.
+  if (overlay == null) {
+    throwerr( bfile.tableRegistry.mkVersionError(
+      hdrMasterTableVersion, hdrLocalTableVersion, hdrCentre));
   }
 
-  if (errmsg != null) {
-    throwerr("\nIncompatible " + errmsg + " version numbers:\n"
-      + "  table version: major: " + bfile.tableVersionMajor
-      + "  minor: " + bfile.tableVersionMinor + "\n"
-      + "  data  version: major: " + hdrMasterTableVersion
-      + "  minor: " + hdrLocalTableVersion + "\n");
+  // Get the decode plan for this template, if we've seen it before.
+  String planKey = null;
+  if (bfile.planCache != null) {
+    planKey = DecodePlan.PlanCache.mkKey( this, fxyList);
+    plan = bfile.planCache.get( planKey);
   }
 
-  // Create tree of DefDesc
-  defRoot = new DefDesc( CUSTOM_SUBSET_FXY);
-  while (fxyList.hasMore()) {
-    DefDesc[] subDefs = buildDef( null, fxyList);   // parentList = null
-    defRoot.addSubdefs( subDefs);
+  if (plan != null) {
+    // buildDef may have restructured the fxyList, so use
+    // the list as it was after buildDef.
+    fxyList = new FxyList();
+    for (int fxy : plan.expandedFxys) {
+      fxyList.addVal( fxy);
+    }
+    fxyList.incPos( fxyList.size());
+    defRoot = plan.defRoot;
   }
 
-  // Set defId in all tree vertices
-  defRoot.setTreeDefId( 1);
+  else {
+    // Create tree of DefDesc
+    defRoot = new DefDesc( CUSTOM_SUBSET_FXY);
+    while (fxyList.hasMore()) {
+      DefDesc[] subDefs = buildDef( null, fxyList);   // parentList = null
+      defRoot.addSubdefs( subDefs);
+    }
+
+    // Also sets the defIds, in DecodePlan.opDefIds
+    plan = DecodePlan.compile( defRoot, fxyList);
+    if (bfile.decodeMode == BufrFile.DECODE_RECORDS)
+      plan.recordLayout = TemplateDecoder.bind( plan);
+    if (bfile.planCache != null) bfile.planCache.put( planKey, plan);
+  }
 
   // Print expanded descriptor tree
   if (bugs >= 1) {
@@ -792,6 +1157,10 @@ throws BufrException
     // isXml = false
     prtln("");
   }
+  if (bugs >= 5) {
+    prtln("\n===== Decode plan:");
+    prtln( plan.toString());
+  }
 } // end parseEdesc
 
 
@@ -803,6 +1172,26 @@ throws BufrException
 /**
  * Parses BUFR message section 4 (data) using the descriptors
  * from section 3.
+ * <p>
+ * Normally this forms a BufrItem tree for each subset, in parser.
+ * If bfile.decodeMode is DECODE_COLUMNS and the message is compressed,
+ * the data is instead unpacked into columns, one per data field.
+ * If bfile.decodeMode is DECODE_RECORDS and the message is not
+ * compressed and has a template with a specialized decoder,
+ * the data is instead decoded into records; see TemplateDecoder.
+ * Not with bfile.projection, and if a delayed replication count
+ * is missing, the message is parsed normally instead.
+ * If bfile.projection is set, only the selected values are decoded.
+ * If bfile.visitor is set, the values are passed to it instead;
+ * see BufrFile.visitFully.
+ * If bfile.decodeMode is DECODE_STREAM and the message is not
+ * compressed, the subsets are not parsed here, but later
+ * one at a time by BufrParser.getSubset.
+ * If bfile.filter is set, only the subsets that pass it are
+ * fully parsed; see SubsetFilter.
+ * If bfile.splitPool is set, the subsets of large messages that
+ * are not compressed are parsed in parallel, and with DECODE_COLUMNS
+ * the columns of large compressed messages are unpacked in parallel.
  */
 void parseData()
 throws BufrException
@@ -810,26 +1199,112 @@ throws BufrException
   if (bugs >= 1) {
     prtln("\n===== parse section 4:");
     prtln( String.format("section length: %d = 0x%x",
-      section4.length, section4.length));
+      section4.limit(), section4.limit()));
   }
 
   // Parse the data
   BitBufReader dataBuf = new BitBufReader(
     bugs, BitBufReader.BBTP_DATA, section4,
-    fileOffset4, fileOffset4 - fileOffset0);
+    fileOffset4, (int) (fileOffset4 - fileOffset0));
 
   // Read past dataBuf header (section 4)
   sec4Len = dataBuf.getInt( 3 * 8);
-  if (sec4Len != section4.length) throwerr("sec4Len != section4.length");
+  if (sec4Len != section4.limit()) throwerr("sec4Len != section4.length");
   int unused_b = dataBuf.getInt( 1*8);
 
-  // Parse all subsets.
-  // Calls BufrParser.parseMain, handles DynDefs, etc.
-  parser = new BufrParser( bugs, bfile, this, defRoot, dataBuf);
+  // Messages that may define table entries need the full BufrItem
+  // trees for DynDefs, so they are never decoded in columns
+  // or projected.
+  boolean defineFlag = mayDefineTables();
+  BufrProjection projection = null;
+  if (! defineFlag) projection = bfile.projection;
+
+  // With -decode records, read each subset straight into a record.
+  // The records have all their fields, so not with -select.
+  if (bfile.decodeMode == BufrFile.DECODE_RECORDS
+    && plan.recordLayout != null
+    && ! flagCompressed
+    && ! defineFlag
+    && bfile.projection == null
+    && bfile.visitor == null
+    && bfile.filter == null)
+  {
+    int bitPos = dataBuf.getBitPos();
+    records = plan.recordLayout.decodeMessage( this, dataBuf);
+    // If a delayed replication count is missing, start over
+    // with the generic parser.
+    if (records == null) dataBuf.setBitPos( bitPos);
+  }
+
+  if (records != null) {
+    // Done above
+  }
+  else if (bfile.decodeMode == BufrFile.DECODE_STREAM
+    && ! flagCompressed
+    && ! defineFlag
+    && bfile.visitor == null)
+  {
+    // The subsets are parsed one at a time as they are formatted.
+    // See BufrParser.getSubset.
+    parser = new BufrParser( bugs, bfile, this, plan, projection, dataBuf,
+      bfile.keepSubsets);
+  }
+  else if (bfile.visitor != null) {
+    // Pass the data to the visitor.  Messages that may define
+    // table entries still need the trees, so we walk those.
+    bfile.visitor.startMessage( this);
+    if (defineFlag) {
+      parser = new BufrParser( bugs, bfile, this, plan, projection, dataBuf);
+      BufrParser.visitTree( bfile.visitor, parser);
+    }
+    else {
+      new BufrParser( bugs, bfile, this, plan, projection, dataBuf,
+        bfile.visitor);
+    }
+    bfile.visitor.endMessage( this);
+  }
+  else if (bfile.filter != null
+    && bfile.filter.projection != null
+    && ! defineFlag)
+  {
+    // Parse only the subsets that pass the filter.
+    // If none pass, the message is not written.
+    parser = new BufrParser( bugs, bfile, this, plan, projection, dataBuf,
+      bfile.filter);
+    if (parser.numKept == 0) filteredOut = true;
+  }
+  else if (bfile.splitPool != null
+    && ! flagCompressed
+    && ! defineFlag
+    && numSubsets >= bfile.splitMinSubsets)
+  {
+    // Find where each subset starts, then parse ranges
+    // of subsets in parallel.
+    parser = new BufrParser( bugs, bfile, this, plan, projection, dataBuf,
+      bfile.splitPool);
+  }
+  else if (bfile.decodeMode == BufrFile.DECODE_COLUMNS
+    && flagCompressed
+    && ! defineFlag)
+  {
+    columns = new BufrColumns( numSubsets);
+    // With -splitMessages, unpack the columns of large messages
+    // in parallel.
+    ForkJoinPool pool = null;
+    if (numSubsets >= bfile.splitMinSubsets) pool = bfile.splitPool;
+    new BufrParser( bugs, bfile, this, plan, projection, dataBuf, columns,
+      pool);
+  }
+  else {
+    // Parse all subsets.
+    // Calls BufrParser.parseMain, handles DynDefs, etc.
+    parser = new BufrParser( bugs, bfile, this, plan, projection, dataBuf);
+  }
 
-  if (bugs >= 2) {
+  if (bugs >= 2 && parser != null && parser.keepSubsets == null) {
     for (int isub = 0; isub < numSubsets; isub++) {
       BufrItem rootItem = parser.rootItems[isub];
+      if (rootItem == null) continue;         // dropped by the filter
 
       // Format the subset's entire xml tree
       prtln("\n===== Data contents of message: " + msgNum
@@ -842,9 +1317,12 @@ throws BufrException
     } // for isub
   }
 
-  // Insure we have < 2 bytes remaining at the end
-  int remLen = dataBuf.getRemainBitLen();
-  if (remLen >= 16) throwerr("remLen >= 16");
+  // Insure we have < 2 bytes remaining at the end.
+  // If the subsets are parsed on demand, BufrParser checks this.
+  if (parser == null || parser.keepSubsets == null) {
+    int remLen = dataBuf.getRemainBitLen();
+    if (remLen >= 16) throwerr("remLen >= 16");
+  }
 
 } // end parseData
 
@@ -867,11 +1345,11 @@ throws BufrException
   if (bugs >= 1) {
     prtln("\n===== parse section 5:");
     prtln( String.format("section length: %d = 0x%x",
-      section5.length, section5.length));
+      section5.limit(), section5.limit()));
   }
   BitBufReader bitBuf = new BitBufReader(
     bugs, BitBufReader.BBTP_DATA, section5,
-    fileOffset5, fileOffset5 - fileOffset0);
+    fileOffset5, (int) (fileOffset5 - fileOffset0));
 
   String endStg = bitBuf.getRawString(4*8);
   if (! endStg.equals("7777")) throwerr("sec5 end sentinel mismatch");
@@ -896,9 +1374,10 @@ throws BufrException
 
 /**
  * Reads a section (section number 0, 1, 2, 3, 4, or 5) of a BUFR message.
+ * For mapped input, returns a zero-copy view of msgBuf.
  */
 
-byte[] readSection(
+ByteBuffer readSection(
   int sectionLen)     // if 0, section len = first 3 bytes
 throws BufrException
 {
@@ -907,32 +1386,51 @@ throws BufrException
       + "  totalMsgPos: %d = 0x%x  fileOffset: %d = 0x%x",
       sectionLen, sectionLen,
       totalMsgPos, totalMsgPos,
-      bfile.fileOffset, bfile.fileOffset));
-  }
-  int readLen = sectionLen;
-  if (readLen == 0) readLen = 3;
-  byte[] inbuf = new byte[readLen];
-  int numRead = bfile.readBytes( inbuf, 0, inbuf.length);
-  if (numRead != readLen) throwerr("file too short");
-  totalMsgPos += numRead;
-
-  // If we just read the section length, read the rest of the section.
-  if (sectionLen == 0) {
-    BitBufReader bitBuf = new BitBufReader(
-      bugs, BitBufReader.BBTP_DATA, inbuf, 0, 0);
-    sectionLen = bitBuf.getInt( 3*8);
-    if (bugs >= 1)
-      prtln("readSection.  read sectionLen: " + sectionLen);
-
-    // Make full buffer and copy in the bytes we already read
-    byte[] svbuf = inbuf;
-    inbuf = new byte[sectionLen];
-    System.arraycopy( svbuf, 0, inbuf, 0, readLen);
-
-    // Read rest of the section
-    numRead = bfile.readBytes( inbuf, readLen, sectionLen - readLen);
-    if (numRead != sectionLen - readLen) throwerr("file too short");
-    totalMsgPos += numRead;
+      getFileOffset(), getFileOffset()));
+  }
+  ByteBuffer resBuf = null;
+
+  if (msgBuf != null) {       // if mapped input
+    if (sectionLen == 0) {
+      if (totalMsgPos + 3 > msgBuf.limit()) throwerr("file too short");
+      sectionLen = BufrUtil.getUnsigned( msgBuf, totalMsgPos, 3);
+      if (bugs >= 1)
+        prtln("readSection.  read sectionLen: " + sectionLen);
+      if (sectionLen < 3) throwerr("invalid sectionLen: " + sectionLen);
+    }
+    if (totalMsgPos + sectionLen > msgBuf.limit())
+      throwerr("file too short");
+    resBuf = BufrUtil.sliceBuffer( msgBuf, totalMsgPos, sectionLen);
+    totalMsgPos += sectionLen;
+  }
+
+  else {                      // else stream input
+    byte[] inbuf;
+    if (sectionLen == 0) {
+      // Read the 3 byte section length, then the rest of the section.
+      byte[] lenbuf = new byte[3];
+      int numRead = bfile.readBytes( lenbuf, 0, lenbuf.length);
+      if (numRead != lenbuf.length) throwerr("file too short");
+      totalMsgPos += numRead;
+      sectionLen = BufrUtil.getUnsigned( ByteBuffer.wrap( lenbuf), 0, 3);
+      if (bugs >= 1)
+        prtln("readSection.  read sectionLen: " + sectionLen);
+      if (sectionLen < 3) throwerr("invalid sectionLen: " + sectionLen);
+
+      inbuf = new byte[sectionLen];
+      System.arraycopy( lenbuf, 0, inbuf, 0, lenbuf.length);
+      numRead = bfile.readBytes( inbuf, lenbuf.length,
+        sectionLen - lenbuf.length);
+      if (numRead != sectionLen - lenbuf.length) throwerr("file too short");
+      totalMsgPos += numRead;
+    }
+    else {
+      inbuf = new byte[sectionLen];
+      int numRead = bfile.readBytes( inbuf, 0, inbuf.length);
+      if (numRead != sectionLen) throwerr("file too short");
+      totalMsgPos += numRead;
+    }
+    resBuf = ByteBuffer.wrap( inbuf);
   }
   if (bugs >= 1)
     prtln("readSection exit.  totalMsgPos: " + totalMsgPos);
@@ -941,8 +1439,8 @@ throws BufrException
   if (bugs >= 20) {
     StringBuilder sbuf = new StringBuilder();
     Formatter fmtr = new Formatter(sbuf);
-    for (int ii = 0; ii < inbuf.length; ii++) {
-      int ival = 0xff & inbuf[ii];
+    for (int ii = 0; ii < resBuf.limit(); ii++) {
+      int ival = 0xff & resBuf.get( ii);
       char cval = (char) ival;
       if (! BufrUtil.isPrintable(cval)) cval = '#';
       fmtr.format("ii: %3d  dec: %3d  hex: %02x", ii, ival, ival);
@@ -958,12 +1456,50 @@ throws BufrException
     }
     prtln( sbuf.toString());
   }
-  return inbuf;
+  return resBuf;
 } // end readSection
 
 
 
 
+/**
+ * Skips a section without reading it, using the section length
+ * in its first 3 bytes.  For stream input, seeks past the section.
+ */
+
+void skipSection()
+throws BufrException
+{
+  int sectionLen;
+  if (msgBuf != null) {       // if mapped input
+    if (totalMsgPos + 3 > msgBuf.limit()) throwerr("file too short");
+    sectionLen = BufrUtil.getUnsigned( msgBuf, totalMsgPos, 3);
+    if (sectionLen < 3) throwerr("invalid sectionLen: " + sectionLen);
+    if (totalMsgPos + sectionLen > msgBuf.limit())
+      throwerr("file too short");
+    totalMsgPos += sectionLen;
+  }
+
+  else {                      // else stream input
+    byte[] lenbuf = new byte[3];
+    int numRead = bfile.readBytes( lenbuf, 0, lenbuf.length);
+    if (numRead != lenbuf.length) throwerr("file too short");
+    totalMsgPos += numRead;
+    sectionLen = BufrUtil.getUnsigned( ByteBuffer.wrap( lenbuf), 0, 3);
+    if (sectionLen < 3) throwerr("invalid sectionLen: " + sectionLen);
+    long numSkip = bfile.skipBytes( sectionLen - lenbuf.length);
+    if (numSkip != sectionLen - lenbuf.length) throwerr("file too short");
+    totalMsgPos += numSkip;
+  }
+  if (bugs >= 1) {
+    prtln("skipSection exit.  sectionLen: " + sectionLen
+      + "  totalMsgPos: " + totalMsgPos);
+  }
+}
+
+
+
+
 
 
 
@@ -1145,11 +1681,25 @@ throws BufrException
 
 
 
+// Expands the sequence fxy.
+// If bfile.seqCache has the expansion, returns it, shared.
+// Otherwise builds it, and caches it unless it depends on the
+// context: an associated field in effect, or a badly formed
+// replication moved up into curList.  See SequenceCache.
+
 DefDesc buildSequenceDef(
   FxyList curList,
   int fxy)
 throws BufrException
 {
+  String seqKey = null;
+  if (bfile.seqCache != null && assocFields.length == 0) {
+    seqKey = SequenceCache.mkKey( this, fxy);
+    DefDesc cacheDef = bfile.seqCache.get( seqKey);
+    if (cacheDef != null) return cacheDef;
+  }
+  int svSize = curList.size();
+
   DefDesc resDef = findDefDesc( fxy);
   // Replace each sequence element with its expansion
   FxyList subList = new FxyList();
@@ -1165,6 +1715,12 @@ throws BufrException
     DefDesc[] subDefs = buildDef( curList, subList);  // parentList, list
     resDef.addSubdefs( subDefs);
   }
+  if (seqKey != null) {
+    // If curList changed, an iteration was promoted into it.
+    if (curList.size() != svSize)
+      bfile.seqCache.numContextual.incrementAndGet();
+    else bfile.seqCache.put( seqKey, resDef);
+  }
   return resDef;
 } // end buildSequenceDef
 
@@ -1177,8 +1733,11 @@ throws BufrException
 
 /**
  * Retrieves a DefDesc from either:
- *   bfile.tableDescription == WMO BUFR table B.
- *   bfile.tableSequence == WMO BUFR table D.
+ *   WMO BUFR table B, or
+ *   WMO BUFR table D,
+ * of the tables for this message's versions.
+ * Entries defined by earlier messages in the file,
+ * in overlay, are found first.
  */
 
 DefDesc findDefDesc( int fxy)
@@ -1190,12 +1749,12 @@ throws BufrException
   DefDesc resDef = null;
 
   if (fval == 0) {              // ordinary descriptor
-    resDef = bfile.tableDescription.getDefCopy( fxy);
+    resDef = overlay.getDescCopy( fxy);
     if (resDef == null)
       throwerr("findDefDesc: unknown fxy: " + BufrUtil.formatFxy( fxy));
   } // if fval == 0
   else if (fval == 3) {         // sequence: get expansion
-    resDef = bfile.tableSequence.getDefCopy( fxy);
+    resDef = overlay.getSeqCopy( fxy);
     if (resDef == null)
       throwerr("findDefDesc: unknown fxy: " + BufrUtil.formatFxy( fxy));
     if (resDef.description.length() == 0) resDef.description = "sequence";
@@ -1211,8 +1770,8 @@ throws BufrException
 
 /**
  * Returns the description of the given fxy, or "" if not found. <br>
- * If fval == 0, the description comes from bfile.tableDescription. <br>
- * If fval == 3, the description comes from bfile.tableSequence. <br>
+ * If fval == 0, the description comes from table B. <br>
+ * If fval == 3, the description comes from table D. <br>
  * Otherwise, for iterators and such, generate an appropriate description. <br>
  */
 
@@ -1225,7 +1784,7 @@ throws BufrException
 
   String desc = "";
   if (fval == 0) {
-    DefDesc def = bfile.tableDescription.getDefCopy( fxy);
+    DefDesc def = overlay.getDescCopy( fxy);
     if (def != null) desc = def.description;
   }
 
@@ -1255,7 +1814,7 @@ throws BufrException
   }
 
   else if (fval == 3) {
-    DefDesc def = bfile.tableSequence.getDefCopy( fxy);
+    DefDesc def = overlay.getSeqCopy( fxy);
     if (def != null) desc = def.description;
   }
   return desc;
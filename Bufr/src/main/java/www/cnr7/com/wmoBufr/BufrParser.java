@@ -38,6 +38,8 @@ package www.cnr7.com.wmoBufr;
 import java.util.Calendar;
 import java.util.LinkedList;
 import java.util.SimpleTimeZone;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 //xxx ren desc to bkey
 //xxx edscs to expandedBkeys
@@ -66,6 +68,16 @@ import java.util.SimpleTimeZone;
 class BufrParser {
 
 
+// Default for BufrFile.splitMinSubsets: messages with fewer subsets
+// than this are not split, and their columns are not unpacked
+// in parallel, even with BufrFile.splitThreads > 1.
+static int DEFAULT_SPLIT_MIN_SUBSETS = 8;
+
+// With parallel column unpacking, each task unpacks
+// at most this many values, counting all its columns.
+static int COLUMN_GRAIN_VALUES = 1 << 16;
+
+
 static class ReferenceMod {
   int fxy;
   int refVal;
@@ -73,219 +85,1704 @@ static class ReferenceMod {
     this.fxy = fxy;
     this.refVal = refVal;
   }
-} // end inner class ReferenceMod
+} // end inner class ReferenceMod
+
+
+
+// Inner class
+// Parses the subsets startSub to endSub-1 of a message that is not
+// compressed, into mainParser.rootItems.  Used by the split
+// constructor.  Splits the range in half until it has at most
+// grain subsets, then parses it with a new BufrParser
+// starting at startPos[startSub].
+static class SubsetRangeTask extends RecursiveAction {
+  private static final long serialVersionUID = 1L;
+  BufrParser mainParser;    // the split parser
+  int[] startPos;           // bit pos of each subset, then the end pos
+  int startSub;             // first subset
+  int endSub;               // last subset + 1
+  int grain;                // max subsets parsed by one task
+  BufrException error = null;   // If not null, the parse failed
+
+  SubsetRangeTask(
+    BufrParser mainParser,
+    int[] startPos,
+    int startSub,
+    int endSub,
+    int grain)
+  {
+    this.mainParser = mainParser;
+    this.startPos = startPos;
+    this.startSub = startSub;
+    this.endSub = endSub;
+    this.grain = grain;
+  }
+
+  protected void compute() {
+    if (endSub - startSub <= grain) {
+      BufrParser mp = mainParser;
+      try {
+        BufrParser rangeParser = new BufrParser(
+          mp.bugs, mp.bfile, mp.bmsg, mp.plan, mp.projection,
+          mp.dataBuf.copyAt( startPos[startSub]),
+          mp.rootItems, startSub, endSub);
+        if (rangeParser.dataBuf.getBitPos() != startPos[endSub])
+          rangeParser.throwerr("subset range end mismatch", null);
+      }
+      catch( BufrException exc) {
+        error = exc;
+      }
+    }
+    else {
+      int midSub = (startSub + endSub) / 2;
+      SubsetRangeTask loTask = new SubsetRangeTask(
+        mainParser, startPos, startSub, midSub, grain);
+      SubsetRangeTask hiTask = new SubsetRangeTask(
+        mainParser, startPos, midSub, endSub, grain);
+      invokeAll( loTask, hiTask);
+      if (loTask.error != null) error = loTask.error;
+      else if (hiTask.error != null) error = hiTask.error;
+    }
+  }
+} // end inner class SubsetRangeTask
+
+
+
+// Inner class
+// Unpacks the columns startCol to endCol-1 of mainParser.columns
+// that were left packed by the layout pass; see unpackColumns.
+// Splits the range in half until it has at most grain columns.
+static class ColumnRangeTask extends RecursiveAction {
+  private static final long serialVersionUID = 1L;
+  BufrParser mainParser;    // the columns parser
+  int startCol;             // first column
+  int endCol;               // last column + 1
+  int grain;                // max columns unpacked by one task
+  BufrException error = null;   // If not null, the unpack failed
+
+  ColumnRangeTask(
+    BufrParser mainParser,
+    int startCol,
+    int endCol,
+    int grain)
+  {
+    this.mainParser = mainParser;
+    this.startCol = startCol;
+    this.endCol = endCol;
+    this.grain = grain;
+  }
+
+  protected void compute() {
+    if (endCol - startCol <= grain) {
+      BufrParser mp = mainParser;
+      try {
+        for (int icol = startCol; icol < endCol; icol++) {
+          BufrColumns.Column col = mp.columns.columns[icol];
+          if (col.dataPos >= 0)
+            mp.unpackColumn( col, mp.dataBuf.copyAt( col.dataPos));
+        }
+      }
+      catch( BufrException exc) {
+        error = exc;
+      }
+    }
+    else {
+      int midCol = (startCol + endCol) / 2;
+      ColumnRangeTask loTask = new ColumnRangeTask(
+        mainParser, startCol, midCol, grain);
+      ColumnRangeTask hiTask = new ColumnRangeTask(
+        mainParser, midCol, endCol, grain);
+      invokeAll( loTask, hiTask);
+      if (loTask.error != null) error = loTask.error;
+      else if (hiTask.error != null) error = hiTask.error;
+    }
+  }
+} // end inner class ColumnRangeTask
+
+
+
+int bugs;
+BufrFile bfile;
+BufrMessage bmsg;
+DefDesc defRoot;        // root of the DefDesc tree
+DecodePlan plan;        // compiled from defRoot
+BufrItem[] rootItems;   // roots of the BufrItem trees.  One per subset.
+                        // Null if columns is used.
+                        // If keepSubsets is not null, the entries
+                        // are filled in by getSubset and
+                        // cleared by releaseSubset.
+int[] keepSubsets;      // If not null, we parse the subsets on demand,
+                        // and releaseSubset keeps these subsets.
+int numParsed = 0;      // If keepSubsets is not null: num subsets parsed
+BufrColumns columns;    // If not null, the data in columnar form
+                        // for a compressed message.
+BufrVisitor visitor;    // If not null, gets the data instead of
+                        // rootItems or columns.
+boolean deferUnpack = false;  // If true, handleValueColumn and
+                        // handleCharColumn only find where each
+                        // column is, and unpackColumns unpacks them.
+boolean[] keptSubsets;  // If not null, set by the SubsetFilter
+                        // constructor: the subsets that passed.
+                        // The other entries of rootItems are null.
+int numKept;            // If keptSubsets is not null: num true
+BufrProjection projection;  // If not null, decode only these fxys
+boolean[] wanted;       // If projection is not null, its mask for plan
+BitBufReader dataBuf;
+
+int numActive;          // Num subsets we handle at once.
+                        // If compressed, equals bmsg.numSubsets.
+                        // Else is 1.
+
+int subsetNum;          // Used for err msgs
+                        // If compressed, is -1.
+                        // Else is current subset number.
+
+// Maintain changed width, scale, or reference for
+// the 2 xx yyy descriptors.
+int modWidth = 0;             // delta num bits
+int modScale = 0;             // delta scale
+int modReferenceBits = 0;     // new reference len
+
+// List of descriptors and their modified reference values
+LinkedList<ReferenceMod> referenceModList = new LinkedList<ReferenceMod>();
+
+
+
+
+
+
+// Parse the data for all subsets using the DecodePlan,
+// forming new BufrItem trees in this.rootItems
+// Calls BufrParser.parseMain, handles DynDefs, etc.
+
+BufrParser(
+  int bugs,
+  BufrFile bfile,
+  BufrMessage bmsg,
+  DecodePlan plan,
+  BufrProjection projection,      // if not null, decode only these fxys
+  BitBufReader dataBuf)
+throws BufrException
+{
+  this.bugs = bugs;
+  this.bfile = bfile;
+  this.bmsg = bmsg;
+  this.plan = plan;
+  this.defRoot = plan.defRoot;
+  this.dataBuf = dataBuf;
+  this.projection = projection;
+  if (projection != null) wanted = projection.getMask( plan);
+
+  if (bmsg.flagCompressed) {
+    // numActive is the num subsets we decompress concurrently.
+    numActive = bmsg.numSubsets;
+    subsetNum = -1;                 // used for err msgs
+    rootItems = parseMain();        // CALL MAIN PARSER
+  }
+
+  else {   // else not compressed
+    // numActive is the num subsets we decompress concurrently.
+    numActive = 1;
+    rootItems = new BufrItem[ bmsg.numSubsets];
+    parseSubsetRange( 0, bmsg.numSubsets);
+  }
+
+  if (bugs >= 10) {
+    for (int isub = 0; isub < rootItems.length; isub++) {
+      prtln("\n===== Data contents before handleDynDefTree, for subset "
+        + isub + ":");
+      prtln("");
+      prtln( BufrFormatter.formatBufrItemTree(
+        false, rootItems[isub], bmsg, isub));
+      prtln("");
+    }
+  }
+
+  // Check for and handle dynDefs - dynamic definitions
+  // Traverse the entire BufrItems tree.
+  for (int isub = 0; isub < rootItems.length; isub++) {
+    BufrItem root = rootItems[isub];
+    int idef = 0;
+    while (idef < root.subItems.length) {
+      int incr = DynDefs.handleDynDefTree( bugs, bfile, bmsg, root, idef);
+      idef += incr;
+    }
+  }
+
+} // end constructor
+
+
+
+
+
+
+// Parse the data for all subsets of a compressed message
+// using the DecodePlan, filling in columns instead of
+// forming BufrItem trees.  No objects are made per value.
+// If pool is not null, first a layout pass finds where each
+// column is, then the columns are unpacked in parallel.
+// DynDefs are not handled, so the message must not
+// define table entries; see BufrMessage.mayDefineTables.
+
+BufrParser(
+  int bugs,
+  BufrFile bfile,
+  BufrMessage bmsg,
+  DecodePlan plan,
+  BufrProjection projection,      // if not null, decode only these fxys
+  BitBufReader dataBuf,
+  BufrColumns columns,
+  ForkJoinPool pool)              // if not null, unpack in parallel
+throws BufrException
+{
+  this.bugs = bugs;
+  this.bfile = bfile;
+  this.bmsg = bmsg;
+  this.plan = plan;
+  this.defRoot = plan.defRoot;
+  this.dataBuf = dataBuf;
+  this.projection = projection;
+  if (projection != null) wanted = projection.getMask( plan);
+  this.columns = columns;
+
+  if (! bmsg.flagCompressed)
+    throwerr("columnar decode requires a compressed message", null);
+  numActive = bmsg.numSubsets;
+  subsetNum = -1;                   // used for err msgs
+  deferUnpack = pool != null;
+  runFlat( null);
+  if (deferUnpack) unpackColumns( pool);
+
+  if (bugs >= 5) prtln("BufrParser: columns: " + columns);
+} // end constructor
+
+
+
+
+
+
+// Sets up to parse the subsets of a message that is not compressed
+// one at a time, as they are requested by getSubset.
+// Once a subset is formatted the caller calls releaseSubset,
+// so only a few subsets are held in memory at once.
+// DynDefs are not handled, so the message must not
+// define table entries; see BufrMessage.mayDefineTables.
+
+BufrParser(
+  int bugs,
+  BufrFile bfile,
+  BufrMessage bmsg,
+  DecodePlan plan,
+  BufrProjection projection,      // if not null, decode only these fxys
+  BitBufReader dataBuf,
+  int[] keepSubsets)              // subsets not freed by releaseSubset
+throws BufrException
+{
+  this.bugs = bugs;
+  this.bfile = bfile;
+  this.bmsg = bmsg;
+  this.plan = plan;
+  this.defRoot = plan.defRoot;
+  this.dataBuf = dataBuf;
+  this.projection = projection;
+  if (projection != null) wanted = projection.getMask( plan);
+  this.keepSubsets = keepSubsets;
+
+  if (bmsg.flagCompressed)
+    throwerr("subset streaming requires a message not compressed", null);
+  numActive = 1;
+  rootItems = new BufrItem[ bmsg.numSubsets];
+  numParsed = 0;
+  if (bmsg.numSubsets == 0) checkDataEnd();
+} // end constructor
+
+
+
+
+
+
+// Parse all subsets of a message that is not compressed,
+// splitting them into ranges parsed in parallel using pool.
+// First scanSubsets finds where each subset starts;
+// see SubsetRangeTask.
+// DynDefs are not handled, so the message must not
+// define table entries; see BufrMessage.mayDefineTables.
+
+BufrParser(
+  int bugs,
+  BufrFile bfile,
+  BufrMessage bmsg,
+  DecodePlan plan,
+  BufrProjection projection,      // if not null, decode only these fxys
+  BitBufReader dataBuf,
+  ForkJoinPool pool)
+throws BufrException
+{
+  this.bugs = bugs;
+  this.bfile = bfile;
+  this.bmsg = bmsg;
+  this.plan = plan;
+  this.defRoot = plan.defRoot;
+  this.dataBuf = dataBuf;
+  this.projection = projection;
+  if (projection != null) wanted = projection.getMask( plan);
+
+  if (bmsg.flagCompressed)
+    throwerr("split parse requires a message not compressed", null);
+  numActive = 1;
+  rootItems = new BufrItem[ bmsg.numSubsets];
+
+  int svBitPos = dataBuf.getBitPos();
+  int[] startPos = scanSubsets();
+  if (startPos == null) {
+    // An operator carries over from one subset to the next,
+    // so a subset can't be parsed alone.  Parse them in order.
+    if (bugs >= 1) prtln("BufrParser: cannot split msg: " + bmsg.msgNum);
+    dataBuf.setBitPos( svBitPos);
+    resetOperators();
+    parseSubsetRange( 0, bmsg.numSubsets);
+  }
+  else {
+    int grain = Math.max( 1,
+      bmsg.numSubsets / (4 * pool.getParallelism()));
+    SubsetRangeTask task = new SubsetRangeTask(
+      this, startPos, 0, bmsg.numSubsets, grain);
+    pool.invoke( task);
+    if (task.error != null) throw task.error;
+    // dataBuf is left at the end of the data by scanSubsets.
+  }
+} // end constructor
+
+
+
+
+
+
+// Parse subsets startSub to endSub-1 of a message that is not
+// compressed, starting at the current dataBuf position,
+// into rootItems.  Used by SubsetRangeTask.
+
+BufrParser(
+  int bugs,
+  BufrFile bfile,
+  BufrMessage bmsg,
+  DecodePlan plan,
+  BufrProjection projection,      // if not null, decode only these fxys
+  BitBufReader dataBuf,
+  BufrItem[] rootItems,           // shared with the other ranges
+  int startSub,
+  int endSub)
+throws BufrException
+{
+  this.bugs = bugs;
+  this.bfile = bfile;
+  this.bmsg = bmsg;
+  this.plan = plan;
+  this.defRoot = plan.defRoot;
+  this.dataBuf = dataBuf;
+  this.projection = projection;
+  if (projection != null) wanted = projection.getMask( plan);
+
+  numActive = 1;
+  this.rootItems = rootItems;
+  parseSubsetRange( startSub, endSub);
+} // end constructor
+
+
+
+
+
+
+// Parse the data for all subsets using the DecodePlan,
+// passing each value to visitor instead of forming BufrItem trees.
+// DynDefs are not handled, so the message must not
+// define table entries; see BufrMessage.mayDefineTables.
+
+BufrParser(
+  int bugs,
+  BufrFile bfile,
+  BufrMessage bmsg,
+  DecodePlan plan,
+  BufrProjection projection,      // if not null, decode only these fxys
+  BitBufReader dataBuf,
+  BufrVisitor visitor)
+throws BufrException
+{
+  this.bugs = bugs;
+  this.bfile = bfile;
+  this.bmsg = bmsg;
+  this.plan = plan;
+  this.defRoot = plan.defRoot;
+  this.dataBuf = dataBuf;
+  this.projection = projection;
+  if (projection != null) wanted = projection.getMask( plan);
+  this.visitor = visitor;
+
+  if (bmsg.flagCompressed) {
+    // numActive is the num subsets we decompress concurrently.
+    numActive = bmsg.numSubsets;
+    subsetNum = -1;                 // used for err msgs
+    for (int isub = 0; isub < numActive; isub++) {
+      visitor.startSubset( isub);
+    }
+    runVisitor();
+    for (int isub = 0; isub < numActive; isub++) {
+      visitor.endSubset( isub);
+    }
+  }
+
+  else {   // else not compressed
+    numActive = 1;
+    for (int isub = 0; isub < bmsg.numSubsets; isub++) {
+      subsetNum = isub;                           // used for err msgs
+      visitor.startSubset( isub);
+      runVisitor();
+      visitor.endSubset( isub);
+    }
+  }
+} // end constructor
+
+
+
+
+
+
+// Parse the subsets that pass filter, skipping the rest.
+// First each subset is parsed with only the values in
+// filter.projection, and filter.matchesSubset decides if we keep it.
+// Then the kept subsets are parsed again in full, from the
+// saved bit position.  See keptSubsets.
+// For a compressed message all the subsets are parsed at once,
+// so if any is kept the whole message is parsed again.
+// DynDefs are not handled, so the message must not
+// define table entries; see BufrMessage.mayDefineTables.
+
+BufrParser(
+  int bugs,
+  BufrFile bfile,
+  BufrMessage bmsg,
+  DecodePlan plan,
+  BufrProjection projection,      // if not null, decode only these fxys
+  BitBufReader dataBuf,
+  SubsetFilter filter)
+throws BufrException
+{
+  this.bugs = bugs;
+  this.bfile = bfile;
+  this.bmsg = bmsg;
+  this.plan = plan;
+  this.defRoot = plan.defRoot;
+  this.dataBuf = dataBuf;
+  this.projection = projection;
+  if (projection != null) wanted = projection.getMask( plan);
+
+  boolean[] svWanted = wanted;
+  boolean[] filterWanted = filter.projection.getMask( plan);
+  keptSubsets = new boolean[ bmsg.numSubsets];
+  numKept = 0;
+
+  if (bmsg.flagCompressed) {
+    // numActive is the num subsets we decompress concurrently.
+    numActive = bmsg.numSubsets;
+    subsetNum = -1;                 // used for err msgs
+    int svBitPos = dataBuf.getBitPos();
+    wanted = filterWanted;
+    BufrItem[] filterItems = mkBufrItemsFxy( BufrMessage.CUSTOM_SUBSET_FXY);
+    runFlat( filterItems);
+    wanted = svWanted;
+    for (int isub = 0; isub < numActive; isub++) {
+      keptSubsets[isub] = filter.matchesSubset( bmsg, filterItems[isub]);
+      if (keptSubsets[isub]) numKept++;
+    }
+    if (numKept == 0) rootItems = new BufrItem[ numActive];
+    else {
+      dataBuf.setBitPos( svBitPos);
+      resetOperators();
+      rootItems = parseMain();        // CALL MAIN PARSER
+      for (int isub = 0; isub < numActive; isub++) {
+        if (! keptSubsets[isub]) rootItems[isub] = null;
+      }
+    }
+  }
+
+  else {   // else not compressed
+    numActive = 1;
+    rootItems = new BufrItem[ bmsg.numSubsets];
+    for (int isub = 0; isub < bmsg.numSubsets; isub++) {
+      subsetNum = isub;                           // used for err msgs
+      if (isBaseState()) {
+        int svBitPos = dataBuf.getBitPos();
+        wanted = filterWanted;
+        BufrItem[] filterItems = mkBufrItemsFxy(
+          BufrMessage.CUSTOM_SUBSET_FXY);
+        runFlat( filterItems);
+        wanted = svWanted;
+        keptSubsets[isub] = filter.matchesSubset( bmsg, filterItems[0]);
+        if (keptSubsets[isub]) {
+          dataBuf.setBitPos( svBitPos);
+          resetOperators();
+          rootItems[isub] = parseMain()[0];       // CALL MAIN PARSER
+        }
+      }
+      else {
+        // An operator carries over from the previous subset,
+        // so we can't parse this one twice.  Parse it in full.
+        BufrItem rootItem = parseMain()[0];       // CALL MAIN PARSER
+        keptSubsets[isub] = filter.matchesSubset( bmsg, rootItem);
+        if (keptSubsets[isub]) rootItems[isub] = rootItem;
+      }
+      if (keptSubsets[isub]) numKept++;
+    }
+  }
+  if (bugs >= 1) prtln("BufrParser: filter: msgNum: " + bmsg.msgNum
+    + "  numSubsets: " + bmsg.numSubsets + "  numKept: " + numKept);
+} // end constructor
+
+
+
+
+
+
+BufrItem[] parseMain()
+throws BufrException
+{
+  // Alloc array, size = numActive = num subsets
+  BufrItem[] bufrItems = mkBufrItemsFxy( BufrMessage.CUSTOM_SUBSET_FXY);
+
+  // Run the entire plan, forming a BufrItem tree under rootItem.
+  // With a projection, the wanted values are added directly
+  // under rootItem, without sequences or loops.
+  if (projection == null) runPlan( bufrItems);
+  else runFlat( bufrItems);
+
+  return bufrItems;
+} // end parseMain
+
+
+
+
+//========================================================================
+
+
+
+
+// Runs the DecodePlan: reads all data for one subset
+// (or all subsets if compressed) and adds the matching
+// BufrItem trees of data values under rootItems.
+//
+// The plan is flat, so instead of recursion we keep a stack
+// of the open sequences and replications.  For each open
+// replication we keep the loop state.
+
+void runPlan(
+  BufrItem[] rootItems)     // numActive items, one per subset
+throws BufrException
+{
+  int stackLen = plan.maxDepth + 1;
+  BufrItem[][] parentStack = new BufrItem[stackLen][]; // enclosing parents
+  BufrItem[][] repStack = new BufrItem[stackLen][];    // rep items, or null
+  int[] iterStack = new int[stackLen];                 // current iteration
+  int[] numItersStack = new int[stackLen];             // total iterations
+  int depth = 0;
+
+  BufrItem[] curParents = rootItems;    // new items are added here
+  int iop = 0;
+  while (iop < plan.numOps) {
+    int op = plan.ops[iop];
+    DefDesc def = plan.opDefs[iop];
+    if (bugs >= 5) prtln("runPlan: iop: " + iop
+      + "  op: " + DecodePlan.opNames[op]
+      + "  def.fxy: " + BufrUtil.formatFxy( def.fxy));
+    if (bugs >= 10) {
+      prtln("\nrunPlan dataBits: " + def + "\n"
+        + "  bitWidth: " + def.bitWidth + "\n"
+        + "  dataBuf: " + dataBuf.formatBytes( 24));
+    }
+
+    // 0 xx yyy: simple descriptor (table B), or associated field
+    if (op == DecodePlan.OP_VALUE) {
+      addSubs( curParents, handleValueOp( iop));
+      iop++;
+    }
+
+    // 2 xx yyy: operator
+    else if (op == DecodePlan.OP_OPER) {
+      addSubs( curParents, handleOperatorDef( iop));
+      iop++;
+    }
+
+    // 3 xx yyy: sequence (table D)
+    else if (op == DecodePlan.OP_SEQ) {
+      BufrItem[] seqItems = mkBufrItems( iop);
+      addSubs( curParents, seqItems);
+      parentStack[depth] = curParents;
+      repStack[depth] = null;
+      depth++;
+      curParents = seqItems;
+      iop++;
+    }
+
+    else if (op == DecodePlan.OP_SEQ_END) {
+      depth--;
+      curParents = parentStack[depth];
+      iop++;
+    }
+
+    // 1 xx yyy: replication
+    else if (op == DecodePlan.OP_REP) {
+      BufrItem[] repItems = mkBufrItems( iop);
+      int bodyStart = iop + 1;
+      int numIters = plan.opCount[iop];
+      if (numIters == 0) {          // If delayed replication ...
+        numIters = handleCountOp( iop + 1);
+        bodyStart++;
+      }
+      for (int isub = 0; isub < numActive; isub++) {
+        repItems[isub].numDescs = def.subDefs.length;
+        repItems[isub].numIters = numIters;
+      }
+      if (bugs >= 5) {
+        prtln("  runPlan rep:");
+        prtln("    numDescs: " + def.subDefs.length);
+        prtln("    numIters: " + numIters);
+      }
+      addSubs( curParents, repItems);
+
+      if (numIters == 0) iop = plan.opJump[iop] + 1;   // skip the loop
+      else {
+        parentStack[depth] = curParents;
+        repStack[depth] = repItems;
+        iterStack[depth] = 0;
+        numItersStack[depth] = numIters;
+        depth++;
+        curParents = mkIterItems( repItems, def, 0);
+        iop = bodyStart;
+      }
+    }
+
+    else if (op == DecodePlan.OP_REP_END) {
+      int iter = iterStack[depth-1] + 1;
+      if (iter < numItersStack[depth-1]) {     // start the next iteration
+        iterStack[depth-1] = iter;
+        curParents = mkIterItems( repStack[depth-1], def, iter);
+        iop = plan.opJump[iop];
+      }
+      else {                                   // loop is done
+        depth--;
+        curParents = parentStack[depth];
+        iop++;
+      }
+    }
+
+    else throwerr("unknown op: " + op, def);
+  } // while iop
+
+  if (depth != 0) throwerr("runPlan: depth != 0 at end", null);
+} // end runPlan
+
+
+
+//========================================================================
+
+
+// Handles a OP_VALUE: simple descriptor (table B) or associated field.
+// Returns numActive BufrItems, one for each subset.
+
+BufrItem[] handleValueOp(
+  int iop)                  // index in plan
+throws BufrException
+{
+  DefDesc def = plan.opDefs[iop];
+  BufrItem[] bufrItems = null;           // return value
+
+  // If we are defining new reference values ...
+  if (def.fval == 0 && modReferenceBits != 0) {
+    bufrItems = mkBufrItems( iop);
+    defineReference( def);
+  }
+  else {  // else simple descriptor
+    BufrValue[] bvalues = handleSimpleDef( iop);
+    bufrItems = bvalues;
+  }
+
+  if (bugs >= 5) {
+    for (int isub = 0; isub < numActive; isub++) {
+      prtln("handleValueOp: final item for isub " + isub
+        + ": " + bufrItems[isub]);
+    }
+  }
+  return bufrItems;
+} // end handleValueOp
+
+
+
+//========================================================================
+
+
+// Reads a new reference value for def, within 2 03 yyy.
+
+void defineReference(
+  DefDesc def)
+throws BufrException
+{
+  int refVal = dataBuf.getInt( modReferenceBits);
+  // See section 3.1.6.1 in the Guide to WMO Table Driven Code Forms,
+  // Table 3.1.6.1-1 BUFR Table C - Data Description Operators.
+  // Or the document "BUFR Table C - Data description operators
+  // (Edition 3, Version 13-07/11/2007)".
+  // The entry for 2 03 states:
+  //   "Negative reference values shall be represented by a
+  //   positive integer with the left-most bit (bit 1) set to 1."
+
+  int bitMask = 1 << (modReferenceBits - 1);
+  if ((refVal & bitMask) != 0) {   // If top order bit is set
+    // Use xor to turn off the high bit, then negate
+    refVal = -( refVal ^ bitMask);
+  }
+  referenceModList.add( new ReferenceMod( def.fxy, refVal));
+}
+
+
+
+//========================================================================
+
+
+// Handles a OP_COUNT: the count for a delayed replication.
+// Returns the num iterations.
+
+int handleCountOp(
+  int iop)                  // index in plan
+throws BufrException
+{
+  DefDesc countDef = plan.opDefs[iop];
+  if (plan.ops[iop] != DecodePlan.OP_COUNT)
+    throwerr("expected OP_COUNT", countDef);
+  if (bugs >= 5)
+    prtln("handleCountOp: delayed rep countDef: " + countDef);
+
+  // Must be the replication or repetition factor, 0 31 yyy
+  if (! countDef.testFxy( 0, 31, -1))
+    throwerr("invalid delayed replication/repetition factor", countDef);
+
+  BufrItem[] countItems = handleValueOp( iop);
+
+  // Insure all the counts are the same
+  BufrValue bval0 = (BufrValue) countItems[0];
+  int numIters = bval0.encodedValue;
+  for (int isub = 0; isub < countItems.length; isub++) {
+    BufrValue bval = (BufrValue) countItems[isub];
+    if (bval.encodedValue != numIters)
+      throwerr("countDef num iters mismatch", countDef);
+  }
+
+  if (bugs >= 5) {
+    prtln("  handleCountOp delayed rep:");
+    prtln("    countItems[0]: " + countItems[0]);
+    prtln("    numIters: " + numIters);
+  }
+  return numIters;
+} // end handleCountOp
+
+
+
+//========================================================================
+
+
+// Starts iteration iter of a replication: makes a new
+// repGroup item for each subset and adds it to repItems.
+// Returns the repGroup items, to which the iteration's items are added.
+
+BufrItem[] mkIterItems(
+  BufrItem[] repItems,
+  DefDesc def,              // the replication def
+  int iter)
+throws BufrException
+{
+  BufrItem[] iterItems = mkBufrItemsFxy( BufrMessage.CUSTOM_REPGROUP_FXY);
+  for (int isub = 0; isub < numActive; isub++) {
+    iterItems[isub].numDescs = def.subDefs.length;
+    iterItems[isub].iterNum = iter;
+  }
+  addSubs( repItems, iterItems);  // add each iterItem to corresp repItem
+  return iterItems;
+}
+
+
+
+//========================================================================
+
+
+
+
+// Runs the DecodePlan without forming sequence or loop items.
+// If columns is not null (compressed message), adds one column to
+// this.columns for each data field in section 4.
+// Otherwise adds the values directly under rootItems.
+// If projection is not null, the unwanted values are skipped.
+// If both are null, scanSubsets has set wanted to skip all values.
+// Like runPlan, but we only need to keep the loop counters.
+
+void runFlat(
+  BufrItem[] rootItems)     // numActive items, or null if columns
+                            // or scanSubsets
+throws BufrException
+{
+  int stackLen = plan.maxDepth + 1;
+  int[] iterStack = new int[stackLen];                 // current iteration
+  int[] numItersStack = new int[stackLen];             // total iterations
+  int depth = 0;
+
+  int iop = 0;
+  while (iop < plan.numOps) {
+    int op = plan.ops[iop];
+    DefDesc def = plan.opDefs[iop];
+    if (bugs >= 5) prtln("runFlat: iop: " + iop
+      + "  op: " + DecodePlan.opNames[op]
+      + "  def.fxy: " + BufrUtil.formatFxy( def.fxy));
+
+    // 0 xx yyy: simple descriptor (table B), or associated field
+    if (op == DecodePlan.OP_VALUE) {
+      // If we are defining new reference values ...
+      if (def.fval == 0 && modReferenceBits != 0) defineReference( def);
+      else if (wanted != null && ! wanted[iop]) skipValue( iop);
+      else if (columns != null) columns.addColumn( handleValueColumn( iop));
+      else addSubs( rootItems, handleSimpleDef( iop));
+      iop++;
+    }
+
+    // 2 xx yyy: operator
+    else if (op == DecodePlan.OP_OPER) {
+      applyOperator( def);
+      // 2 05 yyy: Signify character.  Insert data characters.
+      if (def.xval == 5) {
+        if (wanted != null && ! wanted[iop])
+          dataBuf.skipBits( 8 * def.yval * numActive);
+        else if (columns != null)
+          columns.addColumn( handleCharColumn( iop));
+        else addSubs( rootItems, handleCharDef( iop));
+      }
+      iop++;
+    }
+
+    // 3 xx yyy: sequence (table D).  Nothing to read.
+    else if (op == DecodePlan.OP_SEQ || op == DecodePlan.OP_SEQ_END) {
+      iop++;
+    }
+
+    // 1 xx yyy: replication
+    else if (op == DecodePlan.OP_REP) {
+      int bodyStart = iop + 1;
+      int numIters = plan.opCount[iop];
+      if (numIters == 0) {          // If delayed replication ...
+        if (columns != null) numIters = handleCountColumn( iop + 1);
+        else if (rootItems == null) numIters = scanCountOp( iop + 1);
+        else numIters = handleCountOp( iop + 1);
+        bodyStart++;
+      }
+      if (numIters == 0) iop = plan.opJump[iop] + 1;   // skip the loop
+      else {
+        iterStack[depth] = 0;
+        numItersStack[depth] = numIters;
+        depth++;
+        iop = bodyStart;
+      }
+    }
+
+    else if (op == DecodePlan.OP_REP_END) {
+      int iter = iterStack[depth-1] + 1;
+      if (iter < numItersStack[depth-1]) {     // start the next iteration
+        iterStack[depth-1] = iter;
+        iop = plan.opJump[iop];
+      }
+      else {                                   // loop is done
+        depth--;
+        iop++;
+      }
+    }
+
+    else throwerr("unknown op: " + op, def);
+  } // while iop
+
+  if (depth != 0) throwerr("runFlat: depth != 0 at end", null);
+} // end runFlat
+
+
+
+//========================================================================
+
+
+// Parses subsets startSub to endSub-1 of a message that
+// is not compressed, into rootItems.
+
+void parseSubsetRange(
+  int startSub,
+  int endSub)
+throws BufrException
+{
+  for (int isub = startSub; isub < endSub; isub++) {
+    subsetNum = isub;                           // used for err msgs
+    BufrItem[] tempRootItems = parseMain();     // CALL MAIN PARSER
+    if (tempRootItems.length != 1)
+      throwerr("invalid len for tempRootItems: " + tempRootItems.length,
+        null);
+    rootItems[isub] = tempRootItems[0];
+  }
+}
+
+
+
+//========================================================================
+
+
+// Pre-scan for the split constructor.
+// Runs the plan for each subset in order, skipping all the values,
+// and returns the starting bit position of each subset,
+// followed by the end position.  Only the delayed replication
+// counts and 2 03 reference values are read, and no BufrItems
+// are made.
+// Returns null if an operator is still in effect at the start
+// of a subset, since then the subset can't be parsed alone.
+
+int[] scanSubsets()
+throws BufrException
+{
+  boolean[] svWanted = wanted;
+  wanted = new boolean[ plan.numOps];         // all false: skip all
+  int[] startPos = new int[ bmsg.numSubsets + 1];
+  for (int isub = 0; isub < bmsg.numSubsets; isub++) {
+    if (! isBaseState()) {
+      startPos = null;
+      break;
+    }
+    startPos[isub] = dataBuf.getBitPos();
+    subsetNum = isub;                           // used for err msgs
+    runFlat( null);
+  }
+  if (startPos != null) startPos[bmsg.numSubsets] = dataBuf.getBitPos();
+  wanted = svWanted;
+  return startPos;
+}
+
+
+
+// Returns true if no 2 01, 2 02, or 2 03 operator is in effect.
+
+boolean isBaseState() {
+  return modWidth == 0
+    && modScale == 0
+    && modReferenceBits == 0
+    && referenceModList.size() == 0;
+}
+
+
+
+// Cancels all 2 01, 2 02, and 2 03 operators.
+
+void resetOperators() {
+  modWidth = 0;
+  modScale = 0;
+  modReferenceBits = 0;
+  referenceModList.clear();
+}
+
+
+
+// Reads a delayed replication count for scanSubsets,
+// without making BufrValues.  Returns the same count
+// as handleCountOp for a message that is not compressed.
+
+int scanCountOp(
+  int iop)                  // index in plan
+throws BufrException
+{
+  DefDesc countDef = plan.opDefs[iop];
+  if (plan.ops[iop] != DecodePlan.OP_COUNT)
+    throwerr("expected OP_COUNT", countDef);
+  if (! countDef.testFxy( 0, 31, -1))
+    throwerr("invalid delayed replication/repetition factor", countDef);
+  int numBits = plan.opWidth[iop] + modWidth;
+  int numIters = 0;
+  if (numBits > 0) numIters = dataBuf.getInt( numBits);
+  return numIters;
+}
+
+
+
+//========================================================================
+
+
+/**
+ * Returns the root BufrItem for subset isub.
+ * If we are parsing on demand (keepSubsets is not null), parses
+ * the subsets up to isub first.  If that fails, calls
+ * bmsg.handleParseError and returns null; then bmsg.parser is null.
+ * If isub was dropped by a SubsetFilter, returns null.
+ */
+
+BufrItem getSubset(
+  int isub)
+throws BufrException
+{
+  if (! isKept( isub)) return null;
+  if (keepSubsets != null) {
+    try {
+      while (numParsed <= isub && numParsed < rootItems.length) {
+        parseNextSubset();
+      }
+    }
+    catch( BufrException exc) {
+      bmsg.handleParseError( exc);
+      return null;
+    }
+  }
+  BufrItem res = rootItems[isub];
+  if (res == null) throwerr("getSubset: subset was released: " + isub, null);
+  return res;
+}
+
+
+
+// Parses the next subset into rootItems[numParsed].
+
+void parseNextSubset()
+throws BufrException
+{
+  subsetNum = numParsed;                      // used for err msgs
+  BufrItem[] tempRootItems = parseMain();     // CALL MAIN PARSER
+  if (tempRootItems.length != 1)
+    throwerr("invalid len for tempRootItems: " + tempRootItems.length,
+      null);
+  rootItems[numParsed] = tempRootItems[0];
+  numParsed++;
+  if (numParsed == rootItems.length) checkDataEnd();
+}
+
+
+
+// Insure we have < 2 bytes remaining at the end
+
+void checkDataEnd()
+throws BufrException
+{
+  int remLen = dataBuf.getRemainBitLen();
+  if (remLen >= 16) throwerr("remLen >= 16", null);
+}
+
+
+
+/**
+ * Returns true unless subset isub was dropped by a SubsetFilter.
+ */
+
+boolean isKept(
+  int isub)
+{
+  return keptSubsets == null || keptSubsets[isub];
+}
+
+
+
+/**
+ * Frees subset isub, after it has been formatted, if we are
+ * parsing on demand and isub is not in keepSubsets.
+ */
+
+void releaseSubset(
+  int isub)
+{
+  if (keepSubsets != null) {
+    boolean keepIt = false;
+    for (int ksub : keepSubsets) {
+      if (ksub == isub) keepIt = true;
+    }
+    if (! keepIt) rootItems[isub] = null;
+  }
+}
+
+
+
+//========================================================================
+
+
+// Runs the DecodePlan, passing the data to visitor.
+// Like runPlan, but we keep only the loop state, and for each
+// open sequence or replication its def, for the end calls.
+
+void runVisitor()
+throws BufrException
+{
+  int stackLen = plan.maxDepth + 1;
+  DefDesc[] defStack = new DefDesc[stackLen];          // open seq or rep
+  int[] iterStack = new int[stackLen];                 // current iteration
+  int[] numItersStack = new int[stackLen];             // total iterations
+  int depth = 0;
+
+  int iop = 0;
+  while (iop < plan.numOps) {
+    int op = plan.ops[iop];
+    DefDesc def = plan.opDefs[iop];
+    if (bugs >= 5) prtln("runVisitor: iop: " + iop
+      + "  op: " + DecodePlan.opNames[op]
+      + "  def.fxy: " + BufrUtil.formatFxy( def.fxy));
+
+    // 0 xx yyy: simple descriptor (table B), or associated field
+    if (op == DecodePlan.OP_VALUE) {
+      // If we are defining new reference values ...
+      if (def.fval == 0 && modReferenceBits != 0) defineReference( def);
+      else if (wanted != null && ! wanted[iop]) skipValue( iop);
+      else visitValueOp( iop);
+      iop++;
+    }
+
+    // 2 xx yyy: operator
+    else if (op == DecodePlan.OP_OPER) {
+      applyOperator( def);
+      // 2 05 yyy: Signify character.  Insert data characters.
+      if (def.xval == 5) {
+        if (wanted != null && ! wanted[iop])
+          dataBuf.skipBits( 8 * def.yval * numActive);
+        else visitCharDef( def);
+      }
+      iop++;
+    }
+
+    // 3 xx yyy: sequence (table D)
+    else if (op == DecodePlan.OP_SEQ) {
+      for (int isub = 0; isub < numActive; isub++) {
+        visitor.startSequence( getSubsetNum( isub), def);
+      }
+      defStack[depth] = def;
+      depth++;
+      iop++;
+    }
+
+    else if (op == DecodePlan.OP_SEQ_END) {
+      depth--;
+      for (int isub = 0; isub < numActive; isub++) {
+        visitor.endSequence( getSubsetNum( isub), defStack[depth]);
+      }
+      iop++;
+    }
+
+    // 1 xx yyy: replication
+    else if (op == DecodePlan.OP_REP) {
+      int bodyStart = iop + 1;
+      int numIters = plan.opCount[iop];
+      if (numIters == 0) {          // If delayed replication ...
+        numIters = handleCountOp( iop + 1);
+        bodyStart++;
+      }
+      for (int isub = 0; isub < numActive; isub++) {
+        visitor.startReplication( getSubsetNum( isub), def, numIters);
+      }
+
+      if (numIters == 0) {                              // skip the loop
+        for (int isub = 0; isub < numActive; isub++) {
+          visitor.endReplication( getSubsetNum( isub), def);
+        }
+        iop = plan.opJump[iop] + 1;
+      }
+      else {
+        defStack[depth] = def;
+        iterStack[depth] = 0;
+        numItersStack[depth] = numIters;
+        depth++;
+        for (int isub = 0; isub < numActive; isub++) {
+          visitor.startIteration( getSubsetNum( isub), def, 0);
+        }
+        iop = bodyStart;
+      }
+    }
+
+    else if (op == DecodePlan.OP_REP_END) {
+      DefDesc repDef = defStack[depth-1];
+      int iter = iterStack[depth-1] + 1;
+      if (iter < numItersStack[depth-1]) {     // start the next iteration
+        iterStack[depth-1] = iter;
+        for (int isub = 0; isub < numActive; isub++) {
+          visitor.startIteration( getSubsetNum( isub), repDef, iter);
+        }
+        iop = plan.opJump[iop];
+      }
+      else {                                   // loop is done
+        depth--;
+        for (int isub = 0; isub < numActive; isub++) {
+          visitor.endReplication( getSubsetNum( isub), repDef);
+        }
+        iop++;
+      }
+    }
+
+    else throwerr("unknown op: " + op, def);
+  } // while iop
+
+  if (depth != 0) throwerr("runVisitor: depth != 0 at end", null);
+} // end runVisitor
+
+
+
+//========================================================================
+
+
+// Returns the subset number of the isub'th active subset.
+
+int getSubsetNum(
+  int isub)
+{
+  int res = isub;
+  if (! bmsg.flagCompressed) res = subsetNum;
+  return res;
+}
+
+
+
+//========================================================================
+
+
+// Handles a OP_VALUE for the visitor.
+// Like handleSimpleDef, but passes the values to visitor.
+
+void visitValueOp(
+  int iop)                  // index in plan
+throws BufrException
+{
+  DefDesc def = plan.opDefs[iop];
+  int kind = plan.opKind[iop];
+
+  if (bmsg.flagCompressed) {
+    // Get bitWidth.  Add in modWidth, but not for associated fields.
+    // See section 3.1.5 in the Guide to WMO Table Driven Code Forms.
+    int numBits = plan.opWidth[iop];
+    if (def.fxy != BufrMessage.CUSTOM_ASSOCFLD_FXY) {
+      numBits += modWidth;   // Get bitWidth
+    }
+    int compressMinEnc = dataBuf.getInt( numBits);
+    int compressBitLen = dataBuf.getInt( 6);
+    if (compressBitLen > numBits)
+      throwerr("visitValueOp: compressBitLen > numBits", def);
+
+    if (BufrUtil.isAllOnes( numBits, compressMinEnc)) {
+      // All missing
+      if (compressBitLen != 0)
+        throwerr("missing compressed has bitLen != 0", def);
+      for (int isub = 0; isub < numActive; isub++) {
+        if (kind == DecodePlan.KIND_STRING)
+          visitor.stringValue( isub, def, null);
+        else if (kind == DecodePlan.KIND_NUMERIC)
+          visitor.numericValue( isub, def, Double.NaN, true);
+        else visitor.codeValue( isub, def, 0, true, null);
+      }
+    }
+    else {
+      for (int isub = 0; isub < numActive; isub++) {
+        visitValueSingle( isub, iop, compressMinEnc, compressBitLen);
+      }
+    }
+  }
+
+  else {
+    visitValueSingle(
+      subsetNum,
+      iop,
+      0,     // compressMinEnc
+      plan.opWidth[iop] + modWidth);   // numBits
+  }
+}
+
+
+
+//========================================================================
+
+
+// Reads a single value and passes it to visitor.
+// Like handleSimpleDefSingle, but makes no BufrValue.
+
+void visitValueSingle(
+  int isub,                 // subset number
+  int iop,                  // index in plan
+  int compressMinEnc,
+  int numBits)
+throws BufrException
+{
+  DefDesc def = plan.opDefs[iop];
+  int kind = plan.opKind[iop];
+
+  if (kind == DecodePlan.KIND_STRING) {
+    visitor.stringValue( isub, def, dataBuf.getTrimString( numBits));
+  }
 
+  else if (kind == DecodePlan.KIND_NUMERIC) {
+    int scale = plan.opScale[iop] + modScale;
+    int ref = plan.opRef[iop];
+    if (referenceModList.size() > 0) {
+      ReferenceMod rmod = getReferenceMod( def.fxy);
+      if (rmod != null) ref = rmod.refVal;
+    }
 
+    int encval = 0;
+    if (numBits > 0) encval = dataBuf.getInt( numBits);
+    if (BufrUtil.isAllOnes( numBits, encval))
+      visitor.numericValue( isub, def, Double.NaN, true);
+    else {
+      // trueval = (encoded + reference) * 10^(-scale)
+      // See handleSimpleDefSingle.
+      int ival = compressMinEnc + encval;
+      visitor.numericValue( isub, def,
+        (ival + ref) * Math.pow( 10, -scale), false);
+    }
+  }
 
-int bugs;
-BufrFile bfile;
-BufrMessage bmsg;
-DefDesc defRoot;        // root of the DefDesc tree
-BufrItem[] rootItems;   // roots of the BufrItem trees.  One per subset.
-BitBufReader dataBuf;
+  else if (kind == DecodePlan.KIND_BITFLAG || kind == DecodePlan.KIND_CODE) {
+    int ikey = 0;
+    if (numBits > 0) ikey = dataBuf.getInt( numBits);
+    if (BufrUtil.isAllOnes( numBits, ikey))
+      visitor.codeValue( isub, def, ikey, true, null);
+    else {
+      ikey += compressMinEnc;
+      StatusValue sv = bmsg.overlay.baseCodeFlag.getStatusValue( // never null
+        def.fxy, kind == DecodePlan.KIND_BITFLAG, ikey, plan.opWidth[iop],
+        bmsg.overlay.baseCommon);
+      // Some code tables give a missing status for other values.
+      boolean missing = sv.sstatus == BufrValue.BST_MISSING;
+      visitor.codeValue( isub, def, ikey, missing,
+        missing ? null : sv.value);
+    }
+  }
 
-int numActive;          // Num subsets we handle at once.
-                        // If compressed, equals bmsg.numSubsets.
-                        // Else is 1.
+  else throwerr("unknown type", def);
+}
 
-int subsetNum;          // Used for err msgs
-                        // If compressed, is -1.
-                        // Else is current subset number.
 
-// Maintain changed width, scale, or reference for
-// the 2 xx yyy descriptors.
-int modWidth = 0;             // delta num bits
-int modScale = 0;             // delta scale
-int modReferenceBits = 0;     // new reference len
 
-// List of descriptors and their modified reference values
-LinkedList<ReferenceMod> referenceModList = new LinkedList<ReferenceMod>();
+//========================================================================
 
 
+// Handles 2 05 yyy, signify character, for the visitor.
 
+void visitCharDef(
+  DefDesc def)
+throws BufrException
+{
+  int numBytes = def.yval;
+  for (int isub = 0; isub < numActive; isub++) {
+    visitor.stringValue( getSubsetNum( isub), def,
+      dataBuf.getTrimString( 8 * numBytes));
+  }
+}
 
 
 
-// Parse the entire DefDesc tree for all subsets,
-// forming new BufrItem trees in this.rootItems
-// Calls BufrParser.parseMain, handles DynDefs, etc.
+//========================================================================
 
-BufrParser(
-  int bugs,
-  BufrFile bfile,
-  BufrMessage bmsg,
-  DefDesc defRoot,
-  BitBufReader dataBuf)
+
+/**
+ * Makes the same visitor calls for the BufrItem trees in
+ * parser.rootItems as a BufrParser with a visitor would.
+ * Used for messages that need the trees for DynDefs.
+ * The calls are made one subset at a time, even if the message
+ * is compressed.
+ */
+
+static void visitTree(
+  BufrVisitor visitor,
+  BufrParser parser)
 throws BufrException
 {
-  this.bugs = bugs;
-  this.bfile = bfile;
-  this.bmsg = bmsg;
-  this.defRoot = defRoot;
-  this.dataBuf = dataBuf;
-
-  if (bmsg.flagCompressed) {
-    // numActive is the num subsets we decompress concurrently.
-    numActive = bmsg.numSubsets;
-    subsetNum = -1;                 // used for err msgs
-    rootItems = parseMain();        // CALL MAIN PARSER
+  for (int isub = 0; isub < parser.rootItems.length; isub++) {
+    visitor.startSubset( isub);
+    for (BufrItem subItem : parser.rootItems[isub].subItems) {
+      visitItem( visitor, isub, subItem);
+    }
+    visitor.endSubset( isub);
   }
+}
 
-  else {   // else not compressed
-    // numActive is the num subsets we decompress concurrently.
-    numActive = 1;
-    rootItems = new BufrItem[ bmsg.numSubsets];
-    for (int isub = 0; isub < bmsg.numSubsets; isub++) {
-      subsetNum = isub;                           // used for err msgs
-      BufrItem[] tempRootItems = parseMain();     // CALL MAIN PARSER
-      if (tempRootItems.length != 1)
-        throwerr("invalid len for tempRootItems: " + tempRootItems.length,
-          null);
-      rootItems[isub] = tempRootItems[0];
+
+
+// Makes the visitor calls for bitem and its subItems.
+
+static void visitItem(
+  BufrVisitor visitor,
+  int isub,
+  BufrItem bitem)
+throws BufrException
+{
+  DefDesc def = bitem.def;
+  if (def.fval == 3) {                                   // sequence
+    visitor.startSequence( isub, def);
+    for (BufrItem subItem : bitem.subItems) {
+      visitItem( visitor, isub, subItem);
     }
+    visitor.endSequence( isub, def);
   }
 
-  if (bugs >= 10) {
-    for (int isub = 0; isub < rootItems.length; isub++) {
-      prtln("\n===== Data contents before handleDynDefTree, for subset "
-        + isub + ":");
-      prtln("");
-      prtln( BufrFormatter.formatBufrItemTree(
-        false, rootItems[isub], bmsg, isub));
-      prtln("");
+  else if (def.fval == 1) {                              // replication
+    visitor.startReplication( isub, def, bitem.numIters);
+    for (int iter = 0; iter < bitem.subItems.length; iter++) {
+      visitor.startIteration( isub, def, iter);
+      for (BufrItem subItem : bitem.subItems[iter].subItems) {
+        visitItem( visitor, isub, subItem);
+      }
     }
+    visitor.endReplication( isub, def);
   }
 
-  // Check for and handle dynDefs - dynamic definitions
-  // Traverse the entire BufrItems tree.
-  for (int isub = 0; isub < rootItems.length; isub++) {
-    BufrItem root = rootItems[isub];
-    int idef = 0;
-    while (idef < root.subItems.length) {
-      int incr = DynDefs.handleDynDefTree( bugs, bfile, bmsg, root, idef);
-      idef += incr;
+  // Operators and reference definitions are not BufrValues.
+  // The exception is 2 05 yyy, signify character.
+  else if (bitem instanceof BufrValue) {
+    BufrValue bvalue = (BufrValue) bitem;
+    boolean missing = bvalue.bstatus == BufrValue.BST_MISSING;
+    if (def.fval == 2 || def.isString)
+      visitor.stringValue( isub, def, bvalue.stringValue);
+    else if (def.isNumeric) {
+      if (missing) visitor.numericValue( isub, def, Double.NaN, true);
+      else visitor.numericValue( isub, def, bvalue.doubleValue, false);
     }
+    else if (def.isBitFlag || def.isCode) {
+      visitor.codeValue( isub, def, bvalue.encodedValue, missing,
+        missing ? null : bvalue.codeFlagMeaning);
+    }
+    else throw new BufrException(
+      "BufrParser: visitItem: unknown BufrValue: " + bvalue);
   }
+}
 
-} // end constructor
 
 
+//========================================================================
+
+
+// Skips the data for a OP_VALUE that is not wanted:
+// advances dataBuf by the value's width, for all subsets.
+// Makes no objects and does no code/flag lookups.
+
+void skipValue(
+  int iop)                  // index in plan
+throws BufrException
+{
+  DefDesc def = plan.opDefs[iop];
+  if (bmsg.flagCompressed) {
+    // See handleSimpleDef
+    int numBits = plan.opWidth[iop];
+    if (def.fxy != BufrMessage.CUSTOM_ASSOCFLD_FXY) {
+      numBits += modWidth;   // Get bitWidth
+    }
+    dataBuf.skipBits( numBits);                 // compressMinEnc
+    int compressBitLen = dataBuf.getInt( 6);
+    if (compressBitLen > numBits)
+      throwerr("skipValue: compressBitLen > numBits", def);
+    dataBuf.skipBits( compressBitLen * numActive);
+  }
+  else dataBuf.skipBits( plan.opWidth[iop] + modWidth);
+}
+
 
 
+//========================================================================
 
 
-BufrItem[] parseMain()
+// Handles a OP_VALUE for a compressed message.
+// Returns the column of values for all subsets.
+//
+// Compressed layout, for each field:
+//   minEnc       numBits
+//   bitLen       6 bits
+//   for each subset: increment, bitLen bits.
+//     All ones means missing.
+// If minEnc is all ones, all subsets are missing and bitLen is 0.
+
+BufrColumns.Column handleValueColumn(
+  int iop)                  // index in plan
 throws BufrException
 {
-  // Alloc array, size = numActive = num subsets
-  BufrItem[] bufrItems = mkBufrItemsFxy( BufrMessage.CUSTOM_SUBSET_FXY);
+  DefDesc def = plan.opDefs[iop];
+  if (def.fval == 0 && modReferenceBits != 0)
+    throwerr("handleValueColumn: within 2 03 yyy reference definitions", def);
+
+  int kind = plan.opKind[iop];
+  BufrColumns.Column col = new BufrColumns.Column(
+    def, plan.opDefIds[iop], kind, numActive);
+
+  // Get bitWidth.  Add in modWidth, but not for associated fields.
+  // See section 3.1.5 in the Guide to WMO Table Driven Code Forms.
+  int numBits = plan.opWidth[iop];
+  if (def.fxy != BufrMessage.CUSTOM_ASSOCFLD_FXY) {
+    numBits += modWidth;   // Get bitWidth
+  }
+  col.numBits = numBits;
+  col.minEnc = dataBuf.getInt( numBits);
+  col.bitLen = dataBuf.getInt( 6);
+  if (col.bitLen > numBits)
+    throwerr("handleValueColumn: compressBitLen > numBits", def);
+  if (bugs >= 5) prtln("handleValueColumn: " + col);
+
+  if (kind == DecodePlan.KIND_NUMERIC) {
+    col.scale = plan.opScale[iop] + modScale;
+    col.reference = plan.opRef[iop];
+    if (referenceModList.size() > 0) {
+      ReferenceMod rmod = getReferenceMod( def.fxy);
+      if (rmod != null) col.reference = rmod.refVal;
+    }
+  }
+  else if (kind != DecodePlan.KIND_STRING
+    && kind != DecodePlan.KIND_CODE
+    && kind != DecodePlan.KIND_BITFLAG)
+  {
+    throwerr("unknown type", def);
+  }
 
-  // Parse the entire DefDesc tree, forming a BufrItem tree under rootItem.
-  for (DefDesc def : defRoot.subDefs) {
-    if (bugs >= 5) prtln("BufrParser.const: def.fxy: "
-      + BufrUtil.formatFxy( def.fxy));
-    // Parse DefDesc subtree, getting back subtrees.
-    BufrItem[] subItems = handleDef( def);
-    addSubs( bufrItems, subItems);  // add each subItem to corresp bufrItem
+  if (BufrUtil.isAllOnes( numBits, col.minEnc)) {
+    // All missing
+    if (col.bitLen != 0)
+      throwerr("missing compressed has bitLen != 0", def);
+    for (int isub = 0; isub < numActive; isub++) {
+      col.setMissing( isub);
+    }
+    if (kind == DecodePlan.KIND_STRING) col.strings = new String[ numActive];
+    else col.encoded = new int[ numActive];
   }
 
-  return bufrItems;
-} // end parseMain
+  else if (deferUnpack) {
+    // Leave the increments for unpackColumns
+    col.dataPos = dataBuf.getBitPos();
+    dataBuf.skipBits( col.bitLen * numActive);
+  }
 
+  else unpackColumn( col, dataBuf);
+  return col;
+} // end handleValueColumn
 
 
 
 //========================================================================
 
 
+// Unpacks the increments of col, for all subsets, from rdr.
+// The column header (minEnc, bitLen, scale, ...) is already set.
+// Called in the worker threads by ColumnRangeTask, so this
+// only changes col and rdr.
 
-
-// Returns numActive BufrItems, each representing a subtree
-// for one subset.
-// Given a DefDesc subtree, read all data for the subtree
-// and construct the matching BufrItem tree(s) of data values.
-
-BufrItem[] handleDef(
-  DefDesc def)
+void unpackColumn(
+  BufrColumns.Column col,
+  BitBufReader rdr)
 throws BufrException
 {
-  if (bugs >= 5) prtln("handleDef: entry: def.fxy: "
-    + BufrUtil.formatFxy( def.fxy));
-  BufrItem[] bufrItems = null;           // return value
+  int kind = col.kind;
+  if (col.def.fval == 2) {       // 2 05 yyy: signify character
+    col.strings = new String[ numActive];
+    for (int isub = 0; isub < numActive; isub++) {
+      col.strings[isub] = rdr.getTrimString( col.numBits);
+    }
+  }
 
-  if (bugs >= 10) {
-    prtln("\nhandleDef dataBits: " + def + "\n"
-      + "  bitWidth: " + def.bitWidth + "\n"
-      + "  dataBuf: " + dataBuf.formatBytes( 24));
+  else if (kind == DecodePlan.KIND_STRING) {
+    col.strings = new String[ numActive];
+    for (int isub = 0; isub < numActive; isub++) {
+      col.strings[isub] = rdr.getTrimString( col.bitLen);
+    }
   }
 
-  // 0 xx yyy: simple descriptor (table B)
-  if (def.fval == 0) {
+  else {
+    // Unpack all the increments at once, then add minEnc.
+    // If bitLen == 0, all the values are minEnc.
+    int[] encoded = new int[ numActive];
+    rdr.getInts( col.bitLen, encoded, 0, numActive);
+    for (int isub = 0; isub < numActive; isub++) {
+      if (BufrUtil.isAllOnes( col.bitLen, encoded[isub]))
+        col.setMissing( isub);
+      else encoded[isub] += col.minEnc;
+    }
+    col.encoded = encoded;
+  }
+  col.dataPos = -1;
+}
 
-    // If we are defining new reference values ...
-    if (modReferenceBits != 0) {
-      bufrItems = mkBufrItems( def);
 
-      int refVal = dataBuf.getInt( modReferenceBits);
-      // See section 3.1.6.1 in the Guide to WMO Table Driven Code Forms,
-      // Table 3.1.6.1-1 BUFR Table C - Data Description Operators.
-      // Or the document "BUFR Table C - Data description operators
-      // (Edition 3, Version 13-07/11/2007)".
-      // The entry for 2 03 states:
-      //   "Negative reference values shall be represented by a
-      //   positive integer with the left-most bit (bit 1) set to 1."
 
-      int bitMask = 1 << (modReferenceBits - 1);
-      if ((refVal & bitMask) != 0) {   // If top order bit is set
-        // Use xor to turn off the high bit, then negate
-        refVal = -( refVal ^ bitMask);
-      }
-      referenceModList.add( new ReferenceMod( def.fxy, refVal));
-    }
-    else {  // else simple descriptor
-      BufrValue[] bvalues = handleSimpleDef( def);
-      bufrItems = bvalues;
-    }
-  } // if fval == 0
+//========================================================================
 
 
-  // 1 xx yyy: Replication or repetition
-  else if (def.fval == 1) {
-    if (bugs >= 10) prtln("handleDef: beg rep fxy: "
-      + BufrUtil.formatFxy( def.fxy));
-    bufrItems = handleRepDef( def);
-  }
+// After the layout pass, unpacks all the columns that
+// were left packed, in parallel using pool.
+// The columns all have numActive values, so each task
+// gets about COLUMN_GRAIN_VALUES values.
 
+void unpackColumns(
+  ForkJoinPool pool)
+throws BufrException
+{
+  int grain = Math.max( 1, COLUMN_GRAIN_VALUES / Math.max( 1, numActive));
+  ColumnRangeTask task = new ColumnRangeTask(
+    this, 0, columns.numColumns, grain);
+  pool.invoke( task);
+  if (task.error != null) throw task.error;
+}
 
-  // 2 xx yyy: operator
-  else if (def.fval == 2) {
-    if (bugs >= 10) prtln("handleDef: beg oper fxy: "
-      + BufrUtil.formatFxy( def.fxy));
-    bufrItems = handleOperatorDef( def);
-  }
 
-  // 3 xx yyy: sequence (table D)
-  else if (def.fval == 3) {
-    if (bugs >= 5) prtln("table d: " + BufrUtil.formatFxy( def.fxy));
-    bufrItems = handleSequenceDef( def);
-  }
 
-  // Custom: call handleSimpleDef for associated field
-  else if (def.fxy == BufrMessage.CUSTOM_ASSOCFLD_FXY) {
-    BufrValue[] bvalues = handleSimpleDef( def);
-    bufrItems = bvalues;
-  }
+//========================================================================
 
-  else throwerr("unknown fval", def);
 
-  if (bugs >= 5) {
-    for (int isub = 0; isub < numActive; isub++) {
-      prtln("handleDef: final item for isub " + isub + ": " + bufrItems[isub]);
-    }
+// Handles a OP_COUNT for a compressed message: the count
+// for a delayed replication.  Adds the count's column, if wanted.
+// Returns the num iterations.
+
+int handleCountColumn(
+  int iop)                  // index in plan
+throws BufrException
+{
+  DefDesc countDef = plan.opDefs[iop];
+  if (plan.ops[iop] != DecodePlan.OP_COUNT)
+    throwerr("expected OP_COUNT", countDef);
+
+  // Must be the replication or repetition factor, 0 31 yyy
+  if (! countDef.testFxy( 0, 31, -1))
+    throwerr("invalid delayed replication/repetition factor", countDef);
+
+  if (modReferenceBits != 0)
+    throwerr("countDef within 2 03 yyy reference definitions", countDef);
+  BufrColumns.Column col = handleValueColumn( iop);
+  // We need the counts now, even in the layout pass.
+  if (col.dataPos >= 0) unpackColumn( col, dataBuf.copyAt( col.dataPos));
+  if (col.encoded == null) throwerr("invalid countDef", countDef);
+
+  // Insure all the counts are the same
+  int numIters = col.encoded[0];
+  for (int isub = 0; isub < numActive; isub++) {
+    if (col.encoded[isub] != numIters)
+      throwerr("countDef num iters mismatch", countDef);
   }
+  if (wanted == null || wanted[iop]) columns.addColumn( col);
 
-  return bufrItems;
-} // end handleDef
+  if (bugs >= 5) prtln("handleCountColumn: numIters: " + numIters);
+  return numIters;
+} // end handleCountColumn
+
+
+
+//========================================================================
+
+
+// Handles 2 05 yyy, signify character, for a compressed message.
+// Returns a column of strings, one for each subset.
+
+BufrColumns.Column handleCharColumn(
+  int iop)                  // index in plan
+throws BufrException
+{
+  DefDesc def = plan.opDefs[iop];
+  BufrColumns.Column col = new BufrColumns.Column(
+    def, plan.opDefIds[iop], DecodePlan.KIND_STRING, numActive);
+  int numBytes = def.yval;
+  col.numBits = 8 * numBytes;
+  if (deferUnpack) {
+    // Leave the strings for unpackColumns
+    col.dataPos = dataBuf.getBitPos();
+    dataBuf.skipBits( col.numBits * numActive);
+  }
+  else unpackColumn( col, dataBuf);
+  return col;
+}
 
 
 
@@ -297,16 +1794,17 @@ throws BufrException
 // Returns numActive BufrValues, one for each subset.
 
 BufrValue[] handleSimpleDef(
-  DefDesc def)
+  int iop)                  // index in plan
 throws BufrException
 {
+  DefDesc def = plan.opDefs[iop];
   BufrValue[] bufrValues = new BufrValue[ numActive];
 
   if (bmsg.flagCompressed) {
 
     // Get bitWidth.  Add in modWidth, but not for associated fields.
     // See section 3.1.5 in the Guide to WMO Table Driven Code Forms.
-    int numBits = def.bitWidth;
+    int numBits = plan.opWidth[iop];
     if (def.fxy != BufrMessage.CUSTOM_ASSOCFLD_FXY) {
       numBits += modWidth;   // Get bitWidth
     }
@@ -330,7 +1828,7 @@ throws BufrException
           + "  All vals are missing");
         if (compressBitLen != 0)
           throwerr("missing compressed has bitLen != 0", def);
-        bufrValues[isub] = new BufrValue( def);
+        bufrValues[isub] = new BufrValue( def, plan.opDefIds[iop]);
         bufrValues[isub].bstatus = BufrValue.BST_MISSING;
       }
       else {
@@ -338,7 +1836,7 @@ throws BufrException
         // Get compressed numeric value
         // If comressBitLen == 0, it will just repeat compressMinEnc
         bufrValues[isub] = handleSimpleDefSingle(
-          isub, def, compressMinEnc, compressBitLen);
+          isub, iop, compressMinEnc, compressBitLen);
       }
     }
   } // if flagCompressed
@@ -349,9 +1847,9 @@ throws BufrException
 
     bufrValues[0] = handleSimpleDefSingle(
       0,     // isub
-      def,
+      iop,
       0,     // compressMinEnc
-      def.bitWidth + modWidth);   // numBits
+      plan.opWidth[iop] + modWidth);   // numBits
   } // else not compressed
 
   if (bugs >= 5) {
@@ -376,35 +1874,38 @@ throws BufrException
 
 BufrValue handleSimpleDefSingle(
   int isub,                 // subset number
-  DefDesc def,
+  int iop,                  // index in plan
   int compressMinEnc,
   int numBits)
 throws BufrException
 {
+  DefDesc def = plan.opDefs[iop];
+  int kind = plan.opKind[iop];
   if (bugs >= 5) prtln("handleSimpleDefSingle: entry: def.fxy: "
     + BufrUtil.formatFxy( def.fxy));
 
   // Set up returned value
-  BufrValue bufrValue = new BufrValue( def);
+  BufrValue bufrValue = new BufrValue( def, plan.opDefIds[iop]);
 
   // DefDesc entries are never missing ... if the were,
   // they wouldn't be in the table.
 
-  if (def.isString) {
+  if (kind == DecodePlan.KIND_STRING) {
     bufrValue.bstatus = BufrValue.BST_OK;
     bufrValue.stringValue = dataBuf.getTrimString( numBits);
   }
     
-  else if (def.isNumeric) {
+  else if (kind == DecodePlan.KIND_NUMERIC) {
     bufrValue.bstatus = BufrValue.BST_OK;
 
     // Get scale
-    int scale = def.scale + modScale;
+    int scale = plan.opScale[iop] + modScale;
 
     // Get ref = reference value.
     // Is fxy in the list of modified references?
-    ReferenceMod rmod = getReferenceMod( def.fxy);
-    int ref = def.reference;
+    ReferenceMod rmod = null;
+    if (referenceModList.size() > 0) rmod = getReferenceMod( def.fxy);
+    int ref = plan.opRef[iop];
     if (rmod != null) ref = rmod.refVal;
 
     // Find the true numeric value.
@@ -441,7 +1942,7 @@ throws BufrException
     }
   } // if isNumeric
 
-  else if (def.isBitFlag || def.isCode) {
+  else if (kind == DecodePlan.KIND_BITFLAG || kind == DecodePlan.KIND_CODE) {
     int ikey = 0;
     if (numBits > 0) ikey = dataBuf.getInt( numBits);
     if (BufrUtil.isAllOnes( numBits, ikey)) {
@@ -452,9 +1953,9 @@ throws BufrException
       ikey += compressMinEnc;
       bufrValue.encodedValue = ikey;
       bufrValue.stringValue = "" + bufrValue.encodedValue;
-      StatusValue sv = bfile.tableCodeFlag.getStatusValue(  // never null
-        def.fxy, def.isBitFlag, ikey, def.bitWidth, 
-        bfile.tableCommon);
+      StatusValue sv = bmsg.overlay.baseCodeFlag.getStatusValue( // never null
+        def.fxy, kind == DecodePlan.KIND_BITFLAG, ikey, plan.opWidth[iop],
+        bmsg.overlay.baseCommon);
       bufrValue.bstatus = sv.sstatus;
       bufrValue.codeFlagMeaning = sv.value;
     }
@@ -471,88 +1972,6 @@ throws BufrException
 //========================================================================
 
 
-// Handle replication or repetition
-// Returns numActive BufrItems, each representing a subtree
-// for one subset.
-
-BufrItem[] handleRepDef(
-  DefDesc def)
-throws BufrException
-{
-  if (bugs >= 5) {
-    prtln("handleRepDef: entry: def.fxy: "
-      + BufrUtil.formatFxy( def.fxy));
-  }
-
-  int numIters = def.yval;         // Mmay be 0 for delayed rep
-  boolean repetitionFlag = false;  // false: replication,  true: repetition
-
-  // Set up the returned value.
-  // Assume for now it's replication, not repetition.
-  BufrItem[] bufrItems = mkBufrItems( def);
-
-  if (numIters == 0) {       // If delayed replication ...
-    if (bugs >= 5)
-      prtln("handleRepDef: delayed rep countDef: " + def.countDef);
-
-    // Next desc must be the replication or repetition factor, 0 31 yyy
-    if (! def.countDef.testFxy( 0, 31, -1))
-      throwerr("invalid delayed replication/repetition factor", def);
-
-    // Recurse to handle the delayed rep count
-    BufrItem[] countItems = handleDef( def.countDef);
-
-    // Insure all the counts are the same
-    BufrValue bval0 = (BufrValue) countItems[0];
-    numIters = bval0.encodedValue;
-    for (int isub = 0; isub < countItems.length; isub++) {
-      BufrValue bval = (BufrValue) countItems[isub];
-      if (bval.encodedValue != numIters)
-        throwerr("countDef num iters mismatch", def);
-    }
-
-    if (bugs >= 5) {
-      prtln("  handleRepDef delayed rep:");
-      prtln("    countItems[0]: " + countItems[0]);
-      prtln("    numIters: " + numIters);
-    }
-  } // if numIters == 0 (delayed rep count)
-
-  for (int isub = 0; isub < numActive; isub++) {
-    bufrItems[isub].numDescs = def.subDefs.length;
-    bufrItems[isub].numIters = numIters;
-  }
-
-  if (bugs >= 5) {
-    prtln("  handleRepDef:");
-    prtln("    repetitionFlag: " + repetitionFlag);
-    prtln("    numDescs: " + def.subDefs.length);
-    prtln("    numIters: " + numIters);
-  }
-
-  int startDataPos = dataBuf.getBitPos();
-  for (int ii = 0; ii < numIters; ii++) {
-    BufrItem[] iterItems = mkBufrItemsFxy( BufrMessage.CUSTOM_REPGROUP_FXY);
-    for (int isub = 0; isub < numActive; isub++) {
-      iterItems[isub].numDescs = def.subDefs.length;
-      //xxx del:
-      iterItems[isub].iterNum = ii;
-    }
-    addSubs( bufrItems, iterItems);  // add each iterItem to corresp bufrItem
-
-    // If repetition, reset the data position to the loop start
-    // so we read the same data values again.
-    if (repetitionFlag) dataBuf.setBitPos( startDataPos);
-
-    for (DefDesc subDef : def.subDefs) {
-      BufrItem[] subItems = handleDef( subDef);     // recursion
-      addSubs( iterItems, subItems); // add each subItem to corresp iterItem
-    }
-  } // for ii < numIters
-
-  if (bufrItems == null) throwerr("bufrItems == null", def);
-  return bufrItems;
-} // end handleRepDef
 
 
 
@@ -562,19 +1981,16 @@ throws BufrException
 
 
 
-// Returns an array of numActive BufrItems, one for each subset.
-// All are OPERATORs except for "2 05 yyy", signify character,
-// which returns BufrValues.
-//
-// These are single BufrItems, not subtrees.
+// Updates the operator state (modWidth, modScale, modReferenceBits,
+// referenceModList) for a 2 xx yyy operator.
+// Reads nothing from dataBuf.
 
-BufrItem[] handleOperatorDef(
+void applyOperator(
   DefDesc def)
 throws BufrException
 {
-  if (bugs >= 5) prtln("handleOperatorDef: entry: def.fxy: "
+  if (bugs >= 5) prtln("applyOperator: entry: def.fxy: "
     + BufrUtil.formatFxy( def.fxy));
-  BufrItem[] bufrItems = null;
 
   // 2 01 yyy: Change bitWidth.
   // See section 3.1.6.1 in the Guide to WMO Table Driven Code Forms.
@@ -582,13 +1998,11 @@ throws BufrException
   if (def.xval == 1) {
     if (def.yval == 0) {    // modify width end
       modWidth = 0;         // modify width end
-      bufrItems = mkBufrItems( def);
     }
     else {                  // modify width start
       modWidth = def.yval - 128;
-      bufrItems = mkBufrItems( def);
     }
-	if (bugs >= 5) prtln("handleOperatorDef: new modWidth: " + modWidth);
+	if (bugs >= 5) prtln("applyOperator: new modWidth: " + modWidth);
   }
 
   // 2 02 yyy: Change scale.
@@ -597,13 +2011,11 @@ throws BufrException
   else if (def.xval == 2) {
     if (def.yval == 0) {    // modify scale end
       modScale = 0;         // modify scale end
-      bufrItems = mkBufrItems( def);
     }
     else {                  // modify scale start
       modScale = def.yval - 128;
-      bufrItems = mkBufrItems( def);
     }
-	if (bugs >= 5) prtln("handleOperatorDef: new modScale: " + modScale);
+	if (bugs >= 5) prtln("applyOperator: new modScale: " + modScale);
   }
 
   // 2 03 yyy: Change reference.
@@ -628,20 +2040,17 @@ throws BufrException
     // and start use of changed references
     if (def.yval == 255) {
       modReferenceBits = 0;
-      bufrItems = mkBufrItems( def);
-	  if (bugs >= 5) prtln("handleOperatorDef: end ref defs; start uses");
+	  if (bugs >= 5) prtln("applyOperator: end ref defs; start uses");
     }
     // If yval == 0: end use of changed references
     else if (def.yval == 0) {
       if (modReferenceBits != 0) throwerr("modReferenceBits != 0", def);
       referenceModList.clear();
-      bufrItems = mkBufrItems( def);
-	  if (bugs >= 5) prtln("handleOperatorDef: end ref uses");
+	  if (bugs >= 5) prtln("applyOperator: end ref uses");
     }
     else {
       modReferenceBits = def.yval;    // start definition of new references
-      bufrItems = mkBufrItems( def);
-	  if (bugs >= 5) prtln("handleOperatorDef: start ref defs."
+	  if (bugs >= 5) prtln("applyOperator: start ref defs."
 	    + "  modReferenceBits: " + modReferenceBits);
     }
   }
@@ -649,18 +2058,11 @@ throws BufrException
   // 2 04 yyy: Add associated field.
   else if (def.xval == 4) {
     // Ignore it.  We already handled it in BufrMessage.buildDef.
-    bufrItems = mkBufrItems( def);
   }
 
   // 2 05 yyy: Signify character.  Insert data characters.
-  // Returns a list of identical vals.
+  // The caller reads the characters.
   else if (def.xval == 5) {
-    int numBytes = def.yval;
-    BufrValue[] vals = mkBufrValues( def);
-    for (int isub = 0; isub < numActive; isub++) {
-      vals[isub].stringValue = dataBuf.getTrimString( 8 * numBytes);
-    }
-    bufrItems = vals;    // return the list of identical vals
   }
 
   // 2 06 yyy: Signify bitWidth of single following local descriptor.
@@ -668,10 +2070,35 @@ throws BufrException
   // Signifying Length of Local Descriptors.
   // Ignore it, since we should have the table entry.
   else if (def.xval == 6) {
-    bufrItems = mkBufrItems( def);
   }
 
   else throwerr("unknown operator", def);
+} // end applyOperator
+
+
+
+
+//========================================================================
+
+
+
+// Returns an array of numActive BufrItems, one for each subset.
+// All are OPERATORs except for "2 05 yyy", signify character,
+// which returns BufrValues.
+//
+// These are single BufrItems, not subtrees.
+
+BufrItem[] handleOperatorDef(
+  int iop)                  // index in plan
+throws BufrException
+{
+  DefDesc def = plan.opDefs[iop];
+  applyOperator( def);
+  BufrItem[] bufrItems = null;
+
+  // 2 05 yyy: Signify character.  Insert data characters.
+  if (def.xval == 5) bufrItems = handleCharDef( iop);
+  else bufrItems = mkBufrItems( iop);
 
   if (bufrItems == null) throwerr("bufrItems == null", def);
   return bufrItems;
@@ -682,31 +2109,30 @@ throws BufrException
 
 //========================================================================
 
-// Returns numActive BufrItems, each representing a subtree
-// for one subset.
 
-BufrItem[] handleSequenceDef(
-  DefDesc def)
+// Handles 2 05 yyy, signify character.
+// Returns numActive BufrValues, one for each subset.
+
+BufrValue[] handleCharDef(
+  int iop)                  // index in plan
 throws BufrException
 {
-  if (bugs >= 5) prtln("handleSequenceDef: entry: def.fxy: "
-    + BufrUtil.formatFxy( def.fxy));
-  BufrItem[] bufrItems = mkBufrItems( def);
-
-  if (bugs >= 10) prtln("handleDef: beg seq def.fxy: "
-    + BufrUtil.formatFxy( def.fxy));
+  int numBytes = plan.opDefs[iop].yval;
+  BufrValue[] vals = mkBufrValues( iop);
   for (int isub = 0; isub < numActive; isub++) {
-    bufrItems[isub].def.description = def.description;
-  }
-  for (DefDesc subDef : def.subDefs) {
-    BufrItem[] subItems = handleDef( subDef);    // recursive
-    addSubs( bufrItems, subItems);  // add each subItem to corresp bufrItem
+    vals[isub].stringValue = dataBuf.getTrimString( 8 * numBytes);
   }
-  return bufrItems;
+  return vals;
 }
 
 
 
+
+//========================================================================
+
+
+
+
 //========================================================================
 
 
@@ -726,7 +2152,7 @@ throws BufrException
 
   BufrItem[] resItems = new BufrItem[ numActive];
   for (int ii = 0; ii < numActive; ii++) {
-    resItems[ii] = new BufrItem( def);
+    resItems[ii] = new BufrItem( def, 0);       // no defId
   }
   return resItems;
 }
@@ -737,14 +2163,14 @@ throws BufrException
 //========================================================================
 
 
-// Returns numActive (== num subsets) BufrValues all with fxy.
+// Returns numActive (== num subsets) BufrValues all for plan op iop.
 
-BufrValue[] mkBufrValues( DefDesc def)
+BufrValue[] mkBufrValues( int iop)
 throws BufrException
 {
   BufrValue[] resValues = new BufrValue[ numActive];
   for (int ii = 0; ii < numActive; ii++) {
-    resValues[ii] = new BufrValue( def);
+    resValues[ii] = new BufrValue( plan.opDefs[iop], plan.opDefIds[iop]);
   }
   return resValues;
 }
@@ -754,14 +2180,14 @@ throws BufrException
 //========================================================================
 
 
-// Returns numActive (== num subsets) BufrItems all with fxy.
+// Returns numActive (== num subsets) BufrItems all for plan op iop.
 
-BufrItem[] mkBufrItems( DefDesc def)
+BufrItem[] mkBufrItems( int iop)
 throws BufrException
 {
   BufrItem[] resItems = new BufrItem[ numActive];
   for (int ii = 0; ii < numActive; ii++) {
-    resItems[ii] = new BufrItem( def);
+    resItems[ii] = new BufrItem( plan.opDefs[iop], plan.opDefIds[iop]);
   }
   return resItems;
 }
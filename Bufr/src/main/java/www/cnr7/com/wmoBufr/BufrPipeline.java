@@ -0,0 +1,469 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Reads all the BUFR messages of a BufrFile through a pipeline
+ * of stages, each with its own threads:
+ * <pre>
+ *   scan     the calling thread finds each message in the file
+ *   decode   decodeThreads threads parse the messages
+ *   format   formatThreads threads format each message into memory
+ *   write    writeThreads threads create the output files
+ *            and write the formatted bytes
+ * </pre>
+ * The stages are connected by bounded queues.  When a queue is full
+ * the stage feeding it waits, so a slow stage holds back the
+ * earlier ones and the memory used stays bounded.  Since the
+ * writes are done by their own threads, slow file creation
+ * (say, on a network file system) overlaps with the decoding
+ * and formatting of later messages.
+ * <p>
+ * The calling thread also retires the messages in order,
+ * adding their error messages to the BufrFile and writing their
+ * report lines a batch at a time: when REPORT_BATCH_LINES lines
+ * are waiting, or the oldest has waited REPORT_BATCH_MILLIS.
+ * The output files and report lines are the same as with readFully.
+ * <p>
+ * A message that may define table entries is handled as in
+ * readFullyParallel: all earlier messages are retired first,
+ * then it is parsed and written by the calling thread.
+ * <p>
+ * Each message's output is formatted into memory before it is
+ * written, so several formatted messages may be held at once:
+ * up to about the queue lengths plus the number of threads.
+ * <p>
+ * With -container, the format stage makes the container entries,
+ * and retireJobs appends them in order.
+ *
+ * @author S. Sullivan
+ */
+
+class BufrPipeline {
+
+
+// Stage types
+static int STG_DECODE = 1;
+static int STG_FORMAT = 2;
+static int STG_WRITE  = 3;
+static String[] stageNames = { "", "decode", "format", "write"};
+
+// Each queue holds this many jobs per thread of the
+// stage that takes from it.
+static int QUEUE_PER_THREAD = 2;
+
+// The report lines are written when this many are waiting,
+// or when the oldest has waited this long, or at the end.
+static int REPORT_BATCH_LINES = 256;
+static long REPORT_BATCH_MILLIS = 1000;
+
+
+
+// Inner class
+// One message going through the pipeline.
+static class Job {
+  BufrMessage bmsg;              // null for END_JOB
+  String outFile = null;         // null if the message is filtered out
+  AsciiWriter wtr = null;        // formatted output, until written
+  String reportLine = null;      // null if no report line
+  Throwable failure = null;      // the first error, in any stage
+  CountDownLatch doneLatch = new CountDownLatch( 1);  // after last stage
+
+  Job( BufrMessage bmsg) {
+    this.bmsg = bmsg;
+  }
+} // end inner class Job
+
+
+
+// Marks the end of the input to a stage.
+// Each thread of a stage stops when it takes END_JOB.
+static Job END_JOB = new Job( null);
+
+
+
+
+// Inner class
+// A stage: numThreads threads taking jobs from inQueue
+// and passing them to the next stage.
+// After a job fails, the later stages just pass it along.
+static class Stage implements Runnable {
+  BufrPipeline pipe;
+  int stageType;                 // one of STG_*
+  int numThreads;
+  Stage nextStage;               // null if this is the last stage
+  ArrayBlockingQueue<Job> inQueue;
+  AtomicInteger numLive;         // num threads not yet stopped
+  Thread[] threads;
+
+  Stage(
+    BufrPipeline pipe,
+    int stageType,
+    int numThreads,
+    Stage nextStage)
+  {
+    this.pipe = pipe;
+    this.stageType = stageType;
+    this.numThreads = numThreads;
+    this.nextStage = nextStage;
+    inQueue = new ArrayBlockingQueue<Job>( QUEUE_PER_THREAD * numThreads);
+    numLive = new AtomicInteger( numThreads);
+    threads = new Thread[ numThreads];
+    for (int ii = 0; ii < numThreads; ii++) {
+      threads[ii] = new Thread( this,
+        "BufrPipeline-" + stageNames[stageType] + "-" + (ii + 1));
+      threads[ii].setDaemon( true);
+    }
+  }
+
+  void start() {
+    for (Thread thread : threads) {
+      thread.start();
+    }
+  }
+
+  // Adds job to inQueue, waiting while the queue is full.
+  void put( Job job) {
+    boolean done = false;
+    while (! done) {
+      try {
+        inQueue.put( job);
+        done = true;
+      }
+      catch( InterruptedException exc) {
+        // We never interrupt the pipeline threads, so retry.
+      }
+    }
+  }
+
+  // Stops all the threads of this stage, after the jobs
+  // already in inQueue.
+  void end() {
+    for (int ii = 0; ii < numThreads; ii++) {
+      put( END_JOB);
+    }
+  }
+
+  void join() {
+    for (Thread thread : threads) {
+      boolean done = false;
+      while (! done) {
+        try {
+          thread.join();
+          done = true;
+        }
+        catch( InterruptedException exc) {}
+      }
+    }
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        Job job = null;
+        try {
+          job = inQueue.take();
+        }
+        catch( InterruptedException exc) {
+          continue;
+        }
+        if (job == END_JOB) break;
+
+        if (job.failure == null && ! pipe.aborted) {
+          try {
+            pipe.process( stageType, job);
+          }
+          catch( Throwable exc) {
+            job.failure = exc;
+            job.wtr = null;
+          }
+        }
+        if (nextStage == null) job.doneLatch.countDown();
+        else nextStage.put( job);
+      }
+    }
+    finally {
+      // The last thread of this stage to stop ends the next stage.
+      if (numLive.decrementAndGet() == 0 && nextStage != null)
+        nextStage.end();
+    }
+  }
+} // end inner class Stage
+
+
+
+
+BufrFile bfile;
+boolean isXml;
+int decodeThreads;
+int formatThreads;
+int writeThreads;
+int maxPending;                  // max jobs in the pipeline at once
+volatile boolean aborted = false;   // if true, stages skip their work
+
+// Report lines of the retired jobs, not yet written.
+// Only used by the calling thread.  See retireJobs.
+StringBuilder reportBatch = new StringBuilder();
+int numBatched = 0;              // num lines in reportBatch
+long batchStart = 0;             // when the first of them was added
+
+
+
+BufrPipeline(
+  BufrFile bfile,
+  boolean isXml,
+  int decodeThreads,             // num threads parsing messages
+  int formatThreads,             // num threads formatting messages
+  int writeThreads)              // num threads writing output files
+{
+  this.bfile = bfile;
+  this.isXml = isXml;
+  this.decodeThreads = decodeThreads;
+  this.formatThreads = formatThreads;
+  this.writeThreads = writeThreads;
+  // Enough to fill every queue and keep every thread busy.
+  this.maxPending = (QUEUE_PER_THREAD + 1)
+    * (decodeThreads + formatThreads + writeThreads);
+}
+
+
+
+/**
+ * Reads, parses, formats and writes all the messages of bfile.
+ * Internal logic:
+ * <pre>
+ *     For each imsg:         // for each BUFR message in inFile
+ *       Find the message bounds and get the message bytes
+ *       If the message may define table entries:
+ *         Retire all pending messages, then parse and
+ *         write it here, since later messages may use the new entries.
+ *       Else:
+ *         Put it on the decode queue, waiting if the queue is full.
+ *       Retire the finished messages at the head of the pending list,
+ *         waiting for the oldest if too many are pending.
+ * </pre>
+ */
+
+void readAll()
+throws BufrException
+{
+  Stage writeStage = new Stage( this, STG_WRITE, writeThreads, null);
+  Stage formatStage = new Stage( this, STG_FORMAT, formatThreads,
+    writeStage);
+  Stage decodeStage = new Stage( this, STG_DECODE, decodeThreads,
+    formatStage);
+  writeStage.start();
+  formatStage.start();
+  decodeStage.start();
+
+  LinkedList<Job> pendingList = new LinkedList<Job>();
+  boolean allOk = false;
+  try {
+    for (int imsg = 0; ; imsg++) {
+      if (bfile.dataBugs >= 1)
+        prtln("\n========== BufrPipeline: begin find message: " + imsg);
+      BufrMessage bmsg = BufrMessage.findBufrMessage(
+        bfile.dataBugs, bfile, imsg);
+      if (bmsg == null) break;              // if EOF, break
+
+      if (bmsg.mayDefineTables()) {
+        // Finish all previous messages, then handle this one alone.
+        retireJobs( pendingList, 0);
+        flushReports();
+        if (bfile.dataBugs >= 1)
+          prtln("BufrPipeline: parse table message alone: " + imsg);
+        bmsg.parseMessage();
+        String reportLine = BufrFormatter.writeAllOutput(
+          isXml, bfile, bmsg);
+        bfile.addErrorMsg( bmsg.errorMsg);
+        bfile.writeContainerEntry( bmsg);
+        bfile.writeReportLine( reportLine);
+      }
+      else {
+        Job job = new Job( bmsg);
+        pendingList.add( job);
+        decodeStage.put( job);     // waits while the queue is full
+        retireJobs( pendingList, maxPending);
+      }
+    } // for imsg
+
+    retireJobs( pendingList, 0);
+    allOk = true;
+  }
+  finally {
+    // After an error, this writes the report lines of the jobs
+    // before the failed one.
+    flushReports();
+    // After an error, the stages skip the remaining jobs.
+    if (! allOk) aborted = true;
+    decodeStage.end();
+    decodeStage.join();
+    formatStage.join();
+    writeStage.join();
+  }
+} // end readAll
+
+
+
+
+/**
+ * Retires the finished jobs at the head of pendingList, in order,
+ * first waiting for the oldest jobs until at most maxWait remain.
+ * The report lines are added to reportBatch, which is written
+ * when it is big enough or old enough.
+ * If a job failed, throws its exception.  The caller should then
+ * call flushReports, to write the lines of the jobs before it.
+ */
+
+void retireJobs(
+  LinkedList<Job> pendingList,
+  int maxWait)
+throws BufrException
+{
+  while (pendingList.size() > 0) {
+    Job job = pendingList.getFirst();
+    if (pendingList.size() > maxWait) {
+      try {
+        job.doneLatch.await();
+      }
+      catch( InterruptedException exc) {
+        BufrUtil.prtlnexc("caught", exc);
+        throwerr("interrupted");
+      }
+    }
+    else if (job.doneLatch.getCount() > 0) break;
+    pendingList.removeFirst();
+
+    Throwable cause = job.failure;
+    if (cause instanceof BufrException) throw (BufrException) cause;
+    if (cause != null) {
+      BufrUtil.prtlnexc("caught", cause);
+      throwerr("caught: " + cause);
+    }
+    bfile.addErrorMsg( job.bmsg.errorMsg);
+    bfile.writeContainerEntry( job.bmsg);
+    if (job.reportLine != null) {
+      if (numBatched == 0) batchStart = System.currentTimeMillis();
+      reportBatch.append( job.reportLine + "\n");
+      numBatched++;
+    }
+    if (bfile.dataBugs >= 1)
+      prtln("BufrPipeline: end read message: " + job.bmsg.msgNum);
+  }
+
+  if (numBatched >= REPORT_BATCH_LINES
+    || (numBatched > 0
+      && System.currentTimeMillis() - batchStart >= REPORT_BATCH_MILLIS))
+  {
+    flushReports();
+  }
+}
+
+
+
+
+/**
+ * Writes the report lines in reportBatch, if any.
+ */
+
+void flushReports() {
+  bfile.writeReportBatch( reportBatch);
+  numBatched = 0;
+}
+
+
+
+
+/**
+ * Does the work of one stage for job.
+ * Called by the stage threads.
+ */
+
+void process(
+  int stageType,
+  Job job)
+throws BufrException
+{
+  BufrMessage bmsg = job.bmsg;
+  if (stageType == STG_DECODE) {
+    bmsg.parseMessage();
+  }
+  else if (stageType == STG_FORMAT) {
+    if (bfile.container != null) {
+      // Makes the container entry, appended by retireJobs.
+      job.reportLine = BufrFormatter.writeAllOutput( isXml, bfile, bmsg);
+    }
+    // With -filter, a message with no kept subsets is not written.
+    else if (! bmsg.filteredOut) {
+      job.outFile = BufrFormatter.getOutFileName( bfile, bmsg);
+      job.wtr = new AsciiWriter( bmsg.bugs);
+      BufrFormatter.formatAllOutput( isXml, bfile, bmsg, job.wtr);
+      job.reportLine = BufrFormatter.getReportLine(
+        bfile, bmsg, job.outFile);
+    }
+  }
+  else if (stageType == STG_WRITE) {
+    if (job.wtr != null) {
+      BufrFormatter.saveOutFile( job.wtr, job.outFile);
+      job.wtr = null;
+    }
+  }
+  else throwerr("unknown stageType: " + stageType);
+}
+
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("BufrPipeline: " + msg);
+}
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
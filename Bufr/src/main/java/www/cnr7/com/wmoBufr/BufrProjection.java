@@ -0,0 +1,176 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.util.Arrays;
+
+
+/**
+ * Represents a projection: the set of table B descriptors
+ * (fxy codes) that the caller wants decoded.
+ * <p>
+ * BufrParser decodes only the values whose fxy is in the set.
+ * The other values are skipped by advancing the bit position
+ * of the data buffer by their widths, without making any
+ * objects or looking up codes and flags.
+ * Operators, replications and delayed replication counts
+ * are always handled, so the bit position stays correct.
+ * <p>
+ * An associated field (2 04 yyy) is decoded if the value
+ * it is associated with is decoded.
+ * A 2 05 yyy operator (signify character) is decoded if its
+ * own fxy, for example 2_05_010, is in the set.
+ * <p>
+ * For each DecodePlan we build a mask telling which ops are
+ * wanted.  The mask is kept in the plan's projMasks, since plans
+ * are shared by all messages having the same section 3, and
+ * is dropped with the plan when the PlanCache is full.
+ *
+ * @author S. Sullivan
+ */
+
+class BufrProjection {
+
+int[] fxys;                 // the wanted fxy codes, sorted
+
+
+
+
+BufrProjection(
+  int[] fxys)
+{
+  this.fxys = fxys.clone();
+  Arrays.sort( this.fxys);
+}
+
+
+
+/**
+ * Parses a list of fxy codes separated by blanks or commas.
+ * Each code is "fxxyyy" or "f_xx_yyy".
+ */
+
+static BufrProjection parse(
+  String stg)
+throws BufrException
+{
+  String[] toks = stg.trim().split("[ ,]+");
+  if (toks.length == 0 || toks[0].length() == 0)
+    throwerr("empty fxy list");
+  int[] fxys = new int[ toks.length];
+  for (int ii = 0; ii < toks.length; ii++) {
+    fxys[ii] = BufrUtil.parseFxy( "select", toks[ii]);
+  }
+  return new BufrProjection( fxys);
+}
+
+
+
+
+boolean contains( int fxy) {
+  return Arrays.binarySearch( fxys, fxy) >= 0;
+}
+
+
+
+
+/**
+ * Returns the mask for plan: mask[iop] is true if the value
+ * of op iop is wanted.  Only meaningful for OP_VALUE,
+ * OP_COUNT, and OP_OPER for 2 05 yyy.
+ */
+
+boolean[] getMask(
+  DecodePlan plan)
+{
+  // We don't override equals, so the plan's map is by identity.
+  boolean[] mask = plan.projMasks.get( this);
+  if (mask == null) {
+    mask = new boolean[ plan.numOps];
+    // Go backwards, so an associated field can use the
+    // mask of the following value.
+    boolean nextWanted = false;    // mask of the next non-assoc value
+    for (int iop = plan.numOps - 1; iop >= 0; iop--) {
+      int op = plan.ops[iop];
+      int fxy = plan.opDefs[iop].fxy;
+      if (op == DecodePlan.OP_VALUE
+        && fxy == BufrMessage.CUSTOM_ASSOCFLD_FXY)
+      {
+        mask[iop] = nextWanted;
+      }
+      else if (op == DecodePlan.OP_VALUE
+        || op == DecodePlan.OP_COUNT
+        || op == DecodePlan.OP_OPER)
+      {
+        mask[iop] = contains( fxy);
+        if (op == DecodePlan.OP_VALUE) nextWanted = mask[iop];
+      }
+    }
+    boolean[] oldMask = plan.projMasks.putIfAbsent( this, mask);
+    if (oldMask != null) mask = oldMask;
+  }
+  return mask;
+}
+
+
+
+
+public String toString() {
+  StringBuilder sbuf = new StringBuilder();
+  for (int ii = 0; ii < fxys.length; ii++) {
+    if (ii > 0) sbuf.append(" ");
+    sbuf.append( BufrUtil.formatFxy( fxys[ii]));
+  }
+  return sbuf.toString();
+}
+
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("BufrProjection: " + msg);
+}
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
@@ -39,6 +39,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.Formatter;
 import java.util.LinkedList;
 
@@ -286,6 +288,45 @@ static int mkBitMask( int numBits) {
 
 
 
+/**
+ * Returns a zero-copy view of bytes pos to pos+len-1 of buf.
+ * The view starts at index 0 and has limit len.
+ * The position of buf is not altered.
+ */
+
+static ByteBuffer sliceBuffer(
+  ByteBuffer buf,
+  int pos,
+  int len)
+{
+  ByteBuffer dup = buf.duplicate();
+  // Cast to Buffer: the ByteBuffer overrides only exist in Java 9+.
+  ((Buffer) dup).limit( pos + len);
+  ((Buffer) dup).position( pos);
+  return dup.slice();
+}
+
+
+
+/**
+ * Returns the unsigned big-endian integer in
+ * bytes pos to pos+nbytes-1 of buf.  Requires nbytes <= 3.
+ */
+
+static int getUnsigned(
+  ByteBuffer buf,
+  int pos,
+  int nbytes)
+{
+  int ival = 0;
+  for (int ii = 0; ii < nbytes; ii++) {
+    ival = (ival << 8) | (0xff & buf.get( pos + ii));
+  }
+  return ival;
+}
+
+
+
 /**
  * Returns the portion of fname after the last slash.
  */
@@ -764,6 +805,48 @@ throws BufrException
 
 
 
+/**
+ * Appends stg to sbuf, truncated to len chars if len &gt; 0,
+ * cleaned and quoted.  The result is the same as
+ *   sbuf.append( quote( isXml, truncate( len, stg)))
+ * but without allocating intermediate Strings.
+ */
+
+static void appendQuoted(
+  boolean isXml,
+  int len,
+  String stg,
+  StringBuilder sbuf)
+throws BufrException
+{
+  if (stg == null) throwerr("stg is null");
+  int num = stg.length();
+  if (len > 0 && num > len) num = len;
+  sbuf.append('"');
+  for (int ii = 0; ii < num; ii++) {
+    int ival = 0xff & stg.charAt(ii);
+    if (! isPrintable( ival)) ival = '_';
+    if (isXml) {
+      if (ival == '&') sbuf.append("&amp;");
+      else if (ival == '<') sbuf.append("&lt;");
+      else if (ival == '>') sbuf.append("&gt;");
+      else if (ival == '"') sbuf.append("&quot;");
+      else if (ival == '\'') sbuf.append("&apos;");
+      else sbuf.append( (char) ival);
+    }
+    else {
+      if (ival == '"') throwerr("String contains a quote");
+      else if (ival == '\\') sbuf.append("\\\\");
+      else sbuf.append( (char) ival);
+    }
+  }
+  sbuf.append('"');
+}
+
+
+
+
+
 // Format the true value, rounding appropriately
 // to avoid representations like "199999999" or "0.001999999"
 // when the number of significant digits is small.
@@ -852,6 +935,42 @@ static boolean isAllOnes( int bitLen, int value) {
 
 
 
+// Same as sbuf.append( formatFxy( fxy)), but faster.
+
+static void appendFxy(
+  int fxy,
+  StringBuilder sbuf)
+throws BufrException
+{
+  int fval = getFval( fxy);
+  int xval = getXval( fxy);
+  int yval = getYval( fxy);
+  sbuf.append( fval);
+  sbuf.append( xval < 10 ? "_0" : "_");
+  sbuf.append( xval);
+  sbuf.append( yval < 10 ? "_00" : yval < 100 ? "_0" : "_");
+  sbuf.append( yval);
+}
+
+
+
+
+
+// Same as sbuf.append( mkIndent( indent)).
+
+static void appendIndent(
+  int indent,
+  StringBuilder sbuf)
+{
+  for (int ii = 0; ii < indent; ii++) {
+    sbuf.append("  ");
+  }
+}
+
+
+
+
+
 static String mkIndent( int indent) {
   String res = "";
   for (int ii = 0; ii < indent; ii++) {
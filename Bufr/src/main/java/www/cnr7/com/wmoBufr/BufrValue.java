@@ -72,9 +72,10 @@ String codeFlagMeaning;   // The meaning for code or bitFlag.
 
 
 BufrValue(
-  DefDesc def)
+  DefDesc def,
+  int defId)
 {
-  super( def);
+  super( def, defId);
   bstatus = BST_OK;
   stringValue = "";
 }
@@ -0,0 +1,185 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+
+
+
+/**
+ * Receives the data of BUFR messages as a series of calls,
+ * like a SAX handler, instead of as a tree of BufrItems.
+ * <p>
+ * Set by {@link BufrFile#visitFully BufrFile.visitFully}.
+ * BufrParser then reads section 4 and calls the visitor directly,
+ * without forming BufrItems or BufrValues.
+ * Messages that may define table entries
+ * (see {@link BufrMessage#mayDefineTables BufrMessage.mayDefineTables})
+ * still need the BufrItem tree for DynDefs.  For them we form the
+ * tree as usual and then make the same calls by walking it;
+ * see BufrParser.visitTree.
+ * <p>
+ * Order of calls for each message:
+ * <pre>
+ *   startMessage
+ *     startSubset
+ *       values, startSequence ... endSequence,
+ *       startReplication, startIteration ..., endReplication
+ *     endSubset
+ *     ... more subsets
+ *   endMessage
+ * </pre>
+ * Each call gets the subset number, isub.
+ * For a compressed message the data of all subsets are interleaved
+ * in section 4, so the calls for different subsets are interleaved:
+ * each descriptor is handled for all subsets before the next one.
+ * Within one subset the calls are always in the order above.
+ * <p>
+ * Operators (2 xx yyy) are applied by the parser and not passed on,
+ * except that the characters of 2 05 yyy are passed to stringValue.
+ * The counts of delayed replications are passed only as the
+ * numIters of startReplication.
+ * <p>
+ * If parsing a message fails, endMessage is not called for it.
+ * The DefDesc parms are shared, and must not be changed.
+ *
+ * @author S. Sullivan
+ */
+
+interface BufrVisitor {
+
+
+void startMessage(
+  BufrMessage bmsg)
+throws BufrException;
+
+
+void endMessage(
+  BufrMessage bmsg)
+throws BufrException;
+
+
+void startSubset(
+  int isub)
+throws BufrException;
+
+
+void endSubset(
+  int isub)
+throws BufrException;
+
+
+/** Sequence, 3 xx yyy. */
+
+void startSequence(
+  int isub,
+  DefDesc def)
+throws BufrException;
+
+
+void endSequence(
+  int isub,
+  DefDesc def)
+throws BufrException;
+
+
+/**
+ * Replication, 1 xx yyy.
+ * Followed by numIters calls to startIteration.
+ */
+
+void startReplication(
+  int isub,
+  DefDesc def,
+  int numIters)
+throws BufrException;
+
+
+/** Starts iteration iter, 0 &lt;= iter &lt; numIters. */
+
+void startIteration(
+  int isub,
+  DefDesc def,
+  int iter)
+throws BufrException;
+
+
+void endReplication(
+  int isub,
+  DefDesc def)
+throws BufrException;
+
+
+/**
+ * Numeric value, including associated fields.
+ * If missing, value is NaN.
+ */
+
+void numericValue(
+  int isub,
+  DefDesc def,
+  double value,
+  boolean missing)
+throws BufrException;
+
+
+/**
+ * Character value, or the characters of 2 05 yyy.
+ * If missing, value is null.
+ */
+
+void stringValue(
+  int isub,
+  DefDesc def,
+  String value)
+throws BufrException;
+
+
+/**
+ * Code table or flag table value; def.isBitFlag tells which.
+ * The meaning is from the code/flag tables:
+ * "" if not found, null if missing.
+ */
+
+void codeValue(
+  int isub,
+  DefDesc def,
+  int code,
+  boolean missing,
+  String meaning)
+throws BufrException;
+
+
+} // end interface
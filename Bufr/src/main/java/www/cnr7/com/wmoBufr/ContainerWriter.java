@@ -0,0 +1,388 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Writes the output of all messages into a few large container
+ * files, instead of a separate file per message.
+ * Called for -container.
+ * <p>
+ * Each message's output is an entry named by outSpec, as the
+ * output file would be.  The container holds the entries one
+ * after the other, each as a length-prefixed record:
+ * <pre>
+ *   int     MAGIC
+ *   int     nameLen
+ *   byte[]  name             UTF-8, nameLen bytes
+ *   int     msgNum
+ *   byte    flags            FLAG_GZIP if the data is gzipped
+ *   long    rawLen           length before compression
+ *   long    dataLen
+ *   byte[]  data             dataLen bytes
+ * </pre>
+ * All numbers are big-endian, as written by DataOutputStream.
+ * <p>
+ * A text manifest, named containerName + ".manifest",
+ * has a line for each entry:
+ * <pre>
+ *   part  offset  dataLen  rawLen  gzip  msgNum  inFile  name
+ * </pre>
+ * separated by tabs, where offset is the position of the
+ * data in the container part.  So an entry can be read directly
+ * without scanning the container.  The manifest is UTF-8 too,
+ * since the names and input files may have any characters.
+ * <p>
+ * If maxPartBytes > 0, a new part is started when the current
+ * one would exceed maxPartBytes, and the parts are named
+ * containerName.0, containerName.1, and so on.
+ * Otherwise there is a single part, named containerName.
+ * Like output files, containers are never over-written,
+ * and within one input file an entry name may be used only once;
+ * see BufrFile.writeContainerEntry.
+ * <p>
+ * The entries are made by {@link #mkEntry mkEntry}, which may
+ * compress the data.  It's called by the threads formatting
+ * the messages, so with several threads the entries are compressed
+ * in parallel.  The entries are then appended by
+ * {@link #append append} in message order.
+ * One ContainerWriter is shared by all the input files.
+ *
+ * @author S. Sullivan
+ */
+
+class ContainerWriter {
+
+static int MAGIC = 0x42554358;         // "BUCX"
+static int FLAG_GZIP = 1;
+static int BUF_LEN = 65536;
+
+
+
+// Inner class
+// One message's output, ready to append.
+static class Entry {
+  String name;                   // from outSpec
+  String inFile;
+  int msgNum;
+  boolean isGzip;
+  long rawLen;                   // length before compression
+  byte[] data;
+  int dataLen;
+
+  Entry(
+    String name,
+    String inFile,
+    int msgNum,
+    boolean isGzip,
+    long rawLen,
+    byte[] data,
+    int dataLen)
+  {
+    this.name = name;
+    this.inFile = inFile;
+    this.msgNum = msgNum;
+    this.isGzip = isGzip;
+    this.rawLen = rawLen;
+    this.data = data;
+    this.dataLen = dataLen;
+  }
+
+  public String toString() {
+    return "name: \"" + name + "\"  msgNum: " + msgNum
+      + "  rawLen: " + rawLen + "  dataLen: " + dataLen;
+  }
+} // end inner class Entry
+
+
+
+
+int bugs;
+String containerName;
+boolean compressFlag;            // if true, gzip each entry
+long maxPartBytes;               // if > 0, max bytes per part
+
+int partNum = -1;                // current part, or -1 if none
+String partName = null;
+DataOutputStream partStm = null;
+long partBytes = 0;              // bytes written to the current part
+OutputStream manifestStm = null;
+
+long numEntries = 0;
+long totRawBytes = 0;
+long totDataBytes = 0;
+
+
+
+/**
+ * Creates the manifest.  The first part is created
+ * with the first entry.
+ */
+
+ContainerWriter(
+  int bugs,
+  String containerName,
+  boolean compressFlag,
+  long maxPartBytes)
+throws BufrException
+{
+  this.bugs = bugs;
+  this.containerName = containerName;
+  this.compressFlag = compressFlag;
+  this.maxPartBytes = maxPartBytes;
+  manifestStm = new BufferedOutputStream(
+    createNew( containerName + ".manifest"), BUF_LEN);
+  writeManifest(
+    "# part\toffset\tdataLen\trawLen\tgzip\tmsgNum\tinFile\tname\n");
+}
+
+
+
+/**
+ * Makes the entry for bmsg from the formatted output in wtr,
+ * compressing it if compressFlag.
+ * Does not append it: the caller calls append in message order.
+ */
+
+Entry mkEntry(
+  BufrMessage bmsg,
+  String name,
+  AsciiWriter wtr)
+throws BufrException
+{
+  byte[] data = wtr.buf;
+  int dataLen = wtr.bufPos;
+  if (compressFlag) {
+    ByteArrayOutputStream bstm = new ByteArrayOutputStream(
+      wtr.bufPos / 4 + 64);
+    try {
+      GZIPOutputStream zstm = new GZIPOutputStream( bstm, BUF_LEN);
+      zstm.write( wtr.buf, 0, wtr.bufPos);
+      zstm.close();
+    }
+    catch( IOException exc) {
+      BufrUtil.prtlnexc("caught", exc);
+      throwerr("cannot compress entry: \"" + name + "\"");
+    }
+    data = bstm.toByteArray();
+    dataLen = data.length;
+  }
+  Entry ent = new Entry( name, bmsg.bfile.inFile, bmsg.msgNum,
+    compressFlag, wtr.bufPos, data, dataLen);
+  if (bugs >= 1) prtln("ContainerWriter.mkEntry: " + ent);
+  return ent;
+}
+
+
+
+/**
+ * Appends ent to the current part, starting a new part if needed,
+ * and adds its line to the manifest.
+ */
+
+synchronized void append( Entry ent)
+throws BufrException
+{
+  byte[] nameBytes = ent.name.getBytes( StandardCharsets.UTF_8);
+  int hdrLen = 4 + 4 + nameBytes.length + 4 + 1 + 8 + 8;
+  if (partStm == null
+    || (maxPartBytes > 0 && partBytes > 0
+      && partBytes + hdrLen + ent.dataLen > maxPartBytes))
+  {
+    startPart();
+  }
+
+  long dataOffset = partBytes + hdrLen;
+  try {
+    partStm.writeInt( MAGIC);
+    partStm.writeInt( nameBytes.length);
+    partStm.write( nameBytes);
+    partStm.writeInt( ent.msgNum);
+    partStm.writeByte( ent.isGzip ? FLAG_GZIP : 0);
+    partStm.writeLong( ent.rawLen);
+    partStm.writeLong( ent.dataLen);
+    partStm.write( ent.data, 0, ent.dataLen);
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("cannot write container: \"" + partName + "\"");
+  }
+  partBytes += hdrLen + ent.dataLen;
+
+  writeManifest( partNum + "\t" + dataOffset + "\t" + ent.dataLen
+    + "\t" + ent.rawLen + "\t" + (ent.isGzip ? "y" : "n")
+    + "\t" + ent.msgNum + "\t" + ent.inFile + "\t" + ent.name + "\n");
+  numEntries++;
+  totRawBytes += ent.rawLen;
+  totDataBytes += ent.dataLen;
+  ent.data = null;
+}
+
+
+
+// Closes the current part, if any, and creates the next.
+
+private void startPart()
+throws BufrException
+{
+  closePart();
+  partNum++;
+  if (maxPartBytes > 0) partName = containerName + "." + partNum;
+  else partName = containerName;
+  partStm = new DataOutputStream( new BufferedOutputStream(
+    createNew( partName), BUF_LEN));
+  partBytes = 0;
+  if (bugs >= 1) prtln("ContainerWriter.startPart: \"" + partName + "\"");
+}
+
+
+
+private void closePart()
+throws BufrException
+{
+  if (partStm != null) {
+    try {
+      partStm.close();
+    }
+    catch( IOException exc) {
+      BufrUtil.prtlnexc("caught", exc);
+      throwerr("cannot close container: \"" + partName + "\"");
+    }
+    partStm = null;
+  }
+}
+
+
+
+/**
+ * Closes the current part and the manifest.
+ * Called at the end of the run, even after an error,
+ * so the manifest matches the entries written.
+ */
+
+synchronized void close()
+throws BufrException
+{
+  closePart();
+  if (manifestStm != null) {
+    try {
+      manifestStm.close();
+    }
+    catch( IOException exc) {
+      BufrUtil.prtlnexc("caught", exc);
+      throwerr("cannot close manifest: \""
+        + containerName + ".manifest\"");
+    }
+    manifestStm = null;
+  }
+  if (bugs >= 1) prtln("ContainerWriter.close: " + this);
+}
+
+
+
+private void writeManifest( String line)
+throws BufrException
+{
+  try {
+    manifestStm.write( line.getBytes( StandardCharsets.UTF_8));
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("cannot write manifest: \""
+      + containerName + ".manifest\"");
+  }
+}
+
+
+
+// Creates the file fname, which must not already exist.
+
+static OutputStream createNew( String fname)
+throws BufrException
+{
+  OutputStream ostm = null;
+  try {
+    ostm = Files.newOutputStream( Paths.get( fname),
+      StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+  }
+  catch( FileAlreadyExistsException exc) {
+    throwerr("output file already exists: \"" + fname + "\"");
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("cannot write file \"" + fname + "\"");
+  }
+  return ostm;
+}
+
+
+
+public String toString() {
+  return "containerName: \"" + containerName + "\""
+    + "  numParts: " + (partNum + 1)
+    + "  numEntries: " + numEntries
+    + "  totRawBytes: " + totRawBytes
+    + "  totDataBytes: " + totDataBytes;
+}
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("ContainerWriter: " + msg);
+}
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
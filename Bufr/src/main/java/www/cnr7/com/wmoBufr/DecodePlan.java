@@ -0,0 +1,393 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Represents a compiled decode plan: the expanded descriptor tree
+ * of one section 3 template, flattened into parallel arrays
+ * of simple ops.
+ * <p>
+ * BufrMessage.parseEdesc builds the DefDesc tree (buildDef,
+ * buildSequenceDef, cloneDef, ...) and compiles it to a DecodePlan.
+ * The BufrParser then runs the plan with a simple loop instead
+ * of recursing over the DefDesc tree.
+ * <p>
+ * A DecodePlan is never changed after it is compiled, so one plan
+ * is shared by all messages, in all threads, having the same
+ * section 3 descriptors.  See {@link PlanCache PlanCache}.
+ * <p>
+ * The ops are:
+ * <pre>
+ *   OP_VALUE     Table B descriptor or associated field: read a value.
+ *                opWidth, opScale, opRef, opKind are copied from the def.
+ *   OP_OPER      Table C operator, 2 xx yyy.
+ *   OP_SEQ       Start of a Table D sequence.
+ *                opJump is the index of the matching OP_SEQ_END.
+ *   OP_SEQ_END   End of a sequence.
+ *   OP_REP       Start of a replication, 1 xx yyy.
+ *                opCount is the num iterations, or 0 for
+ *                delayed replication.
+ *                opJump is the index of the matching OP_REP_END.
+ *   OP_COUNT     Delayed replication count, 0 31 yyy.
+ *                Always immediately follows a delayed OP_REP.
+ *                Like OP_VALUE, but does not become an item.
+ *   OP_REP_END   End of a replication.
+ *                opJump is the index of the first op of the loop body.
+ * </pre>
+ * For example, the template
+ * <pre>
+ *   0 01 001  1 02 000  0 31 001  0 12 001  0 12 003
+ * </pre>
+ * compiles to
+ * <pre>
+ *   0  OP_VALUE    0 01 001
+ *   1  OP_REP      1 02 000   opCount: 0  opJump: 5
+ *   2  OP_COUNT    0 31 001
+ *   3  OP_VALUE    0 12 001
+ *   4  OP_VALUE    0 12 003
+ *   5  OP_REP_END  1 02 000   opJump: 3
+ * </pre>
+ *
+ * @author S. Sullivan
+ */
+
+class DecodePlan {
+
+
+static int OP_UNKNOWN    = 0;
+static int OP_VALUE      = 1;
+static int OP_OPER       = 2;
+static int OP_SEQ        = 3;
+static int OP_SEQ_END    = 4;
+static int OP_REP        = 5;
+static int OP_COUNT      = 6;
+static int OP_REP_END    = 7;
+static String[] opNames = {
+  "unknown", "value", "oper", "seq", "seqEnd", "rep", "count", "repEnd"};
+
+
+static int KIND_UNKNOWN  = 0;             // opKind values
+static int KIND_STRING   = 1;
+static int KIND_NUMERIC  = 2;
+static int KIND_CODE     = 3;
+static int KIND_BITFLAG  = 4;
+static String[] kindNames = {
+  "unknown", "string", "numeric", "code", "bitFlag"};
+
+
+
+DefDesc defRoot;          // root of the expanded DefDesc tree.
+                          // Subtrees may be shared; see SequenceCache.
+int[] expandedFxys;       // The section 3 fxy list after buildDef.
+                          // Usually the same as the raw list, but
+                          // buildDef may restructure badly formed
+                          // iterations.
+
+int numOps;
+int[] ops;                // OP_* for each op
+DefDesc[] opDefs;         // DefDesc for each op
+int[] opDefIds;           // id printed for each op's def: the
+                          // preorder number of the def in defRoot's
+                          // tree, where defRoot is 1.  An end op has
+                          // the id of its start op.
+int[] opJump;             // See OP_* doc above.  Else -1.
+int[] opCount;            // For OP_REP: num iterations, or 0 if delayed
+int[] opWidth;            // For OP_VALUE, OP_COUNT: bit width
+int[] opScale;            // For OP_VALUE, OP_COUNT: scale
+int[] opRef;              // For OP_VALUE, OP_COUNT: reference value
+int[] opKind;             // For OP_VALUE, OP_COUNT: KIND_*
+
+int maxDepth;             // max nesting of OP_SEQ and OP_REP
+int numDefIds;            // defIds assigned, counting defRoot
+
+TemplateDecoder.Layout recordLayout = null;
+                          // With BufrFile.DECODE_RECORDS, the
+                          // specialized decoder for this template,
+                          // or null.  See TemplateDecoder.bind.
+
+ConcurrentHashMap< BufrProjection, boolean[]> projMasks
+  = new ConcurrentHashMap< BufrProjection, boolean[]>();
+                          // Masks of the wanted ops, by projection.
+                          // See BufrProjection.getMask.  Kept on the
+                          // plan, so they go when the plan is dropped.
+
+
+
+
+/**
+ * Compiles the tree under defRoot.
+ * Called by BufrMessage.parseEdesc.
+ */
+
+static DecodePlan compile(
+  DefDesc defRoot,          // root of the expanded DefDesc tree
+  FxyList fxyList)          // section 3 fxy list, after buildDef
+throws BufrException
+{
+  DecodePlan plan = new DecodePlan();
+  plan.defRoot = defRoot;
+  plan.expandedFxys = new int[ fxyList.size()];
+  for (int ii = 0; ii < fxyList.size(); ii++) {
+    plan.expandedFxys[ii] = fxyList.getIx( ii);
+  }
+
+  int len = 0;
+  for (DefDesc def : defRoot.subDefs) {
+    len += countOps( def);
+  }
+  plan.ops = new int[len];
+  plan.opDefs = new DefDesc[len];
+  plan.opDefIds = new int[len];
+  plan.opJump = new int[len];
+  plan.opCount = new int[len];
+  plan.opWidth = new int[len];
+  plan.opScale = new int[len];
+  plan.opRef = new int[len];
+  plan.opKind = new int[len];
+  plan.numOps = 0;
+  plan.maxDepth = 0;
+  plan.numDefIds = 1;                 // defRoot is 1
+
+  for (DefDesc def : defRoot.subDefs) {
+    plan.compileDef( def, 1);
+  }
+  if (plan.numOps != len) throwerr("numOps mismatch");
+  return plan;
+}
+
+
+
+// Returns the number of ops needed for the subtree at def.
+
+static int countOps( DefDesc def) {
+  int num = 1;
+  if (def.fval == 1) {
+    num++;                            // OP_REP_END
+    if (def.yval == 0) num++;         // OP_COUNT
+  }
+  else if (def.fval == 3) num++;      // OP_SEQ_END
+  for (DefDesc subDef : def.subDefs) {
+    num += countOps( subDef);
+  }
+  return num;
+}
+
+
+
+// Appends the ops for the subtree at def.
+
+void compileDef(
+  DefDesc def,
+  int depth)            // nesting depth of def's children
+throws BufrException
+{
+  if (def.fval == 0 || def.fxy == BufrMessage.CUSTOM_ASSOCFLD_FXY) {
+    addValueOp( OP_VALUE, def);
+  }
+
+  else if (def.fval == 1) {         // replication
+    if (depth > maxDepth) maxDepth = depth;
+    int iop = addOp( OP_REP, def);
+    opCount[iop] = def.yval;
+    if (def.yval == 0) {            // delayed replication
+      if (def.countDef == null) throwerr("no countDef for delayed rep");
+      addValueOp( OP_COUNT, def.countDef);
+    }
+    int bodyStart = numOps;
+    for (DefDesc subDef : def.subDefs) {
+      compileDef( subDef, depth + 1);
+    }
+    int iend = addOp( OP_REP_END, def);
+    opJump[iop] = iend;
+    opJump[iend] = bodyStart;
+    opDefIds[iend] = opDefIds[iop];
+  }
+
+  else if (def.fval == 2) {         // operator
+    addOp( OP_OPER, def);
+  }
+
+  else if (def.fval == 3) {         // sequence
+    if (depth > maxDepth) maxDepth = depth;
+    int iop = addOp( OP_SEQ, def);
+    for (DefDesc subDef : def.subDefs) {
+      compileDef( subDef, depth + 1);
+    }
+    int iend = addOp( OP_SEQ_END, def);
+    opJump[iop] = iend;
+    opDefIds[iend] = opDefIds[iop];
+  }
+
+  else throwerr("unknown fval for def: " + def);
+}
+
+
+
+int addOp(
+  int op,
+  DefDesc def)
+{
+  int iop = numOps++;
+  ops[iop] = op;
+  opDefs[iop] = def;
+  // The caller sets the id of an end op
+  if (op != OP_REP_END && op != OP_SEQ_END) opDefIds[iop] = ++numDefIds;
+  opJump[iop] = -1;
+  return iop;
+}
+
+
+
+int addValueOp(
+  int op,
+  DefDesc def)
+throws BufrException
+{
+  int iop = addOp( op, def);
+  opWidth[iop] = def.bitWidth;
+  opScale[iop] = def.scale;
+  opRef[iop] = def.reference;
+  if (def.isString) opKind[iop] = KIND_STRING;
+  else if (def.isNumeric) opKind[iop] = KIND_NUMERIC;
+  else if (def.isBitFlag) opKind[iop] = KIND_BITFLAG;
+  else if (def.isCode) opKind[iop] = KIND_CODE;
+  else opKind[iop] = KIND_UNKNOWN;     // BufrParser will complain
+  return iop;
+}
+
+
+
+
+public String toString() {
+  StringBuilder sbuf = new StringBuilder();
+  sbuf.append("numOps: " + numOps + "  maxDepth: " + maxDepth + "\n");
+  for (int iop = 0; iop < numOps; iop++) {
+    int op = ops[iop];
+    sbuf.append( String.format("  %4d  %-8s %s", iop, opNames[op],
+      BufrUtil.formatFxy( opDefs[iop].fxy)));
+    if (op == OP_VALUE || op == OP_COUNT) {
+      sbuf.append( String.format("  %s  width: %d  scale: %d  ref: %d",
+        kindNames[opKind[iop]], opWidth[iop], opScale[iop], opRef[iop]));
+    }
+    if (op == OP_REP) sbuf.append("  count: " + opCount[iop]);
+    if (opJump[iop] >= 0) sbuf.append("  jump: " + opJump[iop]);
+    sbuf.append("\n");
+  }
+  return sbuf.toString();
+}
+
+
+
+
+
+
+// Inner class
+// Cache of DecodePlans, shared by all files and threads.
+// The key is the raw section 3 fxy list plus the table versions
+// and the TableOverlay stamp, so a table change made by DynDefs
+// causes new plans to be built.
+// When the cache is full it is simply cleared.
+// A maxPlans of 0 caches nothing.
+
+static class PlanCache {
+  static int DEFAULT_MAX_PLANS = 4096;
+
+  int maxPlans;
+  ConcurrentHashMap< String, DecodePlan> planMap
+    = new ConcurrentHashMap< String, DecodePlan>();
+  AtomicLong numHits = new AtomicLong();
+  AtomicLong numMisses = new AtomicLong();
+
+  PlanCache( int maxPlans) {
+    this.maxPlans = maxPlans;
+  }
+
+  static String mkKey(
+    BufrMessage bmsg,
+    FxyList fxyList)       // raw section 3 fxy list
+  {
+    // Each fxy is 16 bits, so it fits in one char.
+    StringBuilder sbuf = new StringBuilder( fxyList.size() + 32);
+    sbuf.append( bmsg.overlay.getStamp() + ":");
+    for (int ii = 0; ii < fxyList.size(); ii++) {
+      sbuf.append( (char) fxyList.getIx( ii));
+    }
+    return sbuf.toString();
+  }
+
+  DecodePlan get( String key) {
+    DecodePlan plan = planMap.get( key);
+    if (plan == null) numMisses.incrementAndGet();
+    else numHits.incrementAndGet();
+    return plan;
+  }
+
+  void put( String key, DecodePlan plan) {
+    if (maxPlans <= 0) return;
+    if (planMap.size() >= maxPlans) planMap.clear();
+    planMap.put( key, plan);
+  }
+
+  public String toString() {
+    String res = "numPlans: " + planMap.size()
+      + "  numHits: " + numHits.get()
+      + "  numMisses: " + numMisses.get();
+    return res;
+  }
+} // end inner class PlanCache
+
+
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("DecodePlan: " + msg);
+}
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
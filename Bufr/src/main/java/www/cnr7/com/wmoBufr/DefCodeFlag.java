@@ -71,6 +71,28 @@ DefCodeFlagRow[] rows = new DefCodeFlagRow[0];
 
 
 
+// Inner class
+// Index of the rows, built on first use by getIndex.
+// Never changed once built: merge discards it.
+
+static class RowIndex {
+  int[] keyLos;                 // sorted keyLo of each row
+  DefCodeFlagRow[] sortedRows;  // rows in order of keyLo
+  DefCodeFlagRow[] bitRows;     // if CFTP_BITFLAG: bitNum -> row, or null
+} // end inner class RowIndex
+
+
+
+// Max bitNum indexed in RowIndex.bitRows.
+// Larger bit numbers use getRow.
+static int MAX_BITNUM = 64;
+
+private volatile RowIndex rowIndex = null;
+
+
+
+
+
 // If not found, returns null.
 
 private DefCodeFlagRow getRow(
@@ -82,19 +104,73 @@ throws BufrException
   if (ikey < 0) throwerr("ikey < 0");
 
   DefCodeFlagRow row = null;
-  for (int irow = 0; irow < rows.length; irow++) {
-    DefCodeFlagRow trow = rows[irow];
-    if (trow.keyLo <= ikey && ikey <= trow.keyHi) {
-      row = trow;
-      break;
+  RowIndex index = getIndex();
+  if (index.keyLos == null) {
+    // Rows overlap: use the first match, as the table specifies.
+    for (int irow = 0; irow < rows.length; irow++) {
+      DefCodeFlagRow trow = rows[irow];
+      if (trow.keyLo <= ikey && ikey <= trow.keyHi) {
+        row = trow;
+        break;
+      }
     }
   }
+  else {
+    // Binary search for the last row having keyLo <= ikey
+    int ipos = Arrays.binarySearch( index.keyLos, ikey);
+    if (ipos < 0) ipos = -ipos - 2;     // insertion point - 1
+    if (ipos >= 0 && ikey <= index.sortedRows[ipos].keyHi)
+      row = index.sortedRows[ipos];
+  }
   return row;
 }
 
 
 
 
+// Returns the RowIndex for rows, building it if need be.
+// If any rows overlap, index.keyLos is null
+// and getRow scans the rows in order.
+
+private RowIndex getIndex()
+throws BufrException
+{
+  RowIndex index = rowIndex;
+  if (index == null) {
+    index = new RowIndex();
+    DefCodeFlagRow[] sorted = rows.clone();
+    Arrays.sort( sorted, new java.util.Comparator< DefCodeFlagRow>() {
+      public int compare( DefCodeFlagRow rowa, DefCodeFlagRow rowb) {
+        return Integer.compare( rowa.keyLo, rowb.keyLo);
+      }
+    });
+    boolean overlap = false;
+    for (int ii = 0; ii < sorted.length - 1; ii++) {
+      if (sorted[ii].keyHi >= sorted[ii+1].keyLo) overlap = true;
+    }
+    if (! overlap) {
+      index.sortedRows = sorted;
+      index.keyLos = new int[ sorted.length];
+      for (int ii = 0; ii < sorted.length; ii++) {
+        index.keyLos[ii] = sorted[ii].keyLo;
+      }
+    }
+    rowIndex = index;   // so getRow below uses the index
+
+    if (cfType == CFTP_BITFLAG) {
+      DefCodeFlagRow[] bitRows = new DefCodeFlagRow[ MAX_BITNUM + 1];
+      for (int bitNum = 1; bitNum <= MAX_BITNUM; bitNum++) {
+        bitRows[bitNum] = getRow( bitNum);
+      }
+      index.bitRows = bitRows;
+    }
+  }
+  return index;
+}
+
+
+
+
 void merge(
   int bugs,
   DefCodeFlag newdef)
@@ -170,6 +246,7 @@ throws BufrException
     } // if ires > 0 && conflict
   } // while true
   rows = Arrays.copyOfRange( resRows, 0, ires);  // update our rows
+  rowIndex = null;
 
   // Check there is no overlap in key ranges
   for (int ii = 0; ii < rows.length - 1; ii++) {
@@ -244,6 +321,7 @@ throws BufrException
     if (ikey == bitMissingValue)
       sv.sstatus = BufrValue.BST_MISSING;
     else {
+      DefCodeFlagRow[] bitRows = getIndex().bitRows;
       sv.value = "";
       for (int bitNum = 1; bitNum <= bitWidth; bitNum++) {
         // Get a 1 bit in position = bitNum.
@@ -252,7 +330,9 @@ throws BufrException
         //         76543210   shift length
         int ival = 1 << (bitWidth - bitNum);
         if ((ikey & ival) != 0) {
-          DefCodeFlagRow row = getRow( bitNum);
+          DefCodeFlagRow row;
+          if (bitRows != null && bitNum <= MAX_BITNUM) row = bitRows[bitNum];
+          else row = getRow( bitNum);
 
           // If any bit row is not found, the entire result is UNKNOWN.
           if (row == null) {
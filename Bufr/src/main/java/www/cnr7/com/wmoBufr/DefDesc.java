@@ -106,7 +106,9 @@ int bitWidth;
 
 String unit = "";     // never null, but may be ""
 
-int defId = 0;        // for debugging and printing only
+// A DefDesc is not changed once it is in a tree, since expanded
+// sequences are shared between trees; see SequenceCache.
+// So the ids printed for each def are kept in DecodePlan.opDefIds.
 
 
 
@@ -136,7 +138,8 @@ throws BufrException
 
 
 // Used to get a clone by TableDesc and TableSeq.
-// We modify the defs by setting defId in DefDesc.setTreeDefId.
+// BufrMessage.buildSequenceDef replaces the subDefs of the clone
+// with their expansions.
 
 DefDesc cloneDef()
 throws BufrException
@@ -165,8 +168,7 @@ throws BufrException
 
 
 public String toString() {
-  String res = "fxy: " + BufrUtil.formatFxy( fxy)
-    + "  defId: " + defId;
+  String res = "fxy: " + BufrUtil.formatFxy( fxy);
   return res;
 }
 
@@ -221,22 +223,5 @@ void clearSubDefs() {
 }
 
 
-
-
-
-// Recursively set defId with preorder depth first search.
-
-int setTreeDefId( int id) {
-  this.defId = id;
-  id++;
-  if (countDef != null)
-    id = countDef.setTreeDefId( id);
-  for (DefDesc def : subDefs) {
-    id = def.setTreeDefId( id);
-  }
-  return id;
-}
-
-
 } // end class
 
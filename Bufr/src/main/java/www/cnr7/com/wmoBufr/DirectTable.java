@@ -0,0 +1,135 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.util.Map;
+
+
+/**
+ * Immutable direct-indexed table: an array indexed by an int key,
+ * such as an fxy code (16 bits), a category number, or a common
+ * code table number.
+ * <p>
+ * The Table* classes keep their entries in a map, which is used
+ * while the tables are read and merged.  Once all the table sources
+ * are merged, {@link TableDesc#freeze TableDesc.freeze} etc. build a
+ * DirectTable from the map.  Lookups then are a bounds check and an
+ * array access: no boxing of the key and no hashing.
+ * <p>
+ * A DirectTable is never changed, so it may be shared by all threads
+ * without locking.  Once frozen the Table* classes are never changed
+ * either: entries defined later by DynDefs go in a TableOverlay.
+ *
+ * @author S. Sullivan
+ */
+
+class DirectTable<V> {
+
+static int MAX_LEN = 1 << 16;   // max num entries: all 16 bit fxy codes
+
+private Object[] vals;          // key -> value, or null
+
+
+
+/**
+ * Builds the table from all entries in map having
+ * 0 &lt;= key &lt; len.  The caller must look up any other keys
+ * in the map; see {@link #inRange inRange}.
+ */
+
+DirectTable(
+  Map< Integer, V> map,
+  int len)
+{
+  vals = new Object[ len];
+  for (Map.Entry< Integer, V> entry : map.entrySet()) {
+    int key = entry.getKey().intValue();
+    if (key >= 0 && key < len) vals[key] = entry.getValue();
+  }
+}
+
+
+
+/**
+ * Returns the length needed to index all the keys of map,
+ * but not more than MAX_LEN.
+ */
+
+static int getLength(
+  Map< Integer, ?> map)
+{
+  int maxKey = -1;
+  for (Integer key : map.keySet()) {
+    maxKey = Math.max( maxKey, key.intValue());
+  }
+  return Math.min( maxKey + 1, MAX_LEN);
+}
+
+
+
+/** Returns true if key can be looked up in this table. */
+
+boolean inRange( int key) {
+  return key >= 0 && key < vals.length;
+}
+
+
+
+/** Returns the value for key, or null.  Key must be inRange. */
+
+@SuppressWarnings("unchecked")
+V get( int key) {
+  return (V) vals[key];
+}
+
+
+
+int size() {
+  int res = 0;
+  for (Object val : vals) {
+    if (val != null) res++;
+  }
+  return res;
+}
+
+
+
+public String toString() {
+  return "DirectTable: len: " + vals.length + "  size: " + size();
+}
+
+
+} // end class
@@ -40,6 +40,9 @@ package www.cnr7.com.wmoBufr;
 
 /**
  * Handles dynDefs - dynamic definitions, by walking the BufrItem tree.
+ * The new entries go in bmsg.overlay, not in the shared tables,
+ * so they are seen only by the later messages of the same file
+ * that use the same tables.
  *
  * @author S. Sullivan
  */
@@ -179,8 +182,7 @@ throws BufrException
 
     String desc = suba.getStg().trim() + " " + subb.getStg().trim();
     DefCateg dynDef = new DefCateg( DefCateg.CATEG_STANDARD, categNum, desc);
-    bfile.tableCateg.addDef( true, dynDef, null);
-                           // allowDups = true, rdr = null
+    bmsg.overlay.addCateg( dynDef);
   } // if 0 00 001
 
 
@@ -367,8 +369,7 @@ throws BufrException
   if (dynDef.description.length() == 0)
     dynDef.description = bmsg.getDescription( dynDef.fxy);
 
-  bfile.tableDescription.addDef( true, dynDef, null);
-                         // allowDups = true, rdr = null
+  bmsg.overlay.addDesc( dynDef);
   if (bugs >= 5) prtln("Add dynDef descriptor: " + dynDef);
  
 } // end defineValue
@@ -450,8 +451,7 @@ throws BufrException
     if (bugs >= 5) prtln("add subDef to sequential dynDef: " + seqSubDef);
   }
 
-  bfile.tableSequence.addSequence( true, dynDef, null);
-                              // allowDups = true, rdr = null
+  bmsg.overlay.addSeq( dynDef);
   if (bugs >= 5) prtln("Add dynDef descriptor: " + dynDef);
 } // end defineSequence
 
@@ -0,0 +1,277 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+
+/**
+ * Provides memory mapped access to a BUFR file.
+ * <p>
+ * The file is mapped in windows of {@link #windowLen windowLen} bytes
+ * so that files of several GB need not be mapped all at once.
+ * Callers scan for the "BUFR" sentinel using
+ * {@link #findSentinel findSentinel}, then get a zero-copy
+ * view of an entire message using {@link #sliceBuffer sliceBuffer}.
+ * A slice remains valid after the window moves on.
+ * <p>
+ * File offsets are longs.  Slices are limited to
+ * windowLen bytes, which is plenty since a BUFR message length
+ * is a 3 byte value.
+ *
+ * @author S. Sullivan
+ */
+
+class MappedFileReader {
+
+static int DEFAULT_WINDOW_LEN = 256 * 1024 * 1024;    // 256 MB
+
+
+int bugs;
+String inFile;                // used only for error messages
+RandomAccessFile raf;
+FileChannel chan;
+long fileLen;                 // total file length
+
+int windowLen;                // num bytes to map at once
+MappedByteBuffer window = null;   // the current window
+long windowStart = 0;         // file offset of window byte 0
+int windowValid = 0;          // num valid bytes in window
+
+
+
+
+MappedFileReader(
+  int bugs,
+  String inFile,
+  int windowLen)
+throws BufrException
+{
+  this.bugs = bugs;
+  this.inFile = inFile;
+  this.windowLen = windowLen;
+  if (windowLen < 1024) throwerr("windowLen too small: " + windowLen);
+  try {
+    raf = new RandomAccessFile( inFile, "r");
+    chan = raf.getChannel();
+    fileLen = chan.size();
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("could not open input file \"" + inFile + "\"");
+  }
+}
+
+
+
+
+public String toString() {
+  String res = "inFile: \"" + inFile + "\""
+    + "  fileLen: " + fileLen
+    + "  windowStart: " + windowStart
+    + "  windowValid: " + windowValid;
+  return res;
+}
+
+
+
+
+
+/**
+ * Insures the current window covers file offsets
+ * pos to pos+len-1, remapping if needed.
+ * The caller insures pos+len <= fileLen.
+ */
+
+void mapWindow(
+  long pos,
+  int len)
+throws BufrException
+{
+  if (window != null
+    && pos >= windowStart
+    && pos + len <= windowStart + windowValid)
+    return;
+
+  long mapLen = Math.max( windowLen, len);
+  mapLen = Math.min( mapLen, fileLen - pos);
+  if (bugs >= 5) prtln("mapWindow: pos: " + pos + "  mapLen: " + mapLen);
+  try {
+    window = chan.map( FileChannel.MapMode.READ_ONLY, pos, mapLen);
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("could not map input file \"" + inFile + "\" at offset " + pos);
+  }
+  windowStart = pos;
+  windowValid = (int) mapLen;
+}
+
+
+
+
+
+
+/**
+ * Scans for the sentinel, starting at file offset startPos.
+ * Returns the file offset of the sentinel, or -1 if not found.
+ */
+
+long findSentinel(
+  byte[] sentinel,
+  long startPos)
+throws BufrException
+{
+  int sentinelLen = sentinel.length;
+  byte first = sentinel[0];
+  long pos = startPos;
+  long foundPos = -1;
+
+  while (foundPos < 0 && pos + sentinelLen <= fileLen) {
+    mapWindow( pos, sentinelLen);
+    int ix = (int) (pos - windowStart);
+    int ilim = windowValid - sentinelLen;   // last possible start in window
+    while (ix <= ilim) {
+      if (window.get( ix) == first) {
+        boolean foundit = true;
+        for (int ii = 1; ii < sentinelLen; ii++) {
+          if (window.get( ix + ii) != sentinel[ii]) {
+            foundit = false;
+            break;
+          }
+        }
+        if (foundit) {
+          foundPos = windowStart + ix;
+          break;
+        }
+      }
+      ix++;
+    }
+    // Continue in the next window.  A sentinel may straddle
+    // the window boundary, so overlap by sentinelLen-1 bytes.
+    pos = windowStart + ix;
+  } // while not found
+
+  if (bugs >= 1 && foundPos > startPos)
+    prtln("findSentinel: numSkipped: " + (foundPos - startPos));
+  return foundPos;
+}
+
+
+
+
+
+/**
+ * Returns the unsigned big-endian integer at
+ * file offset pos, of length nbytes <= 3.
+ */
+
+int getUnsigned(
+  long pos,
+  int nbytes)
+throws BufrException
+{
+  if (pos + nbytes > fileLen) throwerr("file too short");
+  mapWindow( pos, nbytes);
+  return BufrUtil.getUnsigned( window, (int) (pos - windowStart), nbytes);
+}
+
+
+
+
+
+/**
+ * Returns a zero-copy view of file offsets pos to pos+len-1.
+ * If the file is too short, the view is truncated at the end of file.
+ */
+
+ByteBuffer sliceBuffer(
+  long pos,
+  int len)
+throws BufrException
+{
+  if (pos > fileLen) throwerr("pos > fileLen");
+  if (pos + len > fileLen) len = (int) (fileLen - pos);
+  mapWindow( pos, len);
+  return BufrUtil.sliceBuffer( window, (int) (pos - windowStart), len);
+}
+
+
+
+
+
+/**
+ * Closes the input file.
+ * The mapped windows are released by the garbage collector.
+ */
+
+void close()
+throws BufrException
+{
+  try {
+    window = null;
+    chan.close();
+    raf.close();
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("could not close input file");
+  }
+}
+
+
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("MappedFileReader: " + msg);
+}
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
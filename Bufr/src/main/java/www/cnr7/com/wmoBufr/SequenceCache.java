@@ -0,0 +1,168 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Cache of expanded sequence (table D) definitions,
+ * shared by all files and threads.
+ * <p>
+ * BufrMessage.buildSequenceDef expands a sequence by looking up
+ * each element in tables B and D, and recursing into the nested
+ * sequences.  Common templates nest several levels deep, and the
+ * same sequences appear in many templates, so we keep the
+ * expanded subtree of each sequence and reuse it.
+ * DecodePlan.PlanCache handles repeats of an entire section 3;
+ * this handles the sequences shared by different templates.
+ * <p>
+ * The cached subtrees are shared, not copied: a hit returns
+ * the cached DefDesc itself, and it may appear several times
+ * in one tree and in many trees.  So no DefDesc is changed once
+ * it is in a tree.  The defIds, which differ for each place a
+ * def appears, are kept in DecodePlan.opDefIds, not in the defs.
+ * <p>
+ * An expansion is cached only if it doesn't depend on its context:
+ * no associated field (2 04 yyy) is in effect at the start,
+ * the expansion has no 2 04 yyy operator, and no badly formed
+ * replication was moved up into the containing list.
+ * See {@link #isContextFree isContextFree} and
+ * BufrMessage.buildSequenceDef.
+ * <p>
+ * The key is the sequence fxy plus the table versions and
+ * TableOverlay stamp, like DecodePlan.PlanCache, so a table change
+ * made by DynDefs causes new expansions to be built.
+ * When the cache is full it is simply cleared.
+ * A maxSeqs of 0 caches nothing.
+ *
+ * @author S. Sullivan
+ */
+
+class SequenceCache {
+
+static int DEFAULT_MAX_SEQS = 4096;
+
+int maxSeqs;
+ConcurrentHashMap< String, DefDesc> seqMap
+  = new ConcurrentHashMap< String, DefDesc>();
+AtomicLong numHits = new AtomicLong();
+AtomicLong numMisses = new AtomicLong();
+AtomicLong numContextual = new AtomicLong();   // built, but not cacheable
+
+
+
+
+SequenceCache( int maxSeqs) {
+  this.maxSeqs = maxSeqs;
+}
+
+
+
+
+static String mkKey(
+  BufrMessage bmsg,
+  int fxy)
+{
+  // Each fxy is 16 bits, so it fits in one char.
+  String key = bmsg.overlay.getStamp() + ":" + (char) fxy;
+  return key;
+}
+
+
+
+
+/**
+ * Returns the cached expansion for key, or null.
+ * The caller must not change it.
+ */
+
+DefDesc get( String key) {
+  DefDesc def = seqMap.get( key);
+  if (def == null) numMisses.incrementAndGet();
+  else numHits.incrementAndGet();
+  return def;
+}
+
+
+
+
+/**
+ * Caches the expansion def, if it is context free.
+ * The caller must not change def afterwards.
+ */
+
+void put(
+  String key,
+  DefDesc def)
+{
+  if (! isContextFree( def)) numContextual.incrementAndGet();
+  else if (maxSeqs > 0) {
+    if (seqMap.size() >= maxSeqs) seqMap.clear();
+    seqMap.put( key, def);
+  }
+}
+
+
+
+
+/**
+ * Returns false if the subtree has an associated field
+ * operator, 2 04 yyy, which changes the defs that follow it.
+ */
+
+static boolean isContextFree( DefDesc def) {
+  if (def.fval == 2 && def.xval == 4) return false;
+  for (DefDesc subDef : def.subDefs) {
+    if (! isContextFree( subDef)) return false;
+  }
+  return true;
+}
+
+
+
+
+public String toString() {
+  String res = "numSeqs: " + seqMap.size()
+    + "  numHits: " + numHits.get()
+    + "  numMisses: " + numMisses.get()
+    + "  numContextual: " + numContextual.get();
+  return res;
+}
+
+
+} // end class
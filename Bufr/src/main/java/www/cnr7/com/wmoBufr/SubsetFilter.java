@@ -0,0 +1,356 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.util.GregorianCalendar;
+import java.util.LinkedList;
+import java.util.TimeZone;
+
+
+/**
+ * Filter for the -filter parm: keeps only the subsets in a
+ * time window, bounding box, category or station.
+ * The spec has the same syntax as -query; see
+ * {@link BufrIndex.Query#parse BufrIndex.Query.parse}.
+ * <p>
+ * The filter is applied in two steps, so data that fails
+ * is never fully decoded:
+ * <ul>
+ * <li> Whole messages are pruned on the section 1 category
+ *      and time, by {@link #matchesHeader matchesHeader}.
+ *      Then BufrMessage.readData skips section 4 without parsing it.
+ * <li> For the other messages, BufrParser first decodes only
+ *      the descriptors in {@link #projection projection}
+ *      (the time, location or station descriptors) of each subset,
+ *      and {@link #matchesSubset matchesSubset} decides if
+ *      the subset is kept.  Only the kept subsets are then
+ *      decoded in full.
+ * </ul>
+ * A message having no kept subsets is not written at all.
+ * Messages that may define table entries are never pruned,
+ * since later messages may use them.
+ *
+ * @author S. Sullivan
+ */
+
+class SubsetFilter {
+
+
+// The section 1 time is the typical time of the data, so the
+// subset times may differ from it.  A message is pruned on time
+// only if its section 1 time is more than this many seconds
+// outside the time window.
+static int HDR_TIME_SLACK_SECS = 6 * 3600;
+
+// Observation time descriptors: year, month, day, hour, minute, second
+static int[] FXY_TIMES = {
+  BufrUtil.getFxyNoCheck( 0, 4, 1),
+  BufrUtil.getFxyNoCheck( 0, 4, 2),
+  BufrUtil.getFxyNoCheck( 0, 4, 3),
+  BufrUtil.getFxyNoCheck( 0, 4, 4),
+  BufrUtil.getFxyNoCheck( 0, 4, 5),
+  BufrUtil.getFxyNoCheck( 0, 4, 6)};
+
+// Multipliers to form yyyymmddhhmmss from FXY_TIMES
+static long[] timeMults = {
+  10000000000L, 100000000L, 1000000L, 10000L, 100L, 1L};
+
+
+BufrIndex.Query query;
+BufrProjection projection;    // descriptors needed by matchesSubset.
+                              // Null if we only filter on the headers.
+long hdrTimeLo;               // time window widened by the slack
+long hdrTimeHi;
+
+
+
+
+SubsetFilter(
+  BufrIndex.Query query)
+{
+  this.query = query;
+
+  LinkedList<Integer> fxyList = new LinkedList<Integer>();
+  if (query.timeLo != Long.MIN_VALUE || query.timeHi != Long.MAX_VALUE) {
+    for (int fxy : FXY_TIMES) {
+      fxyList.add( fxy);
+    }
+  }
+  if (! Double.isNaN( query.latLo)) {
+    fxyList.add( BufrIndex.FXY_LAT_HIGH);
+    fxyList.add( BufrIndex.FXY_LAT_COARSE);
+    fxyList.add( BufrIndex.FXY_LON_HIGH);
+    fxyList.add( BufrIndex.FXY_LON_COARSE);
+  }
+  if (query.station != null) {
+    fxyList.add( BufrIndex.FXY_WMO_BLOCK);
+    fxyList.add( BufrIndex.FXY_WMO_STATION);
+    fxyList.add( BufrIndex.FXY_SHIP_ID);
+    fxyList.add( BufrIndex.FXY_SHORT_NAME);
+  }
+  if (fxyList.size() > 0) {
+    int[] fxys = new int[ fxyList.size()];
+    int ii = 0;
+    for (int fxy : fxyList) {
+      fxys[ii++] = fxy;
+    }
+    projection = new BufrProjection( fxys);
+  }
+
+  hdrTimeLo = Long.MIN_VALUE;
+  if (query.timeLo != Long.MIN_VALUE)
+    hdrTimeLo = addSeconds( query.timeLo, - HDR_TIME_SLACK_SECS);
+  hdrTimeHi = Long.MAX_VALUE;
+  if (query.timeHi != Long.MAX_VALUE)
+    hdrTimeHi = addSeconds( query.timeHi, HDR_TIME_SLACK_SECS);
+}
+
+
+
+
+/**
+ * Parses a filter spec.  See BufrIndex.Query.parse.
+ */
+
+static SubsetFilter parse( String spec)
+throws BufrException
+{
+  return new SubsetFilter( BufrIndex.Query.parse( spec));
+}
+
+
+
+
+/**
+ * Returns true if the message may have kept subsets, judging by
+ * the section 1 category and time.  Sections 1 and 3 must
+ * have been parsed.
+ */
+
+boolean matchesHeader(
+  BufrMessage bmsg)
+throws BufrException
+{
+  boolean bres = true;
+  if (query.category >= 0 && bmsg.hdrCategory != query.category)
+    bres = false;
+  long hdrTime = getHeaderTime( bmsg);
+  if (hdrTime < hdrTimeLo || hdrTime > hdrTimeHi) bres = false;
+  if (! bres && bmsg.mayDefineTables()) bres = true;
+  return bres;
+}
+
+
+
+
+/**
+ * Returns true if the subset rootItem passes the filter.
+ * rootItem may be the full BufrItem tree, or the flat list of
+ * values decoded using projection.
+ * A subset having no observation time uses the section 1 time.
+ * A subset having no location or station
+ * fails a bbox or station condition.
+ */
+
+boolean matchesSubset(
+  BufrMessage bmsg,
+  BufrItem rootItem)
+{
+  SubsetInfo info = new SubsetInfo();
+  info.addItem( rootItem);
+
+  boolean bres = true;
+  if (query.timeLo != Long.MIN_VALUE || query.timeHi != Long.MAX_VALUE) {
+    long subTime = info.getTime();
+    if (subTime < 0) subTime = getHeaderTime( bmsg);
+    if (subTime < query.timeLo || subTime > query.timeHi) bres = false;
+  }
+  if (bres && ! Double.isNaN( query.latLo)) {
+    if (Double.isNaN( info.latMin) || Double.isNaN( info.lonMin)) bres = false;
+    else if (info.latMax < query.latLo || info.latMin > query.latHi)
+      bres = false;
+    else if (info.lonMax < query.lonLo || info.lonMin > query.lonHi)
+      bres = false;
+  }
+  if (bres && query.station != null) {
+    if (! info.stationList.contains( query.station)) bres = false;
+  }
+  return bres;
+}
+
+
+
+
+// Inner class
+/**
+ * The values of one subset used by matchesSubset.
+ * For time, the first of each descriptor is used.
+ */
+
+static class SubsetInfo {
+  long[] timeParts = { -1, -1, -1, -1, -1, -1};   // see FXY_TIMES
+  double latMin = Double.NaN;
+  double latMax = Double.NaN;
+  double lonMin = Double.NaN;
+  double lonMax = Double.NaN;
+  int wmoBlock = -1;
+  LinkedList<String> stationList = new LinkedList<String>();
+
+
+  void addItem( BufrItem bitem) {
+    if (bitem instanceof BufrValue) {
+      BufrValue bval = (BufrValue) bitem;
+      if (bval.bstatus != BufrValue.BST_MISSING) addValue( bval);
+    }
+    for (BufrItem subItem : bitem.subItems) {
+      addItem( subItem);
+    }
+  }
+
+
+  void addValue( BufrValue bval) {
+    int fxy = bval.def.fxy;
+    double value = bval.doubleValue;
+    for (int ii = 0; ii < FXY_TIMES.length; ii++) {
+      if (fxy == FXY_TIMES[ii] && timeParts[ii] < 0)
+        timeParts[ii] = (long) value;
+    }
+    if (fxy == BufrIndex.FXY_LAT_HIGH || fxy == BufrIndex.FXY_LAT_COARSE) {
+      if (Double.isNaN( latMin) || value < latMin) latMin = value;
+      if (Double.isNaN( latMax) || value > latMax) latMax = value;
+    }
+    else if (fxy == BufrIndex.FXY_LON_HIGH || fxy == BufrIndex.FXY_LON_COARSE)
+    {
+      if (Double.isNaN( lonMin) || value < lonMin) lonMin = value;
+      if (Double.isNaN( lonMax) || value > lonMax) lonMax = value;
+    }
+    else if (fxy == BufrIndex.FXY_WMO_BLOCK) wmoBlock = (int) value;
+    else if (fxy == BufrIndex.FXY_WMO_STATION && wmoBlock >= 0)
+      stationList.add( String.format("%02d%03d", wmoBlock, (int) value));
+    else if (fxy == BufrIndex.FXY_SHIP_ID
+      || fxy == BufrIndex.FXY_SHORT_NAME)
+    {
+      String stg = bval.stringValue.trim();
+      if (stg.length() > 0) stationList.add( stg);
+    }
+  }
+
+
+  // Returns the time as yyyymmddhhmmss, or -1 if the
+  // year, month, day or hour is missing.
+  long getTime() {
+    long res = 0;
+    for (int ii = 0; ii < timeParts.length; ii++) {
+      if (timeParts[ii] < 0) {
+        if (ii < 4) return -1;        // need at least the hour
+      }
+      else res += timeParts[ii] * timeMults[ii];
+    }
+    return res;
+  }
+} // end inner class SubsetInfo
+
+
+
+
+/**
+ * Returns the section 1 time as yyyymmddhhmmss.
+ */
+
+static long getHeaderTime( BufrMessage bmsg) {
+  return bmsg.hdrYear * timeMults[0]
+    + bmsg.hdrMonth * timeMults[1]
+    + bmsg.hdrDay * timeMults[2]
+    + bmsg.hdrHour * timeMults[3]
+    + bmsg.hdrMinute * timeMults[4]
+    + bmsg.hdrSecond;
+}
+
+
+
+
+/**
+ * Adds secs seconds to the time yyyymmddhhmmss.
+ * Out of range fields, like month 00 from a query time "2024",
+ * roll over into the next larger field.
+ */
+
+static long addSeconds(
+  long time,
+  int secs)
+{
+  int[] parts = new int[ timeMults.length];
+  long rem = time;
+  for (int ii = 0; ii < timeMults.length; ii++) {
+    parts[ii] = (int) (rem / timeMults[ii]);
+    rem = rem % timeMults[ii];
+  }
+  GregorianCalendar cal = new GregorianCalendar(
+    TimeZone.getTimeZone("UTC"));
+  cal.clear();
+  cal.set( parts[0], parts[1] - 1, parts[2], parts[3], parts[4], parts[5]);
+  cal.add( GregorianCalendar.SECOND, secs);
+  return cal.get( GregorianCalendar.YEAR) * timeMults[0]
+    + (cal.get( GregorianCalendar.MONTH) + 1) * timeMults[1]
+    + cal.get( GregorianCalendar.DAY_OF_MONTH) * timeMults[2]
+    + cal.get( GregorianCalendar.HOUR_OF_DAY) * timeMults[3]
+    + cal.get( GregorianCalendar.MINUTE) * timeMults[4]
+    + cal.get( GregorianCalendar.SECOND);
+}
+
+
+
+
+public String toString() {
+  String res = "timeLo: " + query.timeLo
+    + "  timeHi: " + query.timeHi
+    + "  category: " + query.category
+    + "  station: " + query.station
+    + "  bbox: " + query.latLo + " " + query.lonLo
+    + " " + query.latHi + " " + query.lonHi
+    + "  projection: " + projection;
+  return res;
+}
+
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
@@ -86,6 +86,12 @@ HashMap< Integer, DefCateg> defMap = new HashMap< Integer, DefCateg>();
 
 int bugs = 0;
 
+// Direct-indexed copy of defMap, built by freeze.  Null until then.
+// Once built the table is never changed: entries defined by DynDefs
+// go in a TableOverlay.  The tables are read and frozen by one thread,
+// and handed to the others by TableRegistry, so they need no locks.
+DirectTable< DefCateg> frozen = null;
+
 
 
 
@@ -111,6 +117,7 @@ void addDef(
   TextReader rdr)
 throws BufrException
 {
+  if (frozen != null) throwerr("table is frozen; see TableOverlay");
   DefCateg oldval = defMap.put( new Integer( def.categNum), def);
   if (oldval != null && ! allowDups) {
     if (rdr == null) throwerr("duplicate def");
@@ -125,11 +132,25 @@ void merge(
   TableCateg table)
 throws BufrException
 {
+  if (frozen != null) throwerr("table is frozen; see TableOverlay");
   defMap.putAll( table.defMap);
 }
 
 
 
+/**
+ * Builds the direct-indexed lookup table from defMap.
+ * Called once all table files have been read and merged.
+ */
+
+void freeze() {
+  frozen = new DirectTable< DefCateg>(
+    defMap, DirectTable.getLength( defMap));
+  if (bugs >= 1) prtln("TableCateg.freeze: " + frozen);
+}
+
+
+
 
 
 
@@ -192,13 +213,30 @@ public String toString() {
 
 
 
+/**
+ * Returns the entry for categNum, or null.  The result is shared,
+ * and must not be changed.
+ */
+
+DefCateg getDef(
+  int categNum)
+{
+  DefCateg res;
+  DirectTable< DefCateg> tab = frozen;
+  if (tab != null && tab.inRange( categNum)) res = tab.get( categNum);
+  else res = defMap.get( Integer.valueOf( categNum));
+  return res;
+}
+
+
+
 // Returns null if not found.
 
 DefCateg getDefCopy(
   int categNum)
 throws BufrException
 {
-  DefCateg res = defMap.get( new Integer( categNum));
+  DefCateg res = getDef( categNum);
   if (res != null) res = res.cloneDef();
   return res;
 }
@@ -35,9 +35,10 @@
 
 package www.cnr7.com.wmoBufr;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -99,6 +100,19 @@ HashMap< Integer, DefCodeFlag> defMap = new HashMap< Integer, DefCodeFlag>();
 
 int bugs = 0;
 
+// Direct-indexed copy of defMap, built by freeze.  Null until then.
+// Once built the table is never changed: entries defined by DynDefs
+// go in a TableOverlay.  The tables are read and frozen by one thread,
+// and handed to the others by TableRegistry, so they need no locks.
+DirectTable< DefCodeFlag> frozen = null;
+
+// Resolved values: mkSvKey(fxy, bitFlag, ikey, bitWidth) -> StatusValue.
+// Cleared when full.
+static int DEFAULT_MAX_STATUS_VALUES = 65536;
+int maxStatusValues = DEFAULT_MAX_STATUS_VALUES;
+ConcurrentHashMap< Long, StatusValue> svCache
+  = new ConcurrentHashMap< Long, StatusValue>();
+
 
 
 
@@ -122,6 +136,7 @@ void merge(
   TableCodeFlag table)
 throws BufrException
 {
+  if (frozen != null) throwerr("table is frozen; see TableOverlay");
   Integer[] keys = table.defMap.keySet().toArray( new Integer[0]);
   Arrays.sort( keys);
   for (Integer key : keys) {
@@ -134,6 +149,19 @@ throws BufrException
 
 
 
+/**
+ * Builds the direct-indexed lookup table from defMap.
+ * Called once all table files have been read and merged.
+ */
+
+void freeze() {
+  frozen = new DirectTable< DefCodeFlag>(
+    defMap, DirectTable.getLength( defMap));
+  if (bugs >= 1) prtln("TableCodeFlag.freeze: " + frozen);
+}
+
+
+
 
 
 
@@ -170,8 +198,7 @@ DefCodeFlag parseSection(
   TextReader rdr)
 throws BufrException
 {
-  String sentinel = rdr.getString();
-  if (! sentinel.equals( sectionSentinel))
+  if (! rdr.matchToken( sectionSentinel))
     rdr.throwfmt("invalid section start");
   DefCodeFlag section = new DefCodeFlag();
   int fval = rdr.getInt();
@@ -179,14 +206,12 @@ throws BufrException
   int yval = rdr.getInt();
   section.fxy = BufrUtil.getFxy( fval, xval, yval);
 
-  sentinel = rdr.getString();
-  if (! sentinel.equals("type:")) rdr.throwfmt("invalid row");
-  String type = rdr.getString();
-  if (type.equals("bitflag"))
+  if (! rdr.matchToken("type:")) rdr.throwfmt("invalid row");
+  if (rdr.matchToken("bitflag"))
     section.cfType = DefCodeFlag.CFTP_BITFLAG;
-  else if (type.equals("codevalue"))
+  else if (rdr.matchToken("codevalue"))
     section.cfType = DefCodeFlag.CFTP_CODEVALUE;
-  else if (type.equals("referral"))
+  else if (rdr.matchToken("referral"))
     section.cfType = DefCodeFlag.CFTP_REFERRAL;
   else rdr.throwfmt("unknown type");
 
@@ -216,38 +241,30 @@ void parseStandardSection(
 throws BufrException
 {
   // Get the rows defining the sequence
-  LinkedList<DefCodeFlagRow> rowList = new LinkedList<DefCodeFlagRow>();
+  ArrayList<DefCodeFlagRow> rowList = new ArrayList<DefCodeFlagRow>();
   while (true) {
     rdr.readLine();
     if (rdr.atEof) break;
-    String sentinel = rdr.getString();
-    if (sentinel.equals(sectionSentinel)) {
-      rdr.setObjNum(0);     // reset to start at curObjs
-      break;
-    }
+    if (rdr.atToken( sectionSentinel)) break;
     DefCodeFlagRow row = new DefCodeFlagRow();
 
-    if (! sentinel.equals("keyLo:")) rdr.throwfmt("invalid row");
+    if (! rdr.matchToken("keyLo:")) rdr.throwfmt("invalid row");
     row.keyLo = rdr.getInt();
 
-    sentinel = rdr.getString();
-    if (! sentinel.equals("keyHi:")) rdr.throwfmt("invalid row");
+    if (! rdr.matchToken("keyHi:")) rdr.throwfmt("invalid row");
     row.keyHi = rdr.getInt();
 
-    sentinel = rdr.getString();
-    if (! sentinel.equals("rowType:")) rdr.throwfmt("invalid row");
-    String type = rdr.getString();
-    if (type.equals("missing"))
+    if (! rdr.matchToken("rowType:")) rdr.throwfmt("invalid row");
+    if (rdr.matchToken("missing"))
       row.rowType = DefCodeFlagRow.CFRTP_MISSING;
-    else if (type.equals("reserved"))
+    else if (rdr.matchToken("reserved"))
       row.rowType = DefCodeFlagRow.CFRTP_RESERVED;
-    else if (type.equals("standard"))
+    else if (rdr.matchToken("standard"))
       row.rowType = DefCodeFlagRow.CFRTP_STANDARD;
     else rdr.throwfmt("unknown type");
 
     if (row.rowType == DefCodeFlagRow.CFRTP_STANDARD) {
-      sentinel = rdr.getString();
-      if (! sentinel.equals("desc:")) rdr.throwfmt("invalid row");
+      if (! rdr.matchToken("desc:")) rdr.throwfmt("invalid row");
       row.description = rdr.getString();
     }
     if (! rdr.atLineEnd()) rdr.throwfmt("invalid line format");
@@ -269,7 +286,8 @@ throws BufrException
     else {
       // Insure the row's key range doesn't overlap a previous row
       if (! allowDups) {
-        for (DefCodeFlagRow trow : rowList) {
+        for (int ii = 0; ii < rowList.size(); ii++) {
+          DefCodeFlagRow trow = rowList.get( ii);
           if (trow.keyHi >= row.keyLo && trow.keyLo <= row.keyHi)
             rdr.throwfmt("duplicate key range in row");
         }
@@ -295,8 +313,7 @@ void parseReferralSection(
 throws BufrException
 {
   rdr.readLine();
-  String sentinel = rdr.getString();
-  if (! sentinel.equals("referralTable:")) rdr.throwfmt("invalid referral");
+  if (! rdr.matchToken("referralTable:")) rdr.throwfmt("invalid referral");
   section.referralTableNum = rdr.getInt();
   String unused = rdr.getString();    // referralNote
   if (! rdr.atLineEnd()) rdr.throwfmt("invalid line format");
@@ -309,6 +326,34 @@ throws BufrException
 
 
 
+/**
+ * Returns the entry for fxy, or null.  The result is shared,
+ * and must not be changed.
+ */
+
+DefCodeFlag getDef(
+  int fxy)
+{
+  DefCodeFlag res;
+  DirectTable< DefCodeFlag> tab = frozen;
+  if (tab != null && tab.inRange( fxy)) res = tab.get( fxy);
+  else res = defMap.get( Integer.valueOf( fxy));
+  return res;
+}
+
+
+
+/**
+ * Returns the StatusValue for ikey in the table for fxy,
+ * or for the common table it refers to.
+ * <p>
+ * Results are kept in svCache, so repeated values
+ * cost one lookup.  The result may be shared,
+ * and must not be changed.
+ * <p>
+ * Never returns null.
+ */
+
 StatusValue getStatusValue(
   int fxy,
   boolean bitFlag,
@@ -317,18 +362,49 @@ StatusValue getStatusValue(
   TableCommon commonTable)
 throws BufrException
 {
-  StatusValue sv = new StatusValue( BufrValue.BST_OK, "");  // returned value
+  Long svKey = null;
+  StatusValue sv = null;
+  if (ikey >= 0 && bitWidth >= 0 && bitWidth <= 0xfff) {
+    svKey = Long.valueOf( mkSvKey( fxy, bitFlag, ikey, bitWidth));
+    sv = svCache.get( svKey);
+  }
 
-  DefCodeFlag cfdef = defMap.get( new Integer( fxy));
-  if (cfdef == null) sv.sstatus = BufrValue.BST_UNKNOWN;
-  else if (cfdef.cfType == DefCodeFlag.CFTP_REFERRAL)
-    sv = commonTable.getStatusValue( cfdef.referralTableNum, ikey);
-  else sv = cfdef.getStatusValue( bitFlag, ikey, bitWidth);
+  if (sv == null) {
+    sv = new StatusValue( BufrValue.BST_OK, "");  // returned value
+    DefCodeFlag cfdef = getDef( fxy);
+    if (cfdef == null) sv.sstatus = BufrValue.BST_UNKNOWN;
+    else if (cfdef.cfType == DefCodeFlag.CFTP_REFERRAL)
+      sv = commonTable.getStatusValue( cfdef.referralTableNum, ikey);
+    else sv = cfdef.getStatusValue( bitFlag, ikey, bitWidth);
+
+    if (svKey != null) {
+      if (svCache.size() >= maxStatusValues) svCache.clear();
+      svCache.put( svKey, sv);
+    }
+  }
   return sv;
 }
 
 
 
+// Packs the StatusValue cache key:
+//   bits 0-31: ikey,  32-43: bitWidth,  44: bitFlag,  45-60: fxy.
+
+static long mkSvKey(
+  int fxy,
+  boolean bitFlag,
+  int ikey,
+  int bitWidth)
+{
+  long res = ((long) (fxy & 0xffff) << 45)
+    | ((bitFlag ? 1L : 0L) << 44)
+    | ((long) bitWidth << 32)
+    | (ikey & 0xffffffffL);
+  return res;
+}
+
+
+
 
 
 
@@ -35,9 +35,9 @@
 
 package www.cnr7.com.wmoBufr;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 
 /**
@@ -85,6 +85,12 @@ HashMap< Integer, DefCommon> defMap = new HashMap< Integer, DefCommon>();
 
 int bugs = 0;
 
+// Direct-indexed copy of defMap, built by freeze.  Null until then.
+// Once built the table is never changed: entries defined by DynDefs
+// go in a TableOverlay.  The tables are read and frozen by one thread,
+// and handed to the others by TableRegistry, so they need no locks.
+DirectTable< DefCommon> frozen = null;
+
 
 
 
@@ -107,11 +113,25 @@ void merge(
   TableCommon table)
 throws BufrException
 {
+  if (frozen != null) throwerr("table is frozen; see TableOverlay");
   defMap.putAll( table.defMap);
 }
 
 
 
+/**
+ * Builds the direct-indexed lookup table from defMap.
+ * Called once all table files have been read and merged.
+ */
+
+void freeze() {
+  frozen = new DirectTable< DefCommon>(
+    defMap, DirectTable.getLength( defMap));
+  if (bugs >= 1) prtln("TableCommon.freeze: " + frozen);
+}
+
+
+
 
 void read(
   boolean allowDups,
@@ -145,8 +165,7 @@ DefCommon parseSection(
   TextReader rdr)
 throws BufrException
 {
-  String sentinel = rdr.getString();
-  if (! sentinel.equals( sectionSentinel))
+  if (! rdr.matchToken( sectionSentinel))
     rdr.throwfmt("invalid section start");
   DefCommon section = new DefCommon();
   section.tableNum = rdr.getInt();
@@ -155,45 +174,38 @@ throws BufrException
   if (bugs >= 5) prtln("parseSection: start section: " + section);
 
   // Get the rows defining the sequence
-  LinkedList<DefCommonRow> rowList = new LinkedList<DefCommonRow>();
+  ArrayList<DefCommonRow> rowList = new ArrayList<DefCommonRow>();
   while (true) {
     rdr.readLine();
     if (rdr.atEof) break;
-    sentinel = rdr.getString();
-    if (sentinel.equals(sectionSentinel)) {
-      rdr.setObjNum(0);     // reset to start at curObjs
-      break;
-    }
+    if (rdr.atToken( sectionSentinel)) break;
     DefCommonRow row = new DefCommonRow();
 
-    if (! sentinel.equals("keyLo:")) rdr.throwfmt("invalid row");
+    if (! rdr.matchToken("keyLo:")) rdr.throwfmt("invalid row");
     row.keyLo = rdr.getInt();
 
-    sentinel = rdr.getString();
-    if (! sentinel.equals("keyHi:")) rdr.throwfmt("invalid row");
+    if (! rdr.matchToken("keyHi:")) rdr.throwfmt("invalid row");
     row.keyHi = rdr.getInt();
 
-    sentinel = rdr.getString();
-    if (! sentinel.equals("rowType:")) rdr.throwfmt("invalid row");
-    String type = rdr.getString();
-    if (type.equals("missing"))
+    if (! rdr.matchToken("rowType:")) rdr.throwfmt("invalid row");
+    if (rdr.matchToken("missing"))
       row.rowType = DefCommonRow.CMRTP_MISSING;
-    else if (type.equals("reserved"))
+    else if (rdr.matchToken("reserved"))
       row.rowType = DefCommonRow.CMRTP_RESERVED;
-    else if (type.equals("standard"))
+    else if (rdr.matchToken("standard"))
       row.rowType = DefCommonRow.CMRTP_STANDARD;
     else rdr.throwfmt("unknown type");
 
     if (row.rowType == DefCommonRow.CMRTP_STANDARD) {
-      sentinel = rdr.getString();
-      if (! sentinel.equals("desc:")) rdr.throwfmt("invalid row");
+      if (! rdr.matchToken("desc:")) rdr.throwfmt("invalid row");
       row.description = rdr.getString();
     }
     if (! rdr.atLineEnd()) rdr.throwfmt("invalid line format");
 
     // Insure the row's key range doesn't overlap a previous row
     if (! allowDups) {
-      for (DefCommonRow trow : rowList) {
+      for (int ii = 0; ii < rowList.size(); ii++) {
+        DefCommonRow trow = rowList.get( ii);
         if (trow.keyHi >= row.keyLo && trow.keyLo <= row.keyHi)
           rdr.throwfmt("duplicate key range in row");
       }
@@ -230,13 +242,30 @@ public String toString() {
 
 
 
+/**
+ * Returns the entry for tableNum, or null.  The result is shared,
+ * and must not be changed.
+ */
+
+DefCommon getDef(
+  int tableNum)
+{
+  DefCommon res;
+  DirectTable< DefCommon> tab = frozen;
+  if (tab != null && tab.inRange( tableNum)) res = tab.get( tableNum);
+  else res = defMap.get( Integer.valueOf( tableNum));
+  return res;
+}
+
+
+
 StatusValue getStatusValue(
   int tableNum,
   int ikey)
 throws BufrException
 {
   StatusValue sv = new StatusValue( BufrValue.BST_OK, "");  // returned value
-  DefCommon comdef = defMap.get( new Integer( tableNum));
+  DefCommon comdef = getDef( tableNum);
   if (comdef == null) sv.sstatus = BufrValue.BST_UNKNOWN;
   else sv = comdef.getStatusValue( ikey);
   return sv;
@@ -278,7 +307,7 @@ public static void main( String[] args) {
     };
 
     for (TestCase test : tests) {
-      BufrValue bvalue = new BufrValue( new DefDesc( 0));
+      BufrValue bvalue = new BufrValue( new DefDesc( 0), 0);
       StatusValue sv = table.getStatusValue( test.tableNum, test.ikey);
       if (bugs >= 1) {
         prtln("");
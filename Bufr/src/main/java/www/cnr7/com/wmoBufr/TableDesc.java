@@ -96,6 +96,12 @@ HashMap< Integer, DefDesc> defMap = new HashMap< Integer, DefDesc>();
 
 int bugs = 0;
 
+// Direct-indexed copy of defMap, built by freeze.  Null until then.
+// Once built the table is never changed: entries defined by DynDefs
+// go in a TableOverlay.  The tables are read and frozen by one thread,
+// and handed to the others by TableRegistry, so they need no locks.
+DirectTable< DefDesc> frozen = null;
+
 
 
 
@@ -121,6 +127,7 @@ void addDef(
   TextReader rdr)
 throws BufrException
 {
+  if (frozen != null) throwerr("table is frozen; see TableOverlay");
   DefDesc oldval = defMap.put( new Integer( def.fxy), def);
   if (oldval != null && ! allowDups) {
     if (rdr == null) throwerr("duplicate def");
@@ -135,6 +142,7 @@ void merge(
   TableDesc table)
 throws BufrException
 {
+  if (frozen != null) throwerr("table is frozen; see TableOverlay");
   Integer[] keys = table.defMap.keySet().toArray( new Integer[0]);
   Arrays.sort( keys);
   for (Integer key : keys) {
@@ -148,6 +156,19 @@ throws BufrException
 
 
 
+/**
+ * Builds the direct-indexed lookup table from defMap.
+ * Called once all table files have been read and merged.
+ */
+
+void freeze() {
+  frozen = new DirectTable< DefDesc>(
+    defMap, DirectTable.getLength( defMap));
+  if (bugs >= 1) prtln("TableDesc.freeze: " + frozen);
+}
+
+
+
 
 
 
@@ -292,11 +313,28 @@ public static void main( String[] args) {
 
 
 
+/**
+ * Returns the entry for fxy, or null.  The result is shared,
+ * and must not be changed.  See getDefCopy.
+ */
+
+DefDesc getDef(
+  int fxy)
+{
+  DefDesc res;
+  DirectTable< DefDesc> tab = frozen;
+  if (tab != null && tab.inRange( fxy)) res = tab.get( fxy);
+  else res = defMap.get( Integer.valueOf( fxy));
+  return res;
+}
+
+
+
 DefDesc getDefCopy(
   int fxy)
 throws BufrException
 {
-  DefDesc res = defMap.get( new Integer( fxy));
+  DefDesc res = getDef( fxy);
   if (res != null) res = res.cloneDef();
   return res;
 }
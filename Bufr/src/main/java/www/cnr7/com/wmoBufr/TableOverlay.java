@@ -0,0 +1,233 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The table entries defined by the messages of one BufrFile
+ * (see {@link DynDefs DynDefs}), laid over the shared tables
+ * of one table version.
+ * <p>
+ * Once the tables of a version are read, TableRegistry freezes them
+ * (TableCateg.freeze etc.), and from then on they are never changed:
+ * they are an immutable snapshot shared by all files and threads.
+ * A dynamic definition goes in the overlay of the file that
+ * defines it, and is seen by the later messages of that file
+ * using the same tables only.  See BufrFile.getOverlay.
+ * <p>
+ * Each lookup checks the overlay first, then the shared table.
+ * The overlay maps are copy-on-write: an add copies the map,
+ * adds the entry, and publishes the new map through a volatile
+ * field, so lookups never lock.  Adds are rare, and
+ * BufrFile.readFullyParallel handles a message that may define
+ * tables alone, after all earlier messages are done.
+ *
+ * @author S. Sullivan
+ */
+
+class TableOverlay {
+
+// Gives each overlay a unique id for the cache keys.
+static AtomicLong overlayCounter = new AtomicLong();
+
+
+TableRegistry.TableSet tableSet;   // the shared tables
+TableCateg baseCateg;
+TableCodeFlag baseCodeFlag;
+TableCommon baseCommon;
+TableDesc baseDesc;
+TableSeq baseSeq;
+
+long overlayId;
+volatile int generation = 0;  // num entries added to this overlay
+
+// Overlay entries.  Null until the first add.
+// Never changed once published: each add makes a new map.
+volatile HashMap< Integer, DefCateg> categMap = null;
+volatile HashMap< Integer, DefDesc> descMap = null;
+volatile HashMap< Integer, DefDesc> seqMap = null;
+
+
+
+
+TableOverlay(
+  TableRegistry.TableSet tableSet)
+{
+  this.tableSet = tableSet;
+  this.baseCateg = tableSet.tabCateg;
+  this.baseCodeFlag = tableSet.tabCodeFlag;
+  this.baseCommon = tableSet.tabCommon;
+  this.baseDesc = tableSet.tabDesc;
+  this.baseSeq = tableSet.tabSeq;
+  overlayId = overlayCounter.incrementAndGet();
+}
+
+
+
+
+/**
+ * Returns the version stamp of the tables as seen through this
+ * overlay, for the DecodePlan cache keys.
+ * While the overlay is empty it is the same for all files using
+ * the same tables, so files without dynamic definitions share
+ * the cached plans.
+ */
+
+String getStamp() {
+  String res = tableSet.key;
+  int gen = generation;
+  if (gen > 0) res += ".o" + overlayId + "." + gen;
+  return res;
+}
+
+
+
+
+// Lookups.  Each returns null if not found.
+
+
+DefCateg getCategCopy(
+  int categNum)
+throws BufrException
+{
+  DefCateg res = null;
+  HashMap< Integer, DefCateg> map = categMap;
+  if (map != null) res = map.get( Integer.valueOf( categNum));
+  if (res == null) res = baseCateg.getDef( categNum);
+  if (res != null) res = res.cloneDef();
+  return res;
+}
+
+
+
+DefDesc getDescCopy(
+  int fxy)
+throws BufrException
+{
+  DefDesc res = null;
+  HashMap< Integer, DefDesc> map = descMap;
+  if (map != null) res = map.get( Integer.valueOf( fxy));
+  if (res == null) res = baseDesc.getDef( fxy);
+  if (res != null) res = res.cloneDef();
+  return res;
+}
+
+
+
+DefDesc getSeqCopy(
+  int fxy)
+throws BufrException
+{
+  DefDesc res = null;
+  HashMap< Integer, DefDesc> map = seqMap;
+  if (map != null) res = map.get( Integer.valueOf( fxy));
+  if (res == null) res = baseSeq.getDef( fxy);
+  if (res != null) res = res.cloneDef();
+  return res;
+}
+
+
+
+
+// Adds.  A new entry replaces any old one with the same key.
+
+
+synchronized void addCateg(
+  DefCateg def)
+{
+  HashMap< Integer, DefCateg> map = new HashMap< Integer, DefCateg>();
+  if (categMap != null) map.putAll( categMap);
+  map.put( Integer.valueOf( def.categNum), def);
+  categMap = map;
+  generation++;
+}
+
+
+
+synchronized void addDesc(
+  DefDesc def)
+{
+  HashMap< Integer, DefDesc> map = new HashMap< Integer, DefDesc>();
+  if (descMap != null) map.putAll( descMap);
+  map.put( Integer.valueOf( def.fxy), def);
+  descMap = map;
+  generation++;
+}
+
+
+
+synchronized void addSeq(
+  DefDesc def)
+{
+  HashMap< Integer, DefDesc> map = new HashMap< Integer, DefDesc>();
+  if (seqMap != null) map.putAll( seqMap);
+  map.put( Integer.valueOf( def.fxy), def);
+  seqMap = map;
+  generation++;
+}
+
+
+
+
+public String toString() {
+  String res = "overlayId: " + overlayId
+    + "  generation: " + generation
+    + "  numCateg: " + (categMap == null ? 0 : categMap.size())
+    + "  numDesc: " + (descMap == null ? 0 : descMap.size())
+    + "  numSeq: " + (seqMap == null ? 0 : seqMap.size());
+  return res;
+}
+
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("TableOverlay: " + msg);
+}
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
@@ -0,0 +1,553 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Registry of the BUFR tables, by table version,
+ * shared by all files and threads.
+ * <p>
+ * Section 1 of each message gives the table versions it uses:
+ * hdrMasterTableVersion, hdrLocalTableVersion, and hdrCentre.
+ * getTables picks the -tabledir sources for those versions
+ * and returns their merged, frozen tables.  The tables for a
+ * set of sources are read on first use, so a run reads only
+ * the versions its messages actually name.
+ * <p>
+ * For a message with master version M, local version L,
+ * and centre C:
+ * <ul>
+ * <li> Use the sources having major version M.  If there are none
+ *   and M <= 13, use the smallest major version in M+1 ... 13,
+ *   since versions <= 13 are backward compatible.
+ *   Otherwise the message is incompatible.
+ * <li> Ignore the sources for a centre other than C.
+ * <li> If the major version is M, then L must be <= the largest
+ *   minor version, and we use the sources having minor version <= L,
+ *   plus always the first source.
+ * </ul>
+ * As before, if the same entry is found in multiple sources,
+ * the last one is used.
+ * <p>
+ * Each set is read by the first thread that needs it, through a
+ * FutureTask in loadMap.  Other threads needing the same set wait
+ * for that task, but threads using other sets do not wait, and
+ * getting a set that is already loaded takes no lock.
+ * <p>
+ * Each set records when it was last used.  When the total number
+ * of table entries exceeds maxEntries, the least recently used
+ * sets are dropped, and will be read again if needed.
+ * The dropping is done under a short lock, after a load.
+ * A file or message still using a dropped set keeps it
+ * until done.  See BufrFile.getOverlay.
+ *
+ * @author S. Sullivan
+ */
+
+class TableRegistry {
+
+static long DEFAULT_MAX_ENTRIES = 500000;
+
+
+// Inner class
+// The merged tables for one set of sources.  Never changed once loaded.
+
+static class TableSet {
+  String key;                    // identifies the sources; see mkSetKey
+  int versionMajor;
+  int versionMinor;              // largest minor version of the sources
+  BufrFile.TableSource[] sources;
+  TableCateg tabCateg;
+  TableCodeFlag tabCodeFlag;
+  TableCommon tabCommon;
+  TableDesc tabDesc;
+  TableSeq tabSeq;
+  long numEntries;               // total size of the tables
+  volatile long lastUse = 0;     // from useCounter, for dropping sets
+
+  public String toString() {
+    String res = "key: " + key
+      + "  numSources: " + sources.length
+      + "  numEntries: " + numEntries;
+    return res;
+  }
+} // end inner class TableSet
+
+
+
+int tableBugs;
+boolean allowDups;
+String tableSnapshot;            // snapshot file name, or null
+boolean requireTables;           // if true, each table must be non-empty
+long maxEntries;
+BufrFile.TableSource[] tableSources;   // sorted by version
+
+// In resolveMap, for versions having no compatible tables
+static String NO_SET = "";
+
+// Resolved versions: "master.local.centre" -> set key,
+// or NO_SET if no tables are compatible.
+ConcurrentHashMap< String, String> resolveMap
+  = new ConcurrentHashMap< String, String>();
+// Set key -> sources
+ConcurrentHashMap< String, BufrFile.TableSource[]> sourceMap
+  = new ConcurrentHashMap< String, BufrFile.TableSource[]>();
+// Set key -> the task loading the set, done once loaded
+ConcurrentHashMap< String, FutureTask<TableSet>> loadMap
+  = new ConcurrentHashMap< String, FutureTask<TableSet>>();
+
+AtomicLong useCounter = new AtomicLong();
+AtomicLong numHits = new AtomicLong();
+AtomicLong numLoads = new AtomicLong();
+long totalEntries = 0;           // of the loaded sets; see addLoaded
+long numEvictions = 0;
+
+// Reads the table files of a set in parallel.  Shared by all loads,
+// so loading many sets doesn't start a pool for each.  See close.
+ExecutorService readPool;
+
+
+
+
+TableRegistry(
+  int tableBugs,
+  boolean allowDups,
+  String tableSnapshot,
+  boolean requireTables,
+  long maxEntries,
+  BufrFile.TableSource[] tableSources)
+{
+  this.tableBugs = tableBugs;
+  this.allowDups = allowDups;
+  this.tableSnapshot = tableSnapshot;
+  this.requireTables = requireTables;
+  this.maxEntries = maxEntries;
+
+  // Stable sort, so sources with the same version keep their order.
+  this.tableSources = Arrays.copyOf( tableSources, tableSources.length);
+  Arrays.sort( this.tableSources, new Comparator<BufrFile.TableSource>() {
+    public int compare( BufrFile.TableSource ta, BufrFile.TableSource tb) {
+      int ires = Integer.compare( ta.versionMajor, tb.versionMajor);
+      if (ires == 0) ires = Integer.compare( ta.versionMinor, tb.versionMinor);
+      return ires;
+    }
+  });
+
+  // The threads are started as needed, so this costs nothing
+  // if the sets all come from snapshots.
+  int numTags = TableSnapshot.tableTags.length;
+  this.readPool = Executors.newFixedThreadPool( Math.min( numTags,
+    Math.max( 1, Runtime.getRuntime().availableProcessors())));
+}
+
+
+
+
+/**
+ * Stops the readPool threads.  Call when done with the registry.
+ */
+
+void close() {
+  readPool.shutdownNow();
+}
+
+
+
+
+/**
+ * Returns the tables for the versions in a message header,
+ * reading them if need be.
+ * Returns null if no tables are compatible with the versions;
+ * see mkVersionError.
+ * <p>
+ * If another thread is reading the same set, waits for it.
+ * If the read fails, each waiting thread gets the exception,
+ * and the next call tries again.
+ */
+
+TableSet getTables(
+  int master,                    // hdrMasterTableVersion
+  int local,                     // hdrLocalTableVersion
+  int centre)                    // hdrCentre
+throws BufrException
+{
+  String vkey = master + "." + local + "." + centre;
+  String setKey = resolveMap.get( vkey);
+  if (setKey == null) {
+    // Resolving is cheap, so two threads may both do it.
+    BufrFile.TableSource[] sources = resolve( master, local, centre);
+    setKey = NO_SET;
+    if (sources != null) {
+      setKey = mkSetKey( sources);
+      sourceMap.putIfAbsent( setKey, sources);
+    }
+    resolveMap.putIfAbsent( vkey, setKey);
+  }
+  if (setKey.equals( NO_SET)) return null;
+
+  final String loadKey = setKey;
+  FutureTask<TableSet> task = loadMap.get( setKey);
+  boolean isLoader = false;
+  if (task == null) {
+    FutureTask<TableSet> newTask = new FutureTask<TableSet>(
+      new Callable<TableSet>() {
+        public TableSet call()
+        throws BufrException
+        {
+          return loadSet( loadKey, sourceMap.get( loadKey));
+        }
+      });
+    task = loadMap.putIfAbsent( setKey, newTask);
+    if (task == null) {
+      // We read the set, in this thread, without any lock.
+      task = newTask;
+      isLoader = true;
+      numLoads.incrementAndGet();
+      task.run();
+    }
+  }
+  if (! isLoader) numHits.incrementAndGet();
+
+  TableSet tset = null;
+  try {
+    tset = task.get();
+  }
+  catch( InterruptedException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("interrupted");
+  }
+  catch( ExecutionException exc) {
+    // Let the next call try again.
+    if (isLoader) loadMap.remove( setKey, task);
+    Throwable cause = exc.getCause();
+    if (cause instanceof BufrException) throw (BufrException) cause;
+    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("caught: " + cause);
+  }
+  tset.lastUse = useCounter.incrementAndGet();
+  if (isLoader) addLoaded( tset);
+  return tset;
+}
+
+
+
+
+/**
+ * Adds the entries of a newly loaded set to totalEntries,
+ * then drops the least recently used sets, other than tset,
+ * while totalEntries > maxEntries.
+ * Sets still being read by other threads are not dropped.
+ */
+
+synchronized void addLoaded( TableSet tset) {
+  totalEntries += tset.numEntries;
+  while (totalEntries > maxEntries) {
+    Map.Entry< String, FutureTask<TableSet>> oldest = null;
+    TableSet oldSet = null;
+    for (Map.Entry< String, FutureTask<TableSet>> ent : loadMap.entrySet()) {
+      TableSet cset = getLoaded( ent.getValue());
+      if (cset != null && cset != tset
+        && (oldSet == null || cset.lastUse < oldSet.lastUse))
+      {
+        oldest = ent;
+        oldSet = cset;
+      }
+    }
+    if (oldSet == null) break;
+    loadMap.remove( oldest.getKey(), oldest.getValue());
+    totalEntries -= oldSet.numEntries;
+    numEvictions++;
+    if (tableBugs >= 1) prtln("TableRegistry: dropped: " + oldSet);
+  }
+}
+
+
+
+
+// Returns the set loaded by task, or null if it is still
+// being read or the read failed.
+
+static TableSet getLoaded( FutureTask<TableSet> task) {
+  TableSet res = null;
+  if (task.isDone()) {
+    try {
+      res = task.get();
+    }
+    catch( InterruptedException exc) {}
+    catch( ExecutionException exc) {}
+  }
+  return res;
+}
+
+
+
+
+/**
+ * Returns the sources to use for the message versions,
+ * in order, or null if none are compatible.
+ */
+
+BufrFile.TableSource[] resolve(
+  int master,
+  int local,
+  int centre)
+{
+  int major = findMajor( master, centre);
+  ArrayList<BufrFile.TableSource> resList
+    = new ArrayList<BufrFile.TableSource>();
+  if (major >= 0) {
+    int maxMinor = -1;
+    for (BufrFile.TableSource tsource : tableSources) {
+      if (isCandidate( tsource, major, centre)) {
+        if (major != master || resList.size() == 0
+          || tsource.versionMinor <= local)
+        {
+          resList.add( tsource);
+        }
+        maxMinor = tsource.versionMinor;
+      }
+    }
+    if (major == master && local > maxMinor) resList.clear();
+  }
+  BufrFile.TableSource[] res = null;
+  if (resList.size() > 0)
+    res = resList.toArray( new BufrFile.TableSource[0]);
+  return res;
+}
+
+
+
+
+// Returns the major version of the tables to use for data
+// having master version master, or -1 if none are compatible.
+
+int findMajor(
+  int master,
+  int centre)
+{
+  int res = -1;
+  for (BufrFile.TableSource tsource : tableSources) {
+    int major = tsource.versionMajor;
+    if (isCandidate( tsource, major, centre)) {
+      if (major == master) {
+        res = major;
+        break;
+      }
+      // Major versions <= 13 allow backward compatibility;
+      // versions >= 14 do not.
+      if (master < major && major <= 13 && res < 0) res = major;
+    }
+  }
+  return res;
+}
+
+
+
+
+static boolean isCandidate(
+  BufrFile.TableSource tsource,
+  int major,
+  int centre)
+{
+  return tsource.versionMajor == major
+    && (tsource.centre < 0 || tsource.centre == centre);
+}
+
+
+
+
+/**
+ * Returns the error message for a message whose versions
+ * have no compatible tables.
+ */
+
+String mkVersionError(
+  int master,
+  int local,
+  int centre)
+{
+  String errmsg = "major";
+  if (findMajor( master, centre) == master) errmsg = "minor";
+  StringBuilder sbuf = new StringBuilder();
+  for (BufrFile.TableSource tsource : tableSources) {
+    sbuf.append( "  " + tsource.versionMajor + "." + tsource.versionMinor);
+    if (tsource.centre >= 0) sbuf.append( " centre " + tsource.centre);
+  }
+  String res = "\nIncompatible " + errmsg + " version numbers:\n"
+    + "  table versions:" + sbuf.toString() + "\n"
+    + "  data  version: major: " + master
+    + "  minor: " + local + "  centre: " + centre + "\n";
+  return res;
+}
+
+
+
+
+// Returns the key for a set of sources: the version and the
+// indices of the sources.  Also used in snapshot file names.
+
+String mkSetKey(
+  BufrFile.TableSource[] sources)
+{
+  BufrFile.TableSource last = sources[sources.length - 1];
+  StringBuilder sbuf = new StringBuilder();
+  sbuf.append( "v" + last.versionMajor + "." + last.versionMinor + "_s");
+  for (int ii = 0; ii < sources.length; ii++) {
+    if (ii > 0) sbuf.append( '-');
+    sbuf.append( Arrays.asList( tableSources).indexOf( sources[ii]));
+  }
+  return sbuf.toString();
+}
+
+
+
+
+// Reads and freezes the tables for one set of sources,
+// using the snapshot if there is one.
+
+TableSet loadSet(
+  String setKey,
+  BufrFile.TableSource[] sources)
+throws BufrException
+{
+  TableSet tset = new TableSet();
+  tset.key = setKey;
+  tset.sources = sources;
+  tset.versionMajor = sources[sources.length - 1].versionMajor;
+  tset.versionMinor = sources[sources.length - 1].versionMinor;
+  tset.tabCateg = new TableCateg( tableBugs);
+  tset.tabCodeFlag = new TableCodeFlag( tableBugs);
+  tset.tabCommon = new TableCommon( tableBugs);
+  tset.tabDesc = new TableDesc( tableBugs);
+  tset.tabSeq = new TableSeq( tableBugs);
+  if (tableBugs >= 1) prtln("TableRegistry: loading: " + setKey);
+
+  // A run using all the sources keeps the -tableSnapshot name as is.
+  String snapName = null;
+  if (tableSnapshot != null) {
+    snapName = tableSnapshot;
+    if (sources.length != tableSources.length)
+      snapName += "." + setKey;
+  }
+
+  boolean snapshotOk = false;
+  if (snapName != null) {
+    snapshotOk = TableSnapshot.load( tableBugs, snapName, allowDups,
+      sources, tset.tabCateg, tset.tabCodeFlag, tset.tabCommon,
+      tset.tabDesc, tset.tabSeq);
+  }
+  if (! snapshotOk) {
+    BufrFile.readTextTables( tableBugs, allowDups, readPool, sources,
+      tset.tabCateg, tset.tabCodeFlag, tset.tabCommon,
+      tset.tabDesc, tset.tabSeq);
+    if (snapName != null) {
+      TableSnapshot.write( tableBugs, snapName, allowDups,
+        sources, tset.tabCateg, tset.tabCodeFlag, tset.tabCommon,
+        tset.tabDesc, tset.tabSeq);
+    }
+  }
+
+  // If we're going to expand descriptors, we need the tables.
+  if (requireTables) {
+    String vstg = " for table version " + setKey;
+    if (tset.tabCateg.size() == 0)
+      throwerr("category table not specified or is empty" + vstg);
+    if (tset.tabCodeFlag.size() == 0)
+      throwerr("codeflag table not specified or is empty" + vstg);
+    if (tset.tabCommon.size() == 0)
+      throwerr("common table not specified or is empty" + vstg);
+    if (tset.tabDesc.size() == 0)
+      throwerr("description table not specified or is empty" + vstg);
+    if (tset.tabSeq.size() == 0)
+      throwerr("sequence table not specified or is empty" + vstg);
+  }
+
+  // Build the direct-indexed lookups.  From here on the tables
+  // are never changed.  Entries defined by DynDefs go in the
+  // TableOverlay of each file.
+  tset.tabCateg.freeze();
+  tset.tabCodeFlag.freeze();
+  tset.tabCommon.freeze();
+  tset.tabDesc.freeze();
+  tset.tabSeq.freeze();
+
+  tset.numEntries = tset.tabCateg.size() + tset.tabCodeFlag.size()
+    + tset.tabCommon.size() + tset.tabDesc.size() + tset.tabSeq.size();
+  return tset;
+}
+
+
+
+
+public synchronized String toString() {
+  String res = "numSets: " + loadMap.size()
+    + "  numEntries: " + totalEntries
+    + "  numHits: " + numHits.get()
+    + "  numLoads: " + numLoads.get()
+    + "  numEvictions: " + numEvictions;
+  return res;
+}
+
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("TableRegistry: " + msg);
+}
+
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+} // end class
@@ -35,9 +35,9 @@
 
 package www.cnr7.com.wmoBufr;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 
 /**
@@ -111,6 +111,12 @@ HashMap< Integer, DefDesc> defMap = new HashMap< Integer, DefDesc>();
 
 int bugs = 0;
 
+// Direct-indexed copy of defMap, built by freeze.  Null until then.
+// Once built the table is never changed: entries defined by DynDefs
+// go in a TableOverlay.  The tables are read and frozen by one thread,
+// and handed to the others by TableRegistry, so they need no locks.
+DirectTable< DefDesc> frozen = null;
+
 
 
 
@@ -139,6 +145,7 @@ void addSequence(
   TextReader rdr)
 throws BufrException
 {
+  if (frozen != null) throwerr("table is frozen; see TableOverlay");
   DefDesc oldval = defMap.put( new Integer( section.fxy), section);
   if (oldval != null && ! allowDups) {
     if (rdr == null) throwerr("duplicate section: " + oldval);
@@ -153,11 +160,25 @@ void merge(
   TableSeq table)
 throws BufrException
 {
+  if (frozen != null) throwerr("table is frozen; see TableOverlay");
   defMap.putAll( table.defMap);
 }
 
 
 
+/**
+ * Builds the direct-indexed lookup table from defMap.
+ * Called once all table files have been read and merged.
+ */
+
+void freeze() {
+  frozen = new DirectTable< DefDesc>(
+    defMap, DirectTable.getLength( defMap));
+  if (bugs >= 1) prtln("TableSeq.freeze: " + frozen);
+}
+
+
+
 
 
 
@@ -194,38 +215,31 @@ DefDesc parseSection(
   TextReader rdr)
 throws BufrException
 {
-  String sentinel = rdr.getString();
-  if (! sentinel.equals( sectionSentinel))
+  if (! rdr.matchToken( sectionSentinel))
     rdr.throwfmt("invalid section start");
   int fval = rdr.getInt();
   int xval = rdr.getInt();
   int yval = rdr.getInt();
   DefDesc section = new DefDesc( fval, xval, yval);
 
-  sentinel = rdr.getString();
-  if (! sentinel.equals("title:")) rdr.throwfmt("invalid section start");
+  if (! rdr.matchToken("title:")) rdr.throwfmt("invalid section start");
   section.description = rdr.getString();
   if (! rdr.atLineEnd()) rdr.throwfmt("invalid line format");
   if (bugs >= 5) prtln("parseSection: start section: " + section);
 
   // Get the rows defining the sequence
-  LinkedList<DefDesc> rowList = new LinkedList<DefDesc>();
+  ArrayList<DefDesc> rowList = new ArrayList<DefDesc>();
   while (true) {
     rdr.readLine();
     if (rdr.atEof) break;
-    sentinel = rdr.getString();
-    if (sentinel.equals(sectionSentinel)) {
-      rdr.setObjNum(0);     // reset to start at curObjs
-      break;
-    }
-    if (! sentinel.equals( rowSentinel)) rdr.throwfmt("invalid row");
+    if (rdr.atToken( sectionSentinel)) break;
+    if (! rdr.matchToken( rowSentinel)) rdr.throwfmt("invalid row");
     fval = rdr.getInt();
     xval = rdr.getInt();
     yval = rdr.getInt();
     DefDesc subVal = new DefDesc( fval, xval, yval);
 
-    sentinel = rdr.getString();
-    if (! sentinel.equals("desc:")) rdr.throwfmt("invalid row");
+    if (! rdr.matchToken("desc:")) rdr.throwfmt("invalid row");
     subVal.description = rdr.getString();
     if (! rdr.atLineEnd()) rdr.throwfmt("invalid line format");
 
@@ -254,11 +268,28 @@ public String toString() {
 
 
 
+/**
+ * Returns the entry for fxy, or null.  The result is shared,
+ * and must not be changed.  See getDefCopy.
+ */
+
+DefDesc getDef(
+  int fxy)
+{
+  DefDesc res;
+  DirectTable< DefDesc> tab = frozen;
+  if (tab != null && tab.inRange( fxy)) res = tab.get( fxy);
+  else res = defMap.get( Integer.valueOf( fxy));
+  return res;
+}
+
+
+
 DefDesc getDefCopy(
   int fxy)
 throws BufrException
 {
-  DefDesc res = defMap.get( new Integer( fxy));
+  DefDesc res = getDef( fxy);
   if (res != null) res = res.cloneDef();
   return res;
 }
@@ -0,0 +1,529 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Set;
+
+
+/**
+ * Binary snapshot of the merged tables, so BufrFile need not
+ * parse the formatted text tables on every run.
+ * <p>
+ * With -tableSnapshot, BufrFile.processFiles calls {@link #load load}.
+ * If the snapshot is missing or stale, processFiles reads the
+ * text tables as usual and then calls {@link #write write}
+ * to replace the snapshot.
+ * <p>
+ * The snapshot records, for each -tabledir, the version, the
+ * canonical directory name, and the length and modification time
+ * of each table file.  If any of these differ from the current
+ * -tabledir specs, or the snapshot has a different FORMAT_VERSION
+ * or allowDups, the snapshot is stale.
+ * <p>
+ * Format: all ints are big endian.  Strings are an int byte length,
+ * -1 for null, followed by the UTF-8 bytes.
+ * <pre>
+ *   int MAGIC, int FORMAT_VERSION, int allowDups (0 or 1)
+ *   int numSources, then for each source:
+ *     int versionMajor, int versionMinor, string canonical dirName
+ *     for each of tableTags: long length (-1 if not found), long mtime
+ *   categ:    int num, then each: categType categNum description
+ *   codeFlag: int num, then each: fxy cfType referralTableNum
+ *               bitMissingValue, int numRows, then each row:
+ *               keyLo keyHi rowType description
+ *   common:   int num, then each: tableNum title,
+ *               int numRows, then each row: keyLo keyHi rowType description
+ *   desc:     int num, then each: fxy, int typeFlags (see DESC_*),
+ *               scale reference bitWidth description unit
+ *   seq:      int num, then each: fxy description,
+ *               int numSubs, then each sub: fxy description
+ *   int MAGIC
+ * </pre>
+ *
+ * @author S. Sullivan
+ */
+
+class TableSnapshot {
+
+static int MAGIC = 0x42554652;        // "BUFR"
+static int FORMAT_VERSION = 1;
+
+// The table files in each -tabledir, without the ".formatted" suffix.
+static String[] tableTags = {
+  "categTab", "codeFlagTab", "commonTab", "descTab", "seqTab"};
+
+// Bits in the DefDesc typeFlags
+static int DESC_RESERVED = 1;
+static int DESC_STRING   = 2;
+static int DESC_NUMERIC  = 4;
+static int DESC_BITFLAG  = 8;
+static int DESC_CODE     = 16;
+
+static Charset utf8 = Charset.forName("UTF-8");
+
+
+
+
+/**
+ * Returns the name of the formatted table file for tag
+ * within the tabledir of tsource.
+ */
+
+static String getTableFileName(
+  BufrFile.TableSource tsource,
+  String tag)
+{
+  String slash = System.getProperty("file.separator");
+  return tsource.dirName + slash + tag + ".formatted";
+}
+
+
+
+
+/**
+ * Loads the tables from the snapshot file fname into the
+ * empty tables tabCateg etc.
+ * Returns false, leaving the tables empty,
+ * if the snapshot is not found or is stale.
+ */
+
+static boolean load(
+  int bugs,
+  String fname,
+  boolean allowDups,
+  BufrFile.TableSource[] tableSources,
+  TableCateg tabCateg,
+  TableCodeFlag tabCodeFlag,
+  TableCommon tabCommon,
+  TableDesc tabDesc,
+  TableSeq tabSeq)
+throws BufrException
+{
+  boolean bres = false;
+  File sfile = new File( fname);
+  if (! sfile.isFile()) {
+    if (bugs >= 1) prtln("TableSnapshot: not found: " + fname);
+  }
+  else {
+    ByteBuffer buf = null;
+    try {
+      RandomAccessFile raf = new RandomAccessFile( sfile, "r");
+      FileChannel chan = raf.getChannel();
+      buf = chan.map( FileChannel.MapMode.READ_ONLY, 0, chan.size());
+      chan.close();
+      raf.close();
+    }
+    catch( IOException exc) {
+      BufrUtil.prtlnexc("caught", exc);
+      throwerr("could not map snapshot file \"" + fname + "\"");
+    }
+
+    String staleMsg = checkHeader( buf, allowDups, tableSources);
+    if (staleMsg != null) {
+      if (bugs >= 0)
+        prtln("TableSnapshot: stale: " + fname + ": " + staleMsg);
+    }
+    else {
+      try {
+        readTables( buf, tabCateg, tabCodeFlag, tabCommon, tabDesc, tabSeq);
+      }
+      catch( RuntimeException exc) {   // BufferUnderflowException, etc
+        BufrUtil.prtlnexc("caught", exc);
+        throwerr("invalid snapshot file \"" + fname + "\"");
+      }
+      if (buf.getInt() != MAGIC)
+        throwerr("invalid snapshot trailer in \"" + fname + "\"");
+      bres = true;
+      if (bugs >= 1) prtln("TableSnapshot: loaded: " + fname
+        + "  categ: " + tabCateg.size()
+        + "  codeFlag: " + tabCodeFlag.size()
+        + "  common: " + tabCommon.size()
+        + "  desc: " + tabDesc.size()
+        + "  seq: " + tabSeq.size());
+    }
+  }
+  return bres;
+}
+
+
+
+
+// Returns null if the header in buf matches the current
+// tableSources; else returns a message saying why not.
+// On return buf is positioned after the header.
+
+static String checkHeader(
+  ByteBuffer buf,
+  boolean allowDups,
+  BufrFile.TableSource[] tableSources)
+throws BufrException
+{
+  String msg = null;
+  try {
+    if (buf.getInt() != MAGIC) msg = "not a table snapshot";
+    else if (buf.getInt() != FORMAT_VERSION) msg = "format version differs";
+    else if ((buf.getInt() != 0) != allowDups) msg = "allowDups differs";
+    else if (buf.getInt() != tableSources.length)
+      msg = "number of tabledirs differs";
+    else {
+      for (BufrFile.TableSource tsource : tableSources) {
+        if (buf.getInt() != tsource.versionMajor
+          || buf.getInt() != tsource.versionMinor)
+        {
+          msg = "table version differs for: " + tsource.dirName;
+          break;
+        }
+        String dirName = getString( buf);
+        if (! BufrUtil.getCanonicalPath( tsource.dirName).equals( dirName)) {
+          msg = "tabledir differs: " + tsource.dirName;
+          break;
+        }
+        for (String tag : tableTags) {
+          File tfile = new File( getTableFileName( tsource, tag));
+          long[] stamp = getStamp( tfile);
+          if (buf.getLong() != stamp[0] || buf.getLong() != stamp[1]) {
+            msg = "table file has changed: " + tfile;
+            break;
+          }
+        }
+        if (msg != null) break;
+      }
+    }
+  }
+  catch( RuntimeException exc) {   // BufferUnderflowException, etc
+    msg = "invalid header: " + exc;
+  }
+  return msg;
+}
+
+
+
+
+// Returns {length, modification time} of tfile,
+// or {-1, -1} if tfile is not found.
+
+static long[] getStamp( File tfile) {
+  long[] res = {-1, -1};
+  if (tfile.isFile()) {
+    res[0] = tfile.length();
+    res[1] = tfile.lastModified();
+  }
+  return res;
+}
+
+
+
+
+static void readTables(
+  ByteBuffer buf,
+  TableCateg tabCateg,
+  TableCodeFlag tabCodeFlag,
+  TableCommon tabCommon,
+  TableDesc tabDesc,
+  TableSeq tabSeq)
+throws BufrException
+{
+  int num = buf.getInt();
+  for (int ii = 0; ii < num; ii++) {
+    int categType = buf.getInt();
+    int categNum = buf.getInt();
+    DefCateg def = new DefCateg( categType, categNum, getString( buf));
+    tabCateg.defMap.put( Integer.valueOf( def.categNum), def);
+  }
+
+  num = buf.getInt();
+  for (int ii = 0; ii < num; ii++) {
+    DefCodeFlag def = new DefCodeFlag();
+    def.fxy = buf.getInt();
+    def.cfType = buf.getInt();
+    def.referralTableNum = buf.getInt();
+    def.bitMissingValue = buf.getInt();
+    def.rows = new DefCodeFlagRow[ buf.getInt()];
+    for (int irow = 0; irow < def.rows.length; irow++) {
+      DefCodeFlagRow row = new DefCodeFlagRow();
+      row.keyLo = buf.getInt();
+      row.keyHi = buf.getInt();
+      row.rowType = buf.getInt();
+      row.description = getString( buf);
+      def.rows[irow] = row;
+    }
+    tabCodeFlag.defMap.put( Integer.valueOf( def.fxy), def);
+  }
+
+  num = buf.getInt();
+  for (int ii = 0; ii < num; ii++) {
+    DefCommon def = new DefCommon();
+    def.tableNum = buf.getInt();
+    def.title = getString( buf);
+    def.rows = new DefCommonRow[ buf.getInt()];
+    for (int irow = 0; irow < def.rows.length; irow++) {
+      DefCommonRow row = new DefCommonRow();
+      row.keyLo = buf.getInt();
+      row.keyHi = buf.getInt();
+      row.rowType = buf.getInt();
+      row.description = getString( buf);
+      def.rows[irow] = row;
+    }
+    tabCommon.defMap.put( Integer.valueOf( def.tableNum), def);
+  }
+
+  num = buf.getInt();
+  for (int ii = 0; ii < num; ii++) {
+    DefDesc def = new DefDesc( buf.getInt());
+    int typeFlags = buf.getInt();
+    def.isReserved = (typeFlags & DESC_RESERVED) != 0;
+    def.isString = (typeFlags & DESC_STRING) != 0;
+    def.isNumeric = (typeFlags & DESC_NUMERIC) != 0;
+    def.isBitFlag = (typeFlags & DESC_BITFLAG) != 0;
+    def.isCode = (typeFlags & DESC_CODE) != 0;
+    def.scale = buf.getInt();
+    def.reference = buf.getInt();
+    def.bitWidth = buf.getInt();
+    def.description = getString( buf);
+    def.unit = getString( buf);
+    tabDesc.defMap.put( Integer.valueOf( def.fxy), def);
+  }
+
+  num = buf.getInt();
+  for (int ii = 0; ii < num; ii++) {
+    DefDesc def = new DefDesc( buf.getInt());
+    def.description = getString( buf);
+    def.subDefs = new DefDesc[ buf.getInt()];
+    for (int isub = 0; isub < def.subDefs.length; isub++) {
+      DefDesc sub = new DefDesc( buf.getInt());
+      sub.description = getString( buf);
+      def.subDefs[isub] = sub;
+    }
+    tabSeq.defMap.put( Integer.valueOf( def.fxy), def);
+  }
+}
+
+
+
+
+static String getString( ByteBuffer buf) {
+  String res = null;
+  int len = buf.getInt();
+  if (len >= 0) {
+    byte[] bytes = new byte[len];
+    buf.get( bytes);
+    res = new String( bytes, utf8);
+  }
+  return res;
+}
+
+
+
+
+/**
+ * Writes the merged tables to the snapshot file fname.
+ * Writes to a temp file first and then renames it,
+ * so other runs never see a partial snapshot.
+ */
+
+static void write(
+  int bugs,
+  String fname,
+  boolean allowDups,
+  BufrFile.TableSource[] tableSources,
+  TableCateg tabCateg,
+  TableCodeFlag tabCodeFlag,
+  TableCommon tabCommon,
+  TableDesc tabDesc,
+  TableSeq tabSeq)
+throws BufrException
+{
+  File sfile = new File( fname);
+  File tmpFile = new File( fname + ".tmp");
+  try {
+    DataOutputStream dout = new DataOutputStream(
+      new BufferedOutputStream( new FileOutputStream( tmpFile)));
+
+    dout.writeInt( MAGIC);
+    dout.writeInt( FORMAT_VERSION);
+    dout.writeInt( allowDups ? 1 : 0);
+    dout.writeInt( tableSources.length);
+    for (BufrFile.TableSource tsource : tableSources) {
+      dout.writeInt( tsource.versionMajor);
+      dout.writeInt( tsource.versionMinor);
+      putString( dout, BufrUtil.getCanonicalPath( tsource.dirName));
+      for (String tag : tableTags) {
+        long[] stamp = getStamp( new File( getTableFileName( tsource, tag)));
+        dout.writeLong( stamp[0]);
+        dout.writeLong( stamp[1]);
+      }
+    }
+
+    // Write the entries in order of key, so the file is reproducible
+    Integer[] keys = getSortedKeys( tabCateg.defMap.keySet());
+    dout.writeInt( keys.length);
+    for (Integer key : keys) {
+      DefCateg def = tabCateg.defMap.get( key);
+      dout.writeInt( def.categType);
+      dout.writeInt( def.categNum);
+      putString( dout, def.description);
+    }
+
+    keys = getSortedKeys( tabCodeFlag.defMap.keySet());
+    dout.writeInt( keys.length);
+    for (Integer key : keys) {
+      DefCodeFlag def = tabCodeFlag.defMap.get( key);
+      dout.writeInt( def.fxy);
+      dout.writeInt( def.cfType);
+      dout.writeInt( def.referralTableNum);
+      dout.writeInt( def.bitMissingValue);
+      dout.writeInt( def.rows.length);
+      for (DefCodeFlagRow row : def.rows) {
+        dout.writeInt( row.keyLo);
+        dout.writeInt( row.keyHi);
+        dout.writeInt( row.rowType);
+        putString( dout, row.description);
+      }
+    }
+
+    keys = getSortedKeys( tabCommon.defMap.keySet());
+    dout.writeInt( keys.length);
+    for (Integer key : keys) {
+      DefCommon def = tabCommon.defMap.get( key);
+      dout.writeInt( def.tableNum);
+      putString( dout, def.title);
+      dout.writeInt( def.rows.length);
+      for (DefCommonRow row : def.rows) {
+        dout.writeInt( row.keyLo);
+        dout.writeInt( row.keyHi);
+        dout.writeInt( row.rowType);
+        putString( dout, row.description);
+      }
+    }
+
+    keys = getSortedKeys( tabDesc.defMap.keySet());
+    dout.writeInt( keys.length);
+    for (Integer key : keys) {
+      DefDesc def = tabDesc.defMap.get( key);
+      int typeFlags = 0;
+      if (def.isReserved) typeFlags |= DESC_RESERVED;
+      if (def.isString) typeFlags |= DESC_STRING;
+      if (def.isNumeric) typeFlags |= DESC_NUMERIC;
+      if (def.isBitFlag) typeFlags |= DESC_BITFLAG;
+      if (def.isCode) typeFlags |= DESC_CODE;
+      dout.writeInt( def.fxy);
+      dout.writeInt( typeFlags);
+      dout.writeInt( def.scale);
+      dout.writeInt( def.reference);
+      dout.writeInt( def.bitWidth);
+      putString( dout, def.description);
+      putString( dout, def.unit);
+    }
+
+    keys = getSortedKeys( tabSeq.defMap.keySet());
+    dout.writeInt( keys.length);
+    for (Integer key : keys) {
+      DefDesc def = tabSeq.defMap.get( key);
+      dout.writeInt( def.fxy);
+      putString( dout, def.description);
+      dout.writeInt( def.subDefs.length);
+      for (DefDesc sub : def.subDefs) {
+        dout.writeInt( sub.fxy);
+        putString( dout, sub.description);
+      }
+    }
+
+    dout.writeInt( MAGIC);
+    dout.close();
+  }
+  catch( IOException exc) {
+    BufrUtil.prtlnexc("caught", exc);
+    throwerr("could not write snapshot file \"" + tmpFile + "\"");
+  }
+
+  sfile.delete();
+  if (! tmpFile.renameTo( sfile))
+    throwerr("could not rename \"" + tmpFile + "\" to \"" + sfile + "\"");
+  if (bugs >= 1) prtln("TableSnapshot: wrote: " + fname);
+}
+
+
+
+
+static Integer[] getSortedKeys( Set< Integer> keySet) {
+  Integer[] keys = keySet.toArray( new Integer[0]);
+  Arrays.sort( keys);
+  return keys;
+}
+
+
+
+
+static void putString(
+  DataOutputStream dout,
+  String stg)
+throws IOException
+{
+  if (stg == null) dout.writeInt( -1);
+  else {
+    byte[] bytes = stg.getBytes( utf8);
+    dout.writeInt( bytes.length);
+    dout.write( bytes);
+  }
+}
+
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("TableSnapshot: " + msg);
+}
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
@@ -0,0 +1,524 @@
+
+// Copyright (c) 2008, UCAR (University Corporation for Atmospheric Research)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or
+// without modification, are permitted provided that the following
+// conditions are met:
+//     * Redistributions of source code must retain the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+//       copyright notice, this list of conditions and the
+//       following disclaimer in the documentation and/or other
+//       materials provided with the distribution.
+//     * Neither the name of the UCAR nor the names of its
+//       contributors may be used to endorse or promote products
+//       derived from this software without specific
+//       prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+// CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+// INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+// BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+// EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+// TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+// 
+// (This is the Simplified BSD License of 2008.)
+
+
+package www.cnr7.com.wmoBufr;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * Specialized decoders for a few heavily used WMO templates:
+ * 3 07 080 (SYNOP), 3 09 052 (TEMP), and 3 15 003 and 3 15 004
+ * (ocean profiles).
+ * <p>
+ * With BufrFile.DECODE_RECORDS, a message that is not compressed and
+ * whose section 3 starts with one of these sequences is decoded
+ * straight into one {@link Record Record} per subset:
+ * the header values (station, time, position, ...) in one
+ * primitive array, and for profiles one primitive array per
+ * level field, such as the pressure, temperature and dew-point
+ * of each level of a sounding.
+ * No BufrItem or BufrValue objects are made.
+ * Other messages are decoded by the generic BufrParser.
+ * <p>
+ * Each decoder names the fields it wants, and the Table B fxys
+ * that may hold them.  The widths and positions of the values
+ * depend on the table version, so they are not hard coded:
+ * {@link #bind bind} matches the fields against the ops of each
+ * DecodePlan once, and the resulting {@link Layout Layout} is kept
+ * with the plan in the PlanCache.  Decoding a subset is then a single
+ * pass over the ops that reads each value and stores or skips it.
+ * <p>
+ * Plans with 2 xx yyy operators, which change the widths as we go,
+ * are not bound and use the generic parser.
+ *
+ * @author S. Sullivan
+ */
+
+class TemplateDecoder {
+
+
+static int fx( int fval, int xval, int yval) {
+  return BufrUtil.getFxyNoCheck( fval, xval, yval);
+}
+
+
+// Header fields common to all decoders: Record.fields[0] to [8].
+static String[] commonNames = {
+  "block", "station", "year", "month", "day", "hour", "minute",
+  "lat", "lon"};
+static int[][] commonFxys = {
+  { fx(0,1,1) },
+  { fx(0,1,2) },
+  { fx(0,4,1) },
+  { fx(0,4,2) },
+  { fx(0,4,3) },
+  { fx(0,4,4) },
+  { fx(0,4,5) },
+  { fx(0,5,1), fx(0,5,2) },
+  { fx(0,6,1), fx(0,6,2) }};
+
+// Character fields for Record.ident: ship id, station name.
+static int[] identFxys = { fx(0,1,11), fx(0,1,15), fx(0,1,18) };
+
+
+static TemplateDecoder[] decoders = {
+
+  new TemplateDecoder( "surface",
+    new int[] { fx(3,7,80) },
+    new String[] { "elevation", "pressure", "mslPressure", "temperature",
+      "dewpoint", "humidity", "windDir", "windSpeed", "visibility"},
+    new int[][] {
+      { fx(0,7,30), fx(0,7,1) },
+      { fx(0,10,4) },
+      { fx(0,10,51) },
+      { fx(0,12,101), fx(0,12,1) },
+      { fx(0,12,103), fx(0,12,3) },
+      { fx(0,13,3) },
+      { fx(0,11,1) },
+      { fx(0,11,2) },
+      { fx(0,20,1) }},
+    null, null, null),
+
+  new TemplateDecoder( "sounding",
+    new int[] { fx(3,9,52) },
+    new String[] { "elevation"},
+    new int[][] {
+      { fx(0,7,30), fx(0,7,1) }},
+    new int[] { fx(0,7,4) },
+    new String[] { "pressure", "height", "temperature", "dewpoint",
+      "windDir", "windSpeed"},
+    new int[][] {
+      { fx(0,7,4) },
+      { fx(0,10,9) },
+      { fx(0,12,101), fx(0,12,1) },
+      { fx(0,12,103), fx(0,12,3) },
+      { fx(0,11,1) },
+      { fx(0,11,2) }}),
+
+  new TemplateDecoder( "oceanProfile",
+    new int[] { fx(3,15,3), fx(3,15,4) },
+    new String[] { "platform"},
+    new int[][] {
+      { fx(0,1,87) }},
+    new int[] { fx(0,7,62), fx(0,7,65) },
+    new String[] { "depth", "pressure", "temperature", "salinity"},
+    new int[][] {
+      { fx(0,7,62) },
+      { fx(0,7,65) },
+      { fx(0,22,45), fx(0,22,43) },
+      { fx(0,22,64), fx(0,22,62) }})};
+
+
+// The decoders by the sequence fxys they handle.
+static HashMap<Integer,TemplateDecoder> registry = mkRegistry();
+
+
+
+
+String name;              // template name, like "sounding"
+int[] rootFxys;           // section 3 sequences handled by this decoder
+String[] fieldNames;      // header fields: one value per subset
+int[][] fieldFxys;        // for each field, the fxys that may hold it
+int[] levelKeyFxys;       // the level loop is the first replication
+                          // holding one of these.  Null if no levels.
+String[] levelNames;      // level fields: one value per level.
+int[][] levelFxys;        // for each level field, the fxys.
+
+
+
+
+TemplateDecoder(
+  String name,
+  int[] rootFxys,
+  String[] extraNames,      // header fields after the common fields
+  int[][] extraFxys,
+  int[] levelKeyFxys,
+  String[] levelNames,
+  int[][] levelFxys)
+{
+  this.name = name;
+  this.rootFxys = rootFxys;
+  int numCommon = commonNames.length;
+  fieldNames = new String[ numCommon + extraNames.length];
+  fieldFxys = new int[ numCommon + extraNames.length][];
+  System.arraycopy( commonNames, 0, fieldNames, 0, numCommon);
+  System.arraycopy( commonFxys, 0, fieldFxys, 0, numCommon);
+  System.arraycopy( extraNames, 0, fieldNames, numCommon, extraNames.length);
+  System.arraycopy( extraFxys, 0, fieldFxys, numCommon, extraFxys.length);
+  this.levelKeyFxys = levelKeyFxys;
+  this.levelNames = levelNames == null ? new String[0] : levelNames;
+  this.levelFxys = levelFxys == null ? new int[0][] : levelFxys;
+}
+
+
+
+
+static HashMap<Integer,TemplateDecoder> mkRegistry() {
+  HashMap<Integer,TemplateDecoder> res
+    = new HashMap<Integer,TemplateDecoder>();
+  for (TemplateDecoder dec : decoders) {
+    for (int fxy : dec.rootFxys) {
+      res.put( fxy, dec);
+    }
+  }
+  return res;
+}
+
+
+
+// Returns the index in fxyLists of the list containing fxy, or -1.
+
+static int findFxy(
+  int[][] fxyLists,
+  int fxy)
+{
+  int res = -1;
+  for (int ii = 0; ii < fxyLists.length && res < 0; ii++) {
+    for (int tfxy : fxyLists[ii]) {
+      if (tfxy == fxy) res = ii;
+    }
+  }
+  return res;
+}
+
+
+
+
+/**
+ * Returns the Layout of plan for the decoder registered for
+ * the first fxy of section 3, or null if there is none
+ * or the plan has operators.
+ * Called by BufrMessage.parseEdesc when the plan is compiled.
+ */
+
+static Layout bind(
+  DecodePlan plan)
+{
+  Layout lay = null;
+  TemplateDecoder dec = null;
+  if (plan.defRoot.subDefs.length > 0)
+    dec = registry.get( plan.defRoot.subDefs[0].fxy);
+  if (dec != null) {
+    boolean hasOper = false;
+    for (int iop = 0; iop < plan.numOps; iop++) {
+      if (plan.ops[iop] == DecodePlan.OP_OPER) hasOper = true;
+    }
+    if (! hasOper) lay = new Layout( dec, plan);
+  }
+  return lay;
+}
+
+
+
+
+// Inner class
+/**
+ * The values of one subset decoded by a TemplateDecoder.
+ * Missing values are NaN.
+ * For the level fields only the first numLevels entries are used.
+ */
+
+static class Record {
+  Layout layout;            // the layout that made this record
+  String ident = null;      // ship id or station name, or null
+  double[] fields;          // header values, by decoder.fieldNames
+  int numLevels = 0;
+  double[][] levels;        // [level field][level], by decoder.levelNames
+
+  Record( Layout layout) {
+    this.layout = layout;
+    TemplateDecoder dec = layout.decoder;
+    fields = new double[ dec.fieldNames.length];
+    Arrays.fill( fields, Double.NaN);
+    levels = new double[ dec.levelNames.length][ 0];
+  }
+
+  // Adds num levels, all missing.
+  void addLevels( int num) {
+    int newLen = numLevels + num;
+    for (int ilev = 0; ilev < levels.length; ilev++) {
+      if (levels[ilev].length < newLen) {
+        double[] newVals = new double[ newLen];
+        System.arraycopy( levels[ilev], 0, newVals, 0, numLevels);
+        levels[ilev] = newVals;
+      }
+      Arrays.fill( levels[ilev], numLevels, newLen, Double.NaN);
+    }
+    numLevels = newLen;
+  }
+
+  public String toString() {
+    String res = "template: " + layout.decoder.name
+      + "  ident: " + ident
+      + "  numLevels: " + numLevels;
+    return res;
+  }
+} // end inner class Record
+
+
+
+
+// Inner class
+/**
+ * A TemplateDecoder bound to one DecodePlan: for each op, where its
+ * value goes in the Record.  Like the plan, never changed once made,
+ * so it is shared by all messages and threads.
+ */
+
+static class Layout {
+  TemplateDecoder decoder;
+  DecodePlan plan;
+  int[] opField;            // for OP_VALUE: index in Record.fields, or -1
+  int[] opLevel;            // for OP_VALUE: index in Record.levels, or -1
+  boolean[] opIdent;        // for OP_VALUE: true if it is Record.ident
+  double[] opFactor;        // for OP_VALUE: 10^-scale
+  int levelRepOp = -1;      // the op of the level loop, or -1
+  int[] fieldScales;        // scale of each field, for formatting
+  int[] levelScales;        // scale of each level field
+
+  Layout(
+    TemplateDecoder decoder,
+    DecodePlan plan)
+  {
+    this.decoder = decoder;
+    this.plan = plan;
+    int numOps = plan.numOps;
+    opField = new int[ numOps];
+    opLevel = new int[ numOps];
+    opIdent = new boolean[ numOps];
+    opFactor = new double[ numOps];
+    fieldScales = new int[ decoder.fieldNames.length];
+    levelScales = new int[ decoder.levelNames.length];
+
+    // The level loop is the first replication holding a key fxy.
+    if (decoder.levelKeyFxys != null) {
+      for (int iop = 0; iop < numOps && levelRepOp < 0; iop++) {
+        if (plan.ops[iop] == DecodePlan.OP_REP) {
+          for (int jop = iop + 1; jop < plan.opJump[iop]; jop++) {
+            if (plan.ops[jop] == DecodePlan.OP_VALUE) {
+              for (int kfxy : decoder.levelKeyFxys) {
+                if (plan.opDefs[jop].fxy == kfxy) levelRepOp = iop;
+              }
+            }
+          }
+        }
+      }
+    }
+    int levelEnd = levelRepOp < 0 ? -1 : plan.opJump[levelRepOp];
+
+    for (int iop = 0; iop < numOps; iop++) {
+      opField[iop] = -1;
+      opLevel[iop] = -1;
+      if (plan.ops[iop] != DecodePlan.OP_VALUE) continue;
+      int fxy = plan.opDefs[iop].fxy;
+      int kind = plan.opKind[iop];
+      boolean inLevel = iop > levelRepOp && iop < levelEnd;
+      if (kind == DecodePlan.KIND_STRING) {
+        for (int ifxy : identFxys) {
+          if (fxy == ifxy && ! inLevel) opIdent[iop] = true;
+        }
+      }
+      else if (kind == DecodePlan.KIND_NUMERIC) {
+        int scale = plan.opScale[iop];
+        opFactor[iop] = Math.pow( 10, -scale);
+        if (inLevel) {
+          int ilev = findFxy( decoder.levelFxys, fxy);
+          opLevel[iop] = ilev;
+          if (ilev >= 0) levelScales[ilev] = scale;
+        }
+        else {
+          int ifield = findFxy( decoder.fieldFxys, fxy);
+          opField[iop] = ifield;
+          if (ifield >= 0) fieldScales[ifield] = scale;
+        }
+      }
+    }
+  }
+
+
+
+  /**
+   * Decodes all subsets of bmsg, starting at the current
+   * dataBuf position.  Returns one Record per subset,
+   * or null if a delayed replication count is missing.
+   * Then the caller should reset dataBuf and use BufrParser.
+   */
+
+  Record[] decodeMessage(
+    BufrMessage bmsg,
+    BitBufReader dataBuf)
+  throws BufrException
+  {
+    Record[] recs = new Record[ bmsg.numSubsets];
+    for (int isub = 0; isub < bmsg.numSubsets; isub++) {
+      recs[isub] = decodeSubset( dataBuf);
+      if (recs[isub] == null) return null;
+    }
+    // Insure we have < 2 bytes remaining at the end,
+    // like BufrParser.checkDataEnd.
+    if (dataBuf.getRemainBitLen() >= 16)
+      throwerr("decodeMessage: remLen >= 16  msgNum: " + bmsg.msgNum);
+    return recs;
+  }
+
+
+
+  // Runs the plan for one subset, like BufrParser.runFlat,
+  // but stores the wanted values in a new Record.
+  // Returns null if a delayed replication count is missing
+  // (all ones), since we can't know the length of the loop.
+
+  Record decodeSubset(
+    BitBufReader dataBuf)
+  throws BufrException
+  {
+    Record rec = new Record( this);
+    int stackLen = plan.maxDepth + 1;
+    int[] iterStack = new int[stackLen];          // current iteration
+    int[] numItersStack = new int[stackLen];      // total iterations
+    int depth = 0;
+    int levelDepth = -1;    // if in the level loop, its depth
+    int levelBase = 0;      // index of its first level in rec
+
+    int iop = 0;
+    while (iop < plan.numOps) {
+      int op = plan.ops[iop];
+
+      if (op == DecodePlan.OP_VALUE) {
+        int numBits = plan.opWidth[iop];
+        if (opIdent[iop]) {
+          String stg = dataBuf.getTrimString( numBits);
+          if (rec.ident == null) rec.ident = stg;
+        }
+        else if (opField[iop] < 0 && opLevel[iop] < 0)
+          dataBuf.skipBits( numBits);
+        else {
+          int encval = dataBuf.getInt( numBits);
+          double val = Double.NaN;
+          if (! BufrUtil.isAllOnes( numBits, encval))
+            val = (encval + plan.opRef[iop]) * opFactor[iop];
+          if (opLevel[iop] >= 0) {
+            if (levelDepth >= 0)
+              rec.levels[opLevel[iop]][levelBase + iterStack[levelDepth]]
+                = val;
+          }
+          else if (Double.isNaN( rec.fields[opField[iop]]))
+            rec.fields[opField[iop]] = val;      // first one wins
+        }
+        iop++;
+      }
+
+      // 3 xx yyy: sequence (table D).  Nothing to read.
+      else if (op == DecodePlan.OP_SEQ || op == DecodePlan.OP_SEQ_END) {
+        iop++;
+      }
+
+      // 1 xx yyy: replication
+      else if (op == DecodePlan.OP_REP) {
+        int bodyStart = iop + 1;
+        int numIters = plan.opCount[iop];
+        if (numIters == 0) {          // If delayed replication ...
+          int countBits = plan.opWidth[iop + 1];
+          numIters = dataBuf.getInt( countBits);
+          if (BufrUtil.isAllOnes( countBits, numIters)) return null;
+          bodyStart++;
+        }
+        if (iop == levelRepOp) {
+          levelDepth = depth;
+          levelBase = rec.numLevels;
+          rec.addLevels( numIters);
+        }
+        if (numIters == 0) {
+          if (iop == levelRepOp) levelDepth = -1;
+          iop = plan.opJump[iop] + 1;   // skip the loop
+        }
+        else {
+          iterStack[depth] = 0;
+          numItersStack[depth] = numIters;
+          depth++;
+          iop = bodyStart;
+        }
+      }
+
+      else if (op == DecodePlan.OP_REP_END) {
+        int iter = iterStack[depth-1] + 1;
+        if (iter < numItersStack[depth-1]) {   // start the next iteration
+          iterStack[depth-1] = iter;
+          iop = plan.opJump[iop];
+        }
+        else {                                 // loop is done
+          depth--;
+          if (depth == levelDepth) levelDepth = -1;
+          iop++;
+        }
+      }
+
+      else throwerr("unexpected op: " + DecodePlan.opNames[op]);
+    } // while iop
+
+    if (depth != 0) throwerr("decodeSubset: depth != 0 at end");
+    return rec;
+  }
+
+
+
+  public String toString() {
+    String res = "template: " + decoder.name
+      + "  numOps: " + plan.numOps
+      + "  levelRepOp: " + levelRepOp;
+    return res;
+  }
+} // end inner class Layout
+
+
+
+
+
+static void throwerr( String msg)
+throws BufrException
+{
+  throw new BufrException("TemplateDecoder: " + msg);
+}
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+
+} // end class
@@ -0,0 +1,388 @@
+
+package www.cnr7.com.wmoBufr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+
+
+// Writes a small set of BUFR tables, and a BUFR file that uses them,
+// so the Test* drivers need no outside data.
+//
+// The file has edition 4 messages of two templates:
+//   sounding: uncompressed, category 2: station, lat, lon, station type,
+//     and a delayed replication of pressure, temperature, dew-point.
+//   surface: compressed, category 0: station, lat, lon, temperature,
+//     dew-point.  Some values are missing, and the dew-point is
+//     missing in every subset.
+// Each template is used by several messages, so the plan cache
+// gets hits.  One sounding message has no subsets for STATION,
+// so a filter on STATION drops it whole.
+
+class TestData {
+
+
+static String TABLE_VERSION = "13.0";
+static String STATION = "54511";    // found in some subsets of most messages
+
+static int[][] SOUNDING_FXYS = {
+  { 3, 1, 1}, { 0, 5, 2}, { 0, 6, 2}, { 0, 2, 1},
+  { 1, 1, 0}, { 0, 31, 1}, { 3, 3, 14}};
+
+static int[][] SURFACE_FXYS = {
+  { 3, 1, 1}, { 0, 5, 2}, { 0, 6, 2}, { 0, 12, 1}, { 0, 12, 3}};
+
+
+
+
+// Writes dir/tables/*.formatted and dir/test.bufr.
+
+static void writeAll( String dir)
+throws Exception
+{
+  File tabdir = new File( dir + "/tables");
+  TestUtil.deleteDir( tabdir);
+  if (! tabdir.mkdirs()) throw new Exception("cannot create: " + tabdir);
+  writeTables( tabdir.getPath());
+
+  ByteArrayOutputStream bout = new ByteArrayOutputStream();
+  bout.write( mkSounding( 12, 511, 0));
+  bout.write( mkSurface( 6, 0));
+  bout.write( mkSounding( 3, 520, 1));       // no subsets for STATION
+  bout.write( mkSounding( 1, 511, 2));
+  bout.write( mkSounding( 12, 511, 3));
+  bout.write( mkSurface( 9, 1));
+  FileOutputStream fout = new FileOutputStream( dir + "/test.bufr");
+  try {
+    bout.writeTo( fout);
+  }
+  finally {
+    fout.close();
+  }
+}
+
+
+
+
+static void writeTables( String dir)
+throws Exception
+{
+  writeFile( dir + "/categTab.formatted",
+    "0 0 standard \"Surface data - land\"",
+    "1 1 standard \"Surface data - sea\"",
+    "2 2 standard \"Vertical soundings (other than satellite)\"",
+    "3 255 reserved \"Reserved\"");
+
+  writeFile( dir + "/commonTab.formatted",
+    "commonCodeTable: 1 \"Originating centres\"",
+    "keyLo: 0 keyHi: 0 rowType: standard desc: \"WMO Secretariat\"",
+    "keyLo: 1 keyHi: 37 rowType: reserved",
+    "keyLo: 38 keyHi: 38 rowType: standard desc: \"Beijing\"",
+    "keyLo: 65535 keyHi: 65535 rowType: missing");
+
+  writeFile( dir + "/codeFlagTab.formatted",
+    "sectionFxy: 0 2 1 type: codevalue",
+    "keyLo: 0 keyHi: 0 rowType: standard desc: \"Automatic station\"",
+    "keyLo: 1 keyHi: 1 rowType: standard desc: \"Manned station\"",
+    "keyLo: 2 keyHi: 2 rowType: reserved",
+    "keyLo: 3 keyHi: 3 rowType: missing");
+
+  writeFile( dir + "/descTab.formatted",
+    "0 1 1 numeric 0 0 7 \"WMO block number\" \"Numeric\"",
+    "0 1 2 numeric 0 0 10 \"WMO station number\" \"Numeric\"",
+    "0 2 1 code 0 0 2 \"Type of station\" \"Code table\"",
+    "0 5 2 numeric 2 -9000 15 \"Latitude (coarse accuracy)\" \"Degree\"",
+    "0 6 2 numeric 2 -18000 16 \"Longitude (coarse accuracy)\" \"Degree\"",
+    "0 7 4 numeric -1 0 14 \"Pressure\" \"Pa\"",
+    "0 12 1 numeric 1 0 12 \"Temperature/dry-bulb temperature\" \"K\"",
+    "0 12 3 numeric 1 0 12 \"Dew-point temperature\" \"K\"",
+    "0 31 1 numeric 0 0 8 \"Delayed descriptor replication factor\""
+      + " \"Numeric\"");
+
+  writeFile( dir + "/seqTab.formatted",
+    "defineFxy: 3 1 1 title: \"WMO block and station numbers\"",
+    "rowFxy: 0 1 1 desc: \"WMO block number\"",
+    "rowFxy: 0 1 2 desc: \"WMO station number\"",
+    "defineFxy: 3 3 14 title: \"Pressure, temperature, dew-point\"",
+    "rowFxy: 0 7 4 desc: \"Pressure\"",
+    "rowFxy: 0 12 1 desc: \"Temperature\"",
+    "rowFxy: 0 12 3 desc: \"Dew-point\"");
+}
+
+
+
+
+// Writes the tableVersion line and then the lines.
+
+static void writeFile(
+  String fname,
+  String... lines)
+throws Exception
+{
+  FileWriter wtr = new FileWriter( fname);
+  try {
+    wtr.write("tableVersion 13 0\n");
+    for (String line : lines) {
+      wtr.write( line + "\n");
+    }
+  }
+  finally {
+    wtr.close();
+  }
+}
+
+
+
+
+// Returns a sounding message.  Every third subset is for STATION;
+// the others are for stations from firstStation + 1 on.
+// If firstStation is not 511, no subset is for STATION.
+// The seed varies the values between messages.
+
+static byte[] mkSounding(
+  int numSubsets,
+  int firstStation,
+  int seed)
+throws Exception
+{
+  BitWriter bits = new BitWriter();
+  for (int isub = 0; isub < numSubsets; isub++) {
+    int station = firstStation + 1 + isub;
+    if (firstStation == 511 && isub % 3 == 0) station = 511;
+    bits.put( 7, 54);
+    bits.put( 10, station);
+    bits.put( 15, enc( 39.93 + isub + seed, 2, -9000));
+    bits.put( 16, enc( 116.28 - isub - seed, 2, -18000));
+    bits.put( 2, isub % 2);
+
+    int numLevels = (isub + seed) % 4;
+    bits.put( 8, numLevels);
+    for (int ilev = 0; ilev < numLevels; ilev++) {
+      bits.put( 14, enc( 100000 - ilev * 15000, -1, 0));
+      if (isub == 5 && ilev == 1) bits.putMissing( 12);
+      else bits.put( 12, enc( 288.2 - ilev * 10.5 + seed, 1, 0));
+      bits.put( 12, enc( 280.1 - ilev * 11 + seed, 1, 0));
+    }
+  }
+  return mkMessage( 2, SOUNDING_FXYS, numSubsets, false, bits.toBytes());
+}
+
+
+
+
+// Returns a compressed surface message for stations 511 on.
+
+static byte[] mkSurface(
+  int numSubsets,
+  int seed)
+throws Exception
+{
+  Integer[] blocks = new Integer[numSubsets];
+  Integer[] stations = new Integer[numSubsets];
+  Integer[] lats = new Integer[numSubsets];
+  Integer[] lons = new Integer[numSubsets];
+  Integer[] temps = new Integer[numSubsets];
+  Integer[] dews = new Integer[numSubsets];
+  for (int isub = 0; isub < numSubsets; isub++) {
+    blocks[isub] = 54;
+    stations[isub] = 511 + isub;
+    lats[isub] = enc( 30.0 + isub * 0.5, 2, -9000);
+    lons[isub] = enc( 120.0 - isub - seed, 2, -18000);
+    if (isub != 1) temps[isub] = enc( 280 + isub + seed, 1, 0);
+  }
+
+  BitWriter bits = new BitWriter();
+  putCompressed( bits, 7, blocks);
+  putCompressed( bits, 10, stations);
+  putCompressed( bits, 15, lats);
+  putCompressed( bits, 16, lons);
+  putCompressed( bits, 12, temps);
+  putCompressed( bits, 12, dews);
+  return mkMessage( 0, SURFACE_FXYS, numSubsets, true, bits.toBytes());
+}
+
+
+
+
+// Writes one compressed element: the minimum, the increment width,
+// and the increments.  A null value is missing.
+
+static void putCompressed(
+  BitWriter bits,
+  int width,
+  Integer[] vals)
+throws Exception
+{
+  boolean anyMissing = false;
+  int minVal = Integer.MAX_VALUE;
+  int maxVal = Integer.MIN_VALUE;
+  for (Integer val : vals) {
+    if (val == null) anyMissing = true;
+    else {
+      minVal = Math.min( minVal, val.intValue());
+      maxVal = Math.max( maxVal, val.intValue());
+    }
+  }
+
+  if (minVal > maxVal) {          // all missing
+    bits.putMissing( width);
+    bits.put( 6, 0);
+  }
+  else {
+    // Leave room for the all-ones missing increment
+    long range = maxVal - minVal + (anyMissing ? 1 : 0);
+    int incWidth = 0;
+    while ((1L << incWidth) - 1 < range) incWidth++;
+    bits.put( width, minVal);
+    bits.put( 6, incWidth);
+    if (incWidth > 0) {
+      for (Integer val : vals) {
+        if (val == null) bits.putMissing( incWidth);
+        else bits.put( incWidth, val.intValue() - minVal);
+      }
+    }
+  }
+}
+
+
+
+
+// Returns an edition 4 message: sections 0, 1, 3, 4, and 5.
+
+static byte[] mkMessage(
+  int category,
+  int[][] fxys,
+  int numSubsets,
+  boolean compressed,
+  byte[] data)
+throws Exception
+{
+  ByteArrayOutputStream sec1 = new ByteArrayOutputStream();
+  putInt( sec1, 3, 22);                 // section length
+  putInt( sec1, 1, 0);                  // master table
+  putInt( sec1, 2, 38);                 // originating centre
+  putInt( sec1, 2, 0);                  // subcentre
+  putInt( sec1, 1, 0);                  // update sequence
+  putInt( sec1, 1, 0);                  // no section 2
+  putInt( sec1, 1, category);
+  putInt( sec1, 1, 0);                  // international subcategory
+  putInt( sec1, 1, 0);                  // local subcategory
+  putInt( sec1, 1, 13);                 // master table version
+  putInt( sec1, 1, 0);                  // local table version
+  putInt( sec1, 2, 2024);
+  putInt( sec1, 1, 5);
+  putInt( sec1, 1, 17);
+  putInt( sec1, 1, 12);
+  putInt( sec1, 1, 30);
+  putInt( sec1, 1, 0);
+
+  ByteArrayOutputStream sec3 = new ByteArrayOutputStream();
+  putInt( sec3, 3, 7 + 2 * fxys.length);
+  putInt( sec3, 1, 0);
+  putInt( sec3, 2, numSubsets);
+  putInt( sec3, 1, compressed ? 0xc0 : 0x80);    // observed data
+  for (int[] fxy : fxys) {
+    putInt( sec3, 2, (fxy[0] << 14) | (fxy[1] << 8) | fxy[2]);
+  }
+
+  ByteArrayOutputStream sec4 = new ByteArrayOutputStream();
+  putInt( sec4, 3, 4 + data.length);
+  putInt( sec4, 1, 0);
+  sec4.write( data);
+
+  int totLen = 8 + sec1.size() + sec3.size() + sec4.size() + 4;
+  ByteArrayOutputStream msg = new ByteArrayOutputStream();
+  msg.write( "BUFR".getBytes("US-ASCII"));
+  putInt( msg, 3, totLen);
+  putInt( msg, 1, 4);                   // edition
+  sec1.writeTo( msg);
+  sec3.writeTo( msg);
+  sec4.writeTo( msg);
+  msg.write( "7777".getBytes("US-ASCII"));
+  return msg.toByteArray();
+}
+
+
+
+
+// Writes val as nbyte bytes, high byte first.
+
+static void putInt(
+  ByteArrayOutputStream bout,
+  int nbyte,
+  int val)
+{
+  for (int ii = nbyte - 1; ii >= 0; ii--) {
+    bout.write( (val >> (8 * ii)) & 0xff);
+  }
+}
+
+
+
+
+// Returns the encoded value: val * 10^scale - ref.
+
+static int enc(
+  double val,
+  int scale,
+  int ref)
+{
+  return (int) Math.round( val * Math.pow( 10, scale)) - ref;
+}
+
+
+
+
+
+// Inner class
+// Appends values to a byte array, high bit first.
+// BitBufWriter prints each value, so it is too noisy here.
+
+static class BitWriter {
+
+ByteArrayOutputStream bout = new ByteArrayOutputStream();
+int curByte = 0;
+int numBits = 0;               // num bits in curByte
+
+void put(
+  int width,
+  long val)
+throws Exception
+{
+  if (val < 0 || val >= (1L << width))
+    throw new Exception("value does not fit: width: " + width
+      + "  val: " + val);
+  for (int ii = width - 1; ii >= 0; ii--) {
+    curByte = (curByte << 1) | (int) ((val >> ii) & 1);
+    numBits++;
+    if (numBits == 8) {
+      bout.write( curByte);
+      curByte = 0;
+      numBits = 0;
+    }
+  }
+}
+
+
+void putMissing( int width)
+throws Exception
+{
+  put( width, (1L << width) - 1);
+}
+
+
+// Returns the bytes, with the last byte padded with zeros.
+
+byte[] toBytes() {
+  if (numBits > 0) {
+    bout.write( curByte << (8 - numBits));
+    curByte = 0;
+    numBits = 0;
+  }
+  return bout.toByteArray();
+}
+
+} // end inner class BitWriter
+
+} // end class
@@ -0,0 +1,155 @@
+
+package www.cnr7.com.wmoBufr;
+
+import java.io.File;
+import java.util.ArrayList;
+
+
+// Checks -filter "station=..." against the full output: each
+// filtered file must be the full file minus the subsets for other
+// stations, and messages with no matching subsets must not be written.
+
+public class TestFilter {
+
+
+public static void main( String[] args) {
+  try { runit( args); }
+  catch( Exception exc) {
+    prtln("caught: " + exc);
+    exc.printStackTrace();
+    System.exit(1);
+  }
+}
+
+
+
+static void runit( String[] args)
+throws Exception
+{
+  TestUtil.Parms parms = TestUtil.parseParms("TestFilter", args, true,
+    "  -station        <stg>    WMO block and station; default: "
+      + TestData.STATION);
+  String station = parms.extra.get("-station");
+  if (station == null) station = TestData.STATION;
+  if (! station.matches("\\d{5}")) throw new Exception("invalid -station");
+  String workdir = parms.workdir;
+
+  // The lines that identify the station in the XML
+  String blockLine = "dkey=\"0_01_001\"  value=\""
+    + Integer.parseInt( station.substring( 0, 2)) + "\"";
+  String stationLine = "dkey=\"0_01_002\"  value=\""
+    + Integer.parseInt( station.substring( 2)) + "\"";
+
+  TestUtil.runBufr( parms, workdir + "/full");
+  TestUtil.runBufr( parms, workdir + "/filter",
+    "-filter", "station=" + station);
+
+  int nfile = 0;
+  int ndrop = 0;
+  int nsubset = 0;
+  for (String name : TestUtil.listNames( workdir + "/full")) {
+    ArrayList<String[]> segs = getSegments(
+      TestUtil.readLines( workdir + "/full/" + name));
+
+    // Keep the subsets for the station
+    ArrayList<String> expLines = new ArrayList<String>();
+    int nkeep = 0;
+    for (String[] seg : segs) {
+      boolean keep = true;
+      if (seg[0].startsWith("<subset ")) {
+        keep = contains( seg, blockLine) && contains( seg, stationLine);
+        if (keep) nkeep++;
+      }
+      if (keep) {
+        for (String line : seg) {
+          expLines.add( line);
+        }
+      }
+    }
+
+    File ffile = new File( workdir + "/filter/" + name);
+    if (nkeep == 0) {
+      if (ffile.exists())
+        throw new Exception("file should not be written: " + ffile);
+      ndrop++;
+    }
+    else {
+      if (! ffile.exists())
+        throw new Exception("file not written: " + ffile);
+      ArrayList<String> gotLines = new ArrayList<String>();
+      for (String[] seg : getSegments( TestUtil.readLines( ffile.getPath())))
+      {
+        for (String line : seg) {
+          gotLines.add( line);
+        }
+      }
+      TestUtil.compareLines( expLines.toArray( new String[0]),
+        gotLines.toArray( new String[0]), ffile.getPath());
+      nfile++;
+      nsubset += nkeep;
+    }
+  }
+  if (nfile == 0) throw new Exception("no subsets for station " + station);
+  prtln("TestFilter: ok: files: " + nfile + "  subsets: " + nsubset
+    + "  dropped files: " + ndrop);
+}
+
+
+
+
+// Splits the lines of an XML file into segments: each
+// <subset ...> ... </subset> block is one segment, and each other
+// line is a segment by itself.  Blank lines are dropped, since the
+// spacing between subsets depends on which subsets are written.
+
+static ArrayList<String[]> getSegments( String[] lines)
+throws Exception
+{
+  ArrayList<String[]> segs = new ArrayList<String[]>();
+  int ii = 0;
+  while (ii < lines.length) {
+    if (lines[ii].trim().length() == 0) ii++;
+    else if (lines[ii].startsWith("<subset ")) {
+      int iend = ii;
+      while (iend < lines.length && ! lines[iend].equals("</subset>")) iend++;
+      if (iend == lines.length) throw new Exception("no </subset>");
+      String[] seg = new String[ iend + 1 - ii];
+      System.arraycopy( lines, ii, seg, 0, seg.length);
+      segs.add( seg);
+      ii = iend + 1;
+    }
+    else {
+      segs.add( new String[] { lines[ii]});
+      ii++;
+    }
+  }
+  return segs;
+}
+
+
+
+
+static boolean contains(
+  String[] lines,
+  String stg)
+{
+  boolean res = false;
+  for (String line : lines) {
+    if (line.contains( stg)) {
+      res = true;
+      break;
+    }
+  }
+  return res;
+}
+
+
+
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+} // end class
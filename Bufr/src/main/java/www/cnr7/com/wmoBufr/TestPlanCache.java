@@ -0,0 +1,53 @@
+
+package www.cnr7.com.wmoBufr;
+
+
+// Checks that decoding with the DecodePlan cache gives the same
+// output as decoding without it, serial and with -threads.
+
+public class TestPlanCache {
+
+
+public static void main( String[] args) {
+  try { runit( args); }
+  catch( Exception exc) {
+    prtln("caught: " + exc);
+    exc.printStackTrace();
+    System.exit(1);
+  }
+}
+
+
+
+static void runit( String[] args)
+throws Exception
+{
+  TestUtil.Parms parms = TestUtil.parseParms("TestPlanCache", args, true);
+  String[] stdouts = TestUtil.checkSame( parms, new String[][] {
+    { "none", "-maxPlans", "0", "-cacheStats", "y"},
+    { "cache", "-cacheStats", "y"},
+    { "threads", "-threads", "3"}});
+
+  // The test data reuses its templates, so the cache must get hits
+  if (! stdouts[0].contains("numPlans: 0  numHits: 0  numMisses: "))
+    throw new Exception("none: cache was used");
+  if (stdouts[1].contains("numHits: 0  ")
+    || ! stdouts[1].contains("numHits: "))
+  {
+    throw new Exception("cache: no cache hits");
+  }
+  prtln("TestPlanCache: ok: files: "
+    + TestUtil.listNames( parms.workdir + "/none").length);
+}
+
+
+
+
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+} // end class
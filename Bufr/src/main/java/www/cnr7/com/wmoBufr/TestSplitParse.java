@@ -0,0 +1,49 @@
+
+package www.cnr7.com.wmoBufr;
+
+
+// Checks that -splitMessages, which parses the subsets of a message
+// in parallel, gives the same output as a serial parse.
+
+public class TestSplitParse {
+
+
+public static void main( String[] args) {
+  try { runit( args); }
+  catch( Exception exc) {
+    prtln("caught: " + exc);
+    exc.printStackTrace();
+    System.exit(1);
+  }
+}
+
+
+
+static void runit( String[] args)
+throws Exception
+{
+  TestUtil.Parms parms = TestUtil.parseParms("TestSplitParse", args, true);
+
+  // Split even small messages, so the test data needn't be large.
+  // The default minimum still splits the larger generated messages.
+  TestUtil.checkSame( parms, new String[][] {
+    { "serial", "-splitMessages", "1"},
+    { "split", "-splitMessages", "4", "-splitMinSubsets", "2"},
+    { "default", "-splitMessages", "4"},
+    { "threads", "-splitMessages", "4", "-splitMinSubsets", "2",
+      "-threads", "3"}});
+  prtln("TestSplitParse: ok: files: "
+    + TestUtil.listNames( parms.workdir + "/serial").length);
+}
+
+
+
+
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+} // end class
@@ -0,0 +1,44 @@
+
+package www.cnr7.com.wmoBufr;
+
+
+// Checks that -decode stream, which decodes one subset at a time,
+// gives the same output as -decode tree, serial and with -threads.
+
+public class TestStreamDecode {
+
+
+public static void main( String[] args) {
+  try { runit( args); }
+  catch( Exception exc) {
+    prtln("caught: " + exc);
+    exc.printStackTrace();
+    System.exit(1);
+  }
+}
+
+
+
+static void runit( String[] args)
+throws Exception
+{
+  TestUtil.Parms parms = TestUtil.parseParms("TestStreamDecode", args, true);
+  TestUtil.checkSame( parms, new String[][] {
+    { "tree", "-decode", "tree"},
+    { "stream", "-decode", "stream"},
+    { "threads", "-decode", "stream", "-threads", "3"}});
+  prtln("TestStreamDecode: ok: files: "
+    + TestUtil.listNames( parms.workdir + "/tree").length);
+}
+
+
+
+
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+} // end class
@@ -0,0 +1,191 @@
+
+package www.cnr7.com.wmoBufr;
+
+import java.io.File;
+import java.io.FileWriter;
+
+
+// Checks the TextReader tokenizer on quoted, escaped, and
+// malformed table lines.
+
+public class TestTextReader {
+
+
+public static void main( String[] args) {
+  try { runit( args); }
+  catch( Exception exc) {
+    prtln("caught: " + exc);
+    exc.printStackTrace();
+    System.exit(1);
+  }
+}
+
+
+
+static void runit( String[] args)
+throws Exception
+{
+  TestUtil.Parms parms = TestUtil.parseParms("TestTextReader", args, false);
+  new File( parms.workdir).mkdirs();
+  String workfile = parms.workdir + "/textReader.txt";
+
+  FileWriter wtr = new FileWriter( workfile);
+  wtr.write("# comment line\n");
+  wtr.write("\n");
+  wtr.write("   \t  \n");
+  wtr.write("  12  -7 +3 alpha \"beta   b\" \"tab\\there\""
+    + " \"q\\\"uote\" \"back\\\\slash\" \"\"  \r\n");
+  wtr.write("keyLo: 5 \"keyHi:\" x\r");
+  wtr.write("\"  lead  and\ttrail  \" \"a\\nb\"\n");
+  wtr.write("2147483647 -2147483648\n");
+  wtr.write("\"bad\\q\"\n");
+  wtr.write("\"no end\\\n");
+  wtr.write("abc\n");
+  wtr.write("2147483648\n");
+  wtr.write("12-3\n");
+  wtr.write("33.44\n");
+  wtr.write("-12\n");
+  wtr.write("# trailing comment\n");
+  wtr.close();
+
+  TextReader rdr = new TextReader( 0, workfile);
+
+  // Ints, unquoted and quoted strings, and escapes
+  rdr.readLine();
+  checkInt( rdr, 12);
+  checkInt( rdr, -7);
+  checkInt( rdr, 3);
+  checkString( rdr, "alpha");
+  checkString( rdr, "beta b");
+  checkString( rdr, "tab here");
+  checkString( rdr, "q\"uote");
+  checkString( rdr, "back\\slash");
+  checkString( rdr, "");
+  if (! rdr.atLineEnd()) throw new Exception("not at line end");
+  checkBad( rdr, true, "line too short");
+  rdr.resetLine();
+  checkInt( rdr, 12);
+
+  // Sentinels
+  rdr.readLine();
+  check( rdr.atToken("keyLo:"), "atToken keyLo:");
+  check( ! rdr.atToken("keyLo"), "atToken keyLo");
+  check( ! rdr.matchToken("keyHi:"), "matchToken keyHi: early");
+  check( rdr.matchToken("keyLo:"), "matchToken keyLo:");
+  checkInt( rdr, 5);
+  check( rdr.atToken("keyHi:"), "atToken quoted keyHi:");
+  check( rdr.matchToken("keyHi:"), "matchToken quoted keyHi:");
+  checkString( rdr, "x");
+  check( ! rdr.matchToken("x"), "matchToken at line end");
+  if (! rdr.atLineEnd()) throw new Exception("not at line end");
+
+  // Whitespace in quotes is compressed and trimmed
+  rdr.readLine();
+  checkString( rdr, "lead and trail");
+  checkString( rdr, "a b");
+
+  rdr.readLine();
+  checkInt( rdr, Integer.MAX_VALUE);
+  checkInt( rdr, Integer.MIN_VALUE);
+
+  // Malformed lines
+  rdr.readLine();
+  checkBad( rdr, false, "invalid backslash code");
+  rdr.readLine();
+  checkBad( rdr, false, "no ending quote");
+  rdr.readLine();
+  checkBad( rdr, true, "getInt of a string");
+  rdr.readLine();
+  checkBad( rdr, true, "int overflow");
+  rdr.readLine();
+  checkBad( rdr, true, "getInt of 12-3");
+  rdr.readLine();
+  checkBad( rdr, false, "getString of a double");
+  rdr.readLine();
+  checkBad( rdr, false, "getString of an int");
+  checkInt( rdr, -12);
+
+  // The trailing comment is skipped
+  rdr.readLine();
+  check( rdr.atEof, "atEof");
+  checkBad( rdr, true, "getInt at EOF");
+  try {
+    rdr.readLine();
+    throw new Exception("no error: readLine past EOF");
+  }
+  catch( BufrException exc) {}
+  rdr.close();
+
+  prtln("TestTextReader: ok");
+}
+
+
+
+
+static void checkInt(
+  TextReader rdr,
+  int expVal)
+throws Exception
+{
+  int ival = rdr.getInt();
+  if (ival != expVal)
+    throw new Exception("getInt: expected: " + expVal + "  got: " + ival);
+}
+
+
+
+
+static void checkString(
+  TextReader rdr,
+  String expVal)
+throws Exception
+{
+  String sval = rdr.getString();
+  if (! sval.equals( expVal))
+    throw new Exception("getString: expected: \"" + expVal
+      + "\"  got: \"" + sval + "\"");
+}
+
+
+
+
+// Checks that getInt, or else getString, throws a BufrException.
+
+static void checkBad(
+  TextReader rdr,
+  boolean useInt,
+  String msg)
+throws Exception
+{
+  boolean caught = false;
+  try {
+    if (useInt) rdr.getInt();
+    else rdr.getString();
+  }
+  catch( BufrException exc) {
+    caught = true;
+  }
+  if (! caught) throw new Exception("no error: " + msg);
+}
+
+
+
+
+static void check(
+  boolean okFlag,
+  String msg)
+throws Exception
+{
+  if (! okFlag) throw new Exception("failed: " + msg);
+}
+
+
+
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+} // end class
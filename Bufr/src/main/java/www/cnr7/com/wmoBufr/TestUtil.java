@@ -0,0 +1,316 @@
+
+package www.cnr7.com.wmoBufr;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+// Helpers for the Test* drivers: parse the common parms, run
+// BufrFile into an output directory, and compare output directories.
+
+class TestUtil {
+
+
+// Inner class
+// The parms common to the Test* drivers.
+
+static class Parms {
+String testName;
+String workdir;
+String tabledir;
+String tableVersion;               // like "13.0"
+String infile;
+HashMap<String,String> extra = new HashMap<String,String>();
+} // end inner class Parms
+
+
+
+
+static void badparms(
+  String testName,
+  boolean useData,
+  String[] extraHelp,
+  String msg)
+{
+  prtln(testName + ": Error: " + msg);
+  prtln("Parms:");
+  if (useData) {
+    prtln("  -tabledir       <stg>    default: generated test tables");
+    prtln("  -tableVersion   <stg>    like 13.0");
+    prtln("  -infile         <stg>    default: generated test data");
+  }
+  for (String line : extraHelp) {
+    prtln( line);
+  }
+  prtln("  -workdir        <stg>    scratch dir; its subdirs are deleted");
+  System.exit(1);
+}
+
+
+
+
+// Parses key/value parms.  Each line of extraHelp documents one more
+// parm, like "  -station   <stg>   ..."; its first word is the key,
+// and the value goes in Parms.extra.
+//
+// If useData, the parms -tabledir, -tableVersion and -infile are
+// accepted.  If none of them is given, the tables and data written
+// by TestData are used, in workdir/data.
+
+static Parms parseParms(
+  String testName,
+  String[] args,
+  boolean useData,
+  String... extraHelp)
+throws Exception
+{
+  Parms parms = new Parms();
+  parms.testName = testName;
+
+  if (args.length % 2 != 0)
+    badparms( testName, useData, extraHelp, "parms must be key/value pairs");
+  for (int iarg = 0; iarg < args.length; iarg += 2) {
+    String key = args[iarg];
+    String val = args[iarg+1];
+    boolean isExtra = false;
+    for (String line : extraHelp) {
+      if (line.trim().split("\\s+")[0].equals( key)) isExtra = true;
+    }
+    if (key.equals("-workdir")) parms.workdir = val;
+    else if (useData && key.equals("-tabledir")) parms.tabledir = val;
+    else if (useData && key.equals("-tableVersion")) parms.tableVersion = val;
+    else if (useData && key.equals("-infile")) parms.infile = val;
+    else if (isExtra) parms.extra.put( key, val);
+    else badparms( testName, useData, extraHelp, "unknown parm: " + key);
+  }
+
+  if (parms.workdir == null)
+    badparms( testName, useData, extraHelp, "parm not specified: -workdir");
+
+  if (useData) {
+    if (parms.tabledir == null && parms.tableVersion == null
+      && parms.infile == null)
+    {
+      String datadir = parms.workdir + "/data";
+      TestData.writeAll( datadir);
+      parms.tabledir = datadir + "/tables";
+      parms.tableVersion = TestData.TABLE_VERSION;
+      parms.infile = datadir + "/test.bufr";
+    }
+    else if (parms.tabledir == null || parms.tableVersion == null
+      || parms.infile == null)
+    {
+      badparms( testName, useData, extraHelp,
+        "specify all or none of -tabledir, -tableVersion, -infile");
+    }
+  }
+  return parms;
+}
+
+
+
+
+// Runs BufrFile.mainPgm on parms.infile, writing the XML to
+// outdir/m_#msgNum#.xml.  The parms in extra are appended.
+// Returns stdout; getReport extracts the report lines.
+
+static String runBufr(
+  Parms parms,
+  String outdir,
+  String... extra)
+throws Exception
+{
+  File dir = new File( outdir);
+  deleteDir( dir);
+  if (! dir.mkdirs()) throw new Exception("cannot create: " + outdir);
+
+  ArrayList<String> args = new ArrayList<String>();
+  args.addAll( Arrays.asList(
+    "-tabledir_" + parms.tableVersion, parms.tabledir,
+    "-parseStage", "data",
+    "-outFormat", "xml",
+    "-outStyle", "full",
+    "-usageBanner", "n",
+    "-inFile", parms.infile,
+    "-outSpec", outdir + "/m_#msgNum#.xml",
+    "-report", "rep #msgNum# #category# #numTemplates#"
+      + " #^value_0_12_001.1# #^2:value_0_12_001.2#"));
+  args.addAll( Arrays.asList( extra));
+
+  // Capture stdout, for the report lines
+  PrintStream saveOut = System.out;
+  ByteArrayOutputStream bout = new ByteArrayOutputStream();
+  PrintStream pout = new PrintStream( bout, true, "UTF-8");
+  int rc = 0;
+  System.setOut( pout);
+  try {
+    rc = BufrFile.mainPgm( args.toArray( new String[0]));
+  }
+  finally {
+    System.setOut( saveOut);
+    pout.close();
+  }
+  String stdout = bout.toString("UTF-8");
+  if (rc != 0)
+    throw new Exception("BufrFile failed: rc: " + rc + "\n" + stdout);
+  return stdout;
+}
+
+
+
+
+// Returns only the report lines of stdout.  Other messages may
+// come from worker threads in any order.
+
+static String getReport( String stdout) {
+  StringBuilder sbuf = new StringBuilder();
+  for (String line : stdout.split("\n")) {
+    if (line.startsWith("rep ")) sbuf.append( line + "\n");
+  }
+  return sbuf.toString();
+}
+
+
+
+
+// Runs BufrFile once per config, into workdir/<config name>, and
+// checks that each run writes the same report and files as the
+// first.  Each config is a name followed by the extra BufrFile parms.
+// Returns the stdout of each run.
+
+static String[] checkSame(
+  Parms parms,
+  String[][] configs)
+throws Exception
+{
+  String[] stdouts = new String[ configs.length];
+  String firstDir = parms.workdir + "/" + configs[0][0];
+  for (int ii = 0; ii < configs.length; ii++) {
+    String name = configs[ii][0];
+    String[] extra = Arrays.copyOfRange( configs[ii], 1, configs[ii].length);
+    String outdir = parms.workdir + "/" + name;
+    stdouts[ii] = runBufr( parms, outdir, extra);
+    if (ii == 0) {
+      if (getReport( stdouts[0]).length() == 0)
+        throw new Exception("no report lines");
+      if (listNames( outdir).length == 0)
+        throw new Exception("no output files");
+    }
+    else {
+      if (! getReport( stdouts[ii]).equals( getReport( stdouts[0])))
+        throw new Exception(name + ": report differs");
+      compareDirs( firstDir, outdir);
+    }
+  }
+  return stdouts;
+}
+
+
+
+
+// Checks that dira and dirb have the same files with the same lines,
+// except for the convertUtcDate line.  Returns the number of files.
+
+static int compareDirs(
+  String dira,
+  String dirb)
+throws Exception
+{
+  String[] namesa = listNames( dira);
+  String[] namesb = listNames( dirb);
+  if (! Arrays.equals( namesa, namesb))
+    throw new Exception("file names differ: \"" + dira + "\"  \""
+      + dirb + "\"");
+  for (String name : namesa) {
+    compareLines( readLines( dira + "/" + name),
+      readLines( dirb + "/" + name), dira + "/" + name);
+  }
+  return namesa.length;
+}
+
+
+
+
+static void compareLines(
+  String[] linesa,
+  String[] linesb,
+  String msg)
+throws Exception
+{
+  int nline = Math.max( linesa.length, linesb.length);
+  for (int ii = 0; ii < nline; ii++) {
+    String linea = ii < linesa.length ? linesa[ii] : null;
+    String lineb = ii < linesb.length ? linesb[ii] : null;
+    if (linea != null && lineb != null
+      && linea.contains("convertUtcDate=")
+      && lineb.contains("convertUtcDate="))
+      continue;
+    if (linea == null || ! linea.equals( lineb))
+      throw new Exception("lines differ: " + msg + "  line: " + (ii+1)
+        + "\n  a: " + linea + "\n  b: " + lineb);
+  }
+}
+
+
+
+
+static String[] listNames( String dir)
+throws Exception
+{
+  String[] names = new File( dir).list();
+  if (names == null) throw new Exception("cannot list: " + dir);
+  Arrays.sort( names);
+  return names;
+}
+
+
+
+
+static String[] readLines( String fname)
+throws IOException
+{
+  ArrayList<String> lines = new ArrayList<String>();
+  BufferedReader rdr = new BufferedReader( new InputStreamReader(
+    new FileInputStream( fname), "UTF-8"));
+  try {
+    String line;
+    while ((line = rdr.readLine()) != null) {
+      lines.add( line);
+    }
+  }
+  finally {
+    rdr.close();
+  }
+  return lines.toArray( new String[0]);
+}
+
+
+
+
+static void deleteDir( File dir) {
+  File[] subs = dir.listFiles();
+  if (subs != null) {
+    for (File sub : subs) {
+      if (sub.isDirectory()) deleteDir( sub);
+      else sub.delete();
+    }
+  }
+  dir.delete();
+}
+
+
+
+
+static void prtln( String msg) {
+  System.out.println( msg);
+}
+
+} // end class
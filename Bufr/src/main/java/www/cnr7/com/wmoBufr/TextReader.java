@@ -35,18 +35,31 @@
 
 package www.cnr7.com.wmoBufr;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
-import java.util.LinkedList;
+import java.util.Arrays;
 
 
 
 /**
  * Reads a file, splits each line into tokens,
  * and returns the tokens one by one as ints or Strings.
+ * <p>
+ * The whole file is read into a char buffer, and the tokens
+ * are parsed in place by a cursor on the current line:
+ * ints are converted directly from the chars, and a String
+ * is made only when the caller asks for one.
+ * Sentinels like "keyLo:" are checked with
+ * {@link #matchToken matchToken}, without making a String.
+ * <p>
+ * A token is a quoted string, like "beta b", or a run of
+ * non-whitespace.  In a quoted string, \\ \n \r \t \" are escapes,
+ * and all whitespace is replaced by a single blank.
+ * An unquoted token is an int, a double, or else a string.
  *
  * @author S. Sullivan
  */
@@ -55,12 +68,15 @@ class TextReader {
 
 int bugs = 0;
 String fname = null;
-BufferedReader rdr;
 
-String curLine = null;
+char[] buf = null;       // the entire file
+int bufLen = 0;          // num chars in buf
+
+int lineBeg = 0;         // start of the current line in buf, trimmed
+int lineEnd = 0;         // end of the current line in buf, trimmed
+int nextLine = 0;        // start of the next line in buf
 int lineNum = 0;
-Object[] curObjs = null;
-int objNum = 0;
+int pos = 0;             // cursor: start of the next token in the line
 
 boolean atEof = false;
 
@@ -72,79 +88,122 @@ throws BufrException
 {
   this.bugs = bugs;
   this.fname = fname;
+  Reader rdr = null;
   try {
-    rdr = new BufferedReader( new FileReader( fname));
+    rdr = new FileReader( fname);
   }
   catch( IOException exc) {
     BufrUtil.prtlnexc("caught", exc);
     throwerr("cannot open file \"" + fname + "\": " + exc);
   }
-}
-
-
-
-void close()
-throws BufrException
-{
   try {
+    // The char length is at most the byte length, for the usual
+    // encodings.  Grow the buffer if not.
+    buf = new char[ (int) Math.min( new File( fname).length() + 1,
+      Integer.MAX_VALUE / 2)];
+    while (true) {
+      if (bufLen == buf.length) buf = Arrays.copyOf( buf, 2 * bufLen);
+      int nread = rdr.read( buf, bufLen, buf.length - bufLen);
+      if (nread < 0) break;
+      bufLen += nread;
+    }
     rdr.close();
   }
   catch( IOException exc) {
     BufrUtil.prtlnexc("caught", exc);
-    throwerr("cannot close file \"" + fname + "\": " + exc);
+    throwerr("cannot read file \"" + fname + "\": " + exc);
   }
 }
 
 
 
+void close() {
+  buf = null;
+}
+
+
+
 
 
+// Advances to the next line that is not empty or a comment.
+// Sets atEof if there is none.
+
 void readLine()
 throws BufrException
 {
   if (atEof) throwerr("read past EOF");
-  try {
-    while (! atEof) {
-      curLine = rdr.readLine();
-      lineNum++;
+  while (true) {
+    lineNum++;
+    if (nextLine >= bufLen) {
       if (bugs >= 10)
-        prtln("readLine: curLine: " + lineNum + "  \"" + curLine + "\"");
-      if (curLine == null) atEof = true;
-      else {
-        curLine = curLine.trim();
-        if (curLine.length() > 0 && ! curLine.startsWith("#")) {
-          curObjs = splitString(
-            true,           // allowInt
-            true,           // allowDouble
-            true,           // allowString
-            true,           // allowQuote
-            true,           // compressFlag
-            curLine);       // string to be parsed
-          objNum = 0;
-          break;
-        }
-      }
+        prtln("readLine: curLine: " + lineNum + "  \"" + null + "\"");
+      atEof = true;
+      lineBeg = lineEnd = pos = 0;
+      break;
     }
+
+    // Find the line end.  Like BufferedReader, accept \n, \r, or \r\n.
+    int ibeg = nextLine;
+    int iend = ibeg;
+    while (iend < bufLen && buf[iend] != '\n' && buf[iend] != '\r') iend++;
+    nextLine = iend + 1;
+    if (iend + 1 < bufLen && buf[iend] == '\r' && buf[iend+1] == '\n')
+      nextLine++;
+
+    // Trim, like String.trim
+    while (ibeg < iend && buf[ibeg] <= ' ') ibeg++;
+    while (iend > ibeg && buf[iend-1] <= ' ') iend--;
+    lineBeg = ibeg;
+    lineEnd = iend;
+    pos = ibeg;
+    if (bugs >= 10)
+      prtln("readLine: curLine: " + lineNum + "  \"" + getCurLine() + "\"");
+    if (ibeg < iend && buf[ibeg] != '#') break;
   }
-  catch( IOException exc) {
-    BufrUtil.prtlnexc("caught", exc);
-    throwfmt("IO error");
-  }
-  if (atEof) curObjs = null;
 }
 
 
 
-void setObjNum( int num) {
-  objNum = num;
+// Returns the current line, or null at EOF.  For messages.
+
+String getCurLine() {
+  String res = null;
+  if (! atEof && buf != null)
+    res = new String( buf, lineBeg, lineEnd - lineBeg);
+  return res;
+}
+
+
+
+// Moves the cursor back to the start of the current line.
+
+void resetLine() {
+  pos = lineBeg;
 }
 
 
 
 boolean atLineEnd() {
-  boolean res = false;
-  if (objNum == curObjs.length) res = true;
-  return res;
+  return ! skipSpace();
+}
+
+
+
+// Skips whitespace.  Returns true if there is another token.
+
+boolean skipSpace() {
+  while (pos < lineEnd && Character.isWhitespace( buf[pos])) pos++;
+  return pos < lineEnd;
+}
+
+
+
+// Returns the end of the unquoted token starting at pos.
+
+int getTokenEnd() {
+  int ilim = pos + 1;
+  while (ilim < lineEnd && ! Character.isWhitespace( buf[ilim])) ilim++;
+  return ilim;
 }
 
 
@@ -154,11 +213,26 @@ int getInt()
 throws BufrException
 {
   if (atEof) throwfmt("at EOF");
-  if (objNum >= curObjs.length) throwfmt("line too short");
-  if ( ! (curObjs[objNum] instanceof Integer)) throwfmt("invalid desc line");
-  int ival = ((Integer) curObjs[objNum]).intValue();
-  objNum++;
-  return ival;
+  if (! skipSpace()) throwfmt("line too short");
+  int ilim = getTokenEnd();
+  int ix = pos;
+  boolean isNeg = false;
+  if (buf[ix] == '-' || buf[ix] == '+') {
+    isNeg = buf[ix] == '-';
+    ix++;
+  }
+  if (ix == ilim) throwfmt("invalid desc line");
+  long lval = 0;
+  for (; ix < ilim; ix++) {
+    char cc = buf[ix];
+    if (cc < '0' || cc > '9') throwfmt("invalid desc line");
+    lval = 10 * lval + (cc - '0');
+    if (lval > 1L + Integer.MAX_VALUE) throwfmt("invalid desc line");
+  }
+  if (isNeg) lval = -lval;
+  if (lval > Integer.MAX_VALUE) throwfmt("invalid desc line");
+  pos = ilim;
+  return (int) lval;
 }
 
 
@@ -169,10 +243,15 @@ String getString()
 throws BufrException
 {
   if (atEof) throwfmt("at EOF");
-  if (objNum >= curObjs.length) throwfmt("line too short");
-  if ( ! (curObjs[objNum] instanceof String)) throwfmt("invalid desc line");
-  String sval = (String) curObjs[objNum];
-  objNum++;
+  if (! skipSpace()) throwfmt("line too short");
+  String sval = null;
+  if (buf[pos] == '\"') sval = getQuoted();
+  else {
+    int ilim = getTokenEnd();
+    if (isNumber( pos, ilim)) throwfmt("invalid desc line");
+    sval = new String( buf, pos, ilim - pos);
+    pos = ilim;
+  }
   return sval;
 }
 
@@ -180,102 +259,140 @@ throws BufrException
 
 
 
+/**
+ * Returns true if the next token is the string stg,
+ * without moving the cursor.  stg must not be a number.
+ */
 
-// Parse a string of the form:
-//     12 alpha 33.44 "beta b"
-// To get an Object[] containing:
-//     Integer(12), String("alpha"), Double(33.44), String("beta b")
-
-Object[] splitString(
-  boolean allowInt,       // allow int:               12
-  boolean allowDouble,    // allow double:            1.23
-  boolean allowString,    // allow unquoted string:   alpha
-  boolean allowQuote,     // allow quoted string:     "beta b"
-  boolean compressFlag,   // replace all whitespace with a single blank
-  String stg)             // string to be parsed
+boolean atToken( String stg)
 throws BufrException
 {
-  LinkedList<Object> resList = new LinkedList<Object>();
-  int ipos = 0;
-  while (ipos < stg.length()) {
-    // Skip whitespace
-    while (ipos < stg.length() && Character.isWhitespace( stg.charAt(ipos))) {
-      ipos++;
+  boolean res = false;
+  if (! atEof && skipSpace()) {
+    if (buf[pos] == '\"') {
+      int savePos = pos;
+      res = getQuoted().equals( stg);
+      pos = savePos;
     }
-    if (ipos >= stg.length()) break;
-
-    // Try a quoted string
-    if (allowQuote && stg.charAt(ipos) == '\"') {
-      StringBuffer sbuf = new StringBuffer();
-      // Scan for ending quote
-      ipos++;
-      while (ipos < stg.length()) {
-        char cc = stg.charAt(ipos);
-        if (cc == '\"') break;
-        else if (cc == '\\') {
-          ipos++;
-          if (ipos >= stg.length()) throwfmt("No ending quote");
-          cc = stg.charAt(ipos);
-          if (cc == '\\') sbuf.append('\\');
-          else if (cc == 'n') sbuf.append('\n');
-          else if (cc == 'r') sbuf.append('\r');
-          else if (cc == 't') sbuf.append('\t');
-          else if (cc == '\"') sbuf.append('\"');
-          else throwfmt("Invalid backslash code");
+    else {
+      int ilim = getTokenEnd();
+      if (ilim - pos == stg.length()) {
+        res = true;
+        for (int ii = 0; ii < stg.length(); ii++) {
+          if (buf[pos+ii] != stg.charAt(ii)) {
+            res = false;
+            break;
+          }
         }
-        else sbuf.append(cc);
-        ipos++;
       }
-      ipos++;  // skip over ending quote
-      String resStg = sbuf.toString();
-      if (compressFlag) resStg = compressString( resStg);
-      resList.add( resStg);
     }
-    else {      // else not a quoted string
+  }
+  return res;
+}
+
+
+
+
+/**
+ * If the next token is the string stg, skips it and returns true.
+ * Else returns false, without moving the cursor.
+ * stg must not be a number.
+ */
+
+boolean matchToken( String stg)
+throws BufrException
+{
+  boolean res = atToken( stg);
+  if (res) {
+    if (buf[pos] == '\"') getQuoted();
+    else pos = getTokenEnd();
+  }
+  return res;
+}
+
+
 
-      // Skip non-whitespace
-      int ilim = ipos + 1;
-      while (ilim < stg.length()
-        && ! Character.isWhitespace( stg.charAt(ilim))) {
-        ilim++;
-      }
 
-      // Try an integer
-      boolean okflag = false;
-      if (allowInt && ! okflag) {
-        try {
-          int ival = Integer.parseInt( stg.substring( ipos, ilim), 10);
-          resList.add( new Integer( ival));
-          okflag = true;
-        }
-        catch( NumberFormatException exc) { okflag = false; }
-      }
-  
-      // Try a double
-      if (allowDouble && ! okflag) {
-        try {
-          double dval = Double.parseDouble( stg.substring( ipos, ilim));
-          resList.add( new Double( dval));
-          okflag = true;
-        }
-        catch( NumberFormatException exc) { okflag = false; }
-      }
 
-      // Try an unquoted string
-      if (allowString && ! okflag) {
-        String resStg = stg.substring( ipos, ilim);
-        if (compressFlag) resStg = compressString( resStg);
-        resList.add( resStg);
-        okflag = true;
+// Returns the quoted string starting at pos, and moves pos past it.
+// If the string has no escapes and needs no compressing,
+// it is made directly from buf.
+
+String getQuoted()
+throws BufrException
+{
+  int ibeg = pos + 1;
+  int ix = ibeg;
+  boolean isSimple = true;
+  char cprev = ' ';
+  while (ix < lineEnd && buf[ix] != '\"') {
+    char cc = buf[ix];
+    if (cc == '\\'
+      || (Character.isWhitespace( cc) && (cc != ' ' || cprev == ' ')))
+    {
+      isSimple = false;
+      break;
+    }
+    cprev = cc;
+    ix++;
+  }
+  if (cprev == ' ') isSimple = false;   // empty, or a trailing blank
+
+  String resStg = null;
+  if (isSimple) {
+    resStg = new String( buf, ibeg, ix - ibeg);
+    pos = Math.min( ix + 1, lineEnd);     // skip over ending quote
+  }
+  else {
+    StringBuilder sbuf = new StringBuilder();
+    // Scan for ending quote
+    ix = ibeg;
+    while (ix < lineEnd) {
+      char cc = buf[ix];
+      if (cc == '\"') break;
+      else if (cc == '\\') {
+        ix++;
+        if (ix >= lineEnd) throwfmt("No ending quote");
+        cc = buf[ix];
+        if (cc == '\\') sbuf.append('\\');
+        else if (cc == 'n') sbuf.append('\n');
+        else if (cc == 'r') sbuf.append('\r');
+        else if (cc == 't') sbuf.append('\t');
+        else if (cc == '\"') sbuf.append('\"');
+        else throwfmt("Invalid backslash code");
       }
+      else sbuf.append(cc);
+      ix++;
+    }
+    pos = Math.min( ix + 1, lineEnd);     // skip over ending quote
+    resStg = compressString( sbuf.toString());
+  }
+  return resStg;
+}
+
+
 
-      if (! okflag) throwfmt("unrecognized item in string");
-      ipos = ilim;
-    } // else not a quoted string
-  } // while ipos < stg.len
-  Object[] resvec = resList.toArray( new Object[0]);
-  return resvec;
-} // end splitString
+
+// Returns true if the unquoted token in buf[ibeg ... ilim-1]
+// parses as an int or a double.
+
+boolean isNumber(
+  int ibeg,
+  int ilim)
+{
+  boolean res = false;
+  char cc = buf[ibeg];
+  if ((cc >= '0' && cc <= '9') || cc == '-' || cc == '+' || cc == '.'
+    || cc == 'N' || cc == 'I')                     // NaN, Infinity
+  {
+    try {
+      Double.parseDouble( new String( buf, ibeg, ilim - ibeg));
+      res = true;
+    }
+    catch( NumberFormatException exc) { res = false; }
+  }
+  return res;
+}
 
 
 
@@ -353,7 +470,7 @@ throws BufrException
   String msg = "\nError: " + msgparm + "\n"
     + "  file: \"" + fname + "\"\n"
     + "  line number: " + lineNum + "\n"
-    + "  \"" + curLine + "\"";
+    + "  \"" + getCurLine() + "\"";
   throwerr( msg);
 }
 